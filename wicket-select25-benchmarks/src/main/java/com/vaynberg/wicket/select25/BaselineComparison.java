@@ -0,0 +1,108 @@
+/*
+ * Copyright 2012 Igor Vaynberg
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this work except in compliance with
+ * the License. You may obtain a copy of the License in the LICENSE file, or at:
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package com.vaynberg.wicket.select25;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.json.JSONTokener;
+
+/**
+ * Compares the Json results of a benchmark run, as written by {@code -rf json}, with the committed baseline and lists
+ * every benchmark whose score is worse by more than the tolerance. Scores are average times, so higher is worse.
+ * <pre>
+ * java -cp target/benchmarks.jar com.vaynberg.wicket.select25.BaselineComparison baselines/baseline.json jmh-result.json [tolerance%]
+ * </pre>
+ * Exits with {@code 1} if a benchmark regressed, so the comparison can fail a build.
+ *
+ * @author igor
+ */
+public final class BaselineComparison {
+
+    private static final double DEFAULT_TOLERANCE = 10;
+
+    private BaselineComparison() {
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 2) {
+            System.err.println("usage: BaselineComparison <baseline.json> <results.json> [tolerance%]");
+            System.exit(2);
+        }
+        Map<String, JSONObject> baseline = read(args[0]);
+        Map<String, JSONObject> results = read(args[1]);
+        double tolerance = args.length > 2 ? Double.parseDouble(args[2]) : DEFAULT_TOLERANCE;
+
+        int regressions = 0;
+        for (Map.Entry<String, JSONObject> entry : results.entrySet()) {
+            JSONObject before = baseline.get(entry.getKey());
+            double score = entry.getValue().getDouble("score");
+            String unit = entry.getValue().getString("scoreUnit");
+            if (before == null) {
+                System.out.printf("  new  %-70s %12.3f %s%n", entry.getKey(), score, unit);
+                continue;
+            }
+            double base = before.getDouble("score");
+            double change = base == 0 ? 0 : (score - base) * 100 / base;
+            boolean regressed = change > tolerance;
+            if (regressed) {
+                regressions++;
+            }
+            System.out.printf("%s %-70s %12.3f -> %12.3f %s %+7.1f%%%n", regressed ? "WORSE" : "     ", entry.getKey(),
+                base, score, unit, change);
+        }
+
+        if (regressions > 0) {
+            System.out.println(regressions + " benchmark(s) regressed by more than " + tolerance + "%");
+            System.exit(1);
+        }
+    }
+
+    /**
+     * @return primary metrics of the benchmarks by benchmark name and parameters
+     */
+    private static Map<String, JSONObject> read(String file) throws IOException {
+        JSONArray runs;
+        try (Reader reader = Files.newBufferedReader(Paths.get(file), StandardCharsets.UTF_8)) {
+            runs = new JSONArray(new JSONTokener(reader));
+        }
+        Map<String, JSONObject> metrics = new LinkedHashMap<String, JSONObject>();
+        for (int i = 0; i < runs.length(); i++) {
+            JSONObject run = runs.getJSONObject(i);
+            String name = run.getString("benchmark");
+            name = name.substring(name.lastIndexOf('.', name.lastIndexOf('.') - 1) + 1);
+
+            JSONObject params = run.optJSONObject("params");
+            if (params != null) {
+                // order the parameters so that the keys of both runs match
+                Map<String, Object> sorted = new TreeMap<String, Object>();
+                for (Iterator<String> keys = params.keys(); keys.hasNext(); ) {
+                    String key = keys.next();
+                    sorted.put(key, params.get(key));
+                }
+                name += sorted;
+            }
+            metrics.put(name, run.getJSONObject("primaryMetric"));
+        }
+        return metrics;
+    }
+}
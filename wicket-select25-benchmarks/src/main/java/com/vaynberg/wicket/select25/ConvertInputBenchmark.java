@@ -0,0 +1,82 @@
+/*
+ * Copyright 2012 Igor Vaynberg
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this work except in compliance with
+ * the License. You may obtain a copy of the License in the LICENSE file, or at:
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package com.vaynberg.wicket.select25;
+
+import java.util.concurrent.TimeUnit;
+
+import org.apache.wicket.util.tester.BaseWicketTester;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Converts the ids a multi choice submits back into choices, see {@link Select25MultiChoice#convertInput()}
+ *
+ * @author igor
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class ConvertInputBenchmark {
+
+    /** number of submitted ids */
+    @Param({"10", "1000", "10000"})
+    public int ids;
+
+    private BaseWicketTester tester;
+    private Select25MultiChoice<Fixtures.Item> choice;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        tester = Fixtures.start();
+        choice = Fixtures.startInPage(tester, Fixtures.multiChoice());
+        tester.getRequest().setParameter(choice.getInputName(), Fixtures.ids(ids, Fixtures.CHOICES));
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        tester.destroy();
+    }
+
+    @Benchmark
+    public Object convertInput() {
+        choice.convertInput();
+        Object converted = choice.getConvertedInput();
+        // forget the choices converted during the request, so that every invocation converts the ids
+        choice.detach();
+        return converted;
+    }
+
+    /**
+     * Converts ids that were already converted during the request, as when the raw input of a form that failed
+     * validation is rendered
+     */
+    @Benchmark
+    public Object convertInputAgain() {
+        choice.convertInput();
+        return choice.getConvertedInput();
+    }
+}
@@ -0,0 +1,63 @@
+/*
+ * Copyright 2012 Igor Vaynberg
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this work except in compliance with
+ * the License. You may obtain a copy of the License in the LICENSE file, or at:
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package com.vaynberg.wicket.select25;
+
+import java.util.concurrent.TimeUnit;
+
+import org.apache.wicket.util.tester.BaseWicketTester;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Builds the inline dictionary of a component from its localized strings, see
+ * {@link Select25AbstractChoice#createDictionary()}
+ *
+ * @author igor
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class DictionaryBenchmark {
+
+    private BaseWicketTester tester;
+    private Select25SingleChoice<Fixtures.Item> choice;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        tester = Fixtures.start();
+        choice = Fixtures.startInPage(tester, Fixtures.singleChoice());
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        tester.destroy();
+    }
+
+    @Benchmark
+    public Object createDictionary() {
+        return choice.createDictionary();
+    }
+}
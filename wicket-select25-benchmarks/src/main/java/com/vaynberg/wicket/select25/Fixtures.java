@@ -0,0 +1,158 @@
+/*
+ * Copyright 2012 Igor Vaynberg
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this work except in compliance with
+ * the License. You may obtain a copy of the License in the LICENSE file, or at:
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package com.vaynberg.wicket.select25;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.wicket.Component;
+import org.apache.wicket.markup.Markup;
+import org.apache.wicket.mock.MockApplication;
+import org.apache.wicket.model.IModel;
+import org.apache.wicket.model.Model;
+import org.apache.wicket.model.util.CollectionModel;
+import org.apache.wicket.util.tester.BaseWicketTester;
+
+/**
+ * Data and Wicket environment shared by the benchmarks
+ *
+ * @author igor
+ */
+final class Fixtures {
+
+    /** number of choices the providers of the benchmarks search */
+    static final int CHOICES = 10000;
+
+    private static final String[] WORDS = {"alpha", "bravo", "charlie", "delta", "echo", "foxtrot", "golf", "hotel",
+        "india", "juliett", "kilo", "lima", "mike", "november", "oscar", "papa"};
+
+    /** index over {@link #CHOICES} choices, built before any benchmark runs */
+    private static final ChoiceIndex<Item> CATALOG = index(items(CHOICES));
+
+    private Fixtures() {
+    }
+
+    /**
+     * Starts a mock application and binds it, its session and a request cycle to the calling thread. Benchmarks keep
+     * their state per thread, so each benchmark thread gets its own tester.
+     *
+     * @return tester, to be destroyed when the benchmark tears down
+     */
+    static BaseWicketTester start() {
+        return new BaseWicketTester(new MockApplication());
+    }
+
+    /**
+     * Renders a component in a page of its own, so that it has a markup id and a listener url
+     *
+     * @param tester    tester
+     * @param component component with the id {@code choice}
+     * @return the component
+     */
+    static <C extends Component> C startInPage(BaseWicketTester tester, C component) {
+        return tester.startComponentInPage(component, Markup.of("<input type=\"hidden\" wicket:id=\"choice\"/>"));
+    }
+
+    /**
+     * @return single choice over {@link #CHOICES} choices
+     */
+    static Select25SingleChoice<Item> singleChoice() {
+        return new Select25SingleChoice<Item>("choice", Model.of((Item) null), provider(), Model.of("Item"));
+    }
+
+    /**
+     * @return multi choice over {@link #CHOICES} choices
+     */
+    static Select25MultiChoice<Item> multiChoice() {
+        return new Select25MultiChoice<Item>("choice", new CollectionModel<Item>(new ArrayList<Item>()), provider(),
+            Model.of("Items"), Model.of("Add item"));
+    }
+
+    /**
+     * @return provider searching {@link #CHOICES} choices
+     */
+    static IndexedChoiceProvider<Item> provider() {
+        return provider(20);
+    }
+
+    /**
+     * @param pageSize number of choices per page
+     * @return provider searching {@link #CHOICES} choices
+     */
+    static IndexedChoiceProvider<Item> provider(int pageSize) {
+        // pages holding the provider are serialized, the index is not
+        IModel<ChoiceIndex<Item>> model = () -> CATALOG;
+        return new IndexedChoiceProvider<Item>(model, pageSize);
+    }
+
+    /**
+     * @param size number of choices
+     * @return choices with ids {@code 0} to {@code size - 1} and labels made of a few words
+     */
+    static List<Item> items(int size) {
+        List<Item> items = new ArrayList<Item>(size);
+        for (int i = 0; i < size; i++) {
+            String label = WORDS[i % WORDS.length] + " " + WORDS[(i / WORDS.length) % WORDS.length] + " \"" + i + "\"";
+            items.add(new Item(i, label));
+        }
+        return items;
+    }
+
+    /**
+     * @param items choices
+     * @return index over the choices
+     */
+    static ChoiceIndex<Item> index(List<Item> items) {
+        return new ChoiceIndex<Item>(items, Item::getId, Item::getLabel);
+    }
+
+    /**
+     * @param count number of ids
+     * @param size  number of choices the ids are picked from
+     * @return comma separated ids spread evenly over the choices, as a multi choice submits them
+     */
+    static String ids(int count, int size) {
+        StringBuilder ids = new StringBuilder();
+        for (int i = 0; i < count; i++) {
+            if (i > 0) {
+                ids.append(',');
+            }
+            ids.append((long) i * size / count);
+        }
+        return ids.toString();
+    }
+
+    /**
+     * Choice of the benchmarks
+     */
+    static final class Item implements Serializable {
+        private static final long serialVersionUID = 1L;
+
+        private final int id;
+        private final String label;
+
+        Item(int id, String label) {
+            this.id = id;
+            this.label = label;
+        }
+
+        int getId() {
+            return id;
+        }
+
+        String getLabel() {
+            return label;
+        }
+    }
+}
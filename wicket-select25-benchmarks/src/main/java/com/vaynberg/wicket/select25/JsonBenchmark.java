@@ -0,0 +1,136 @@
+/*
+ * Copyright 2012 Igor Vaynberg
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this work except in compliance with
+ * the License. You may obtain a copy of the License in the LICENSE file, or at:
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package com.vaynberg.wicket.select25;
+
+import java.io.OutputStream;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.wicket.model.IModel;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.json.JSONException;
+import org.json.JSONWriter;
+
+import com.vaynberg.wicket.select25.json.JsonBuilder;
+import com.vaynberg.wicket.select25.json.JsonEncoder;
+
+/**
+ * Encodes an array of choices with the {@link JsonBuilder}, which writes through org.json into a
+ * {@link com.vaynberg.wicket.select25.json.StringBuilderWriter}, and with the {@link JsonEncoder} query responses are
+ * streamed with, both natively and through the {@link JSONWriter} bridge used by providers that only implement
+ * {@link ChoiceProvider#toJson(Object, JSONWriter)}.
+ *
+ * @author igor
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class JsonBenchmark {
+
+    /** number of encoded choices */
+    @Param({"10", "100", "1000"})
+    public int choices;
+
+    private List<Fixtures.Item> items;
+    private ChoiceProvider<Fixtures.Item> provider;
+    private ChoiceProvider<Fixtures.Item> writerProvider;
+    private JsonEncoder encoder;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        items = Fixtures.items(choices);
+        final ChoiceIndex<Fixtures.Item> index = Fixtures.index(items);
+        IModel<ChoiceIndex<Fixtures.Item>> model = () -> index;
+        provider = new IndexedChoiceProvider<Fixtures.Item>(model);
+        writerProvider = new WriterProvider(provider);
+        encoder = new JsonEncoder();
+    }
+
+    @Benchmark
+    public int jsonBuilder() {
+        JsonBuilder json = new JsonBuilder();
+        json.array();
+        for (Fixtures.Item item : items) {
+            json.object();
+            provider.toJson(item, json);
+            json.endObject();
+        }
+        json.endArray();
+        return json.toJson().length();
+    }
+
+    @Benchmark
+    public long jsonEncoder() {
+        return encode(provider);
+    }
+
+    @Benchmark
+    public long jsonEncoderBridge() {
+        return encode(writerProvider);
+    }
+
+    private long encode(ChoiceProvider<Fixtures.Item> provider) {
+        JsonEncoder json = encoder.reset(OutputStream.nullOutputStream());
+        json.array();
+        for (Fixtures.Item item : items) {
+            json.object();
+            provider.toJson(item, json);
+            json.endObject();
+        }
+        json.endArray();
+        json.flush();
+        return json.getByteCount();
+    }
+
+    /**
+     * Provider that only implements {@link ChoiceProvider#toJson(Object, JSONWriter)}
+     */
+    private static final class WriterProvider extends ChoiceProvider<Fixtures.Item> {
+        private static final long serialVersionUID = 1L;
+
+        private final ChoiceProvider<Fixtures.Item> delegate;
+
+        WriterProvider(ChoiceProvider<Fixtures.Item> delegate) {
+            this.delegate = delegate;
+        }
+
+        @Override
+        public void query(String query, int page, Response<Fixtures.Item> response) {
+            delegate.query(query, page, response);
+        }
+
+        @Override
+        public void toJson(Fixtures.Item choice, JSONWriter writer) throws JSONException {
+            delegate.toJson(choice, writer);
+        }
+
+        @Override
+        public java.util.Collection<Fixtures.Item> toChoices(String[] ids) {
+            return delegate.toChoices(ids);
+        }
+    }
+}
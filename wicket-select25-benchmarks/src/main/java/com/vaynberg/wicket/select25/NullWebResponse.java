@@ -0,0 +1,121 @@
+/*
+ * Copyright 2012 Igor Vaynberg
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this work except in compliance with
+ * the License. You may obtain a copy of the License in the LICENSE file, or at:
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package com.vaynberg.wicket.select25;
+
+import javax.servlet.http.Cookie;
+
+import org.apache.wicket.request.http.WebResponse;
+import org.apache.wicket.util.time.Time;
+
+/**
+ * Response that discards what is written into it and only counts the bytes, so that benchmarks measure the encoding
+ * and not a mock container buffering the output
+ *
+ * @author igor
+ */
+final class NullWebResponse extends WebResponse {
+
+    private long byteCount;
+
+    @Override
+    public void reset() {
+        super.reset();
+        byteCount = 0;
+    }
+
+    /**
+     * @return number of bytes written since the last {@link #reset()}
+     */
+    long getByteCount() {
+        return byteCount;
+    }
+
+    @Override
+    public void write(CharSequence sequence) {
+        byteCount += sequence.length();
+    }
+
+    @Override
+    public void write(byte[] array) {
+        byteCount += array.length;
+    }
+
+    @Override
+    public void write(byte[] array, int offset, int length) {
+        byteCount += length;
+    }
+
+    @Override
+    public void addCookie(Cookie cookie) {
+    }
+
+    @Override
+    public void clearCookie(Cookie cookie) {
+    }
+
+    @Override
+    public void setHeader(String name, String value) {
+    }
+
+    @Override
+    public void addHeader(String name, String value) {
+    }
+
+    @Override
+    public void setDateHeader(String name, Time date) {
+    }
+
+    @Override
+    public void setContentLength(long length) {
+    }
+
+    @Override
+    public void setContentType(String mimeType) {
+    }
+
+    @Override
+    public void setStatus(int sc) {
+    }
+
+    @Override
+    public void sendError(int sc, String msg) {
+    }
+
+    @Override
+    public String encodeRedirectURL(CharSequence url) {
+        return url.toString();
+    }
+
+    @Override
+    public void sendRedirect(String url) {
+    }
+
+    @Override
+    public boolean isRedirect() {
+        return false;
+    }
+
+    @Override
+    public void flush() {
+    }
+
+    @Override
+    public String encodeURL(CharSequence url) {
+        return url.toString();
+    }
+
+    @Override
+    public Object getContainerResponse() {
+        return null;
+    }
+}
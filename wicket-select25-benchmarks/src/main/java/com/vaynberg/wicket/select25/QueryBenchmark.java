@@ -0,0 +1,93 @@
+/*
+ * Copyright 2012 Igor Vaynberg
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this work except in compliance with
+ * the License. You may obtain a copy of the License in the LICENSE file, or at:
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package com.vaynberg.wicket.select25;
+
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
+
+import org.apache.wicket.mock.MockWebRequest;
+import org.apache.wicket.request.Url;
+import org.apache.wicket.util.tester.BaseWicketTester;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.vaynberg.wicket.select25.json.JsonEncoder;
+
+/**
+ * Answers a query the way the component listener does: runs it against an {@link IndexedChoiceProvider} and streams
+ * the page of choices it finds into the Json response, optionally gzipped.
+ *
+ * @author igor
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class QueryBenchmark {
+
+    /** number of choices in the response */
+    @Param({"10", "100", "1000"})
+    public int pageSize;
+
+    /** whether the response is gzipped */
+    @Param({"false", "true"})
+    public boolean gzip;
+
+    private BaseWicketTester tester;
+    private IndexedChoiceProvider<Fixtures.Item> provider;
+    private BiConsumer<JsonEncoder, Fixtures.Item> valueWriter;
+    private MockWebRequest request;
+    private NullWebResponse response;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        tester = Fixtures.start();
+        if (gzip) {
+            ResponseCompression.set(tester.getApplication(), new ResponseCompression());
+        }
+
+        provider = Fixtures.provider(pageSize);
+        valueWriter = QueryHandler.valueWriter(provider);
+
+        request = new MockWebRequest(Url.parse("?term=&page=0"));
+        if (gzip) {
+            request.setHeader("Accept-Encoding", "gzip");
+        }
+        response = new NullWebResponse();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        tester.destroy();
+    }
+
+    @Benchmark
+    public long respond() {
+        response.reset();
+        QueryHandler.respond(provider, true, request, response, valueWriter, QueryBenchmark.class);
+        return response.getByteCount();
+    }
+}
@@ -0,0 +1,78 @@
+/*
+ * Copyright 2012 Igor Vaynberg
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this work except in compliance with
+ * the License. You may obtain a copy of the License in the LICENSE file, or at:
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package com.vaynberg.wicket.select25;
+
+import java.util.concurrent.TimeUnit;
+
+import org.apache.wicket.util.tester.BaseWicketTester;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Encodes the settings a single and a multi choice render into their initialization script, as assembled by the
+ * components themselves
+ *
+ * @author igor
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class SettingsBenchmark {
+
+    private BaseWicketTester tester;
+    private SingleSettings single;
+    private MultiSettings multi;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        tester = Fixtures.start();
+
+        Select25SingleChoice<Fixtures.Item> singleChoice = Fixtures.startInPage(tester, Fixtures.singleChoice());
+        single = singleChoice.newSettings();
+        single.setAjax(singleChoice.newAjax());
+        single.setValue("{\"id\":\"1\",\"text\":\"bravo alpha\"}");
+
+        Select25MultiChoice<Fixtures.Item> multiChoice = Fixtures.startInPage(tester, Fixtures.multiChoice());
+        multi = multiChoice.newSettings();
+        multi.setAjax(multiChoice.newAjax());
+        multi.setValues("[{\"id\":\"1\",\"text\":\"bravo alpha\"},{\"id\":\"2\",\"text\":\"charlie alpha\"}]");
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        tester.destroy();
+    }
+
+    @Benchmark
+    public String single() {
+        return single.toJson();
+    }
+
+    @Benchmark
+    public String multi() {
+        return multi.toJson();
+    }
+}
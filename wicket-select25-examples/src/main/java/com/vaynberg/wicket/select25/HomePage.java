@@ -12,11 +12,11 @@
  */
 package com.vaynberg.wicket.select25;
 
+import java.time.Duration;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.List;
-import java.util.TimeZone;
 
 import org.apache.wicket.ajax.AjaxRequestTarget;
 import org.apache.wicket.ajax.form.AjaxFormComponentUpdatingBehavior;
@@ -25,6 +25,7 @@ import org.apache.wicket.markup.html.basic.Label;
 import org.apache.wicket.markup.html.form.Form;
 import org.apache.wicket.model.Model;
 import org.apache.wicket.model.PropertyModel;
+import org.apache.wicket.request.http.WebResponse;
 
 /**
  * Example page.
@@ -60,6 +61,18 @@ public class HomePage extends WebPage {
                 settings.setMinimumCharacters(2);
                 return settings;
             }
+
+            @Override
+            protected Settings.Ajax newAjax() {
+                var ajax = super.newAjax();
+                // wait for a pause in typing, reuse results of terms seen in the last five minutes and drop
+                // requests that are overtaken by the next keystroke
+                ajax.setDelay(150);
+                ajax.setCacheSize(50);
+                ajax.setCacheTtl(Duration.ofMinutes(5));
+                ajax.setAbort(true);
+                return ajax;
+            }
         };
         queue(countries);
 
@@ -79,11 +92,14 @@ public class HomePage extends WebPage {
         countryLabel.setOutputMarkupId(true);
         queue(countryLabel);
 
-        var country=new Select25SingleChoice<Country>("country", countryModel, new CountriesProvider(), new Model("Country")) {
+        // queries of the single-select are served by the stateless shared resource, see WicketApplication
+        var country=new Select25SingleChoice<Country>("country", countryModel, new SharedChoiceProvider<Country>("countries"), new Model("Country")) {
             @Override
             protected SingleSettings newSettings() {
                 var settings= super.newSettings();
                 settings.setAllowClear(true);
+                // the dropdown opens with the first page of countries without a round trip
+                settings.setEmbedFirstPage(true);
                 return settings;
             }
         };
@@ -99,40 +115,11 @@ public class HomePage extends WebPage {
     }
 
     /**
-     * Queries {@code pageSize} worth of countries from the {@link Country} enum, starting with {@code page * pageSize}
-     * offset. Countries are matched on their {@code displayName} containing {@code term}
-     *
-     * @param term     search term
-     * @param page     starting page
-     * @param pageSize items per page
-     * @return list of matches
+     * Index of all {@link Country} choices, searched by {@code displayName}. It is built once and shared by all
+     * providers.
      */
-    private static List<Country> queryMatches(String term, int page, int pageSize) {
-
-        List<Country> result = new ArrayList<Country>();
-
-        if (term == null) {
-            term = "";
-        }
-        term = term.toUpperCase();
-
-        final int offset = page * pageSize;
-
-        int matched = 0;
-        for (Country country : Country.values()) {
-            if (result.size() == pageSize) {
-                break;
-            }
-
-            if (country.getDisplayName().toUpperCase().contains(term)) {
-                matched++;
-                if (matched > offset) {
-                    result.add(country);
-                }
-            }
-        }
-        return result;
-    }
+    private static final ChoiceIndex<Country> COUNTRIES = new ChoiceIndex<Country>(Arrays.asList(Country.values()),
+        Country::name, Country::getDisplayName);
 
     /**
      * {@link Country} based choice provider for Select2 components. Demonstrates integration between Select2 components
@@ -140,31 +127,27 @@ public class HomePage extends WebPage {
      *
      * @author igor
      */
-    public class CountriesProvider extends TextChoiceProvider<Country> {
+    public static class CountriesProvider extends IndexedChoiceProvider<Country> {
 
-        @Override
-        protected String getDisplayText(Country choice) {
-            return choice.getDisplayName();
+        public CountriesProvider() {
+            super(() -> COUNTRIES, PAGE_SIZE);
         }
 
+        // the countries never change, so browsers and proxies may keep query responses for an hour
+
         @Override
-        protected Object getId(Country choice) {
-            return choice.name();
+        public String getVersion() {
+            return "1";
         }
 
         @Override
-        public void query(String query, int page, Response<Country> response) {
-            response.addAll(queryMatches(query, page, 20));
-            response.setHasMore(response.size() == 20);
+        public Duration getCacheDuration() {
+            return Duration.ofHours(1);
         }
 
         @Override
-        public Collection<Country> toChoices(String[] ids) {
-            ArrayList<Country> countries = new ArrayList<Country>();
-            for (String id : ids) {
-                countries.add(Country.valueOf(id));
-            }
-            return countries;
+        public WebResponse.CacheScope getCacheScope() {
+            return WebResponse.CacheScope.PUBLIC;
         }
     }
 
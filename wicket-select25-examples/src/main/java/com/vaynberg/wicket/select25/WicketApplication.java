@@ -12,6 +12,8 @@
  */
 package com.vaynberg.wicket.select25;
 
+import java.time.Duration;
+
 import org.apache.wicket.protocol.http.WebApplication;
 
 /**
@@ -22,4 +24,18 @@ public class WicketApplication extends WebApplication {
     public Class<HomePage> getHomePage() {
         return HomePage.class;
     }
+
+    @Override
+    protected void init() {
+        super.init();
+
+        // run queries off the container threads and cut them off after two seconds
+        QueryExecutor.set(this, new QueryExecutor(Duration.ofSeconds(2)));
+
+        // gzip or deflate query responses larger than 1KB
+        ResponseCompression.set(this, new ResponseCompression());
+
+        ChoiceProviderRegistry.get(this).register("countries", new HomePage.CountriesProvider());
+        mountResource("/select25/choices", ChoiceProviderResource.REFERENCE);
+    }
 }
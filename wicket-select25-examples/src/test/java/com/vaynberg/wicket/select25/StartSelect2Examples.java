@@ -86,16 +86,7 @@ public class StartSelect2Examples
 			System.out.println();
 		}
 
-		WebAppContext bb = new WebAppContext();
-		bb.setServer(server);
-		bb.setContextPath("/");
-
-		String webapp="src/main/webapp";
-		if (!new File(webapp).exists()) {
-			webapp="wicket-select25-examples/"+webapp;
-		}
-
-		bb.setWar(webapp);
+		WebAppContext bb = newWebApp(server);
 
 		// uncomment the next two lines if you want to start Jetty with WebSocket (JSR-356) support
 		// you need org.apache.wicket:wicket-native-websocket-javax in the classpath!
@@ -124,4 +115,26 @@ public class StartSelect2Examples
 			System.exit(100);
 		}
 	}
+
+	/**
+	 * Creates the context of the examples webapp, which is served from the sources so that markup changes show up
+	 * without a restart
+	 *
+	 * @param server
+	 * @return webapp context
+	 */
+	static WebAppContext newWebApp(Server server)
+	{
+		WebAppContext bb = new WebAppContext();
+		bb.setServer(server);
+		bb.setContextPath("/");
+
+		String webapp="src/main/webapp";
+		if (!new File(webapp).exists()) {
+			webapp="wicket-select25-examples/"+webapp;
+		}
+
+		bb.setWar(webapp);
+		return bb;
+	}
 }
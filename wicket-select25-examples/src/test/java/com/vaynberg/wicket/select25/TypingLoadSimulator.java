@@ -0,0 +1,368 @@
+/*
+ * Copyright 2012 Igor Vaynberg
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this work except in compliance with
+ * the License. You may obtain a copy of the License in the LICENSE file, or at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package com.vaynberg.wicket.select25;
+
+import java.io.IOException;
+import java.net.URI;
+import java.net.URLEncoder;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.apache.wicket.Application;
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.ServerConnector;
+
+/**
+ * Simulates users typing into the select25 components of the {@link HomePage} of the examples, served by the embedded
+ * Jetty of {@link StartSelect2Examples}, to measure the library under concurrency including the servlet container,
+ * the page store and the page lock that microbenchmarks leave out.
+ * <p>
+ * Every simulated user has a session of its own. It renders the page, then picks countries at random and types their
+ * names into the components one keystroke at a time, sending the query the browser would send for every keystroke,
+ * and renders the page anew every few words. The listener of the multi choice and the shared resource of the single
+ * choice are measured as stages of their own. Responses are never cached, as if every user had a cold browser cache.
+ * <p>
+ * The simulation runs on localhost only and is configured with system properties:
+ * <ul>
+ * <li>{@code users} - number of concurrent users, {@code 50}</li>
+ * <li>{@code warmup} - seconds before measuring starts, {@code 10}</li>
+ * <li>{@code duration} - seconds measured, {@code 30}</li>
+ * <li>{@code keystroke} - mean delay between keystrokes in milliseconds, {@code 150}; {@code 0} types as fast as the
+ * server answers</li>
+ * <li>{@code pause} - delay between words in milliseconds, {@code 1000}</li>
+ * <li>{@code reload} - number of words after which a user renders the page again, {@code 20}</li>
+ * <li>{@code wicket.configuration} - {@code deployment} or {@code development}, {@code deployment}</li>
+ * </ul>
+ * At the end it prints the throughput and the latency percentiles of every stage as seen by the users, and the
+ * server side timings recorded by {@link InMemoryMetrics}.
+ *
+ * <pre>
+ * mvn -pl wicket-select25-examples test-compile exec:java -Dexec.classpathScope=test \
+ *     -Dexec.mainClass=com.vaynberg.wicket.select25.TypingLoadSimulator -Dusers=200
+ * </pre>
+ *
+ * @author igor
+ */
+public class TypingLoadSimulator {
+
+    private static final String PAGE = "page";
+    private static final String LISTENER = "listener query";
+    private static final String RESOURCE = "resource query";
+
+    /** controls of the batched initialization script: markup id, index of the settings and query url */
+    private static final Pattern CONTROL = Pattern.compile("\\[\"([^\"]+)\",\\d+,\"((?:[^\"\\\\]|\\\\.)*)\"");
+
+    private static final String SESSION_COOKIE = "JSESSIONID";
+
+    private final int users = Integer.getInteger("users", 50);
+    private final int warmup = Integer.getInteger("warmup", 10);
+    private final int duration = Integer.getInteger("duration", 30);
+    private final int keystroke = Integer.getInteger("keystroke", 150);
+    private final int pause = Integer.getInteger("pause", 1000);
+    private final int reload = Integer.getInteger("reload", 20);
+
+    private final HttpClient client = HttpClient.newBuilder().version(HttpClient.Version.HTTP_1_1)
+        .followRedirects(HttpClient.Redirect.NEVER).connectTimeout(Duration.ofSeconds(10)).build();
+
+    private final Map<String, Stage> stages = new ConcurrentHashMap<String, Stage>();
+
+    private volatile boolean measuring;
+    private volatile boolean running = true;
+
+    public static void main(String[] args) throws Exception {
+        System.setProperty("wicket.configuration", System.getProperty("wicket.configuration", "deployment"));
+        new TypingLoadSimulator().run();
+    }
+
+    private void run() throws Exception {
+        Server server = new Server();
+        ServerConnector http = new ServerConnector(server);
+        http.setHost("127.0.0.1");
+        http.setPort(0);
+        server.addConnector(http);
+        server.setHandler(StartSelect2Examples.newWebApp(server));
+        server.start();
+
+        try {
+            URI home = URI.create("http://127.0.0.1:" + http.getLocalPort() + "/");
+            InMemoryMetrics metrics = new InMemoryMetrics();
+
+            System.out.println("Simulating " + users + " users against " + home + ", warming up for " + warmup + "s");
+            CountDownLatch done = new CountDownLatch(users);
+            for (int i = 0; i < users; i++) {
+                Thread thread = new Thread(() -> {
+                    try {
+                        simulateUser(home);
+                    } finally {
+                        done.countDown();
+                    }
+                }, "user-" + i);
+                thread.setDaemon(true);
+                thread.start();
+            }
+
+            Thread.sleep(warmup * 1000L);
+            // the application is only created once the first request reached the filter
+            Select25Metrics.set(Application.get("wicket"), metrics);
+            stages.clear();
+            measuring = true;
+            long start = System.nanoTime();
+
+            Thread.sleep(duration * 1000L);
+            measuring = false;
+            double seconds = (System.nanoTime() - start) / 1e9;
+            running = false;
+            done.await();
+
+            report(seconds, metrics);
+        } finally {
+            server.stop();
+        }
+    }
+
+    /**
+     * Types country names into the components of the page until the simulation ends
+     */
+    private void simulateUser(URI home) {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        // spread the first requests of the users
+        sleep(random.nextInt(Math.max(1, pause)));
+
+        String[] session = new String[1];
+        List<Control> controls = null;
+        int words = 0;
+
+        while (running) {
+            try {
+                if (controls == null || words >= reload) {
+                    controls = renderPage(home, session);
+                    words = 0;
+                }
+
+                Control control = controls.get(random.nextInt(controls.size()));
+                String name = Country.values()[random.nextInt(Country.values().length)].getDisplayName();
+                for (int length = Math.max(1, control.minimumCharacters); length <= name.length() && running; length++) {
+                    if (keystroke > 0) {
+                        sleep((long) (-Math.log(1 - random.nextDouble()) * keystroke));
+                    }
+                    query(control, name.substring(0, length), 0, session);
+                }
+                if (running && random.nextInt(5) == 0) {
+                    // scroll to the second page of what was typed
+                    query(control, name.substring(0, Math.min(name.length(), control.minimumCharacters)), 1, session);
+                }
+                words++;
+                sleep(pause);
+            } catch (IOException e) {
+                // start over with a new session
+                controls = null;
+                session[0] = null;
+            }
+        }
+    }
+
+    /**
+     * Renders the page, following Wicket's redirect to the page's versioned url, and finds the query urls of its
+     * components
+     */
+    private List<Control> renderPage(URI home, String[] session) throws IOException {
+        long start = System.nanoTime();
+        URI uri = home;
+        HttpResponse<String> response = send(PAGE, uri, session, false);
+        for (int redirects = 0; isRedirect(response) && redirects < 5; redirects++) {
+            uri = uri.resolve(response.headers().firstValue("Location").orElseThrow());
+            response = send(PAGE, uri, session, false);
+        }
+        if (response.statusCode() != 200) {
+            stage(PAGE).failed();
+            throw new IOException(PAGE);
+        }
+        stage(PAGE).record(System.nanoTime() - start);
+
+        List<Control> controls = new ArrayList<Control>();
+        Matcher matcher = CONTROL.matcher(response.body());
+        while (matcher.find()) {
+            URI url = uri.resolve(matcher.group(2).replace("\\/", "/"));
+            boolean shared = url.getPath().contains("select25/choices");
+            // the multi choice of the page searches from the second character on
+            controls.add(new Control(shared ? RESOURCE : LISTENER, url, shared ? 0 : 2));
+        }
+        if (controls.isEmpty()) {
+            throw new IOException("no select25 controls on " + uri);
+        }
+        return controls;
+    }
+
+    private void query(Control control, String term, int page, String[] session) throws IOException {
+        String separator = control.url.getRawQuery() == null ? "?" : "&";
+        URI uri = URI.create(control.url + separator + "term=" + URLEncoder.encode(term, StandardCharsets.UTF_8)
+            + "&page=" + page);
+
+        long start = System.nanoTime();
+        HttpResponse<String> response = send(control.stage, uri, session, true);
+        if (response.statusCode() != 200) {
+            stage(control.stage).failed();
+            if (isRedirect(response) || response.statusCode() == 404) {
+                // the page expired, render it again
+                throw new IOException(control.stage);
+            }
+            return;
+        }
+        stage(control.stage).record(System.nanoTime() - start);
+    }
+
+    /**
+     * Sends a request within the session of a user, failures to get any response are counted as errors of the stage
+     */
+    private HttpResponse<String> send(String stage, URI uri, String[] session, boolean gzip) throws IOException {
+        // query responses are only read to completion, the page is parsed and therefore requested uncompressed
+        HttpRequest.Builder request = HttpRequest.newBuilder(uri).timeout(Duration.ofSeconds(30))
+            .header("Accept-Encoding", gzip ? "gzip" : "identity");
+        if (session[0] != null) {
+            request.header("Cookie", SESSION_COOKIE + "=" + session[0]);
+        }
+        HttpResponse<String> response;
+        try {
+            response = client.send(request.build(), HttpResponse.BodyHandlers.ofString(StandardCharsets.ISO_8859_1));
+        } catch (IOException e) {
+            stage(stage).failed();
+            throw e;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("interrupted", e);
+        }
+        for (String cookie : response.headers().allValues("Set-Cookie")) {
+            if (cookie.startsWith(SESSION_COOKIE + "=")) {
+                int end = cookie.indexOf(';');
+                session[0] = cookie.substring(SESSION_COOKIE.length() + 1, end < 0 ? cookie.length() : end);
+            }
+        }
+        return response;
+    }
+
+    private static boolean isRedirect(HttpResponse<?> response) {
+        return response.statusCode() >= 300 && response.statusCode() < 400;
+    }
+
+    private Stage stage(String name) {
+        return stages.computeIfAbsent(name, key -> new Stage());
+    }
+
+    private void report(double seconds, InMemoryMetrics metrics) {
+        System.out.println();
+        System.out.printf("%-16s %9s %7s %10s %9s %9s %9s %9s%n", "stage", "requests", "errors", "req/s", "p50 ms",
+            "p99 ms", "p999 ms", "max ms");
+        for (String name : Arrays.asList(PAGE, LISTENER, RESOURCE)) {
+            Stage stage = stages.get(name);
+            if (stage != null) {
+                stage.print(name, seconds);
+            }
+        }
+        for (Map.Entry<String, Stage> entry : stages.entrySet()) {
+            if (!Arrays.asList(PAGE, LISTENER, RESOURCE).contains(entry.getKey())) {
+                entry.getValue().print(entry.getKey(), seconds);
+            }
+        }
+
+        System.out.println();
+        System.out.println("server side, nanoseconds:");
+        for (Select25Metrics.Timer timer : Select25Metrics.Timer.values()) {
+            System.out.printf("  %-14s %s%n", timer, metrics.get(timer, null, null));
+        }
+        System.out.printf("  %-14s %s%n", Select25Metrics.Histogram.RESPONSE_BYTES,
+            metrics.get(Select25Metrics.Histogram.RESPONSE_BYTES, null, null));
+        for (Select25Metrics.Counter counter : Select25Metrics.Counter.values()) {
+            System.out.printf("  %-14s %d%n", counter, metrics.getCount(counter, null, null));
+        }
+    }
+
+    private static void sleep(long millis) {
+        if (millis <= 0) {
+            return;
+        }
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Select25 control of the page
+     */
+    private static final class Control {
+        private final String stage;
+        private final URI url;
+        private final int minimumCharacters;
+
+        Control(String stage, URI url, int minimumCharacters) {
+            this.stage = stage;
+            this.url = url;
+            this.minimumCharacters = minimumCharacters;
+        }
+    }
+
+    /**
+     * Latencies and errors of a stage, kept while measuring
+     */
+    private final class Stage {
+        private long[] latencies = new long[1024];
+        private int count;
+        private final AtomicLong errors = new AtomicLong();
+
+        synchronized void record(long nanos) {
+            if (!measuring) {
+                return;
+            }
+            if (count == latencies.length) {
+                latencies = Arrays.copyOf(latencies, count * 2);
+            }
+            latencies[count++] = nanos;
+        }
+
+        void failed() {
+            if (measuring) {
+                errors.incrementAndGet();
+            }
+        }
+
+        synchronized void print(String name, double seconds) {
+            long[] sorted = Arrays.copyOf(latencies, count);
+            Arrays.sort(sorted);
+            System.out.printf("%-16s %9d %7d %10.1f %9.2f %9.2f %9.2f %9.2f%n", name, count, errors.get(),
+                count / seconds, percentile(sorted, 50), percentile(sorted, 99), percentile(sorted, 99.9),
+                percentile(sorted, 100));
+        }
+
+        private double percentile(long[] sorted, double percentile) {
+            if (sorted.length == 0) {
+                return 0;
+            }
+            int rank = (int) Math.ceil(sorted.length * percentile / 100);
+            return sorted[Math.max(0, rank - 1)] / 1e6;
+        }
+    }
+}
@@ -0,0 +1,236 @@
+/*
+ * Copyright 2012 Igor Vaynberg
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this work except in compliance with
+ * the License. You may obtain a copy of the License in the LICENSE file, or at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package com.vaynberg.wicket.select25;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+
+import org.apache.wicket.request.http.WebResponse;
+import org.apache.wicket.util.lang.Args;
+import org.json.JSONException;
+import org.json.JSONWriter;
+
+import com.vaynberg.wicket.select25.json.JsonEncoder;
+
+/**
+ * Decorator that serves query results of another provider from the application's {@link QueryCache}. The results are
+ * shared by all users, so the decorated provider must return the same choices for the same search term regardless of
+ * who is asking.
+ * <p>
+ * Cache entries are keyed on the provider's cache key, the normalized search term, the page and its continuation
+ * token. The cache key must identify the results of the decorated provider: providers whose results depend on their
+ * state, such as a filter set by another field, must be given a key that includes that state.
+ * <p>
+ * Example:
+ * <pre>
+ * new Select25SingleChoice&lt;Country&gt;(&quot;country&quot;, model, new CachingChoiceProvider&lt;Country&gt;(new CountriesProvider(), &quot;countries&quot;), label);
+ * </pre>
+ *
+ * @param <T> type of choice object
+ * @author igor
+ */
+public class CachingChoiceProvider<T> extends ChoiceProvider<T> {
+
+    private final ChoiceProvider<T> delegate;
+    private final String key;
+
+    /**
+     * Constructor
+     *
+     * @param delegate provider whose results are cached
+     * @param key      key identifying the results of {@code delegate} in the cache
+     */
+    public CachingChoiceProvider(ChoiceProvider<T> delegate, String key) {
+        Args.notNull(delegate, "delegate");
+        Args.notEmpty(key, "key");
+        this.delegate = delegate;
+        this.key = key;
+    }
+
+    @Override
+    public void query(String query, int page, Response<T> response) {
+        query(query, page, null, response);
+    }
+
+    @Override
+    public void query(String query, int page, String token, Response<T> response) {
+        query(query, page, token, response.asSink());
+    }
+
+    @Override
+    public void query(String query, int page, String token, ChoiceSink<T> sink) {
+        String term = normalize(query);
+        QueryCache cache = getCache();
+
+        QueryCache.Results results = cache.get(key, term, page, token);
+        if (results == null) {
+            Response<T> response = new Response<T>();
+            // the normalized term only keys the cache, the delegate matches the term as it was typed
+            delegate.query(query == null ? "" : query, page, token, response);
+            List<T> choices = Collections.unmodifiableList(new ArrayList<T>(response.getResults()));
+            results = new QueryCache.Results(choices, response.getHasMore(), response.getNextToken());
+            if (!QueryCancellation.current().isCancelled()) {
+                // a cancelled query may have stopped short of a full page
+                cache.put(key, term, page, token, results, weigh(term, choices));
+            }
+        }
+
+        if (sink instanceof QueryHandler.CachedResultsSink
+            && ((QueryHandler.CachedResultsSink<T>) sink).offer(results)) {
+            // the response is written from the results, reusing the body encoded for an earlier request
+            return;
+        }
+
+        for (T choice : results.<T>getChoices()) {
+            sink.accept(choice);
+        }
+        sink.setHasMore(results.getHasMore());
+        sink.setNextToken(results.getNextToken());
+    }
+
+    /**
+     * Normalizes the search term before it is used as part of the cache key; the decorated provider is given the term
+     * as it was typed. The default implementation treats {@code null} as an empty term and ignores case, override it
+     * for providers that match case sensitively, whose results for terms differing in case must not be shared.
+     *
+     * @param query search term
+     * @return normalized search term
+     */
+    protected String normalize(String query) {
+        return query == null ? "" : query.toLowerCase(Locale.ROOT);
+    }
+
+    /**
+     * Estimates the size of a cache entry in bytes until a response is encoded from it; from then on the entry weighs
+     * as much as the Json of the response, see {@link QueryCache.Results}. The default implementation assumes 64 bytes
+     * per choice.
+     *
+     * @param term    normalized search term
+     * @param choices choices returned by the decorated provider
+     * @return weight of the entry
+     */
+    protected long weigh(String term, List<T> choices) {
+        return 64 + 2L * term.length() + 64L * choices.size();
+    }
+
+    /**
+     * @return cache the results are stored in
+     */
+    protected QueryCache getCache() {
+        return QueryCache.get();
+    }
+
+    /**
+     * Removes all cached results of this provider
+     */
+    public void invalidate() {
+        getCache().invalidate(key);
+    }
+
+    /**
+     * Removes all cached pages of results for the search term
+     *
+     * @param query search term
+     */
+    public void invalidate(String query) {
+        getCache().invalidate(key, normalize(query));
+    }
+
+    /**
+     * @return provider whose results are cached
+     */
+    public ChoiceProvider<T> getDelegate() {
+        return delegate;
+    }
+
+    /**
+     * @return key identifying the results of this provider in the cache
+     */
+    public String getKey() {
+        return key;
+    }
+
+    @Override
+    public void toJson(T choice, JSONWriter writer) throws JSONException {
+        delegate.toJson(choice, writer);
+    }
+
+    @Override
+    public void toJson(T choice, JsonEncoder encoder) throws JSONException {
+        delegate.toJson(choice, encoder);
+    }
+
+    @Override
+    public Collection<T> toChoices(String[] ids) {
+        return delegate.toChoices(ids);
+    }
+
+    @Override
+    public String toId(T choice) {
+        return delegate.toId(choice);
+    }
+
+    @Override
+    public ChoiceLookupCache<T> getLookupCache() {
+        return delegate.getLookupCache();
+    }
+
+    @Override
+    public Object getBatchKey() {
+        return delegate.getBatchKey();
+    }
+
+    @Override
+    public Duration getDeadline() {
+        return delegate.getDeadline();
+    }
+
+    @Override
+    public boolean isFirstPageEmbeddable() {
+        return delegate.isFirstPageEmbeddable();
+    }
+
+    @Override
+    public boolean isLabelLookupAllowed() {
+        return delegate.isLabelLookupAllowed();
+    }
+
+    @Override
+    public String getVersion() {
+        return delegate.getVersion();
+    }
+
+    @Override
+    public Duration getCacheDuration() {
+        return delegate.getCacheDuration();
+    }
+
+    @Override
+    public WebResponse.CacheScope getCacheScope() {
+        return delegate.getCacheScope();
+    }
+
+    @Override
+    public Class<?> getMetricsClass() {
+        return delegate.getMetricsClass();
+    }
+
+    @Override
+    public void detach() {
+        delegate.detach();
+    }
+}
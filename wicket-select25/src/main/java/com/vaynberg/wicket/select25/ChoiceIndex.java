@@ -0,0 +1,264 @@
+/*
+ * Copyright 2012 Igor Vaynberg
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this work except in compliance with
+ * the License. You may obtain a copy of the License in the LICENSE file, or at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package com.vaynberg.wicket.select25;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.function.Function;
+
+import org.apache.wicket.util.lang.Args;
+
+/**
+ * Immutable in-memory index of a static set of choices that supports case-insensitive substring search of their
+ * labels. Labels are normalized once when the index is built, and every one, two and three-character sequence of
+ * every label maps to a sorted posting list of the choices containing it. A search for a term of one or two
+ * characters walks the posting list of the term itself, a search for a longer term only looks at the choices that
+ * appear in the posting lists of all of the term's trigrams.
+ * <p>
+ * Matches are always returned in the iteration order of the collection the index was built from. Ids must be unique
+ * within the index.
+ * <p>
+ * An index is meant to be built once and shared, typically from a static field or the application, and is safe to
+ * use from multiple threads. It is not serializable; see {@link IndexedChoiceProvider} for how to reference it from
+ * components.
+ *
+ * @param <T> type of choice object
+ * @author igor
+ */
+public final class ChoiceIndex<T> {
+
+    private static final int[] EMPTY = new int[0];
+
+    private final Object[] choices;
+    private final String[] keys;
+    private final Map<String, Integer> ids;
+    private final Map<Long, int[]> postings;
+
+    private final Function<? super T, ?> idFunction;
+    private final Function<? super T, String> labelFunction;
+
+    /**
+     * Builds an index
+     *
+     * @param choices       choices to index
+     * @param idFunction    extracts the id of a choice
+     * @param labelFunction extracts the label the choice is searched and displayed by
+     * @throws IllegalArgumentException if two choices have the same id
+     */
+    public ChoiceIndex(Collection<? extends T> choices, Function<? super T, ?> idFunction,
+                       Function<? super T, String> labelFunction) {
+        Args.notNull(choices, "choices");
+        Args.notNull(idFunction, "idFunction");
+        Args.notNull(labelFunction, "labelFunction");
+
+        this.idFunction = idFunction;
+        this.labelFunction = labelFunction;
+        this.choices = choices.toArray();
+        this.keys = new String[this.choices.length];
+        this.ids = new HashMap<String, Integer>(this.choices.length * 4 / 3 + 1);
+
+        Map<Long, IntList> lists = new HashMap<Long, IntList>();
+        for (int i = 0; i < this.choices.length; i++) {
+            T choice = choice(i);
+            String id = String.valueOf(idFunction.apply(choice));
+            if (ids.put(id, i) != null) {
+                throw new IllegalArgumentException("Duplicate choice id: " + id);
+            }
+
+            String key = normalize(labelFunction.apply(choice));
+            keys[i] = key;
+            for (int j = 0; j < key.length(); j++) {
+                post(lists, unigram(key, j), i);
+                if (j + 2 <= key.length()) {
+                    post(lists, bigram(key, j), i);
+                }
+                if (j + 3 <= key.length()) {
+                    post(lists, trigram(key, j), i);
+                }
+            }
+        }
+
+        postings = new HashMap<Long, int[]>(lists.size() * 4 / 3 + 1);
+        for (Map.Entry<Long, IntList> entry : lists.entrySet()) {
+            postings.put(entry.getKey(), entry.getValue().toArray());
+        }
+    }
+
+    private static void post(Map<Long, IntList> lists, Long gram, int index) {
+        IntList list = lists.get(gram);
+        if (list == null) {
+            list = new IntList();
+            lists.put(gram, list);
+        }
+        list.addOnce(index);
+    }
+
+    /**
+     * Finds choices whose label contains {@code term}, ignoring case
+     *
+     * @param term   search term, {@code null} or empty matches all choices
+     * @param offset number of matches to skip
+     * @param limit  maximum number of matches to return
+     * @param sink   receives the matches and whether there are more matches after them
+     */
+    public void query(String term, int offset, int limit, ChoiceSink<T> sink) {
+        String key = normalize(term);
+        offset = Math.max(0, offset);
+        int skipped = 0;
+        int added = 0;
+
+        if (key.isEmpty()) {
+            int end = (int) Math.min(choices.length, (long) offset + limit);
+            for (int i = offset; i < end; i++) {
+                sink.accept(choice(i));
+            }
+            sink.setHasMore((long) offset + limit < choices.length);
+            return;
+        }
+
+        int[][] lists = candidates(key);
+        int[] shortest = lists[0];
+        int[] cursors = new int[lists.length];
+        outer:
+        for (int candidate : shortest) {
+            for (int l = 1; l < lists.length; l++) {
+                int found = Arrays.binarySearch(lists[l], cursors[l], lists[l].length, candidate);
+                if (found < 0) {
+                    cursors[l] = -found - 1;
+                    continue outer;
+                }
+                cursors[l] = found;
+            }
+            // all trigrams present, make sure they are present in sequence
+            if (keys[candidate].contains(key)) {
+                if (added == limit) {
+                    sink.setHasMore(true);
+                    return;
+                } else if (skipped < offset) {
+                    skipped++;
+                } else {
+                    sink.accept(choice(candidate));
+                    added++;
+                }
+            }
+        }
+        sink.setHasMore(false);
+    }
+
+    /**
+     * Returns the posting list of a key shorter than three characters, or the posting lists of all trigrams of a longer
+     * key, shortest first
+     */
+    private int[][] candidates(String key) {
+        if (key.length() < 3) {
+            int[] list = postings.get(key.length() == 1 ? unigram(key, 0) : bigram(key, 0));
+            return new int[][]{list == null ? EMPTY : list};
+        }
+        int count = key.length() - 2;
+        int[][] lists = new int[count][];
+        for (int j = 0; j < count; j++) {
+            int[] list = postings.get(trigram(key, j));
+            lists[j] = list == null ? EMPTY : list;
+        }
+        Arrays.sort(lists, Comparator.comparingInt(list -> list.length));
+        return lists;
+    }
+
+    /**
+     * @param id choice id
+     * @return choice with the specified id or {@code null} if there is none
+     */
+    public T get(String id) {
+        Integer index = ids.get(id);
+        return index == null ? null : choice(index);
+    }
+
+    /**
+     * @param ids choice ids
+     * @return choices with the specified ids, in the same order, skipping ids that are not in the index
+     */
+    public List<T> get(String[] ids) {
+        List<T> result = new ArrayList<T>(ids.length);
+        for (String id : ids) {
+            T choice = get(id);
+            if (choice != null) {
+                result.add(choice);
+            }
+        }
+        return result;
+    }
+
+    public Object getId(T choice) {
+        return idFunction.apply(choice);
+    }
+
+    public String getLabel(T choice) {
+        return labelFunction.apply(choice);
+    }
+
+    /**
+     * @return number of indexed choices
+     */
+    public int size() {
+        return choices.length;
+    }
+
+    @SuppressWarnings("unchecked")
+    private T choice(int index) {
+        return (T) choices[index];
+    }
+
+    private static String normalize(String value) {
+        return value == null ? "" : value.toLowerCase(Locale.ROOT);
+    }
+
+    private static Long unigram(String key, int offset) {
+        return (1L << 48) | key.charAt(offset);
+    }
+
+    private static Long bigram(String key, int offset) {
+        return (2L << 48) | ((long) key.charAt(offset) << 16) | key.charAt(offset + 1);
+    }
+
+    private static Long trigram(String key, int offset) {
+        return ((long) key.charAt(offset) << 32) | ((long) key.charAt(offset + 1) << 16) | key.charAt(offset + 2);
+    }
+
+    /**
+     * Growable list of ascending ints used while building the posting lists
+     */
+    private static final class IntList {
+        private int[] values = new int[4];
+        private int size;
+
+        void addOnce(int value) {
+            if (size > 0 && values[size - 1] == value) {
+                return;
+            }
+            if (size == values.length) {
+                values = Arrays.copyOf(values, size * 2);
+            }
+            values[size++] = value;
+        }
+
+        int[] toArray() {
+            return Arrays.copyOf(values, size);
+        }
+    }
+}
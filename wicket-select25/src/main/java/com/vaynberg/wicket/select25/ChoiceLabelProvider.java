@@ -0,0 +1,41 @@
+/*
+ * Copyright 2012 Igor Vaynberg
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this work except in compliance with
+ * the License. You may obtain a copy of the License in the LICENSE file, or at:
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package com.vaynberg.wicket.select25;
+
+import java.util.Collection;
+import java.util.Map;
+
+import org.apache.wicket.model.IDetachable;
+
+/**
+ * Looks up the labels of choice ids for {@link Select25MultiIdChoice}, whose model holds ids rather than choices.
+ * Labels are only needed to render the selected values, so an implementation should fetch them as cheaply as the
+ * application allows, e.g. by selecting the id and label columns of all ids in a single query, without loading the
+ * choices themselves.
+ *
+ * @author igor
+ */
+public abstract class ChoiceLabelProvider implements IDetachable {
+
+    /**
+     * Looks up the labels of ids
+     *
+     * @param ids ids of choices
+     * @return labels by id; ids without a label do not identify a choice, they are not rendered and fail the
+     * validation of submitted ids, see {@link Select25MultiIdChoice#validateIds(Collection)}
+     */
+    public abstract Map<String, String> getLabels(Collection<String> ids);
+
+    @Override
+    public void detach() {}
+}
@@ -0,0 +1,149 @@
+/*
+ * Copyright 2012 Igor Vaynberg
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this work except in compliance with
+ * the License. You may obtain a copy of the License in the LICENSE file, or at:
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package com.vaynberg.wicket.select25;
+
+import java.time.Duration;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.apache.wicket.util.lang.Args;
+
+/**
+ * Cache of choices by id that outlives the request, returned by {@link ChoiceProvider#getLookupCache()}. Components
+ * look submitted and rendered ids up in it before they ask the provider to convert them, and add the choices the
+ * provider converted. The cache holds a bounded number of choices, evicting the least recently used one first, and
+ * forgets choices after a fixed time to live.
+ * <p>
+ * Cached choices are shared by every component and user of the providers returning the cache, so they must not depend
+ * on who is asking and should be immutable. The cache is not serializable and must not be held in a field of the
+ * provider, which is serialized with the page; keep it in a static field or in the application instead:
+ * <pre>
+ * private static final ChoiceLookupCache&lt;User&gt; USERS = new ChoiceLookupCache&lt;User&gt;(1000, Duration.ofMinutes(1));
+ *
+ * public ChoiceLookupCache&lt;User&gt; getLookupCache() {
+ *     return USERS;
+ * }
+ * </pre>
+ *
+ * @param <T> type of choice object
+ * @author igor
+ */
+public class ChoiceLookupCache<T> {
+
+    private final int maxEntries;
+    private final long ttlNanos;
+
+    /** access ordered so that iteration starts at the least recently used entry */
+    private final LinkedHashMap<String, Entry<T>> entries;
+
+    private long hits;
+    private long misses;
+
+    /**
+     * Constructor
+     *
+     * @param maxEntries maximum number of cached choices
+     * @param ttl        time after which a cached choice is forgotten
+     */
+    public ChoiceLookupCache(int maxEntries, Duration ttl) {
+        Args.withinRange(1, Integer.MAX_VALUE, maxEntries, "maxEntries");
+        Args.notNull(ttl, "ttl");
+        this.maxEntries = maxEntries;
+        this.ttlNanos = ttl.toNanos();
+        this.entries = new LinkedHashMap<String, Entry<T>>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Entry<T>> eldest) {
+                return size() > ChoiceLookupCache.this.maxEntries;
+            }
+        };
+    }
+
+    /**
+     * @param id id of the choice
+     * @return cached choice or {@code null} if there is none
+     */
+    public synchronized T get(String id) {
+        Entry<T> entry = entries.get(id);
+        if (entry != null && entry.expires - System.nanoTime() < 0) {
+            entries.remove(id);
+            entry = null;
+        }
+        if (entry == null) {
+            misses++;
+            return null;
+        }
+        hits++;
+        return entry.choice;
+    }
+
+    /**
+     * Caches a choice
+     *
+     * @param id     id of the choice
+     * @param choice choice
+     */
+    public synchronized void put(String id, T choice) {
+        Args.notNull(id, "id");
+        Args.notNull(choice, "choice");
+        entries.put(id, new Entry<T>(choice, System.nanoTime() + ttlNanos));
+    }
+
+    /**
+     * Forgets a choice, e.g. because it was changed
+     *
+     * @param id id of the choice
+     */
+    public synchronized void remove(String id) {
+        entries.remove(id);
+    }
+
+    /**
+     * Forgets all choices
+     */
+    public synchronized void clear() {
+        entries.clear();
+    }
+
+    /**
+     * @return number of cached choices, including expired ones not yet removed
+     */
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    /**
+     * @return number of lookups that found a choice
+     */
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    /**
+     * @return number of lookups that found no choice
+     */
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    private static final class Entry<T> {
+        private final T choice;
+        private final long expires;
+
+        Entry(T choice, long expires) {
+            this.choice = choice;
+            this.expires = expires;
+        }
+    }
+}
@@ -0,0 +1,231 @@
+/*
+ * Copyright 2012 Igor Vaynberg
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this work except in compliance with
+ * the License. You may obtain a copy of the License in the LICENSE file, or at:
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package com.vaynberg.wicket.select25;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Function;
+
+import org.apache.wicket.Component;
+import org.apache.wicket.MetaDataKey;
+import org.apache.wicket.request.cycle.RequestCycle;
+
+/**
+ * Choices converted from ids during the current request, so that the ids a form submits are converted once although
+ * the component converts them in {@code convertInput()} and, if validation fails, again when it renders the raw input.
+ * Choices are remembered per provider and id; the choices of a provider are forgotten when a component using it is
+ * detached, and all of them when the request ends. Providers returning equal {@link ChoiceProvider#getBatchKey() batch
+ * keys} share their choices, so that the ids of all their components can be converted together.
+ * <p>
+ * Choices are remembered by the id {@link ChoiceProvider#toId(Object)} returns for them, so that conversions of
+ * overlapping ids only convert the ids not seen before. Choices of providers that do not return ids are only reused
+ * when the very same ids are converted again.
+ *
+ * @author igor
+ */
+final class ChoiceMemo {
+
+    private static final MetaDataKey<ChoiceMemo> KEY = new MetaDataKey<ChoiceMemo>() {};
+
+    private final Map<Object, Choices<?>> providers = new HashMap<Object, Choices<?>>();
+
+    private ChoiceMemo() {
+    }
+
+    /**
+     * @return memo of the current request, or {@code null} outside of a request
+     */
+    static ChoiceMemo get() {
+        RequestCycle cycle = RequestCycle.get();
+        if (cycle == null) {
+            return null;
+        }
+        ChoiceMemo memo = cycle.getMetaData(KEY);
+        if (memo == null) {
+            memo = new ChoiceMemo();
+            cycle.setMetaData(KEY, memo);
+        }
+        return memo;
+    }
+
+    /**
+     * Forgets the choices of a provider remembered during the current request
+     *
+     * @param provider provider
+     */
+    static void forget(ChoiceProvider<?> provider) {
+        RequestCycle cycle = RequestCycle.get();
+        ChoiceMemo memo = cycle == null ? null : cycle.getMetaData(KEY);
+        if (memo != null) {
+            memo.providers.remove(keyOf(provider));
+        }
+    }
+
+    /**
+     * Marks the ids of the components of a provider within a container as converted together, see
+     * {@link ChoiceProvider#getBatchKey()}
+     *
+     * @param provider provider
+     * @param scope    container, usually the root form
+     * @return {@code true} if the ids are to be converted together, {@code false} if they already were during the
+     *         request or if the provider does not return ids so that its choices cannot be split among the components
+     */
+    boolean batch(ChoiceProvider<?> provider, Component scope) {
+        Choices<?> choices = choicesOf(provider);
+        return choices.identified && choices.batched.add(scope);
+    }
+
+    /**
+     * Converts ids into choices, reusing the choices remembered for the provider and those in its
+     * {@link ChoiceProvider#getLookupCache() lookup cache}
+     *
+     * @param provider  provider
+     * @param ids       ids to convert
+     * @param converter converts the ids not known yet, calls {@link ChoiceProvider#toChoices(String[])}
+     * @return choices of the ids, in the order of the ids
+     */
+    @SuppressWarnings("unchecked")
+    <T> Collection<T> toChoices(ChoiceProvider<T> provider, String[] ids, Function<String[], Collection<T>> converter) {
+        Choices<T> choices = (Choices<T>) choicesOf(provider);
+        if (!choices.identified) {
+            return convertWhole(choices, ids, converter);
+        }
+
+        List<T> result = new ArrayList<T>(ids.length);
+        List<String> unknown = null;
+        ChoiceLookupCache<T> cache = provider.getLookupCache();
+        for (String id : ids) {
+            T choice = choices.byId.get(id);
+            if (choice == null && !choices.byId.containsKey(id)) {
+                choice = cache == null ? null : cache.get(id);
+                if (choice != null) {
+                    choices.byId.put(id, choice);
+                } else {
+                    if (unknown == null) {
+                        unknown = new ArrayList<String>();
+                    }
+                    unknown.add(id);
+                }
+            }
+            if (choice != null) {
+                result.add(choice);
+            }
+        }
+        if (unknown == null) {
+            return result;
+        }
+
+        Collection<T> converted = converter.apply(unknown.toArray(new String[unknown.size()]));
+        Map<String, T> found = identify(provider, converted);
+        if (found != null) {
+            for (String id : unknown) {
+                T choice = found.remove(id);
+                if (choice != null || !choices.byId.containsKey(id)) {
+                    choices.byId.put(id, choice);
+                }
+            }
+        }
+        if (found == null || !found.isEmpty()) {
+            // the provider does not tell which id a choice belongs to, or returns ids in another form than it is
+            // given them, only reuse whole conversions from now on
+            choices.identified = false;
+            choices.byId.clear();
+            if (unknown.size() == ids.length) {
+                choices.conversions.put(Arrays.asList(ids.clone()), converted);
+                return new ArrayList<T>(converted);
+            }
+            return convertWhole(choices, ids, converter);
+        }
+        if (cache != null) {
+            for (String id : unknown) {
+                T choice = choices.byId.get(id);
+                if (choice != null) {
+                    cache.put(id, choice);
+                }
+            }
+        }
+
+        result.clear();
+        for (String id : ids) {
+            T choice = choices.byId.get(id);
+            if (choice != null) {
+                result.add(choice);
+            }
+        }
+        return result;
+    }
+
+    private Choices<?> choicesOf(ChoiceProvider<?> provider) {
+        Object key = keyOf(provider);
+        Choices<?> choices = providers.get(key);
+        if (choices == null) {
+            choices = new Choices<Object>();
+            providers.put(key, choices);
+        }
+        return choices;
+    }
+
+    /**
+     * @return batch key of the provider, or the provider itself if it is not batched
+     */
+    private static Object keyOf(ChoiceProvider<?> provider) {
+        Object key = provider.getBatchKey();
+        return key == null ? provider : key;
+    }
+
+    private static <T> Collection<T> convertWhole(Choices<T> choices, String[] ids,
+                                                  Function<String[], Collection<T>> converter) {
+        List<String> key = Arrays.asList(ids.clone());
+        Collection<T> converted = choices.conversions.get(key);
+        if (converted == null) {
+            converted = converter.apply(ids);
+            choices.conversions.put(key, converted);
+        }
+        return new ArrayList<T>(converted);
+    }
+
+    /**
+     * @return converted choices by id, or {@code null} if the provider does not return ids
+     */
+    private static <T> Map<String, T> identify(ChoiceProvider<T> provider, Collection<T> converted) {
+        Map<String, T> found = new HashMap<String, T>(converted.size() * 4 / 3 + 1);
+        for (T choice : converted) {
+            String id = choice == null ? null : provider.toId(choice);
+            if (id == null) {
+                return null;
+            }
+            found.put(id, choice);
+        }
+        return found;
+    }
+
+    /**
+     * Choices remembered for a provider
+     */
+    private static final class Choices<T> {
+        /** choices by id, {@code null} for ids the provider did not convert */
+        private final Map<String, T> byId = new HashMap<String, T>();
+        /** choices of the ids of whole conversions, used if the provider does not return ids */
+        private final Map<List<String>, Collection<T>> conversions = new HashMap<List<String>, Collection<T>>();
+        /** containers whose ids were converted together */
+        private final Set<Component> batched = Collections.newSetFromMap(new IdentityHashMap<Component, Boolean>());
+        private boolean identified = true;
+    }
+}
@@ -12,12 +12,16 @@
  */
 package com.vaynberg.wicket.select25;
 
+import java.time.Duration;
 import java.util.Collection;
 
 import org.apache.wicket.model.IDetachable;
+import org.apache.wicket.request.http.WebResponse;
 import org.json.JSONException;
 import org.json.JSONWriter;
 
+import com.vaynberg.wicket.select25.json.JsonEncoder;
+
 /**
  * <p>
  * Acts as a bridge between Select2 components and the application's domain model.
@@ -44,6 +48,47 @@ public abstract class ChoiceProvider<T> implements IDetachable {
      */
     public abstract void query(String query, int page, Response<T> response);
 
+    /**
+     * Token-aware variant of {@link #query(String, int, Response)}. The {@code token} is the continuation token the
+     * provider set with {@link Response#setNextToken(String)} when it produced the previous page, or {@code null} for
+     * the first page. Providers backed by a database can use it to seek directly to the start of the page rather than
+     * skipping over all rows of the previous pages, which keeps the cost of each page constant.
+     * <p>
+     * The default implementation ignores the token and delegates to {@link #query(String, int, Response)}.
+     *
+     * @param query    search query
+     * @param page     requested search query results page
+     * @param token    continuation token of the requested page, or {@code null}
+     * @param response aggregate for matching choices as well as other response options
+     */
+    public void query(String query, int page, String token, Response<T> response) {
+        query(query, page, response);
+    }
+
+    /**
+     * Streaming variant of {@link #query(String, int, String, Response)}: pushes choices that match the search
+     * {@code query} into the {@code sink} one at a time. When called by Select2 components each choice is encoded into
+     * the response as soon as it is added, so providers that produce choices incrementally never have to hold the whole
+     * page.
+     * <p>
+     * The default implementation collects the choices with {@link #query(String, int, String, Response)} and replays
+     * them into the sink. See {@link StreamingChoiceProvider} for a base class of providers that stream natively.
+     *
+     * @param query search query
+     * @param page  requested search query results page
+     * @param token continuation token of the requested page, or {@code null}
+     * @param sink  receiver of matching choices, the {@code more} flag and the continuation token
+     */
+    public void query(String query, int page, String token, ChoiceSink<T> sink) {
+        Response<T> response = new Response<T>();
+        query(query, page, token, response);
+        for (T choice : response) {
+            sink.accept(choice);
+        }
+        sink.setHasMore(response.getHasMore());
+        sink.setNextToken(response.getNextToken());
+    }
+
     /**
      * Converts the specified choice to Json.
      * <p>
@@ -69,6 +114,28 @@ public abstract class ChoiceProvider<T> implements IDetachable {
      */
     public abstract void toJson(T choice, JSONWriter writer) throws JSONException;
 
+    /**
+     * Converts the specified choice to Json by writing it directly into the {@code encoder} used to produce query
+     * responses. The object enclosing the choice has already been opened by the caller and will be closed after this
+     * method returns.
+     * <p>
+     * The default implementation delegates to {@link #toJson(Object, JSONWriter)}. Providers that serve a lot of
+     * queries can override this method to bypass {@link JSONWriter} entirely:
+     * <p>
+     * <pre>
+     * toJson(User choice, JsonEncoder encoder) {
+     *     encoder.key(&quot;id&quot;).value(choice.getId()).key(&quot;text&quot;).value(choice.getName());
+     * }
+     * </pre>
+     *
+     * @param choice  choice to convert
+     * @param encoder encoder positioned inside the choice's Json object
+     * @throws JSONException
+     */
+    public void toJson(T choice, JsonEncoder encoder) throws JSONException {
+        toJson(choice, encoder.writer());
+    }
+
     /**
      * Converts a list of choice ids back into application's choice objects. When the choice provider is attached to a
      * single-select component the {@code ids} collection will contain exactly one id, and a collection containing
@@ -79,6 +146,127 @@ public abstract class ChoiceProvider<T> implements IDetachable {
      */
     public abstract Collection<T> toChoices(String[] ids);
 
+    /**
+     * Returns the id of a choice, the {@code id} attribute {@link #toJson(Object, JSONWriter)} writes for it. Components
+     * use it to tell which of the ids passed to {@link #toChoices(String[])} a returned choice belongs to, so that each
+     * id is converted at most once per request and choices can be kept in the {@link #getLookupCache() lookup cache}.
+     * <p>
+     * The default implementation returns {@code null}, in which case components only reuse the choices of a conversion
+     * when the very same ids are converted again during the request.
+     *
+     * @param choice choice
+     * @return id of the choice, or {@code null} if unknown
+     */
+    public String toId(T choice) {
+        return null;
+    }
+
+    /**
+     * Returns a cache that keeps choices converted by {@link #toChoices(String[])} beyond the request, so that ids
+     * submitted or rendered again soon, e.g. by the next request of the same form, are not converted again. Only used if
+     * {@link #toId(Object)} returns the ids of choices.
+     *
+     * @return cache of choices by id, or {@code null} for none
+     * @see ChoiceLookupCache
+     */
+    public ChoiceLookupCache<T> getLookupCache() {
+        return null;
+    }
+
+    /**
+     * Returns the key of the providers whose choices are converted together. When a form is submitted or rendered with
+     * raw input, the ids of all components in the form whose providers return equal keys are converted by a single call
+     * to {@link #toChoices(String[])}, instead of one call per component, and each component takes its choices from the
+     * result. Providers should only return equal keys if any of them converts an id into the same choice, e.g. a key
+     * made of the entity class and of any filter the provider applies. Conversions are only batched if
+     * {@link #toId(Object)} returns the ids of choices.
+     * <p>
+     * The default implementation returns {@code null}, in which case each component converts its own ids.
+     *
+     * @return key of the providers converting ids alike, or {@code null} to not batch conversions
+     */
+    public Object getBatchKey() {
+        return null;
+    }
+
+    /**
+     * Returns the time a query to this provider is allowed to run before the choices produced so far are returned, or
+     * the query fails, see {@link QueryExecutor}. Only enforced for shared providers, and only when a
+     * {@link QueryExecutor} is installed in the application.
+     *
+     * @return deadline of queries, or {@code null} to use the default deadline of the {@link QueryExecutor}
+     */
+    public Duration getDeadline() {
+        return null;
+    }
+
+    /**
+     * Components whose settings ask for it render the first page of results for an empty search term into the page,
+     * so that the dropdown can open without a round trip. Providers whose first page is expensive to produce, or must
+     * not be part of the page markup, can opt out.
+     *
+     * @return {@code true} if the first page of results may be embedded into the page
+     */
+    public boolean isFirstPageEmbeddable() {
+        return true;
+    }
+
+    /**
+     * Returns whether the shared {@link ChoiceProviderResource} may serve the labels of selected values that
+     * components render as bare ids, see {@link MultiSettings#setEagerLabels(Integer)}. The resource is not bound to a
+     * page and cannot tell which ids a client was shown, it converts any ids a request names, so providers should
+     * only allow it if any of their choices may be disclosed to anyone who can reach the resource. Components whose
+     * shared provider does not allow it render all selected values with their labels. Components that serve their
+     * own queries only ever resolve the ids they rendered as bare ids.
+     *
+     * @return {@code true} if the shared resource may convert ids sent by clients to serve their labels
+     */
+    public boolean isLabelLookupAllowed() {
+        return false;
+    }
+
+    /**
+     * Returns the version of the choices this provider serves. Query responses of providers that return a version
+     * can be cached by browsers and proxies: they carry the version, and their content coding, as their {@code ETag},
+     * may be reused for {@link #getCacheDuration()}, and a request revalidating a response whose version is still
+     * current is answered with {@code 304 Not Modified} without running the query. The version must change whenever
+     * the choices returned for any query change, including changes caused by the state of the provider.
+     *
+     * @return version of the choices, or {@code null} if query responses must not be cached
+     */
+    public String getVersion() {
+        return null;
+    }
+
+    /**
+     * @return how long a cacheable query response may be reused without revalidating it, see {@link #getVersion()}
+     */
+    public Duration getCacheDuration() {
+        return Duration.ZERO;
+    }
+
+    /**
+     * Returns whether shared caches, such as proxies, may store cacheable query responses. Only responses of the
+     * stateless {@link ChoiceProviderResource} are ever public, responses of the component listener are bound to a
+     * page instance and are always private.
+     *
+     * @return cache scope of query responses, see {@link #getVersion()}
+     */
+    public WebResponse.CacheScope getCacheScope() {
+        return WebResponse.CacheScope.PRIVATE;
+    }
+
+    /**
+     * Returns the class that metrics of this provider are tagged with, see {@link Select25Metrics}. Providers that
+     * decorate another provider return the class of the provider they decorate, so that measurements are attributed to
+     * the provider that actually serves the choices.
+     *
+     * @return class of the provider serving the choices
+     */
+    public Class<?> getMetricsClass() {
+        return getClass();
+    }
+
     @Override
     public void detach() {}
 }
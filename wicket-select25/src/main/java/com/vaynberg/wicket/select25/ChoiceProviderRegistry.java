@@ -0,0 +1,105 @@
+/*
+ * Copyright 2012 Igor Vaynberg
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this work except in compliance with
+ * the License. You may obtain a copy of the License in the LICENSE file, or at:
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package com.vaynberg.wicket.select25;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.wicket.Application;
+import org.apache.wicket.MetaDataKey;
+import org.apache.wicket.util.lang.Args;
+
+/**
+ * Application-wide registry of choice providers that serve queries through the stateless
+ * {@link ChoiceProviderResource}. Components reference a registered provider with a {@link SharedChoiceProvider}.
+ * <p>
+ * Registered providers are shared by all requests and are used concurrently, so they must be thread-safe and must not
+ * keep any per-request or per-user state. They are never detached.
+ * <p>
+ * Providers are usually registered when the application starts:
+ * <pre>
+ * protected void init() {
+ *     super.init();
+ *     ChoiceProviderRegistry.get(this).register(&quot;countries&quot;, new CountriesProvider());
+ * }
+ * </pre>
+ *
+ * @author igor
+ */
+public class ChoiceProviderRegistry {
+
+    private static final MetaDataKey<ChoiceProviderRegistry> KEY = new MetaDataKey<ChoiceProviderRegistry>() {};
+
+    private final Map<String, ChoiceProvider<?>> providers = new ConcurrentHashMap<String, ChoiceProvider<?>>();
+
+    /**
+     * @return registry of the current application
+     */
+    public static ChoiceProviderRegistry get() {
+        return get(Application.get());
+    }
+
+    /**
+     * Returns the registry of the application, creating it if necessary. Creating the registry also registers
+     * {@link ChoiceProviderResource#REFERENCE} with the application so that query urls can be resolved even if the
+     * resource is not mounted.
+     *
+     * @param application application
+     * @return provider registry
+     */
+    public static ChoiceProviderRegistry get(Application application) {
+        ChoiceProviderRegistry registry = application.getMetaData(KEY);
+        if (registry == null) {
+            synchronized (application) {
+                registry = application.getMetaData(KEY);
+                if (registry == null) {
+                    registry = new ChoiceProviderRegistry();
+                    application.getResourceReferenceRegistry().registerResourceReference(ChoiceProviderResource.REFERENCE);
+                    application.setMetaData(KEY, registry);
+                }
+            }
+        }
+        return registry;
+    }
+
+    /**
+     * Registers a provider, replacing the provider previously registered under the same key
+     *
+     * @param key      key the provider is referenced by in query urls
+     * @param provider thread-safe provider
+     * @return this for chaining
+     */
+    public ChoiceProviderRegistry register(String key, ChoiceProvider<?> provider) {
+        Args.notEmpty(key, "key");
+        Args.notNull(provider, "provider");
+        providers.put(key, provider);
+        return this;
+    }
+
+    /**
+     * @param key provider key
+     * @return provider that was registered under the key, or {@code null} if there was none
+     */
+    public ChoiceProvider<?> unregister(String key) {
+        return providers.remove(key);
+    }
+
+    /**
+     * @param key provider key
+     * @return provider registered under the key or {@code null} if there is none
+     */
+    @SuppressWarnings("unchecked")
+    public <T> ChoiceProvider<T> getProvider(String key) {
+        return (ChoiceProvider<T>) providers.get(key);
+    }
+}
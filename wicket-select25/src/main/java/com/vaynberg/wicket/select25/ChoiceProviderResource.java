@@ -0,0 +1,161 @@
+/*
+ * Copyright 2012 Igor Vaynberg
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this work except in compliance with
+ * the License. You may obtain a copy of the License in the LICENSE file, or at:
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package com.vaynberg.wicket.select25;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.apache.wicket.request.IRequestParameters;
+import org.apache.wicket.request.Request;
+import org.apache.wicket.request.http.WebResponse;
+import org.apache.wicket.request.mapper.parameter.PageParameters;
+import org.apache.wicket.request.resource.AbstractResource;
+import org.apache.wicket.request.resource.IResource;
+import org.apache.wicket.request.resource.ResourceReference;
+
+/**
+ * Stateless resource that serves queries of the providers registered in the {@link ChoiceProviderRegistry}. The
+ * provider is selected by the {@value #PROVIDER_PARAMETER} request parameter; the rest of the request and the response
+ * follow the same protocol as the query listener of the components.
+ * <p>
+ * The resource never touches a page, so queries are not serialized behind other requests to the page and do not cause
+ * it to be loaded from the page store. Components use it automatically when they are given a
+ * {@link SharedChoiceProvider}. By default it is served from a generic resource url; it can be given a nicer one by
+ * mounting its reference:
+ * <pre>
+ * mountResource(&quot;/select25/choices&quot;, ChoiceProviderResource.REFERENCE);
+ * </pre>
+ * <p>
+ * If a {@link QueryExecutor} is installed and the container supports it, queries are processed asynchronously so that
+ * slow providers do not tie up container threads.
+ * <p>
+ * Responses of providers that declare a {@link ChoiceProvider#getVersion() version} are cacheable, in the
+ * {@link ChoiceProvider#getCacheScope() scope} the provider chooses, which lets proxies serve repeated queries for
+ * reference data.
+ *
+ * @author igor
+ */
+public class ChoiceProviderResource extends AbstractResource {
+
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * Name of the request parameter holding the key of the provider
+     */
+    public static final String PROVIDER_PARAMETER = "provider";
+
+    private static final ChoiceProviderResource INSTANCE = new ChoiceProviderResource();
+
+    /**
+     * Reference to the shared instance of the resource
+     */
+    public static final ResourceReference REFERENCE = new ResourceReference(ChoiceProviderResource.class, "choices") {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        public IResource getResource() {
+            return INSTANCE;
+        }
+    };
+
+    /**
+     * @param provider shared provider
+     * @return parameters of the url that queries the provider through {@link #REFERENCE}
+     */
+    public static PageParameters parametersFor(SharedChoiceProvider<?> provider) {
+        return new PageParameters().set(PROVIDER_PARAMETER, provider.getKey());
+    }
+
+    @Override
+    protected ResourceResponse newResourceResponse(Attributes attributes) {
+        final IRequestParameters params = attributes.getRequest().getRequestParameters();
+        final String key = params.getParameterValue(PROVIDER_PARAMETER).toOptionalString();
+
+        ResourceResponse response = new ResourceResponse();
+        response.disableCaching();
+
+        final ChoiceProvider<Object> provider = key == null ? null : ChoiceProviderRegistry.get().getProvider(key);
+        if (provider == null) {
+            return response.setError(404, "Unknown choice provider");
+        }
+
+        final Request request = attributes.getRequest();
+
+        final String[] labelIds = QueryHandler.labelIds(request);
+        if (labelIds != null) {
+            // labels of selected values rendered as bare ids, the shared provider knows nothing of the selection
+            if (!provider.isLabelLookupAllowed()) {
+                return response.setError(HttpServletResponse.SC_FORBIDDEN, "Label lookup not allowed");
+            }
+            response.setContentType("application/json");
+            response.setTextEncoding("UTF-8");
+            response.setWriteCallback(new WriteCallback() {
+                @Override
+                public void writeData(Attributes attributes) {
+                    QueryHandler.writeLabels(provider.toChoices(labelIds), request,
+                        (WebResponse) attributes.getResponse(), QueryHandler.valueWriter(provider));
+                }
+            });
+            return response;
+        }
+
+        String etag = QueryHandler.etag(provider, request);
+        if (etag != null) {
+            response.setCacheDuration(QueryHandler.toCacheDuration(provider.getCacheDuration()));
+            response.setCacheScope(provider.getCacheScope());
+            response.getHeaders().setHeader("ETag", etag);
+            if (QueryHandler.isNotModified(request, etag)) {
+                // the client's copy is current, neither run the query nor write it
+                Select25Metrics.get().increment(Select25Metrics.Counter.NOT_MODIFIED, ChoiceProviderResource.class,
+                    provider.getMetricsClass());
+                if (ResponseCompression.get() != null) {
+                    response.getHeaders().addHeader("Vary", "Accept-Encoding");
+                }
+                return response.setStatusCode(HttpServletResponse.SC_NOT_MODIFIED);
+            }
+        }
+
+        // the dispatch of a query that ran asynchronously writes its outcome
+        @SuppressWarnings("unchecked")
+        final QueryHandler.Outcome<Object> outcome = (QueryHandler.Outcome<Object>) QueryHandler.takeOutcome(
+            (HttpServletRequest) request.getContainerRequest());
+
+        if (outcome == null && QueryHandler.startAsync(provider, request, QueryHandler.valueWriter(provider),
+            ChoiceProviderResource.class)) {
+            // nothing to write until the query completes and the request is dispatched again
+            response.setWriteCallback(new WriteCallback() {
+                @Override
+                public void writeData(Attributes attributes) {
+                }
+            });
+            return response;
+        }
+
+        response.setContentType("application/json");
+        response.setTextEncoding("UTF-8");
+        response.setWriteCallback(new WriteCallback() {
+            @Override
+            public void writeData(Attributes attributes) {
+                WebResponse webResponse = (WebResponse) attributes.getResponse();
+                if (outcome != null) {
+                    QueryHandler.write(outcome, request, webResponse, QueryHandler.valueWriter(provider),
+                        ChoiceProviderResource.class);
+                } else {
+                    QueryHandler.respond(provider, true, request, webResponse, QueryHandler.valueWriter(provider),
+                        ChoiceProviderResource.class);
+                }
+            }
+        });
+        return response;
+    }
+}
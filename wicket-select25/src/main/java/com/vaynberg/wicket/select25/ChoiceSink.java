@@ -0,0 +1,47 @@
+/*
+ * Copyright 2012 Igor Vaynberg
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this work except in compliance with
+ * the License. You may obtain a copy of the License in the LICENSE file, or at:
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package com.vaynberg.wicket.select25;
+
+/**
+ * Receives matching choices one at a time as a provider produces them. Unlike {@link Response} a sink does not
+ * necessarily hold on to the choices; the sink used by Select2 components encodes each choice straight into the Json
+ * response.
+ *
+ * @param <T> type of choice object
+ * @author igor
+ * @see ChoiceProvider#query(String, int, String, ChoiceSink)
+ */
+public interface ChoiceSink<T> {
+
+    /**
+     * Adds a choice to the response
+     *
+     * @param choice choice
+     */
+    void accept(T choice);
+
+    /**
+     * Sets the {@code more} flag used to tell Select2 whether or not there are more results available. Since the flag
+     * is written after all choices it can be set at any point, typically after the last choice has been added.
+     *
+     * @param more more flag
+     */
+    void setHasMore(Boolean more);
+
+    /**
+     * Sets the continuation token of the next page, see {@link Response#setNextToken(String)}
+     *
+     * @param token continuation token
+     */
+    void setNextToken(String token);
+}
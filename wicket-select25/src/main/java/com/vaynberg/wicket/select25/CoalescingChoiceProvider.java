@@ -0,0 +1,354 @@
+/*
+ * Copyright 2012 Igor Vaynberg
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this work except in compliance with
+ * the License. You may obtain a copy of the License in the LICENSE file, or at:
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package com.vaynberg.wicket.select25;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.wicket.Application;
+import org.apache.wicket.MetaDataKey;
+import org.apache.wicket.Session;
+import org.apache.wicket.request.http.WebResponse;
+import org.apache.wicket.util.lang.Args;
+import org.json.JSONException;
+import org.json.JSONWriter;
+
+import com.vaynberg.wicket.select25.json.JsonEncoder;
+
+/**
+ * Decorator that coalesces identical queries running at the same time. The first query for a search term, page and
+ * continuation token runs against the decorated provider; queries with the same parameters that arrive while it is
+ * running wait for it and receive the same choices instead of querying the provider again. Nothing is kept once the
+ * query completes, so unlike {@link CachingChoiceProvider} coalescing never serves stale results.
+ * <p>
+ * If the query fails all waiting queries fail with it. If it is interrupted or cancelled, for example because it ran
+ * past its deadline, its possibly incomplete results are only returned to the query that ran it; the waiting queries
+ * query the provider themselves. A waiting query stops waiting, and returns no choices, when it is cancelled itself or
+ * its own deadline passes.
+ * <p>
+ * Queries of all providers with the same key are coalesced, across all users of the application. The key must
+ * therefore capture everything the results depend on, such as filters the provider is constructed with; providers
+ * whose results depend on the user must either include the user in the key or be constructed with {@code perSession}
+ * set, in which case only queries of the same session are coalesced.
+ * <p>
+ * Coalescing can be combined with caching, in which case only cache misses are coalesced:
+ * <pre>
+ * new CachingChoiceProvider&lt;Country&gt;(new CoalescingChoiceProvider&lt;Country&gt;(new CountriesProvider(), &quot;countries&quot;, false), &quot;countries&quot;);
+ * </pre>
+ *
+ * @param <T> type of choice object
+ * @author igor
+ */
+public class CoalescingChoiceProvider<T> extends ChoiceProvider<T> {
+
+    private static final MetaDataKey<ConcurrentMap<Key, Flight>> FLIGHTS = new MetaDataKey<ConcurrentMap<Key, Flight>>() {};
+
+    private final ChoiceProvider<T> delegate;
+    private final String key;
+    private final boolean perSession;
+
+    /**
+     * Constructor
+     *
+     * @param delegate   provider whose queries are coalesced
+     * @param key        key identifying queries of {@code delegate}, queries of providers with equal keys are coalesced
+     * @param perSession {@code true} to only coalesce queries of the same session
+     */
+    public CoalescingChoiceProvider(ChoiceProvider<T> delegate, String key, boolean perSession) {
+        Args.notNull(delegate, "delegate");
+        Args.notEmpty(key, "key");
+        this.delegate = delegate;
+        this.key = key;
+        this.perSession = perSession;
+    }
+
+    @Override
+    public void query(String query, int page, Response<T> response) {
+        query(query, page, null, response);
+    }
+
+    @Override
+    public void query(String query, int page, String token, Response<T> response) {
+        query(query, page, token, response.asSink());
+    }
+
+    @Override
+    public void query(String query, int page, String token, ChoiceSink<T> sink) {
+        String session = null;
+        if (perSession) {
+            session = Session.exists() ? Session.get().getId() : null;
+            if (session == null) {
+                // a temporary session cannot be shared with anyone
+                delegate.query(query, page, token, sink);
+                return;
+            }
+        }
+
+        Application application = Application.get();
+        Key flightKey = new Key(key, query, page, token, session);
+        ConcurrentMap<Key, Flight> flights = flights(application);
+
+        QueryExecutor executor = QueryExecutor.get(application);
+        Duration deadline = executor == null ? null : executor.getDeadline(this);
+        long waitUntil = deadline == null ? Long.MAX_VALUE : System.nanoTime() + deadline.toNanos();
+        QueryCancellation cancellation = QueryCancellation.current();
+
+        QueryCache.Results results = null;
+        while (results == null) {
+            Flight flight = new Flight();
+            Flight existing = flights.putIfAbsent(flightKey, flight);
+            if (existing == null) {
+                try {
+                    results = fly(query, page, token);
+                    // possibly incomplete results of an interrupted or cancelled query are only given to the caller
+                    flight.land(isAborted() ? null : results);
+                } catch (RuntimeException | Error e) {
+                    flight.crash(e);
+                    throw e;
+                } finally {
+                    flights.remove(flightKey, flight);
+                }
+            } else if (!existing.await(cancellation, waitUntil)) {
+                // this query was cancelled, or ran past its deadline, while waiting and has nothing to respond with
+                return;
+            } else {
+                // null if the flight was interrupted or cancelled, in which case this query has to run on its own
+                results = existing.results;
+            }
+        }
+
+        for (T choice : results.<T>getChoices()) {
+            sink.accept(choice);
+        }
+        sink.setHasMore(results.getHasMore());
+        sink.setNextToken(results.getNextToken());
+    }
+
+    /**
+     * Runs the query against the decorated provider
+     *
+     * @return results, incomplete if the query was interrupted or cancelled
+     */
+    private QueryCache.Results fly(String query, int page, String token) {
+        Response<T> response = new Response<T>();
+        delegate.query(query, page, token, response);
+        List<T> choices = Collections.unmodifiableList(new ArrayList<T>(response.getResults()));
+        return new QueryCache.Results(choices, response.getHasMore(), response.getNextToken());
+    }
+
+    private static boolean isAborted() {
+        return Thread.currentThread().isInterrupted() || QueryCancellation.current().isCancelled();
+    }
+
+    private static ConcurrentMap<Key, Flight> flights(Application application) {
+        ConcurrentMap<Key, Flight> flights = application.getMetaData(FLIGHTS);
+        if (flights == null) {
+            synchronized (application) {
+                flights = application.getMetaData(FLIGHTS);
+                if (flights == null) {
+                    flights = new ConcurrentHashMap<Key, Flight>();
+                    application.setMetaData(FLIGHTS, flights);
+                }
+            }
+        }
+        return flights;
+    }
+
+    /**
+     * @return provider whose queries are coalesced
+     */
+    public ChoiceProvider<T> getDelegate() {
+        return delegate;
+    }
+
+    /**
+     * @return key identifying queries of this provider
+     */
+    public String getKey() {
+        return key;
+    }
+
+    /**
+     * @return {@code true} if only queries of the same session are coalesced
+     */
+    public boolean isPerSession() {
+        return perSession;
+    }
+
+    @Override
+    public void toJson(T choice, JSONWriter writer) throws JSONException {
+        delegate.toJson(choice, writer);
+    }
+
+    @Override
+    public void toJson(T choice, JsonEncoder encoder) throws JSONException {
+        delegate.toJson(choice, encoder);
+    }
+
+    @Override
+    public Collection<T> toChoices(String[] ids) {
+        return delegate.toChoices(ids);
+    }
+
+    @Override
+    public String toId(T choice) {
+        return delegate.toId(choice);
+    }
+
+    @Override
+    public ChoiceLookupCache<T> getLookupCache() {
+        return delegate.getLookupCache();
+    }
+
+    @Override
+    public Object getBatchKey() {
+        return delegate.getBatchKey();
+    }
+
+    @Override
+    public Duration getDeadline() {
+        return delegate.getDeadline();
+    }
+
+    @Override
+    public boolean isFirstPageEmbeddable() {
+        return delegate.isFirstPageEmbeddable();
+    }
+
+    @Override
+    public boolean isLabelLookupAllowed() {
+        return delegate.isLabelLookupAllowed();
+    }
+
+    @Override
+    public String getVersion() {
+        return delegate.getVersion();
+    }
+
+    @Override
+    public Duration getCacheDuration() {
+        return delegate.getCacheDuration();
+    }
+
+    @Override
+    public WebResponse.CacheScope getCacheScope() {
+        return delegate.getCacheScope();
+    }
+
+    @Override
+    public Class<?> getMetricsClass() {
+        return delegate.getMetricsClass();
+    }
+
+    @Override
+    public void detach() {
+        delegate.detach();
+    }
+
+    /**
+     * Query in progress that other queries with the same parameters wait on
+     */
+    private static final class Flight {
+        private boolean landed;
+        private QueryCache.Results results;
+        private Throwable failure;
+
+        synchronized void land(QueryCache.Results results) {
+            this.results = results;
+            landed = true;
+            notifyAll();
+        }
+
+        synchronized void crash(Throwable failure) {
+            this.failure = failure;
+            landed = true;
+            notifyAll();
+        }
+
+        /**
+         * Waits for the flight to land, its results are then available from {@link #results}
+         *
+         * @param cancellation cancellation signal of the waiting query
+         * @param waitUntil    {@link System#nanoTime()} at which the waiting query gives up
+         * @return {@code true} if the flight landed, {@code false} if the wait was cancelled, interrupted, or timed out
+         */
+        boolean await(QueryCancellation cancellation, long waitUntil) {
+            cancellation.onCancel(this::wake);
+            synchronized (this) {
+                while (!landed) {
+                    long remaining = waitUntil - System.nanoTime();
+                    if (remaining <= 0 || cancellation.isCancelled()) {
+                        return false;
+                    }
+                    try {
+                        TimeUnit.NANOSECONDS.timedWait(this, remaining);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        return false;
+                    }
+                }
+                if (failure != null) {
+                    throw new RuntimeException("Coalesced query failed", failure);
+                }
+                return true;
+            }
+        }
+
+        private synchronized void wake() {
+            notifyAll();
+        }
+    }
+
+    private static final class Key {
+        private final String provider;
+        private final String term;
+        private final int page;
+        private final String token;
+        private final String session;
+        private final int hash;
+
+        Key(String provider, String term, int page, String token, String session) {
+            this.provider = provider;
+            this.term = term;
+            this.page = page;
+            this.token = token;
+            this.session = session;
+            this.hash = Objects.hash(provider, term, page, token, session);
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (this == obj) {
+                return true;
+            }
+            if (!(obj instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) obj;
+            return page == other.page && provider.equals(other.provider) && Objects.equals(term, other.term)
+                && Objects.equals(token, other.token) && Objects.equals(session, other.session);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
+}
@@ -0,0 +1,165 @@
+/*
+ * Copyright 2012 Igor Vaynberg
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this work except in compliance with
+ * the License. You may obtain a copy of the License in the LICENSE file, or at:
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package com.vaynberg.wicket.select25;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.zip.DeflaterOutputStream;
+
+import org.apache.wicket.request.http.WebResponse;
+
+/**
+ * Stream a query response is written into when {@link ResponseCompression} is installed. The first bytes are buffered
+ * until the response grows past the compression threshold; at that point the {@code Content-Encoding} header is set
+ * and everything from then on is compressed as it is written. Responses that end below the threshold are written as
+ * they are by {@link #finish()}.
+ *
+ * @author igor
+ */
+final class CompressingOutputStream extends OutputStream {
+
+    private final WebResponse response;
+    private final ResponseCompression compression;
+    private final String encoding;
+
+    private final byte[] buffer;
+    private int count;
+
+    private CountingOutputStream wire;
+    private OutputStream out;
+    private long json;
+    private long cpuNanos;
+    private boolean finished;
+
+    /**
+     * Constructor
+     *
+     * @param response    response the body is written into
+     * @param compression installed compression
+     * @param encoding    negotiated content coding, or {@code null} to write the body as it is
+     */
+    CompressingOutputStream(WebResponse response, ResponseCompression compression, String encoding) {
+        this.response = response;
+        this.compression = compression;
+        this.encoding = encoding;
+        this.buffer = new byte[encoding == null ? 0 : compression.getThreshold()];
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        write(new byte[] { (byte) b }, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        json += len;
+        if (out == null) {
+            if (count + len <= buffer.length) {
+                System.arraycopy(b, off, buffer, count, len);
+                count += len;
+                return;
+            }
+            start(encoding);
+        }
+        write(out, b, off, len);
+    }
+
+    private void write(OutputStream out, byte[] b, int off, int len) throws IOException {
+        if (out instanceof DeflaterOutputStream) {
+            long start = ResponseCompression.cpuTime();
+            out.write(b, off, len);
+            cpuNanos += ResponseCompression.cpuTime() - start;
+        } else {
+            out.write(b, off, len);
+        }
+    }
+
+    private void start(String encoding) throws IOException {
+        wire = new CountingOutputStream(response.getOutputStream());
+        if (encoding == null) {
+            out = wire;
+        } else {
+            response.setHeader("Content-Encoding", encoding);
+            out = compression.compress(wire, encoding);
+        }
+        if (count > 0) {
+            write(out, buffer, 0, count);
+            count = 0;
+        }
+    }
+
+    @Override
+    public void flush() throws IOException {
+        // a buffered response is written once it is complete, a compressed one is not sync flushed midway
+        if (out != null) {
+            wire.flush();
+        }
+    }
+
+    /**
+     * Writes out what is still buffered and completes the compressed stream, without closing the response stream
+     */
+    void finish() throws IOException {
+        if (finished) {
+            return;
+        }
+        finished = true;
+        if (out == null) {
+            start(null);
+        } else if (out instanceof DeflaterOutputStream) {
+            long start = ResponseCompression.cpuTime();
+            ((DeflaterOutputStream) out).finish();
+            cpuNanos += ResponseCompression.cpuTime() - start;
+        }
+        wire.flush();
+        compression.record(json, wire.count, out instanceof DeflaterOutputStream, cpuNanos);
+    }
+
+    /**
+     * @return number of bytes written to the response, compressed or not
+     */
+    long getByteCount() {
+        return wire == null ? 0 : wire.count;
+    }
+
+    @Override
+    public void close() throws IOException {
+        finish();
+    }
+
+    private static final class CountingOutputStream extends OutputStream {
+        private final OutputStream out;
+        private long count;
+
+        CountingOutputStream(OutputStream out) {
+            this.out = out;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            count += len;
+        }
+
+        @Override
+        public void flush() throws IOException {
+            out.flush();
+        }
+    }
+}
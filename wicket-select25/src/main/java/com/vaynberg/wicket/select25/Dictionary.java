@@ -1,6 +1,7 @@
 package com.vaynberg.wicket.select25;
 
 import java.io.Serializable;
+import java.util.Objects;
 
 import org.json.JSONStringer;
 
@@ -24,6 +25,16 @@ public interface Dictionary extends Serializable {
 		public String getName() {
 			return name;
 		}
+
+		@Override
+		public boolean equals(Object obj) {
+			return obj instanceof DictionaryName && Objects.equals(name, ((DictionaryName) obj).name);
+		}
+
+		@Override
+		public int hashCode() {
+			return Objects.hashCode(name);
+		}
 	}
 
 	public static class DictionaryImplementation implements Dictionary {
@@ -41,5 +52,15 @@ public interface Dictionary extends Serializable {
 		public String getJavaScriptObject() {
 			return javaScriptObject;
 		}
+
+		@Override
+		public boolean equals(Object obj) {
+			return obj instanceof DictionaryImplementation && Objects.equals(javaScriptObject, ((DictionaryImplementation) obj).javaScriptObject);
+		}
+
+		@Override
+		public int hashCode() {
+			return Objects.hashCode(javaScriptObject);
+		}
 	}
 }
\ No newline at end of file
@@ -0,0 +1,468 @@
+/*
+ * Copyright 2012 Igor Vaynberg
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this work except in compliance with
+ * the License. You may obtain a copy of the License in the LICENSE file, or at:
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package com.vaynberg.wicket.select25;
+
+import java.nio.charset.StandardCharsets;
+import java.text.MessageFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.function.Supplier;
+import java.util.regex.Pattern;
+import java.util.zip.CRC32;
+
+import org.apache.wicket.Application;
+import org.apache.wicket.Component;
+import org.apache.wicket.MarkupContainer;
+import org.apache.wicket.MetaDataKey;
+import org.apache.wicket.markup.head.HeaderItem;
+import org.apache.wicket.markup.head.JavaScriptHeaderItem;
+import org.apache.wicket.request.IRequestParameters;
+import org.apache.wicket.request.http.WebResponse;
+import org.apache.wicket.request.mapper.parameter.PageParameters;
+import org.apache.wicket.request.resource.AbstractResource;
+import org.apache.wicket.request.resource.IResource;
+import org.apache.wicket.request.resource.ResourceReference;
+import org.apache.wicket.resource.loader.IStringResourceLoader;
+import org.apache.wicket.util.string.Strings;
+
+import com.github.openjson.JSONObject;
+
+/**
+ * Serves the localized select25 dictionary as a JavaScript resource. The dictionary of each locale, style and
+ * variation is built once per application from the {@code select25.*} strings and registered with the select25
+ * companion script under a name; components refer to it by that name instead of inlining the dictionary into their
+ * initialization script.
+ * <p>
+ * Strings are looked up with the application's string resource loaders relative to the select25 package, so they
+ * reflect overrides in the application's or a package's properties, but not in the properties of a page or component.
+ * Components compare the shared dictionary to the strings they resolve themselves and inline their own dictionary
+ * when they differ, see {@link Select25AbstractChoice#addDictionaryToSettings(Settings)}. The outcome of the comparison
+ * is remembered for the classes of the component and its parents, and the component's locale, style and variation.
+ * <p>
+ * Only dictionaries of well-formed locales without variants or extensions, and of plain style and variation names, are
+ * shared and served. Resource urls contain a hash of the dictionary, so the resource is cached by browsers for as long
+ * as possible; dictionaries requested by urls that do not carry the current hash are built but not kept.
+ *
+ * @author igor
+ */
+public class DictionaryResource extends AbstractResource {
+
+    private static final long serialVersionUID = 1L;
+
+    private static final MetaDataKey<ConcurrentMap<String, Script>> SCRIPTS = new MetaDataKey<ConcurrentMap<String, Script>>() {};
+
+    /** whether components use the shared dictionary, keyed by {@link #decisionKey(Component)} */
+    private static final MetaDataKey<ConcurrentMap<List<Object>, Boolean>> SHARED = new MetaDataKey<ConcurrentMap<List<Object>, Boolean>>() {};
+
+    /** bound on the number of cached dictionaries, locales are taken from resource urls */
+    private static final int MAX_SCRIPTS = 256;
+
+    /** bound on the number of remembered comparisons */
+    private static final int MAX_DECISIONS = 1024;
+
+    private static final String LOCALE_PARAMETER = "locale";
+    private static final String STYLE_PARAMETER = "style";
+    private static final String VARIATION_PARAMETER = "variation";
+    private static final String VERSION_PARAMETER = "v";
+
+    /** style and variation names that are served */
+    private static final Pattern NAME = Pattern.compile("[A-Za-z0-9_\\-]{1,32}");
+
+    private static final Set<String> LANGUAGES = new HashSet<String>(Arrays.asList(Locale.getISOLanguages()));
+    private static final Set<String> COUNTRIES = new HashSet<String>(Arrays.asList(Locale.getISOCountries()));
+
+    private static final DictionaryResource INSTANCE = new DictionaryResource();
+
+    /**
+     * Reference to the shared instance of the resource
+     */
+    public static final ResourceReference REFERENCE = new ResourceReference(DictionaryResource.class, "dictionary.js") {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        public IResource getResource() {
+            return INSTANCE;
+        }
+
+        @Override
+        public List<HeaderItem> getDependencies() {
+            List<HeaderItem> dependencies = super.getDependencies();
+            dependencies.add(JavaScriptHeaderItem.forReference(Select25AbstractChoice.WICKET_JS));
+            return dependencies;
+        }
+    };
+
+    /**
+     * Looks up a localized string of the dictionary
+     */
+    interface StringSource {
+        /**
+         * @param key       resource key
+         * @param parameter parameter substituted for {@code {0}}, or {@code null} if the string has no parameters
+         * @return localized string
+         */
+        String get(String key, String parameter);
+    }
+
+    /**
+     * Returns the shared dictionary of the component's locale, style and variation
+     *
+     * @param component component
+     * @return dictionary that refers to the shared dictionary by name, or {@code null} if the dictionary of the
+     *         component's locale, style and variation is not served
+     */
+    public static SharedDictionary forComponent(Component component) {
+        return get(component.getLocale(), component.getStyle(), component.getVariation());
+    }
+
+    /**
+     * Returns the shared dictionary of the component's locale, style and variation if it holds the same strings as the
+     * dictionary the component builds itself. The dictionary is only built to compare the first component of its
+     * class, with the same classes of parents, locale, style and variation; the outcome is remembered for the others.
+     * Strings overridden in the properties of the component or one of its parents are therefore detected, but
+     * overrides that depend on something else, e.g. the component's id, must not be used with this method.
+     *
+     * @param component  component
+     * @param dictionary builds the dictionary of the component
+     * @return dictionary that refers to the shared dictionary by name, or {@code null} if the component has to use its
+     *         own dictionary
+     */
+    public static SharedDictionary forComponent(Component component,
+                                                Supplier<Dictionary.DictionaryImplementation> dictionary) {
+        SharedDictionary shared = forComponent(component);
+        if (shared == null) {
+            return null;
+        }
+        ConcurrentMap<List<Object>, Boolean> decisions = decisions(Application.get());
+        List<Object> key = decisionKey(component);
+        Boolean equivalent = decisions.get(key);
+        if (equivalent == null) {
+            equivalent = shared.isEquivalent(dictionary.get());
+            if (decisions.size() < MAX_DECISIONS) {
+                decisions.putIfAbsent(key, equivalent);
+            }
+        }
+        return equivalent ? shared : null;
+    }
+
+    /**
+     * @return classes of the component and its parents, which decide where its strings are looked up, and its locale,
+     *         style and variation
+     */
+    private static List<Object> decisionKey(Component component) {
+        List<Object> key = new ArrayList<Object>(8);
+        key.add(component.getLocale());
+        key.add(component.getStyle());
+        key.add(component.getVariation());
+        key.add(component.getClass());
+        for (MarkupContainer parent = component.getParent(); parent != null; parent = parent.getParent()) {
+            key.add(parent.getClass());
+        }
+        return key;
+    }
+
+    private static ConcurrentMap<List<Object>, Boolean> decisions(Application application) {
+        ConcurrentMap<List<Object>, Boolean> decisions = application.getMetaData(SHARED);
+        if (decisions == null) {
+            synchronized (application) {
+                decisions = application.getMetaData(SHARED);
+                if (decisions == null) {
+                    decisions = new ConcurrentHashMap<List<Object>, Boolean>();
+                    application.setMetaData(SHARED, decisions);
+                }
+            }
+        }
+        return decisions;
+    }
+
+    /**
+     * @param locale    locale
+     * @param style     style, or {@code null}
+     * @param variation variation, or {@code null}
+     * @return dictionary that refers to the shared dictionary by name, or {@code null} if the dictionary of the locale,
+     *         style and variation is not served
+     */
+    public static SharedDictionary get(Locale locale, String style, String variation) {
+        if (!isServed(locale, style, variation)) {
+            return null;
+        }
+        Script script = script(Application.get(), locale, style, variation, null);
+        return new SharedDictionary(script.name, locale, style, variation, script.version);
+    }
+
+    /**
+     * Tells whether the dictionary of a locale, style and variation may be served. The parameters of a dictionary are
+     * taken from its url, so they are restricted to keep requests from making the resource build dictionaries for
+     * arbitrary values.
+     */
+    private static boolean isServed(Locale locale, String style, String variation) {
+        return LANGUAGES.contains(locale.getLanguage())
+            && (locale.getCountry().isEmpty() || COUNTRIES.contains(locale.getCountry()))
+            && locale.getVariant().isEmpty() && locale.getExtensionKeys().isEmpty()
+            && (Strings.isEmpty(style) || NAME.matcher(style).matches())
+            && (Strings.isEmpty(variation) || NAME.matcher(variation).matches());
+    }
+
+    /**
+     * @param version version the dictionary is expected to have, the dictionary is only kept if it has that version;
+     *                {@code null} to keep it regardless
+     */
+    private static Script script(Application application, Locale locale, String style, String variation,
+                                 String version) {
+        String key = locale.toLanguageTag();
+        if (!Strings.isEmpty(style)) {
+            key += "." + style;
+        }
+        if (!Strings.isEmpty(variation)) {
+            key += ".." + variation;
+        }
+        ConcurrentMap<String, Script> scripts = scripts(application);
+        Script script = scripts.get(key);
+        if (script == null) {
+            script = new Script("wicket-" + key, toJavaScript(new LoaderStrings(application, locale, style, variation)));
+            if (scripts.size() < MAX_SCRIPTS && (version == null || version.equals(script.version))) {
+                Script existing = scripts.putIfAbsent(key, script);
+                if (existing != null) {
+                    script = existing;
+                }
+            }
+        }
+        return script;
+    }
+
+    private static ConcurrentMap<String, Script> scripts(Application application) {
+        ConcurrentMap<String, Script> scripts = application.getMetaData(SCRIPTS);
+        if (scripts == null) {
+            synchronized (application) {
+                scripts = application.getMetaData(SCRIPTS);
+                if (scripts == null) {
+                    scripts = new ConcurrentHashMap<String, Script>();
+                    application.getResourceReferenceRegistry().registerResourceReference(REFERENCE);
+                    application.setMetaData(SCRIPTS, scripts);
+                }
+            }
+        }
+        return scripts;
+    }
+
+    @Override
+    protected ResourceResponse newResourceResponse(Attributes attributes) {
+        IRequestParameters params = attributes.getRequest().getRequestParameters();
+        String tag = params.getParameterValue(LOCALE_PARAMETER).toOptionalString();
+        String style = params.getParameterValue(STYLE_PARAMETER).toOptionalString();
+        String variation = params.getParameterValue(VARIATION_PARAMETER).toOptionalString();
+        String version = params.getParameterValue(VERSION_PARAMETER).toOptionalString();
+
+        ResourceResponse response = new ResourceResponse();
+        if (tag == null || version == null) {
+            return response.setError(404);
+        }
+        Locale locale = Locale.forLanguageTag(tag);
+        if (!locale.toLanguageTag().equals(tag) || !isServed(locale, style, variation)) {
+            return response.setError(404);
+        }
+
+        final Script script = script(Application.get(), locale, style, variation, version);
+        response.setContentType("text/javascript");
+        response.setTextEncoding("UTF-8");
+        if (script.version.equals(version)) {
+            response.setCacheDurationToMaximum();
+            response.setCacheScope(WebResponse.CacheScope.PUBLIC);
+        } else {
+            // the url refers to another version of the dictionary, do not let it be cached under that url
+            response.disableCaching();
+        }
+        response.setWriteCallback(new WriteCallback() {
+            @Override
+            public void writeData(Attributes attributes) {
+                attributes.getResponse().write(script.bytes);
+            }
+        });
+        return response;
+    }
+
+    /**
+     * Builds the select25 dictionary object literal
+     *
+     * @param strings localized strings
+     * @return JavaScript object literal
+     */
+    static String toJavaScript(StringSource strings) {
+        // @formatter:off
+        return "{" +
+                "valueAdded: function(itemLabel) {" +
+                    "return " + JSONObject.quote(strings.get("select25.valueAdded", "$value$")) + ".replace('$value$', itemLabel);" +
+                "}, " +
+                "noSearchResults: function() {" +
+                    "return " + JSONObject.quote(strings.get("select25.noSearchResults", null)) + ";" +
+                "}, " +
+                "searchResultsLoading: function() {" +
+                    "return " + JSONObject.quote(strings.get("select25.searchResultsLoading", null)) + ";" +
+                "}, " +
+                "removeButtonTitle: function() {" +
+                    "return " + JSONObject.quote(strings.get("select25.removeButtonTitle", null)) + ";" +
+                "}, " +
+                "clearButtonTitle: function() {" +
+                    "return " + JSONObject.quote(strings.get("select25.clearButtonTitle", null)) + ";" +
+                "}, " +
+                "minimumCharactersMessage: function(len, min) {" +
+                    "var delta = min - len;" +
+                    "if(delta == 1) { " +
+                        "return " + JSONObject.quote(strings.get("select25.minimumCharactersMessage1", null)) + ";" +
+                    "} else {" +
+                        "return " + JSONObject.quote(strings.get("select25.minimumCharactersMessageX", "$delta$")) + ".replace('$delta$', delta);" +
+                    "}" +
+                "}, " +
+                "multiSelectInstructions: function() {" +
+                    "return " + JSONObject.quote(strings.get("select25.multiSelectInstructions", null)) + ";" +
+                "}, " +
+                "expandButtonTitle: function () {" +
+                    "return " + JSONObject.quote(strings.get("select25.expandButtonTitle", null)) + ";" +
+                "}, " +
+                "maximumValuesSelectedMessage: function () {" +
+                    "return " + JSONObject.quote(strings.get("select25.maximumValuesSelectedMessage", null)) + ";" +
+                "} " +
+            "}";
+        // @formatter:on
+    }
+
+    /**
+     * Looks strings up with the application's string resource loaders, relative to the select25 package
+     */
+    private static final class LoaderStrings implements StringSource {
+        private final Application application;
+        private final Locale locale;
+        private final String style;
+        private final String variation;
+
+        LoaderStrings(Application application, Locale locale, String style, String variation) {
+            this.application = application;
+            this.locale = locale;
+            this.style = style;
+            this.variation = variation;
+        }
+
+        @Override
+        public String get(String key, String parameter) {
+            String value = null;
+            for (IStringResourceLoader loader : application.getResourceSettings().getStringResourceLoaders()) {
+                value = loader.loadStringResource(Select25AbstractChoice.class, key, locale, style, variation);
+                if (value != null) {
+                    break;
+                }
+            }
+            if (value == null) {
+                throw new IllegalStateException("Could not find string resource: " + key);
+            }
+            return parameter == null ? value : format(value, parameter, locale);
+        }
+    }
+
+    /**
+     * Substitutes the parameter the way {@link org.apache.wicket.model.StringResourceModel} does, so a string formats
+     * to the same text for the shared dictionary as for a component: single quotes outside of format elements are
+     * literal, not quoting characters as they are for {@link MessageFormat}.
+     */
+    static String format(String value, String parameter, Locale locale) {
+        if (value.indexOf('\'') != -1) {
+            StringBuilder escaped = new StringBuilder(value.length() + 10);
+            int depth = 0;
+            for (int i = 0; i < value.length(); i++) {
+                char c = value.charAt(i);
+                if (c == '{') {
+                    depth++;
+                } else if (c == '}') {
+                    depth--;
+                }
+                escaped.append(c);
+                if (c == '\'' && depth == 0) {
+                    escaped.append(c);
+                }
+            }
+            value = escaped.toString();
+        }
+        return new MessageFormat(value, locale).format(new Object[] { parameter });
+    }
+
+    /**
+     * Compiled dictionary script of a locale, style and variation
+     */
+    private static final class Script {
+        private final String name;
+        private final String dictionary;
+        private final byte[] bytes;
+        private final String version;
+
+        Script(String name, String dictionary) {
+            this.name = name;
+            this.dictionary = dictionary;
+            String script = "window.select25.wicket.registerDictionary(" + JSONObject.quote(name) + ", " + dictionary + ");\n";
+            this.bytes = script.getBytes(StandardCharsets.UTF_8);
+            CRC32 crc = new CRC32();
+            crc.update(bytes);
+            this.version = Long.toHexString(crc.getValue());
+        }
+    }
+
+    /**
+     * Dictionary that refers to a dictionary served by {@link DictionaryResource} by its name. Components render the
+     * {@link #getHeaderItem() header item} that loads the dictionary along with their initialization script.
+     */
+    public static class SharedDictionary extends Dictionary.DictionaryName {
+        private static final long serialVersionUID = 1L;
+
+        private final Locale locale;
+        private final String style;
+        private final String variation;
+        private final String version;
+
+        SharedDictionary(String name, Locale locale, String style, String variation, String version) {
+            super(name);
+            this.locale = locale;
+            this.style = style;
+            this.variation = variation;
+            this.version = version;
+        }
+
+        /**
+         * @param dictionary dictionary built from the strings a component resolves
+         * @return {@code true} if the shared dictionary holds the same strings
+         */
+        public boolean isEquivalent(Dictionary.DictionaryImplementation dictionary) {
+            Script script = script(Application.get(), locale, style, variation, null);
+            return script.dictionary.equals(dictionary.getJavaScriptObject());
+        }
+
+        /**
+         * @return header item that loads the dictionary
+         */
+        public HeaderItem getHeaderItem() {
+            PageParameters parameters = new PageParameters();
+            parameters.set(LOCALE_PARAMETER, locale.toLanguageTag());
+            if (!Strings.isEmpty(style)) {
+                parameters.set(STYLE_PARAMETER, style);
+            }
+            if (!Strings.isEmpty(variation)) {
+                parameters.set(VARIATION_PARAMETER, variation);
+            }
+            parameters.set(VERSION_PARAMETER, version);
+            return JavaScriptHeaderItem.forReference(REFERENCE, parameters, "select25-dictionary-" + getName());
+        }
+    }
+}
@@ -0,0 +1,249 @@
+/*
+ * Copyright 2012 Igor Vaynberg
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this work except in compliance with
+ * the License. You may obtain a copy of the License in the LICENSE file, or at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package com.vaynberg.wicket.select25;
+
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * {@link Select25Metrics} that keep everything in memory, meant for tests and for inspecting a running application
+ * without a metrics library. Timers and histograms keep the count, sum, minimum and maximum of the recorded values and
+ * a histogram with power of two buckets, from which percentiles are estimated.
+ * <p>
+ * Every lookup takes the classes of the component and of the provider; {@code null} stands for any class, so
+ * {@code get(Timer.QUERY, null, null)} sums the queries of all components and providers.
+ *
+ * @author igor
+ */
+public class InMemoryMetrics extends Select25Metrics {
+
+    private final ConcurrentMap<Key, Recorder> distributions = new ConcurrentHashMap<Key, Recorder>();
+    private final ConcurrentMap<Key, LongAdder> counters = new ConcurrentHashMap<Key, LongAdder>();
+
+    @Override
+    public void record(Timer timer, Class<?> component, Class<?> provider, long nanos) {
+        distributions.computeIfAbsent(new Key(timer, component, provider), key -> new Recorder()).record(nanos);
+    }
+
+    @Override
+    public void increment(Counter counter, Class<?> component, Class<?> provider) {
+        counters.computeIfAbsent(new Key(counter, component, provider), key -> new LongAdder()).increment();
+    }
+
+    @Override
+    public void record(Histogram histogram, Class<?> component, Class<?> provider, long value) {
+        distributions.computeIfAbsent(new Key(histogram, component, provider), key -> new Recorder()).record(value);
+    }
+
+    /**
+     * @param timer     stage
+     * @param component class of the component, or {@code null} for any
+     * @param provider  class of the provider, or {@code null} for any
+     * @return durations in nanoseconds recorded for the stage
+     */
+    public Distribution get(Timer timer, Class<?> component, Class<?> provider) {
+        return distribution(timer, component, provider);
+    }
+
+    /**
+     * @param histogram recorded quantity
+     * @param component class of the component, or {@code null} for any
+     * @param provider  class of the provider, or {@code null} for any
+     * @return values recorded for the quantity
+     */
+    public Distribution get(Histogram histogram, Class<?> component, Class<?> provider) {
+        return distribution(histogram, component, provider);
+    }
+
+    /**
+     * @param counter   event
+     * @param component class of the component, or {@code null} for any
+     * @param provider  class of the provider, or {@code null} for any
+     * @return number of times the event occurred
+     */
+    public long getCount(Counter counter, Class<?> component, Class<?> provider) {
+        long count = 0;
+        for (Map.Entry<Key, LongAdder> entry : counters.entrySet()) {
+            if (entry.getKey().matches(counter, component, provider)) {
+                count += entry.getValue().sum();
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Discards everything recorded so far
+     */
+    public void reset() {
+        distributions.clear();
+        counters.clear();
+    }
+
+    private Distribution distribution(Enum<?> metric, Class<?> component, Class<?> provider) {
+        Distribution distribution = new Distribution();
+        for (Map.Entry<Key, Recorder> entry : distributions.entrySet()) {
+            if (entry.getKey().matches(metric, component, provider)) {
+                entry.getValue().addTo(distribution);
+            }
+        }
+        return distribution;
+    }
+
+    private static int bucket(long value) {
+        return value <= 0 ? 0 : 64 - Long.numberOfLeadingZeros(value);
+    }
+
+    /**
+     * Snapshot of the values recorded for a timer or histogram
+     */
+    public static final class Distribution {
+        private long count;
+        private long sum;
+        private long min = Long.MAX_VALUE;
+        private long max = Long.MIN_VALUE;
+        private final long[] buckets = new long[65];
+
+        Distribution() {
+        }
+
+        /**
+         * @return number of recorded values
+         */
+        public long getCount() {
+            return count;
+        }
+
+        /**
+         * @return sum of the recorded values
+         */
+        public long getSum() {
+            return sum;
+        }
+
+        /**
+         * @return smallest recorded value, {@code 0} if none was recorded
+         */
+        public long getMin() {
+            return count == 0 ? 0 : min;
+        }
+
+        /**
+         * @return largest recorded value, {@code 0} if none was recorded
+         */
+        public long getMax() {
+            return count == 0 ? 0 : max;
+        }
+
+        /**
+         * @return mean of the recorded values, {@code 0} if none was recorded
+         */
+        public double getMean() {
+            return count == 0 ? 0 : (double) sum / count;
+        }
+
+        /**
+         * Estimates a percentile as the upper bound of the power of two bucket it falls into, which overestimates it
+         * by less than a factor of two
+         *
+         * @param percentile percentile between {@code 0} and {@code 100}
+         * @return estimated value, {@code 0} if none was recorded
+         */
+        public long getPercentile(double percentile) {
+            if (count == 0) {
+                return 0;
+            }
+            long rank = (long) Math.ceil(count * Math.min(Math.max(percentile, 0), 100) / 100);
+            long seen = 0;
+            for (int i = 0; i < buckets.length; i++) {
+                seen += buckets[i];
+                if (seen >= rank && buckets[i] > 0) {
+                    long bound = i == 0 ? 0 : i == 64 ? Long.MAX_VALUE : (1L << i) - 1;
+                    return Math.max(getMin(), Math.min(bound, max));
+                }
+            }
+            return max;
+        }
+
+        @Override
+        public String toString() {
+            return "Distribution[count=" + count + ", mean=" + getMean() + ", min=" + getMin() + ", max=" + getMax()
+                + ", p99=" + getPercentile(99) + "]";
+        }
+    }
+
+    private static final class Recorder {
+        private final LongAdder count = new LongAdder();
+        private final LongAdder sum = new LongAdder();
+        private final LongAccumulator min = new LongAccumulator(Math::min, Long.MAX_VALUE);
+        private final LongAccumulator max = new LongAccumulator(Math::max, Long.MIN_VALUE);
+        private final AtomicLongArray buckets = new AtomicLongArray(65);
+
+        void record(long value) {
+            count.increment();
+            sum.add(value);
+            min.accumulate(value);
+            max.accumulate(value);
+            buckets.incrementAndGet(bucket(value));
+        }
+
+        void addTo(Distribution distribution) {
+            long recorded = count.sum();
+            if (recorded == 0) {
+                return;
+            }
+            distribution.count += recorded;
+            distribution.sum += sum.sum();
+            distribution.min = Math.min(distribution.min, min.get());
+            distribution.max = Math.max(distribution.max, max.get());
+            for (int i = 0; i < distribution.buckets.length; i++) {
+                distribution.buckets[i] += buckets.get(i);
+            }
+        }
+    }
+
+    private static final class Key {
+        private final Enum<?> metric;
+        private final Class<?> component;
+        private final Class<?> provider;
+
+        Key(Enum<?> metric, Class<?> component, Class<?> provider) {
+            this.metric = metric;
+            this.component = component;
+            this.provider = provider;
+        }
+
+        boolean matches(Enum<?> metric, Class<?> component, Class<?> provider) {
+            return this.metric == metric && (component == null || component == this.component)
+                && (provider == null || provider == this.provider);
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) obj;
+            return metric == other.metric && component == other.component && provider == other.provider;
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(metric, component, provider);
+        }
+    }
+}
@@ -0,0 +1,110 @@
+/*
+ * Copyright 2012 Igor Vaynberg
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this work except in compliance with
+ * the License. You may obtain a copy of the License in the LICENSE file, or at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package com.vaynberg.wicket.select25;
+
+import java.util.Collection;
+
+import org.apache.wicket.model.IModel;
+import org.apache.wicket.util.lang.Args;
+
+/**
+ * Provider for a static set of choices backed by a shared {@link ChoiceIndex}. Queries, Json conversion and id lookups
+ * are all implemented by the index, so a provider for a fixed set of choices needs no code of its own:
+ * <p>
+ * <pre>
+ * private static final ChoiceIndex&lt;Country&gt; COUNTRIES = new ChoiceIndex&lt;Country&gt;(
+ *     Arrays.asList(Country.values()), Country::name, Country::getDisplayName);
+ *
+ * new Select25SingleChoice&lt;Country&gt;(&quot;country&quot;, model, new IndexedChoiceProvider&lt;Country&gt;(() -&gt; COUNTRIES), label);
+ * </pre>
+ * <p>
+ * The index is referenced through a model so that it is not serialized along with the page the provider is used in.
+ *
+ * @param <T> type of choice object
+ * @author igor
+ */
+public class IndexedChoiceProvider<T> extends TextChoiceProvider<T> {
+
+    private static final int DEFAULT_PAGE_SIZE = 20;
+
+    private final IModel<ChoiceIndex<T>> index;
+    private final int pageSize;
+
+    /**
+     * Constructs a provider that returns 20 choices per page
+     *
+     * @param index model of the shared index
+     */
+    public IndexedChoiceProvider(IModel<ChoiceIndex<T>> index) {
+        this(index, DEFAULT_PAGE_SIZE);
+    }
+
+    /**
+     * Constructor
+     *
+     * @param index    model of the shared index
+     * @param pageSize number of choices per page
+     */
+    public IndexedChoiceProvider(IModel<ChoiceIndex<T>> index, int pageSize) {
+        Args.notNull(index, "index");
+        Args.withinRange(1, Integer.MAX_VALUE, pageSize, "pageSize");
+        this.index = index;
+        this.pageSize = pageSize;
+    }
+
+    protected ChoiceIndex<T> getIndex() {
+        return index.getObject();
+    }
+
+    public int getPageSize() {
+        return pageSize;
+    }
+
+    @Override
+    protected String getDisplayText(T choice) {
+        return getIndex().getLabel(choice);
+    }
+
+    @Override
+    protected Object getId(T choice) {
+        return getIndex().getId(choice);
+    }
+
+    @Override
+    public void query(String query, int page, Response<T> response) {
+        getIndex().query(query, offset(page), pageSize, response.asSink());
+    }
+
+    @Override
+    public void query(String query, int page, String token, ChoiceSink<T> sink) {
+        getIndex().query(query, offset(page), pageSize, sink);
+    }
+
+    /**
+     * @return index of the first match of {@code page}, clamped so that very large page numbers read past the end
+     *         instead of overflowing
+     */
+    private int offset(int page) {
+        return (int) Math.min(Integer.MAX_VALUE, (long) page * pageSize);
+    }
+
+    @Override
+    public Collection<T> toChoices(String[] ids) {
+        return getIndex().get(ids);
+    }
+
+    @Override
+    public void detach() {
+        index.detach();
+    }
+}
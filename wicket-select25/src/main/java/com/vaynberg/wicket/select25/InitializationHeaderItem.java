@@ -0,0 +1,145 @@
+/*
+ * Copyright 2012 Igor Vaynberg
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this work except in compliance with
+ * the License. You may obtain a copy of the License in the LICENSE file, or at:
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package com.vaynberg.wicket.select25;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.wicket.MetaDataKey;
+import org.apache.wicket.markup.head.HeaderItem;
+import org.apache.wicket.markup.head.IHeaderResponse;
+import org.apache.wicket.markup.head.JavaScriptHeaderItem;
+import org.apache.wicket.markup.head.OnDomReadyHeaderItem;
+import org.apache.wicket.request.Response;
+import org.apache.wicket.request.cycle.RequestCycle;
+import org.json.JSONObject;
+
+/**
+ * Initializes all select25 components rendered into a header response with a single script. Settings that components
+ * share are written once, each component only adds its markup id, its ajax url and its value(s):
+ *
+ * <pre>
+ * window.select25.wicket.init([{settings}, ...], [[&quot;markupId&quot;, settingsIndex, &quot;url&quot;, value, firstPage?], ...]);
+ * </pre>
+ *
+ * Header items are buffered until the header is written, so the item is rendered after all components have added
+ * themselves to it.
+ *
+ * @author igor
+ */
+final class InitializationHeaderItem extends HeaderItem {
+
+	private static final MetaDataKey<Map<IHeaderResponse, InitializationHeaderItem>> ITEMS = new MetaDataKey<Map<IHeaderResponse, InitializationHeaderItem>>() {};
+
+	private static final AtomicLong COUNTER = new AtomicLong();
+
+	private final String token = "select25-init-" + COUNTER.incrementAndGet();
+
+	private final Map<SettingsTemplate, Integer> templates = new IdentityHashMap<SettingsTemplate, Integer>();
+	private final StringBuilder defaults = new StringBuilder();
+	private final StringBuilder controls = new StringBuilder();
+	private boolean rendered;
+
+	private InitializationHeaderItem() {
+	}
+
+	/**
+	 * @param response
+	 * 	header response
+	 * @return item that collects the components rendered into the response
+	 */
+	static InitializationHeaderItem get(IHeaderResponse response) {
+		RequestCycle cycle = RequestCycle.get();
+		Map<IHeaderResponse, InitializationHeaderItem> items = cycle.getMetaData(ITEMS);
+		if (items == null) {
+			items = new IdentityHashMap<IHeaderResponse, InitializationHeaderItem>();
+			cycle.setMetaData(ITEMS, items);
+		}
+		InitializationHeaderItem item = items.get(response);
+		if (item == null) {
+			item = new InitializationHeaderItem();
+			items.put(response, item);
+		}
+		return item;
+	}
+
+	/**
+	 * Adds a component
+	 *
+	 * @param markupId
+	 * 	markup id of the component's input
+	 * @param template
+	 * 	template of the component's settings
+	 * @param url
+	 * 	ajax url
+	 * @param value
+	 * 	Json of the value(s), or {@code null}
+	 * @param firstPage
+	 * 	Json of the embedded first page of results, or {@code null}
+	 */
+	void add(String markupId, SettingsTemplate template, String url, String value, String firstPage) {
+		Integer index = templates.get(template);
+		if (index == null) {
+			index = templates.size();
+			templates.put(template, index);
+			if (index > 0) {
+				defaults.append(',');
+			}
+			defaults.append(template.getDefaults());
+		}
+
+		if (controls.length() > 0) {
+			controls.append(',');
+		}
+		controls.append('[').append(JSONObject.quote(markupId)).append(',').append(index).append(',');
+		controls.append(JSONObject.quote(url)).append(',').append(value == null ? "null" : value);
+		if (firstPage != null) {
+			controls.append(',').append(firstPage);
+		}
+		controls.append(']');
+	}
+
+	@Override
+	public Iterable<?> getRenderTokens() {
+		return Collections.singletonList(token);
+	}
+
+	@Override
+	public List<HeaderItem> getDependencies() {
+		List<HeaderItem> dependencies = new ArrayList<HeaderItem>(super.getDependencies());
+		dependencies.add(JavaScriptHeaderItem.forReference(Select25AbstractChoice.WICKET_JS));
+		dependencies.addAll(OnDomReadyHeaderItem.forScript("").getDependencies());
+		return dependencies;
+	}
+
+	@Override
+	public void render(Response response) {
+		if (rendered || controls.length() == 0) {
+			return;
+		}
+		rendered = true;
+
+		StringBuilder script = new StringBuilder(defaults.length() + controls.length() + 40);
+		script.append("window.select25.wicket.init([").append(defaults).append("],[").append(controls).append("]);");
+		OnDomReadyHeaderItem.forScript(script).render(response);
+	}
+
+	@Override
+	public String toString() {
+		return "InitializationHeaderItem(" + token + ")";
+	}
+}
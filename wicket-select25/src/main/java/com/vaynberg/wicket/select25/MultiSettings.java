@@ -1,5 +1,7 @@
 package com.vaynberg.wicket.select25;
 
+import java.util.List;
+
 import org.apache.wicket.util.string.Strings;
 import org.json.JSONException;
 import org.json.JSONStringer;
@@ -12,6 +14,14 @@ public class MultiSettings extends Settings {
 	private String values;
 	private boolean allowDuplicates;
 
+	/** number of selected values rendered with their labels, {@code null} for all */
+	private Integer eagerLabels;
+
+	/** number of labels fetched by a single request */
+	private int labelBatchSize = 50;
+
+	/** whether the client submits the ids added and removed since rendering instead of all ids */
+	private boolean deltaValue;
 
 	public String toJson() {
 		if (Strings.isEmpty(valuesLabel)) {
@@ -32,6 +42,12 @@ public class MultiSettings extends Settings {
 			Json.writeValue(writer, "comboboxLabel", comboboxLabel);
 			Json.writeValue(writer, "allowDuplicates", allowDuplicates);
 			Json.writeFunction(writer, "values", values);
+			if (eagerLabels != null) {
+				Json.writeValue(writer, "labelBatch", labelBatchSize);
+			}
+			if (deltaValue) {
+				Json.writeValue(writer, "deltaValue", true);
+			}
 
 			writer.endObject();
 
@@ -41,6 +57,16 @@ public class MultiSettings extends Settings {
 		}
 	}
 
+	@Override
+	protected void addTemplateKey(List<Object> key) {
+		super.addTemplateKey(key);
+		key.add(valuesLabel);
+		key.add(comboboxLabel);
+		key.add(allowDuplicates);
+		key.add(eagerLabels != null ? labelBatchSize : null);
+		key.add(deltaValue);
+	}
+
 	public boolean isAllowDuplicates() {
 		return allowDuplicates;
 	}
@@ -49,6 +75,48 @@ public class MultiSettings extends Settings {
 		this.allowDuplicates = allowDuplicates;
 	}
 
+	public Integer getEagerLabels() {
+		return eagerLabels;
+	}
+
+	/**
+	 * Renders only the first {@code eagerLabels} selected values with their labels, the others are rendered as bare
+	 * ids and their labels are fetched from the component, {@link #getLabelBatchSize()} at a time, when they are
+	 * scrolled into view. Keeps pages with thousands of selected values small. Requires a provider whose
+	 * {@link ChoiceProvider#toId(Object)} returns the ids of choices. The component only resolves the labels of ids it
+	 * rendered bare. Shared providers serve labels from {@link ChoiceProviderResource}, which resolves any ids, so they
+	 * must allow it by {@link ChoiceProvider#isLabelLookupAllowed()}; otherwise all labels are rendered.
+	 *
+	 * @param eagerLabels
+	 * 	number of values rendered with their labels, {@code null} to render all labels
+	 */
+	public void setEagerLabels(Integer eagerLabels) {
+		this.eagerLabels = eagerLabels;
+	}
+
+	public int getLabelBatchSize() {
+		return labelBatchSize;
+	}
+
+	/**
+	 * @param labelBatchSize
+	 * 	maximum number of labels fetched by a single request, see {@link #setEagerLabels(Integer)}
+	 */
+	public void setLabelBatchSize(int labelBatchSize) {
+		this.labelBatchSize = labelBatchSize;
+	}
+
+	public boolean isDeltaValue() {
+		return deltaValue;
+	}
+
+	/**
+	 * Set by the component, see {@link Select25MultiChoice#isDeltaSubmission()}
+	 */
+	void setDeltaValue(boolean deltaValue) {
+		this.deltaValue = deltaValue;
+	}
+
 	public String getValuesLabel() {
 		return valuesLabel;
 	}
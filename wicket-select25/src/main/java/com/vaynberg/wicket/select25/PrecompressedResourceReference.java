@@ -0,0 +1,313 @@
+/*
+ * Copyright 2012 Igor Vaynberg
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this work except in compliance with
+ * the License. You may obtain a copy of the License in the LICENSE file, or at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package com.vaynberg.wicket.select25;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.function.Function;
+
+import org.apache.wicket.Application;
+import org.apache.wicket.Session;
+import org.apache.wicket.request.cycle.RequestCycle;
+import org.apache.wicket.request.http.WebRequest;
+import org.apache.wicket.request.http.WebResponse;
+import org.apache.wicket.request.resource.AbstractResource.ResourceResponse;
+import org.apache.wicket.request.resource.AbstractResource.WriteCallback;
+import org.apache.wicket.request.resource.CssPackageResource;
+import org.apache.wicket.request.resource.IResource.Attributes;
+import org.apache.wicket.request.resource.JavaScriptPackageResource;
+import org.apache.wicket.request.resource.PackageResource;
+import org.apache.wicket.request.resource.PackageResourceReference;
+import org.apache.wicket.resource.ResourceUtil;
+import org.apache.wicket.util.io.IOUtils;
+import org.apache.wicket.util.resource.IResourceStream;
+import org.apache.wicket.util.resource.ResourceUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Reference to a script or style sheet of the select25 package that is served precompressed. When minified resources
+ * are used Wicket serves the minified variant of the resource ({@code name.min.ext}) if there is one and the resource
+ * itself otherwise; the build generates a gzipped copy ({@code .gz}) of the variant that is served, and a brotli copy
+ * ({@code .br}) if the {@code brotli} command is available. Browsers are sent the smallest copy they accept as is, so
+ * the resource is neither read nor compressed per request.
+ * <p>
+ * In deployment mode resource urls carry a hash of the resource's content, responses to such urls are cached for a
+ * year and additionally marked {@code immutable} so that browsers do not revalidate them when the page is reloaded.
+ * <p>
+ * Like {@link PackageResourceReference} the reference serves scripts and style sheets as {@link JavaScriptPackageResource}s
+ * and {@link CssPackageResource}s, in the locale, style and variation of the request.
+ *
+ * @author igor
+ */
+class PrecompressedResourceReference extends PackageResourceReference {
+
+    private static final long serialVersionUID = 1L;
+
+    private static final Logger logger = LoggerFactory.getLogger(PrecompressedResourceReference.class);
+
+    private static final String BROTLI = "br";
+
+    /** content codings of the precompressed copies in order of preference */
+    private static final List<String> ENCODINGS = Arrays.asList(BROTLI, ResponseCompression.GZIP);
+
+    /** compressed copies of resources by path, empty for copies the build did not generate */
+    private static final ConcurrentMap<String, byte[]> COMPRESSED = new ConcurrentHashMap<String, byte[]>();
+
+    /** whether resources are read into memory before they are sent, see {@link #readBuffered(boolean)} */
+    private boolean readBuffered = true;
+
+    /**
+     * Constructor
+     *
+     * @param scope class the name of the resource is relative to
+     * @param name  name of the resource
+     */
+    PrecompressedResourceReference(Class<?> scope, String name) {
+        super(scope, name);
+    }
+
+    @Override
+    public PackageResourceReference readBuffered(boolean readBuffered) {
+        this.readBuffered = readBuffered;
+        return super.readBuffered(readBuffered);
+    }
+
+    /**
+     * Creates the resource the way {@link PackageResourceReference#getResource()} does: the locale, style and variation
+     * are the reference's own, else those of the session, else those encoded in the url of the request.
+     */
+    @Override
+    public PackageResource getResource() {
+        RequestCycle cycle = RequestCycle.get();
+        UrlAttributes url = cycle == null ? null : ResourceUtil.decodeResourceReferenceAttributes(cycle.getRequest()
+                .getUrl());
+
+        Locale locale = getLocale();
+        if (locale == null && Session.exists()) {
+            locale = Session.get().getLocale();
+        }
+        if (locale == null && url != null) {
+            locale = url.getLocale();
+        }
+        String style = getStyle();
+        if (style == null && Session.exists()) {
+            style = Session.get().getStyle();
+        }
+        if (style == null && url != null) {
+            style = url.getStyle();
+        }
+        String variation = getVariation();
+        if (variation == null && url != null) {
+            variation = url.getVariation();
+        }
+
+        PackageResource resource;
+        if ("css".equals(getExtension())) {
+            resource = new PrecompressedCssResource(getScope(), getName(), locale, style, variation);
+        } else if ("js".equals(getExtension())) {
+            resource = new PrecompressedJavaScriptResource(getScope(), getName(), locale, style, variation);
+        } else {
+            resource = new PrecompressedResource(getScope(), getName(), locale, style, variation);
+        }
+        resource.readBuffered(readBuffered);
+        removeCompressFlagIfUnnecessary(resource);
+        return resource;
+    }
+
+    /**
+     * Package resource that sends a precompressed copy of the variant that is served
+     */
+    static class PrecompressedResource extends PackageResource {
+
+        private static final long serialVersionUID = 1L;
+
+        PrecompressedResource(Class<?> scope, String name, Locale locale, String style, String variation) {
+            super(scope, name, locale, style, variation);
+        }
+
+        @Override
+        protected ResourceResponse newResourceResponse(Attributes attributes) {
+            return newPrecompressedResponse(this, attributes, super::newResourceResponse);
+        }
+
+        @Override
+        protected void configureCache(ResourceResponse data, Attributes attributes) {
+            super.configureCache(data, attributes);
+            markImmutable(data, attributes);
+        }
+    }
+
+    /**
+     * Script that sends a precompressed copy of the variant that is served
+     */
+    static class PrecompressedJavaScriptResource extends JavaScriptPackageResource {
+
+        private static final long serialVersionUID = 1L;
+
+        PrecompressedJavaScriptResource(Class<?> scope, String name, Locale locale, String style, String variation) {
+            super(scope, name, locale, style, variation);
+        }
+
+        @Override
+        protected ResourceResponse newResourceResponse(Attributes attributes) {
+            return newPrecompressedResponse(this, attributes, super::newResourceResponse);
+        }
+
+        @Override
+        protected void configureCache(ResourceResponse data, Attributes attributes) {
+            super.configureCache(data, attributes);
+            markImmutable(data, attributes);
+        }
+    }
+
+    /**
+     * Style sheet that sends a precompressed copy of the variant that is served
+     */
+    static class PrecompressedCssResource extends CssPackageResource {
+
+        private static final long serialVersionUID = 1L;
+
+        PrecompressedCssResource(Class<?> scope, String name, Locale locale, String style, String variation) {
+            super(scope, name, locale, style, variation);
+        }
+
+        @Override
+        protected ResourceResponse newResourceResponse(Attributes attributes) {
+            return newPrecompressedResponse(this, attributes, super::newResourceResponse);
+        }
+
+        @Override
+        protected void configureCache(ResourceResponse data, Attributes attributes) {
+            super.configureCache(data, attributes);
+            markImmutable(data, attributes);
+        }
+    }
+
+    /**
+     * Responds with the smallest precompressed copy the browser accepts, or with the response of the resource itself
+     *
+     * @param resource resource that is served
+     * @param attributes attributes of the request
+     * @param plain creates the response of the resource itself
+     * @return response
+     */
+    private static ResourceResponse newPrecompressedResponse(PackageResource resource, Attributes attributes,
+                                                             Function<Attributes, ResourceResponse> plain) {
+        Map<String, byte[]> copies = getCompressed(resource);
+        if (copies.isEmpty()) {
+            return plain.apply(attributes);
+        }
+
+        String header = ((WebRequest) attributes.getRequest()).getHeader("Accept-Encoding");
+        String encoding = ResponseCompression.negotiate(header, new ArrayList<String>(copies.keySet()));
+        ResourceResponse response;
+        if (encoding == null) {
+            response = plain.apply(attributes);
+        } else {
+            response = newCompressedResponse(resource, attributes, encoding, copies.get(encoding));
+        }
+        response.getHeaders().addHeader("Vary", "Accept-Encoding");
+        return response;
+    }
+
+    private static ResourceResponse newCompressedResponse(PackageResource resource, Attributes attributes,
+                                                          String encoding, final byte[] compressed) {
+        ResourceResponse response = new ResourceResponse();
+
+        IResourceStream stream = resource.getResourceStream();
+        if (stream == null) {
+            return response.setError(404);
+        }
+        response.setLastModified(stream.lastModifiedTime());
+        if (!response.dataNeedsToBeWritten(attributes)) {
+            return response;
+        }
+
+        String contentType = stream.getContentType();
+        if (contentType == null) {
+            contentType = Application.get().getMimeType(resource.getName());
+        }
+        response.setContentType(contentType);
+        response.setTextEncoding(resource.getTextEncoding());
+        response.setContentLength(compressed.length);
+        response.getHeaders().addHeader("Content-Encoding", encoding);
+        response.setWriteCallback(new WriteCallback() {
+            @Override
+            public void writeData(Attributes attributes) throws IOException {
+                attributes.getResponse().write(compressed);
+            }
+        });
+        return response;
+    }
+
+    private static void markImmutable(ResourceResponse data, Attributes attributes) {
+        if (WebResponse.MAX_CACHE_DURATION.equals(data.getCacheDuration())) {
+            // the url carries the version of the resource, its content never changes
+            ((WebResponse) attributes.getResponse()).addHeader("Cache-Control", "immutable");
+        }
+    }
+
+    /**
+     * @return compressed copies of the variant of the resource that is served by content coding, in order of
+     * preference; empty if minified resources are not used or the build did not generate any
+     */
+    private static Map<String, byte[]> getCompressed(PackageResource resource) {
+        if (!Application.get().getResourceSettings().getUseMinifiedResources()) {
+            return Collections.emptyMap();
+        }
+        Class<?> scope = resource.getScope();
+        String name = ResourceUtils.getMinifiedName(resource.getName(), ResourceUtils.MIN_POSTFIX_DEFAULT);
+        if (scope.getResource(name) == null) {
+            name = resource.getName();
+        }
+        Map<String, byte[]> copies = new LinkedHashMap<String, byte[]>();
+        for (String encoding : ENCODINGS) {
+            String copy = name + (BROTLI.equals(encoding) ? ".br" : ".gz");
+            String path = scope.getName() + "/" + copy;
+            byte[] compressed = COMPRESSED.get(path);
+            if (compressed == null) {
+                compressed = read(scope, copy);
+                COMPRESSED.putIfAbsent(path, compressed);
+            }
+            if (compressed.length > 0) {
+                copies.put(encoding, compressed);
+            }
+        }
+        return copies;
+    }
+
+    private static byte[] read(Class<?> scope, String name) {
+        InputStream in = scope.getResourceAsStream(name);
+        if (in == null) {
+            return new byte[0];
+        }
+        try {
+            return IOUtils.toByteArray(in);
+        } catch (IOException e) {
+            logger.warn("Could not read precompressed resource " + name, e);
+            return new byte[0];
+        } finally {
+            IOUtils.closeQuietly(in);
+        }
+    }
+}
@@ -0,0 +1,71 @@
+/*
+ * Copyright 2012 Igor Vaynberg
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this work except in compliance with
+ * the License. You may obtain a copy of the License in the LICENSE file, or at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package com.vaynberg.wicket.select25;
+
+import java.util.Collections;
+
+import org.apache.wicket.markup.head.HeaderItem;
+import org.apache.wicket.request.Response;
+import org.apache.wicket.request.cycle.RequestCycle;
+import org.apache.wicket.request.handler.resource.ResourceReferenceRequestHandler;
+import org.apache.wicket.request.resource.ResourceReference;
+import org.apache.wicket.util.lang.Args;
+import org.apache.wicket.util.string.Strings;
+
+/**
+ * Renders a {@code <link rel="preload">} hint for a resource, so that the browser starts downloading it before it
+ * reaches the element that uses it. The url is the one the resource's reference header item renders, otherwise the
+ * resource would be downloaded twice.
+ *
+ * @author igor
+ */
+final class PreloadHeaderItem extends HeaderItem {
+
+	private final ResourceReference reference;
+	private final String as;
+
+	/**
+	 * Constructor
+	 *
+	 * @param reference
+	 * 	reference to the resource
+	 * @param as
+	 * 	destination of the resource, {@code script} or {@code style}
+	 */
+	PreloadHeaderItem(ResourceReference reference, String as) {
+		Args.notNull(reference, "reference");
+		Args.notEmpty(as, "as");
+		this.reference = reference;
+		this.as = as;
+	}
+
+	@Override
+	public Iterable<?> getRenderTokens() {
+		return Collections.singletonList("preload-" + reference.getScope().getName() + "/" + reference.getName());
+	}
+
+	@Override
+	public void render(Response response) {
+		CharSequence url = RequestCycle.get().urlFor(new ResourceReferenceRequestHandler(reference, null));
+		response.write("<link rel=\"preload\" href=\"");
+		response.write(Strings.escapeMarkup(url));
+		response.write("\" as=\"");
+		response.write(as);
+		response.write("\" />\n");
+	}
+
+	@Override
+	public String toString() {
+		return "PreloadHeaderItem(" + reference + ")";
+	}
+}
@@ -0,0 +1,592 @@
+/*
+ * Copyright 2012 Igor Vaynberg
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this work except in compliance with
+ * the License. You may obtain a copy of the License in the LICENSE file, or at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package com.vaynberg.wicket.select25;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.apache.wicket.Application;
+import org.apache.wicket.MetaDataKey;
+import org.apache.wicket.util.lang.Args;
+
+/**
+ * Application-wide cache of query results used by {@link CachingChoiceProvider}. Entries are keyed on the provider's
+ * cache key, the normalized search term, the page and the page's continuation token.
+ * <p>
+ * The cache is bounded both by the number of entries and by their total weight, which is the size of the entry's Json
+ * in bytes: estimated when the entry is put, measured once a response is encoded from it. Entries expire after a fixed time to live. Admission is frequency based: the cache keeps an
+ * approximate count of how often every key has been requested recently, and when the cache is full a new entry is
+ * only admitted if its key has been requested more often than the entries it would evict. This keeps one-off search
+ * terms from flushing out the popular ones.
+ * <p>
+ * Large caches are split into up to 16 segments by the hash of the key, each with its own lock, recency order and
+ * frequency counts and an even share of the entry and weight limits, so that concurrent lookups of different keys do
+ * not wait for each other. Caches too small to give each segment at least 64 entries and 64KB are not split.
+ * <p>
+ * The cache is installed per application with {@link #set(Application, QueryCache)}; if none is installed
+ * {@link #get()} lazily creates one with default limits.
+ *
+ * @author igor
+ */
+public class QueryCache {
+
+    private static final MetaDataKey<QueryCache> KEY = new MetaDataKey<QueryCache>() {};
+
+    private static final int MAX_SEGMENTS = 16;
+    private static final int MIN_SEGMENT_ENTRIES = 64;
+    private static final long MIN_SEGMENT_WEIGHT = 64L * 1024;
+
+    private final int maxEntries;
+    private final long maxWeight;
+    private final long ttlNanos;
+
+    private final Segment[] segments;
+
+    /**
+     * Creates a cache with room for 10000 entries or 16MB of Json that keeps entries for five minutes
+     */
+    public QueryCache() {
+        this(10000, 16L * 1024 * 1024, Duration.ofMinutes(5));
+    }
+
+    /**
+     * Constructor
+     *
+     * @param maxEntries maximum number of entries
+     * @param maxWeight  maximum combined weight of all entries, in bytes
+     * @param ttl        time after which an entry expires
+     */
+    public QueryCache(int maxEntries, long maxWeight, Duration ttl) {
+        Args.withinRange(1, Integer.MAX_VALUE, maxEntries, "maxEntries");
+        Args.withinRange(1L, Long.MAX_VALUE, maxWeight, "maxWeight");
+        Args.notNull(ttl, "ttl");
+        this.maxEntries = maxEntries;
+        this.maxWeight = maxWeight;
+        this.ttlNanos = ttl.toNanos();
+
+        int count = (int) Math.min(Math.min(MAX_SEGMENTS, maxEntries / MIN_SEGMENT_ENTRIES),
+            maxWeight / MIN_SEGMENT_WEIGHT);
+        count = Integer.highestOneBit(Math.max(1, count));
+        segments = new Segment[count];
+        for (int i = 0; i < count; i++) {
+            // the remainders go to the first segment
+            int entries = maxEntries / count + (i == 0 ? maxEntries % count : 0);
+            long weight = maxWeight / count + (i == 0 ? maxWeight % count : 0);
+            segments[i] = new Segment(entries, weight, ttlNanos);
+        }
+    }
+
+    /**
+     * @return cache of the current application
+     */
+    public static QueryCache get() {
+        return get(Application.get());
+    }
+
+    /**
+     * Returns the cache installed in the application, creating one with default limits if none was installed.
+     *
+     * @param application application
+     * @return query cache
+     */
+    public static QueryCache get(Application application) {
+        QueryCache cache = application.getMetaData(KEY);
+        if (cache == null) {
+            synchronized (application) {
+                cache = application.getMetaData(KEY);
+                if (cache == null) {
+                    cache = new QueryCache();
+                    application.setMetaData(KEY, cache);
+                }
+            }
+        }
+        return cache;
+    }
+
+    /**
+     * Installs the cache used by {@link CachingChoiceProvider}s in the application
+     *
+     * @param application application
+     * @param cache       query cache
+     */
+    public static void set(Application application, QueryCache cache) {
+        application.setMetaData(KEY, cache);
+    }
+
+    /**
+     * Looks up the results of a query. Every lookup, whether it hits or not, counts towards the frequency of the key.
+     *
+     * @param provider provider cache key
+     * @param term     normalized search term
+     * @param page     results page
+     * @param token    continuation token of the page, or {@code null}
+     * @return cached results or {@code null} if there are none
+     */
+    public Results get(String provider, String term, int page, String token) {
+        Key key = new Key(provider, term, page, token);
+        return segmentOf(key).get(key);
+    }
+
+    /**
+     * Offers the results of a query to the cache. The results are admitted only if there is room for them, or if the
+     * key is requested more frequently than the least recently used entries that would have to make room.
+     *
+     * @param provider provider cache key
+     * @param term     normalized search term
+     * @param page     results page
+     * @param token    continuation token of the page, or {@code null}
+     * @param results  query results
+     * @param weight   estimated size of the results in bytes
+     * @return {@code true} if the results were cached
+     */
+    public boolean put(String provider, String term, int page, String token, Results results, long weight) {
+        Key key = new Key(provider, term, page, token);
+        return segmentOf(key).put(key, results, weight);
+    }
+
+    private Segment segmentOf(Key key) {
+        int hash = key.hashCode();
+        return segments[(hash ^ (hash >>> 16)) & (segments.length - 1)];
+    }
+
+    /**
+     * Removes all entries
+     */
+    public void invalidateAll() {
+        for (Segment segment : segments) {
+            segment.invalidate(null, null);
+        }
+    }
+
+    /**
+     * Removes all entries of a provider, for example after the data backing it has changed
+     *
+     * @param provider provider cache key
+     */
+    public void invalidate(String provider) {
+        Args.notNull(provider, "provider");
+        for (Segment segment : segments) {
+            segment.invalidate(provider, null);
+        }
+    }
+
+    /**
+     * Removes all pages cached for a search term of a provider
+     *
+     * @param provider provider cache key
+     * @param term     normalized search term
+     */
+    public void invalidate(String provider, String term) {
+        Args.notNull(provider, "provider");
+        Args.notNull(term, "term");
+        for (Segment segment : segments) {
+            segment.invalidate(provider, term);
+        }
+    }
+
+    public int size() {
+        int size = 0;
+        for (Segment segment : segments) {
+            size += segment.size();
+        }
+        return size;
+    }
+
+    /**
+     * @return combined weight of all entries, in bytes
+     */
+    public long getWeight() {
+        long weight = 0;
+        for (Segment segment : segments) {
+            weight += segment.getWeight();
+        }
+        return weight;
+    }
+
+    public int getMaxEntries() {
+        return maxEntries;
+    }
+
+    public long getMaxWeight() {
+        return maxWeight;
+    }
+
+    public Duration getTtl() {
+        return Duration.ofNanos(ttlNanos);
+    }
+
+    public long getHitCount() {
+        return count(Segment.HITS);
+    }
+
+    public long getMissCount() {
+        return count(Segment.MISSES);
+    }
+
+    /**
+     * @return ratio of lookups that were served from the cache, or {@code 0} if there were no lookups
+     */
+    public double getHitRate() {
+        long hits = getHitCount();
+        long lookups = hits + getMissCount();
+        return lookups == 0 ? 0 : (double) hits / lookups;
+    }
+
+    /**
+     * @return number of entries that were evicted to make room for more frequently requested ones
+     */
+    public long getEvictionCount() {
+        return count(Segment.EVICTIONS);
+    }
+
+    /**
+     * @return number of entries that were removed because their time to live elapsed
+     */
+    public long getExpirationCount() {
+        return count(Segment.EXPIRATIONS);
+    }
+
+    /**
+     * @return number of results that were not admitted because their key was not requested frequently enough
+     */
+    public long getRejectionCount() {
+        return count(Segment.REJECTIONS);
+    }
+
+    private long count(int counter) {
+        long count = 0;
+        for (Segment segment : segments) {
+            count += segment.count(counter);
+        }
+        return count;
+    }
+
+    /**
+     * Part of the cache holding the keys of one hash range, guarded by its own lock
+     */
+    private static final class Segment {
+        static final int HITS = 0;
+        static final int MISSES = 1;
+        static final int EVICTIONS = 2;
+        static final int EXPIRATIONS = 3;
+        static final int REJECTIONS = 4;
+
+        private final int maxEntries;
+        private final long maxWeight;
+        private final long ttlNanos;
+
+        /** access ordered so that iteration starts at the least recently used entry */
+        private final LinkedHashMap<Key, Entry> entries = new LinkedHashMap<Key, Entry>(16, 0.75f, true);
+        private final FrequencySketch sketch;
+        private long weight;
+
+        private final long[] counters = new long[5];
+
+        Segment(int maxEntries, long maxWeight, long ttlNanos) {
+            this.maxEntries = maxEntries;
+            this.maxWeight = maxWeight;
+            this.ttlNanos = ttlNanos;
+            this.sketch = new FrequencySketch(maxEntries);
+        }
+
+        synchronized Results get(Key key) {
+            sketch.increment(key.hashCode());
+
+            Entry entry = entries.get(key);
+            if (entry != null && entry.expires - System.nanoTime() < 0) {
+                remove(key);
+                counters[EXPIRATIONS]++;
+                entry = null;
+            }
+
+            if (entry == null) {
+                counters[MISSES]++;
+                return null;
+            }
+            counters[HITS]++;
+            return entry.results;
+        }
+
+        synchronized boolean put(Key key, Results results, long weight) {
+            if (weight > maxWeight) {
+                counters[REJECTIONS]++;
+                return false;
+            }
+
+            remove(key);
+
+            int needEntries = entries.size() + 1 - maxEntries;
+            long needWeight = this.weight + weight - maxWeight;
+
+            if (needEntries > 0 || needWeight > 0) {
+                // collect victims starting with the least recently used, the candidate must beat all of them
+                int frequency = sketch.frequency(key.hashCode());
+                List<Key> victims = new ArrayList<Key>();
+                int expiredVictims = 0;
+                Iterator<Map.Entry<Key, Entry>> it = entries.entrySet().iterator();
+                while ((needEntries > 0 || needWeight > 0) && it.hasNext()) {
+                    Map.Entry<Key, Entry> victim = it.next();
+                    boolean expired = victim.getValue().expires - System.nanoTime() < 0;
+                    if (!expired && sketch.frequency(victim.getKey().hashCode()) >= frequency) {
+                        counters[REJECTIONS]++;
+                        return false;
+                    }
+                    victims.add(victim.getKey());
+                    if (expired) {
+                        expiredVictims++;
+                    }
+                    needEntries--;
+                    needWeight -= victim.getValue().weight;
+                }
+                for (Key victim : victims) {
+                    remove(victim);
+                }
+                // victims whose time to live had elapsed expired, they were not evicted
+                counters[EXPIRATIONS] += expiredVictims;
+                counters[EVICTIONS] += victims.size() - expiredVictims;
+            }
+
+            entries.put(key, new Entry(results, weight, System.nanoTime() + ttlNanos));
+            this.weight += weight;
+            results.segment = this;
+            results.key = key;
+            return true;
+        }
+
+        /**
+         * Replaces the estimated weight of cached results by the size of the Json encoded from them. If that takes the
+         * segment over its maximum weight the least recently used entries are evicted.
+         */
+        synchronized void reweigh(Results results, long weight) {
+            Entry entry = results.key == null ? null : entries.get(results.key);
+            if (entry == null || entry.results != results) {
+                return;
+            }
+            this.weight += weight - entry.weight;
+            entry.weight = weight;
+            Iterator<Map.Entry<Key, Entry>> it = entries.entrySet().iterator();
+            while (this.weight > maxWeight && it.hasNext()) {
+                Map.Entry<Key, Entry> victim = it.next();
+                if (victim.getValue() == entry) {
+                    continue;
+                }
+                this.weight -= victim.getValue().weight;
+                it.remove();
+                counters[EVICTIONS]++;
+            }
+        }
+
+        /**
+         * Removes the entries of a provider and term, {@code null} matching all
+         */
+        synchronized void invalidate(String provider, String term) {
+            if (provider == null) {
+                entries.clear();
+                weight = 0;
+                return;
+            }
+            Iterator<Map.Entry<Key, Entry>> it = entries.entrySet().iterator();
+            while (it.hasNext()) {
+                Map.Entry<Key, Entry> entry = it.next();
+                if (entry.getKey().provider.equals(provider) && (term == null || entry.getKey().term.equals(term))) {
+                    weight -= entry.getValue().weight;
+                    it.remove();
+                }
+            }
+        }
+
+        private void remove(Key key) {
+            Entry entry = entries.remove(key);
+            if (entry != null) {
+                weight -= entry.weight;
+            }
+        }
+
+        synchronized int size() {
+            return entries.size();
+        }
+
+        synchronized long getWeight() {
+            return weight;
+        }
+
+        synchronized long count(int counter) {
+            return counters[counter];
+        }
+    }
+
+    /**
+     * Cached results of a single query. Responses encoded from the results are attached to them, so that they are
+     * only encoded and compressed once. Once the first response is encoded the entry is weighed by the size of its
+     * Json, the encoded bodies themselves are not counted.
+     */
+    public static final class Results {
+        private final List<?> choices;
+        private final Boolean hasMore;
+        private final String nextToken;
+        private final ConcurrentMap<Object, Object> attachments = new ConcurrentHashMap<Object, Object>(4);
+        /** segment and key the results were admitted under, {@code null} until then */
+        private volatile Segment segment;
+        private volatile Key key;
+        private volatile boolean weighed;
+
+        public Results(List<?> choices, Boolean hasMore) {
+            this(choices, hasMore, null);
+        }
+
+        public Results(List<?> choices, Boolean hasMore, String nextToken) {
+            this.choices = choices;
+            this.hasMore = hasMore;
+            this.nextToken = nextToken;
+        }
+
+        @SuppressWarnings("unchecked")
+        public <T> List<T> getChoices() {
+            return (List<T>) choices;
+        }
+
+        public Boolean getHasMore() {
+            return hasMore;
+        }
+
+        public String getNextToken() {
+            return nextToken;
+        }
+
+        Object getAttachment(Object key) {
+            return attachments.get(key);
+        }
+
+        void attach(Object key, Object value) {
+            attachments.put(key, value);
+        }
+
+        /**
+         * Weighs the cache entry of the results by the size of the first response encoded from them
+         *
+         * @param jsonLength length of the encoded Json, in bytes
+         */
+        void encoded(long jsonLength) {
+            Segment owner = segment;
+            if (!weighed && owner != null) {
+                weighed = true;
+                owner.reweigh(this, 64 + jsonLength);
+            }
+        }
+    }
+
+    private static final class Key {
+        private final String provider;
+        private final String term;
+        private final int page;
+        private final String token;
+        private final int hash;
+
+        Key(String provider, String term, int page, String token) {
+            this.provider = provider;
+            this.term = term;
+            this.page = page;
+            this.token = token;
+            this.hash = Objects.hash(provider, term, page, token);
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (this == obj) {
+                return true;
+            }
+            if (!(obj instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) obj;
+            return page == other.page && provider.equals(other.provider) && term.equals(other.term)
+                && Objects.equals(token, other.token);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
+
+    private static final class Entry {
+        private final Results results;
+        private long weight;
+        private final long expires;
+
+        Entry(Results results, long weight, long expires) {
+            this.results = results;
+            this.weight = weight;
+            this.expires = expires;
+        }
+    }
+
+    /**
+     * Count-min sketch of 4-bit counters that estimates how often a key was requested. All counters are halved once the
+     * number of increments reaches ten times the cache capacity, so the estimate follows recent popularity.
+     */
+    private static final class FrequencySketch {
+        private static final int DEPTH = 4;
+        private static final int[] SEEDS = { 0x97cb3127, 0xc2b2ae35, 0x85ebca6b, 0x27d4eb2f };
+
+        private final byte[] counters;
+        private final int mask;
+        private final int sampleSize;
+        private int additions;
+
+        FrequencySketch(int capacity) {
+            int width = Integer.highestOneBit(Math.max(16, Math.min(capacity, 1 << 24)) * 2 - 1);
+            counters = new byte[width * DEPTH];
+            mask = width - 1;
+            sampleSize = (int) Math.min(Integer.MAX_VALUE, 10L * capacity);
+        }
+
+        void increment(int hash) {
+            boolean added = false;
+            for (int i = 0; i < DEPTH; i++) {
+                int index = index(hash, i);
+                if (counters[index] < 15) {
+                    counters[index]++;
+                    added = true;
+                }
+            }
+            if (added && ++additions >= sampleSize) {
+                for (int i = 0; i < counters.length; i++) {
+                    counters[i] >>= 1;
+                }
+                additions /= 2;
+            }
+        }
+
+        int frequency(int hash) {
+            int frequency = 15;
+            for (int i = 0; i < DEPTH; i++) {
+                frequency = Math.min(frequency, counters[index(hash, i)]);
+            }
+            return frequency;
+        }
+
+        private int index(int hash, int row) {
+            int h = hash * SEEDS[row];
+            h ^= h >>> 16;
+            return row * (mask + 1) + (h & mask);
+        }
+    }
+}
@@ -0,0 +1,191 @@
+/*
+ * Copyright 2012 Igor Vaynberg
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this work except in compliance with
+ * the License. You may obtain a copy of the License in the LICENSE file, or at:
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package com.vaynberg.wicket.select25;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.wicket.util.lang.Args;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Signals that the query a provider is running is no longer needed. A query is cancelled when the same select25
+ * control of the same session sends a newer query, when the query runs past its deadline, or when the client
+ * disconnects while the query runs asynchronously, see {@link QueryExecutor}.
+ * <p>
+ * Providers obtain the signal of the query they are running with {@link #current()}, and can either poll it:
+ * <pre>
+ * while (rows.next() &amp;&amp; !QueryCancellation.current().isCancelled()) {
+ *     response.add(toChoice(rows));
+ * }
+ * </pre>
+ * or register a callback that aborts the work in progress:
+ * <pre>
+ * QueryCancellation.current().onCancel(() -&gt; statement.cancel());
+ * </pre>
+ * Callbacks run on the thread that cancels the query, usually the thread serving the newer query, so they must be
+ * quick and thread-safe. The provider may return whatever it has produced when cancelled; the choices of a cancelled
+ * query are never cached or shared with other queries.
+ *
+ * @author igor
+ */
+public final class QueryCancellation {
+
+    private static final Logger logger = LoggerFactory.getLogger(QueryCancellation.class);
+
+    /**
+     * Why a query was cancelled
+     */
+    public enum Reason {
+        /** the same control sent a newer query */
+        SUPERSEDED,
+        /** the client disconnected */
+        DISCONNECTED,
+        /** the query ran past its deadline */
+        TIMEOUT
+    }
+
+    private static final ThreadLocal<QueryCancellation> CURRENT = new ThreadLocal<QueryCancellation>();
+
+    /** signal of code that does not run as part of a query, it is never cancelled */
+    private static final QueryCancellation NONE = new QueryCancellation(null, null, 0);
+
+    private final QueryCancellations tracker;
+    private final String slot;
+    private final long sequence;
+
+    private volatile Reason reason;
+    private List<Runnable> callbacks;
+    private boolean finished;
+
+    QueryCancellation(QueryCancellations tracker, String slot, long sequence) {
+        this.tracker = tracker;
+        this.slot = slot;
+        this.sequence = sequence;
+    }
+
+    /**
+     * @return cancellation signal of the query running on the current thread; outside of a query a signal that is
+     * never cancelled
+     */
+    public static QueryCancellation current() {
+        QueryCancellation current = CURRENT.get();
+        return current == null ? NONE : current;
+    }
+
+    /**
+     * @return {@code true} if the query has been cancelled
+     */
+    public boolean isCancelled() {
+        return reason != null;
+    }
+
+    /**
+     * @return reason the query was cancelled for, or {@code null} if it was not
+     */
+    public Reason getReason() {
+        return reason;
+    }
+
+    /**
+     * Registers a callback that runs when the query is cancelled. If the query has already been cancelled the callback
+     * runs immediately.
+     *
+     * @param callback callback
+     */
+    public void onCancel(Runnable callback) {
+        Args.notNull(callback, "callback");
+        synchronized (this) {
+            if (reason == null) {
+                if (!finished && this != NONE) {
+                    if (callbacks == null) {
+                        callbacks = new ArrayList<Runnable>(2);
+                    }
+                    callbacks.add(callback);
+                }
+                return;
+            }
+        }
+        run(callback);
+    }
+
+    /**
+     * Cancels the query unless it has already finished or been cancelled
+     *
+     * @return {@code true} if the query was cancelled by this call
+     */
+    boolean cancel(Reason reason) {
+        List<Runnable> callbacks;
+        synchronized (this) {
+            if (this.reason != null || finished || this == NONE) {
+                return false;
+            }
+            this.reason = reason;
+            callbacks = this.callbacks;
+            this.callbacks = null;
+        }
+        if (tracker != null) {
+            tracker.cancelled(reason);
+        }
+        if (callbacks != null) {
+            for (Runnable callback : callbacks) {
+                run(callback);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Marks the query finished, after which it can no longer be cancelled
+     */
+    synchronized void finish() {
+        finished = true;
+        callbacks = null;
+    }
+
+    /**
+     * Binds the signal to the current thread
+     *
+     * @return signal that was bound before, to be passed to {@link #restore(QueryCancellation)}
+     */
+    QueryCancellation bind() {
+        QueryCancellation previous = CURRENT.get();
+        CURRENT.set(this);
+        return previous;
+    }
+
+    static void restore(QueryCancellation previous) {
+        if (previous == null) {
+            CURRENT.remove();
+        } else {
+            CURRENT.set(previous);
+        }
+    }
+
+    String getSlot() {
+        return slot;
+    }
+
+    long getSequence() {
+        return sequence;
+    }
+
+    private static void run(Runnable callback) {
+        try {
+            callback.run();
+        } catch (RuntimeException e) {
+            logger.warn("Query cancellation callback failed", e);
+        }
+    }
+}
@@ -0,0 +1,238 @@
+/*
+ * Copyright 2012 Igor Vaynberg
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this work except in compliance with
+ * the License. You may obtain a copy of the License in the LICENSE file, or at:
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package com.vaynberg.wicket.select25;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpSession;
+
+import org.apache.wicket.Application;
+import org.apache.wicket.MetaDataKey;
+import org.apache.wicket.request.IRequestParameters;
+import org.apache.wicket.request.Request;
+import org.apache.wicket.request.cycle.IRequestCycleListener;
+import org.apache.wicket.request.cycle.RequestCycle;
+
+/**
+ * Tracks the running queries of the application so that a query can be cancelled when the control that sent it sends a
+ * newer one, and counts cancelled queries.
+ * <p>
+ * The client identifies the control with the {@value #ID_PARAMETER} parameter and numbers its queries with the
+ * {@value #SEQUENCE_PARAMETER} parameter. A query is superseded by a query of the same control and session with a
+ * higher number. Superseded queries are cancelled as soon as the newer query reaches the application, before it waits
+ * for the lock of the page its component belongs to.
+ * <p>
+ * The tracker is created, and its request cycle listener installed, when the application initializes, see
+ * {@link Select25Initializer}. Applications that are not initialized with the initializers of their libraries must call
+ * {@link #install(Application)} from {@link Application#init()}; until then the first query of a control cannot be
+ * superseded before it waits for the page lock.
+ *
+ * @author igor
+ */
+public class QueryCancellations {
+
+    private static final MetaDataKey<QueryCancellations> KEY = new MetaDataKey<QueryCancellations>() {};
+
+    /**
+     * Name of the request parameter identifying the control that sent the query
+     */
+    public static final String ID_PARAMETER = "qid";
+
+    /**
+     * Name of the request parameter holding the sequence number of the query within its control
+     */
+    public static final String SEQUENCE_PARAMETER = "qseq";
+
+    private final ConcurrentMap<String, Slot> slots = new ConcurrentHashMap<String, Slot>();
+    private final AtomicLongArray cancelled = new AtomicLongArray(QueryCancellation.Reason.values().length);
+
+    /**
+     * @return tracker of the current application
+     */
+    public static QueryCancellations get() {
+        return get(Application.get());
+    }
+
+    /**
+     * @param application application
+     * @return tracker of the application, installed if it is not yet
+     */
+    public static QueryCancellations get(Application application) {
+        QueryCancellations tracker = application.getMetaData(KEY);
+        return tracker == null ? install(application) : tracker;
+    }
+
+    /**
+     * Creates the tracker of the application and installs the request cycle listener that cancels superseded queries,
+     * unless this has already been done
+     *
+     * @param application application
+     * @return tracker of the application
+     */
+    public static QueryCancellations install(Application application) {
+        QueryCancellations tracker = application.getMetaData(KEY);
+        if (tracker == null) {
+            synchronized (application) {
+                tracker = application.getMetaData(KEY);
+                if (tracker == null) {
+                    final QueryCancellations created = new QueryCancellations();
+                    application.getRequestCycleListeners().add(new IRequestCycleListener() {
+                        @Override
+                        public void onBeginRequest(RequestCycle cycle) {
+                            created.supersede(cycle.getRequest());
+                        }
+                    });
+                    application.setMetaData(KEY, created);
+                    tracker = created;
+                }
+            }
+        }
+        return tracker;
+    }
+
+    /**
+     * Creates the cancellation signal of a query that is about to run
+     */
+    QueryCancellation start(Request request) {
+        String slot = slot(request);
+        long sequence = sequence(request);
+        QueryCancellation cancellation = new QueryCancellation(this, slot, sequence);
+        if (slot != null) {
+            final QueryCancellation[] superseded = new QueryCancellation[1];
+            slots.compute(slot, (key, existing) -> {
+                Slot started = existing == null ? new Slot() : existing;
+                superseded[0] = started.start(cancellation);
+                return started;
+            });
+            if (superseded[0] != null) {
+                // cancelled outside of the map so that callbacks do not run while it is locked
+                superseded[0].cancel(QueryCancellation.Reason.SUPERSEDED);
+            }
+        }
+        return cancellation;
+    }
+
+    /**
+     * Marks the query finished
+     */
+    void finish(QueryCancellation cancellation) {
+        cancellation.finish();
+        final String slot = cancellation.getSlot();
+        if (slot != null) {
+            slots.computeIfPresent(slot, (key, existing) -> existing.finish(cancellation) ? null : existing);
+        }
+    }
+
+    /**
+     * Cancels the running query of the control that sent the request, if the request is a newer query
+     */
+    void supersede(Request request) {
+        String slot = slot(request);
+        if (slot != null) {
+            Slot existing = slots.get(slot);
+            QueryCancellation superseded = existing == null ? null : existing.supersede(sequence(request));
+            if (superseded != null) {
+                superseded.cancel(QueryCancellation.Reason.SUPERSEDED);
+            }
+        }
+    }
+
+    void cancelled(QueryCancellation.Reason reason) {
+        cancelled.incrementAndGet(reason.ordinal());
+    }
+
+    /**
+     * @return number of queries that were cancelled
+     */
+    public long getCancelledCount() {
+        long count = 0;
+        for (int i = 0; i < cancelled.length(); i++) {
+            count += cancelled.get(i);
+        }
+        return count;
+    }
+
+    /**
+     * @param reason reason of cancellation
+     * @return number of queries that were cancelled for the reason
+     */
+    public long getCancelledCount(QueryCancellation.Reason reason) {
+        return cancelled.get(reason.ordinal());
+    }
+
+    private static String slot(Request request) {
+        String id = request.getRequestParameters().getParameterValue(ID_PARAMETER).toOptionalString();
+        if (id == null) {
+            return null;
+        }
+        String session = "";
+        Object container = request.getContainerRequest();
+        if (container instanceof HttpServletRequest) {
+            HttpSession httpSession = ((HttpServletRequest) container).getSession(false);
+            if (httpSession != null) {
+                session = httpSession.getId();
+            }
+        }
+        return session + '|' + id;
+    }
+
+    private static long sequence(Request request) {
+        IRequestParameters params = request.getRequestParameters();
+        return params.getParameterValue(SEQUENCE_PARAMETER).toLong(0);
+    }
+
+    /**
+     * Running query of a control and the highest sequence number the control has sent
+     */
+    private static final class Slot {
+        private long latest = Long.MIN_VALUE;
+        private QueryCancellation running;
+
+        /**
+         * @return query superseded by the started one, or the started query itself if a newer one arrived first
+         */
+        synchronized QueryCancellation start(QueryCancellation cancellation) {
+            if (cancellation.getSequence() < latest) {
+                return cancellation;
+            }
+            latest = cancellation.getSequence();
+            QueryCancellation superseded = running;
+            running = cancellation;
+            return superseded;
+        }
+
+        /**
+         * @return running query superseded by the sequence number, or {@code null}
+         */
+        synchronized QueryCancellation supersede(long sequence) {
+            if (sequence > latest) {
+                latest = sequence;
+                return running;
+            }
+            return null;
+        }
+
+        /**
+         * @return {@code true} if the slot is idle and can be removed
+         */
+        synchronized boolean finish(QueryCancellation cancellation) {
+            if (running == cancellation) {
+                running = null;
+            }
+            return running == null;
+        }
+    }
+}
@@ -0,0 +1,252 @@
+/*
+ * Copyright 2012 Igor Vaynberg
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this work except in compliance with
+ * the License. You may obtain a copy of the License in the LICENSE file, or at:
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package com.vaynberg.wicket.select25;
+
+import java.time.Duration;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.wicket.Application;
+import org.apache.wicket.IApplicationListener;
+import org.apache.wicket.MetaDataKey;
+import org.apache.wicket.Session;
+import org.apache.wicket.ThreadContext;
+import org.apache.wicket.util.lang.Args;
+
+/**
+ * Runs queries off the container thread and enforces a deadline on them. When an executor is installed in the
+ * application with {@link #set(Application, QueryExecutor)}:
+ * <ul>
+ * <li>queries of {@link SharedChoiceProvider}s served by {@link ChoiceProviderResource} use servlet async processing,
+ * so the container thread is released while the provider runs. This requires the Wicket filter to be declared with
+ * {@code <async-supported>true</async-supported>} and to be mapped to the {@code ASYNC} dispatcher in addition to
+ * {@code REQUEST}; otherwise queries fall back to the behavior below.</li>
+ * <li>queries of {@link SharedChoiceProvider}s that cannot be processed asynchronously, and the first page of
+ * results embedded while such a component renders, still hold the container thread but are cut off when the
+ * deadline passes.</li>
+ * </ul>
+ * Queries of any other provider are served by the listener of their component and always run on the request thread
+ * without a deadline: such providers are bound to the page, need the request cycle, and are not thread-safe, so they
+ * must neither run on another thread nor keep running after the request returns and the page detaches.
+ * When the deadline of a query passes the choices produced so far are returned with {@code more=true}, or the query
+ * fails with status {@code 503} if the executor is configured with {@link OnDeadline#ERROR}. A provider can override
+ * the executor's deadline with {@link ChoiceProvider#getDeadline()}.
+ * <p>
+ * Queries run without a request cycle, only the application and the session, if any, are bound to the thread. On
+ * Java 21 and later the default executor starts a virtual thread per query.
+ * <p>
+ * A query on the executor cannot write into the response while the request thread waits for it, so each choice is
+ * encoded into a buffer as the provider produces it, and the buffer is written out once the query completes or its
+ * deadline passes. The Json of a page is therefore held in memory, even for a {@link StreamingChoiceProvider}, but
+ * the choice objects are not. The first page embedded while a component renders is encoded by the component, on the
+ * request thread, so its choices are collected until the query completes.
+ *
+ * @author igor
+ */
+public class QueryExecutor {
+
+    private static final MetaDataKey<QueryExecutor> KEY = new MetaDataKey<QueryExecutor>() {};
+
+    /** whether the listener that shuts down the installed executor has been added to the application */
+    private static final MetaDataKey<Boolean> LISTENING = new MetaDataKey<Boolean>() {};
+
+    /** number of queries the default pool queues while all of its threads are busy */
+    public static final int MAX_QUEUED = 256;
+
+    /**
+     * What to respond with when a query does not complete before its deadline
+     */
+    public enum OnDeadline {
+        /** respond with the choices produced so far and {@code more=true} */
+        PARTIAL,
+        /** respond with status {@code 503} */
+        ERROR
+    }
+
+    private final ExecutorService executor;
+    private final ScheduledExecutorService timer;
+    private final Duration deadline;
+    private final OnDeadline onDeadline;
+
+    /**
+     * Creates an executor that runs queries with the {@link #newDefaultExecutorService() default executor service} and
+     * returns partial results when the deadline passes
+     *
+     * @param deadline default deadline of queries, or {@code null} for none
+     */
+    public QueryExecutor(Duration deadline) {
+        this(newDefaultExecutorService(), deadline, OnDeadline.PARTIAL);
+    }
+
+    /**
+     * Constructor
+     *
+     * @param executor   executor service queries are run on
+     * @param deadline   default deadline of queries, or {@code null} for none
+     * @param onDeadline what to respond with when the deadline passes
+     */
+    public QueryExecutor(ExecutorService executor, Duration deadline, OnDeadline onDeadline) {
+        Args.notNull(executor, "executor");
+        Args.notNull(onDeadline, "onDeadline");
+        this.executor = executor;
+        this.deadline = deadline;
+        this.onDeadline = onDeadline;
+
+        ScheduledThreadPoolExecutor timer = new ScheduledThreadPoolExecutor(1, new DaemonThreadFactory("select25-deadline-"));
+        timer.setRemoveOnCancelPolicy(true);
+        this.timer = timer;
+    }
+
+    /**
+     * @return executor installed in the current application, or {@code null} if queries run synchronously
+     */
+    public static QueryExecutor get() {
+        return get(Application.get());
+    }
+
+    /**
+     * @param application application
+     * @return executor installed in the application, or {@code null} if queries run synchronously
+     */
+    public static QueryExecutor get(Application application) {
+        return application.getMetaData(KEY);
+    }
+
+    /**
+     * Installs the executor queries of the application are run on. The executor it replaces, if any, is shut down;
+     * queries it is running are completed. The installed executor is shut down when the application is destroyed.
+     *
+     * @param application application
+     * @param executor    query executor, or {@code null} to run queries synchronously
+     */
+    public static void set(Application application, QueryExecutor executor) {
+        QueryExecutor previous;
+        synchronized (application) {
+            previous = application.getMetaData(KEY);
+            application.setMetaData(KEY, executor);
+            if (executor != null && application.getMetaData(LISTENING) == null) {
+                application.setMetaData(LISTENING, Boolean.TRUE);
+                application.getApplicationListeners().add(new IApplicationListener() {
+                    @Override
+                    public void onAfterInitialized(Application application) {
+                    }
+
+                    @Override
+                    public void onBeforeDestroyed(Application application) {
+                        QueryExecutor executor = get(application);
+                        if (executor != null) {
+                            executor.shutdown();
+                        }
+                    }
+                });
+            }
+        }
+        if (previous != null && previous != executor) {
+            previous.shutdown();
+        }
+    }
+
+    /**
+     * Creates the executor service used by default: a virtual thread per task where the JDK supports it, otherwise a
+     * pool of up to 64 daemon threads that queues no more than {@value #MAX_QUEUED} queries; further queries are rejected
+     * and answered with status {@code 503}
+     *
+     * @return executor service
+     */
+    public static ExecutorService newDefaultExecutorService() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor")
+                .invoke(null);
+        } catch (ReflectiveOperationException e) {
+            ThreadPoolExecutor pool = new ThreadPoolExecutor(64, 64, 60, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(MAX_QUEUED), new DaemonThreadFactory("select25-query-"),
+                new ThreadPoolExecutor.AbortPolicy());
+            pool.allowCoreThreadTimeOut(true);
+            return pool;
+        }
+    }
+
+    /**
+     * @param provider provider being queried
+     * @return deadline of queries to the provider, or {@code null} if they have none
+     */
+    public Duration getDeadline(ChoiceProvider<?> provider) {
+        Duration providerDeadline = provider.getDeadline();
+        return providerDeadline != null ? providerDeadline : deadline;
+    }
+
+    public Duration getDeadline() {
+        return deadline;
+    }
+
+    public OnDeadline getOnDeadline() {
+        return onDeadline;
+    }
+
+    /**
+     * Runs a task with the current application and session bound to the executing thread
+     */
+    Future<?> submit(final Runnable task) {
+        final Application application = Application.get();
+        final Session session = Session.exists() ? Session.get() : null;
+        return executor.submit(new Runnable() {
+            @Override
+            public void run() {
+                ThreadContext.setApplication(application);
+                ThreadContext.setSession(session);
+                try {
+                    task.run();
+                } finally {
+                    ThreadContext.detach();
+                }
+            }
+        });
+    }
+
+    ScheduledFuture<?> schedule(Runnable task, Duration delay) {
+        return timer.schedule(task, delay.toNanos(), TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Stops accepting queries
+     */
+    public void shutdown() {
+        executor.shutdown();
+        timer.shutdown();
+    }
+
+    private static final class DaemonThreadFactory implements ThreadFactory {
+        private final String prefix;
+        private final AtomicInteger count = new AtomicInteger();
+
+        DaemonThreadFactory(String prefix) {
+            this.prefix = prefix;
+        }
+
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, prefix + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+}
@@ -0,0 +1,1082 @@
+/*
+ * Copyright 2012 Igor Vaynberg
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this work except in compliance with
+ * the License. You may obtain a copy of the License in the LICENSE file, or at:
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package com.vaynberg.wicket.select25;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.BiConsumer;
+import java.util.zip.CRC32;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.DispatcherType;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.apache.wicket.request.IRequestParameters;
+import org.apache.wicket.request.Request;
+import org.apache.wicket.request.http.WebRequest;
+import org.apache.wicket.request.http.WebResponse;
+import org.apache.wicket.util.string.StringValue;
+import org.json.JSONException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.vaynberg.wicket.select25.json.JsonEncoder;
+
+/**
+ * Implements the query protocol spoken by select25: reads the {@code term}, {@code page} and {@code token} request
+ * parameters, runs the query against a provider and streams the matching choices into the Json response. Shared by
+ * the component listener and {@link ChoiceProviderResource}.
+ * <p>
+ * If a {@link QueryExecutor} is installed queries of shared providers run on the executor and are subject to its
+ * deadline, see {@link #respond(ChoiceProvider, boolean, Request, WebResponse, BiConsumer, Class)} and
+ * {@link #startAsync(ChoiceProvider, Request, BiConsumer, Class)}. Providers bound to a page always run on the request thread.
+ * Every query is given a {@link QueryCancellation}.
+ * <p>
+ * Queries and responses are measured for the installed {@link Select25Metrics}, tagged with the class of the component
+ * or resource that responds and the class of the provider.
+ *
+ * @author igor
+ */
+final class QueryHandler {
+
+	private static final Logger logger = LoggerFactory.getLogger(QueryHandler.class);
+
+	/** request parameter that carries the version of a cacheable provider, it gives every version its own url */
+	static final String VERSION_PARAMETER = "v";
+
+	/** parameter of requests for the labels of selected values, repeated for each id */
+	static final String LABEL_PARAMETER = "label";
+
+	private static final String CONTENT_TYPE = "application/json; charset=UTF-8";
+
+	/** request attribute that carries the outcome of an async query into the dispatch that writes it */
+	private static final String OUTCOME_ATTRIBUTE = QueryHandler.class.getName() + ".outcome";
+
+	private QueryHandler() {
+	}
+
+	/**
+	 * Runs the query and writes the response on the calling thread. If the provider is shared and a
+	 * {@link QueryExecutor} with a deadline is installed the query runs on the executor and the calling thread waits
+	 * no longer than the deadline.
+	 *
+	 * @param provider
+	 * 	provider to query
+	 * @param shared
+	 * 	whether the provider is thread-safe and independent of any page, see {@link #isOffThread(ChoiceProvider)}
+	 * @param request
+	 * 	query request
+	 * @param response
+	 * 	response the Json is written into
+	 * @param valueWriter
+	 * 	writes a single choice into the encoder
+	 * @param writerKey
+	 * 	class of the responding component or resource; identifies the Json {@code valueWriter} produces, responses
+	 * 	encoded from cached results are shared by all writers with the same key
+	 */
+	static <T> void respond(final ChoiceProvider<T> provider, boolean shared, Request request, WebResponse response,
+			BiConsumer<JsonEncoder, T> valueWriter, Class<?> writerKey) {
+
+		final Query query = new Query(request.getRequestParameters());
+		final Probe probe = new Probe(Select25Metrics.get(), writerKey, provider);
+
+		QueryCancellations cancellations = QueryCancellations.get();
+		final QueryCancellation cancellation = cancellations.start(request);
+		try {
+			respond(provider, shared, query, cancellation, probe, request, response, valueWriter, writerKey);
+		} finally {
+			cancellations.finish(cancellation);
+		}
+	}
+
+	private static <T> void respond(final ChoiceProvider<T> provider, boolean shared, final Query query,
+			final QueryCancellation cancellation, final Probe probe, Request request, WebResponse response,
+			BiConsumer<JsonEncoder, T> valueWriter, Class<?> writerKey) {
+
+		QueryExecutor executor = QueryExecutor.get();
+		Duration deadline = executor == null || !shared ? null : executor.getDeadline(provider);
+
+		if (deadline == null) {
+			// stream the matching choices straight into the json response
+			EncodingSink<T> sink = new EncodingSink<T>(request, response, valueWriter, writerKey, probe);
+			try {
+				try {
+					run(provider, query, cancellation, sink, probe);
+				} catch (RuntimeException e) {
+					if (!sink.fail()) {
+						throw e;
+					}
+					logger.warn("Query failed after part of its response was sent, the response ends with an error", e);
+					return;
+				}
+				sink.finish();
+			} finally {
+				sink.release();
+			}
+			return;
+		}
+
+		final Outcome<T> outcome = new Outcome<T>(executor.getOnDeadline(), probe, valueWriter);
+		Future<?> future;
+		try {
+			future = executor.submit(() -> run(provider, query, cancellation, outcome, probe));
+		} catch (RejectedExecutionException e) {
+			probe.count(Select25Metrics.Counter.REJECTED);
+			response.setStatus(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+			return;
+		}
+
+		try {
+			future.get(deadline.toNanos(), TimeUnit.NANOSECONDS);
+			outcome.complete(null);
+		} catch (TimeoutException e) {
+			outcome.expire();
+			cancellation.cancel(QueryCancellation.Reason.TIMEOUT);
+			future.cancel(true);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			outcome.expire();
+			cancellation.cancel(QueryCancellation.Reason.TIMEOUT);
+			future.cancel(true);
+		} catch (ExecutionException e) {
+			outcome.complete(e.getCause());
+		}
+
+		write(outcome, request, response, valueWriter, writerKey);
+	}
+
+	/**
+	 * Applies the cache policy of the provider to a response of the component listener. Responses of cacheable
+	 * providers are given the provider's version and their content coding as their {@code ETag} and may be cached
+	 * privately; if the request revalidates a response whose version is still current the response is set to
+	 * {@code 304 Not Modified}.
+	 *
+	 * @param provider
+	 * 	provider to query
+	 * @param request
+	 * 	query request
+	 * @param response
+	 * 	query response
+	 * @param component
+	 * 	class of the component
+	 * @return {@code true} if the response was set to {@code 304 Not Modified} and the query must not run
+	 */
+	static boolean checkNotModified(ChoiceProvider<?> provider, Request request, WebResponse response,
+			Class<?> component) {
+		String etag = etag(provider, request);
+		if (etag == null) {
+			return false;
+		}
+		response.enableCaching(toCacheDuration(provider.getCacheDuration()), WebResponse.CacheScope.PRIVATE);
+		response.setHeader("ETag", etag);
+		if (isNotModified(request, etag)) {
+			if (ResponseCompression.get() != null) {
+				response.addHeader("Vary", "Accept-Encoding");
+			}
+			Select25Metrics.get().increment(Select25Metrics.Counter.NOT_MODIFIED, component, provider.getMetricsClass());
+			response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+			return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Returns the {@code ETag} of the responses of the provider to the request. Responses compressed with a content
+	 * coding are different representations than the identity response and must not share its strong entity tag, so
+	 * the tag ends with the coding the request negotiates.
+	 *
+	 * @param provider
+	 * 	provider
+	 * @param request
+	 * 	query request
+	 * @return {@code ETag} of the query responses of the provider, or {@code null} if they are not cacheable
+	 */
+	static String etag(ChoiceProvider<?> provider, Request request) {
+		String version = provider.getVersion();
+		if (version == null) {
+			return null;
+		}
+		ResponseCompression compression = ResponseCompression.get();
+		String encoding = compression == null ? null : compression.negotiate(request);
+		String suffix = encoding == null ? "" : "-" + encoding;
+		for (int i = 0; i < version.length(); i++) {
+			char c = version.charAt(i);
+			if (c <= ' ' || c == '"' || c > '~') {
+				// not allowed in an entity tag
+				CRC32 crc = new CRC32();
+				crc.update(version.getBytes(StandardCharsets.UTF_8));
+				return "\"" + Long.toHexString(crc.getValue()) + "-" + version.length() + suffix + "\"";
+			}
+		}
+		return "\"" + version + suffix + "\"";
+	}
+
+	/**
+	 * @param request
+	 * 	request
+	 * @param etag
+	 * 	current {@code ETag}
+	 * @return {@code true} if the {@code If-None-Match} header of the request matches the {@code ETag}
+	 */
+	static boolean isNotModified(Request request, String etag) {
+		if (!(request instanceof WebRequest)) {
+			return false;
+		}
+		String header = ((WebRequest) request).getHeader("If-None-Match");
+		if (header == null) {
+			return false;
+		}
+		for (String candidate : header.split(",")) {
+			candidate = candidate.trim();
+			if (candidate.startsWith("W/")) {
+				// weak comparison, proxies that compress responses mark their entity tags weak
+				candidate = candidate.substring(2);
+			}
+			if (candidate.equals("*") || candidate.equals(etag)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * @param duration
+	 * 	cache duration of a provider
+	 * @return duration in the form the Wicket response api expects
+	 */
+	static org.apache.wicket.util.time.Duration toCacheDuration(Duration duration) {
+		return org.apache.wicket.util.time.Duration.milliseconds(
+			duration == null || duration.isNegative() ? 0 : duration.toMillis());
+	}
+
+	/**
+	 * Runs the query for the first page of results of an empty search term while a component renders, so that the
+	 * page can be embedded into the component's initialization script. If the provider is a
+	 * {@link SharedChoiceProvider} and a {@link QueryExecutor} with a deadline is installed the query runs on the
+	 * executor; a query that does not complete within the deadline, or fails, is not embedded and the client queries
+	 * the page itself.
+	 *
+	 * @param provider
+	 * 	provider to query
+	 * @param valueWriter
+	 * 	writes a single choice into the encoder
+	 * @param maxBytes
+	 * 	maximum size of the Json
+	 * @param component
+	 * 	class of the component
+	 * @return Json of the page in the format of a query response, or {@code null} if it is not to be embedded
+	 */
+	static <T> String firstPage(final ChoiceProvider<T> provider, BiConsumer<JsonEncoder, T> valueWriter,
+			int maxBytes, Class<?> component) {
+
+		final Query query = new Query("", 0, null);
+		final QueryCancellation cancellation = new QueryCancellation(null, null, 0);
+		final Probe probe = new Probe(Select25Metrics.get(), component, provider);
+		// the choices are encoded on the request thread, the value writer of the component must not run on another
+		final Outcome<T> outcome = new Outcome<T>(QueryExecutor.OnDeadline.ERROR, probe, null);
+
+		QueryExecutor executor = QueryExecutor.get();
+		Duration deadline = executor == null || !isOffThread(provider) ? null : executor.getDeadline(provider);
+
+		try {
+			if (deadline == null) {
+				run(provider, query, cancellation, outcome, probe);
+			} else {
+				Future<?> future = executor.submit(() -> run(provider, query, cancellation, outcome, probe));
+				try {
+					future.get(deadline.toNanos(), TimeUnit.NANOSECONDS);
+				} catch (TimeoutException e) {
+					probe.count(Select25Metrics.Counter.EXPIRED);
+					cancellation.cancel(QueryCancellation.Reason.TIMEOUT);
+					future.cancel(true);
+					return null;
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					cancellation.cancel(QueryCancellation.Reason.TIMEOUT);
+					future.cancel(true);
+					return null;
+				} catch (ExecutionException e) {
+					logger.warn("Could not query the first page of choices to embed", e.getCause());
+					return null;
+				}
+			}
+		} catch (RejectedExecutionException e) {
+			probe.count(Select25Metrics.Counter.REJECTED);
+			return null;
+		} catch (RuntimeException e) {
+			logger.warn("Could not query the first page of choices to embed", e);
+			return null;
+		} finally {
+			cancellation.finish();
+		}
+		outcome.complete(null);
+
+		long start = probe.time();
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(Math.min(maxBytes, 4096));
+		JsonEncoder json = JsonEncoder.acquire(bytes);
+		long length;
+		try {
+			BiConsumer<JsonEncoder, T> boundedWriter = (encoder, choice) -> {
+				if (encoder.getByteCount() <= maxBytes) {
+					valueWriter.accept(encoder, choice);
+				}
+			};
+			encode(json, outcome.choices, outcome.more, outcome.token, boundedWriter);
+			json.flush();
+			length = json.getByteCount();
+		} finally {
+			json.release();
+		}
+		if (length > maxBytes) {
+			return null;
+		}
+		probe.response(probe.time() - start, outcome.choices.size(), length);
+		return new String(bytes.toByteArray(), StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * Tells whether a provider given to a component may be queried on a {@link QueryExecutor} thread. Only the
+	 * registered providers behind a {@link SharedChoiceProvider} are thread-safe and independent of the page; any
+	 * other provider may touch the page or its models, which must not happen outside of the request cycle or after
+	 * the page has detached.
+	 *
+	 * @param provider
+	 * 	provider of a component
+	 * @return {@code true} if the provider may be queried off the request thread
+	 */
+	static boolean isOffThread(ChoiceProvider<?> provider) {
+		return provider instanceof SharedChoiceProvider;
+	}
+
+	/**
+	 * Starts running the query asynchronously, releasing the container thread until it completes. Once the query
+	 * completes, or its deadline passes, the request is dispatched again to the same url and the dispatch picks up
+	 * the outcome with {@link #takeOutcome(HttpServletRequest)}.
+	 *
+	 * @param provider
+	 * 	thread-safe provider to query
+	 * @param request
+	 * 	query request, its container request must be a {@link HttpServletRequest}
+	 * @param valueWriter
+	 * 	writes a single choice into the encoder, on the executor thread
+	 * @param component
+	 * 	class of the resource that responds
+	 * @return {@code true} if the query was started, {@code false} if no {@link QueryExecutor} is installed or the
+	 * 	request does not support async processing, in which case the caller has to respond synchronously
+	 */
+	static <T> boolean startAsync(final ChoiceProvider<T> provider, Request request,
+			BiConsumer<JsonEncoder, T> valueWriter, Class<?> component) {
+
+		HttpServletRequest containerRequest = (HttpServletRequest) request.getContainerRequest();
+
+		final QueryExecutor executor = QueryExecutor.get();
+		if (executor == null || !containerRequest.isAsyncSupported()
+				|| containerRequest.getDispatcherType() == DispatcherType.ASYNC) {
+			return false;
+		}
+
+		final Query query = new Query(request.getRequestParameters());
+		final QueryCancellations cancellations = QueryCancellations.get();
+		final QueryCancellation cancellation = cancellations.start(request);
+		final Probe probe = new Probe(Select25Metrics.get(), component, provider);
+		final Outcome<T> outcome = new Outcome<T>(executor.getOnDeadline(), probe, valueWriter);
+		final AsyncContext async = containerRequest.startAsync();
+		final AtomicBoolean dispatched = new AtomicBoolean();
+
+		final Runnable dispatch = () -> {
+			if (dispatched.compareAndSet(false, true)) {
+				cancellations.finish(cancellation);
+				async.getRequest().setAttribute(OUTCOME_ATTRIBUTE, outcome);
+				async.dispatch();
+			}
+		};
+
+		async.addListener(new AsyncListener() {
+			@Override
+			public void onTimeout(AsyncEvent event) {
+				outcome.expire();
+				cancellation.cancel(QueryCancellation.Reason.TIMEOUT);
+				dispatch.run();
+			}
+
+			@Override
+			public void onError(AsyncEvent event) {
+				// the container reports errors of async requests when the client goes away
+				outcome.complete(event.getThrowable());
+				cancellation.cancel(QueryCancellation.Reason.DISCONNECTED);
+				dispatch.run();
+			}
+
+			@Override
+			public void onComplete(AsyncEvent event) {
+			}
+
+			@Override
+			public void onStartAsync(AsyncEvent event) {
+			}
+		});
+
+		Duration deadline = executor.getDeadline(provider);
+
+		final Future<?> future;
+		try {
+			future = executor.submit(() -> {
+				Throwable failure = null;
+				try {
+					run(provider, query, cancellation, outcome, probe);
+				} catch (RuntimeException | Error e) {
+					failure = e;
+				}
+				outcome.complete(failure);
+				dispatch.run();
+			});
+		} catch (RejectedExecutionException e) {
+			outcome.reject();
+			dispatch.run();
+			return true;
+		}
+
+		if (deadline != null) {
+			// the deadline is enforced below rather than by the container
+			async.setTimeout(0);
+			final ScheduledFuture<?> timer = executor.schedule(() -> {
+				outcome.expire();
+				cancellation.cancel(QueryCancellation.Reason.TIMEOUT);
+				future.cancel(true);
+				dispatch.run();
+			}, deadline);
+			async.addListener(new AsyncListener() {
+				@Override
+				public void onComplete(AsyncEvent event) {
+					timer.cancel(false);
+				}
+
+				@Override
+				public void onTimeout(AsyncEvent event) {
+				}
+
+				@Override
+				public void onError(AsyncEvent event) {
+				}
+
+				@Override
+				public void onStartAsync(AsyncEvent event) {
+				}
+			});
+		}
+		return true;
+	}
+
+	/**
+	 * @param request
+	 * 	container request
+	 * @return outcome of the async query started by the request that was dispatched, or {@code null} if this is not
+	 * 	the dispatch of an async query
+	 */
+	static Outcome<?> takeOutcome(HttpServletRequest request) {
+		if (request.getDispatcherType() != DispatcherType.ASYNC) {
+			return null;
+		}
+		Outcome<?> outcome = (Outcome<?>) request.getAttribute(OUTCOME_ATTRIBUTE);
+		request.removeAttribute(OUTCOME_ATTRIBUTE);
+		return outcome;
+	}
+
+	/**
+	 * Writes the outcome of a query that ran on the {@link QueryExecutor}
+	 */
+	static <T> void write(Outcome<T> outcome, Request request, WebResponse response,
+			BiConsumer<JsonEncoder, T> valueWriter, Class<?> writerKey) {
+
+		Probe probe = outcome.probe;
+		QueryCache.Results cached;
+		long encodeNanos = 0;
+		int results = 0;
+		byte[] raw = null;
+		synchronized (outcome) {
+			if (outcome.failure != null) {
+				outcome.release();
+				throw new RuntimeException("Could not query choices", outcome.failure);
+			}
+			if (outcome.rejected || (outcome.expired && outcome.onDeadline == QueryExecutor.OnDeadline.ERROR)) {
+				outcome.release();
+				response.setStatus(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+				return;
+			}
+			cached = outcome.cached;
+			if (cached == null) {
+				if (outcome.valueWriter == null) {
+					throw new IllegalStateException("Outcome collects its choices, it is written by its caller");
+				}
+				raw = outcome.toJson();
+				encodeNanos = outcome.encodeNanos;
+				results = outcome.results;
+			}
+		}
+
+		long start = probe.time();
+		if (cached != null) {
+			long bytes = writeCached(cached, request, response, valueWriter, writerKey);
+			probe.response(probe.time() - start, cached.getChoices().size(), bytes);
+			return;
+		}
+		OutputStream out = open(request, response);
+		long bytes;
+		try {
+			out.write(raw);
+			if (out instanceof CompressingOutputStream) {
+				((CompressingOutputStream) out).finish();
+				bytes = ((CompressingOutputStream) out).getByteCount();
+			} else {
+				out.flush();
+				bytes = raw.length;
+			}
+		} catch (IOException e) {
+			throw new RuntimeException("Could not write Json to servlet response", e);
+		}
+		probe.response(encodeNanos + probe.time() - start, results, bytes);
+	}
+
+	/**
+	 * Writes a response from results of the {@link QueryCache}. The encoded, and possibly compressed, body is kept with
+	 * the results for every writer and content coding, so later responses with the same results are neither encoded
+	 * nor compressed again.
+	 *
+	 * @return number of bytes written
+	 */
+	private static <T> long writeCached(QueryCache.Results results, Request request, WebResponse response,
+			BiConsumer<JsonEncoder, T> valueWriter, Class<?> writerKey) {
+
+		response.setContentType(CONTENT_TYPE);
+		ResponseCompression compression = ResponseCompression.get();
+		String encoding = compression == null ? null : compression.negotiate(request, response);
+
+		List<Object> key = Arrays.asList(writerKey, encoding);
+		ResponseCompression.Encoded body = (ResponseCompression.Encoded) results.getAttachment(key);
+		if (body == null) {
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream(1024);
+			JsonEncoder json = JsonEncoder.acquire(bytes);
+			try {
+				encode(json, results.<T>getChoices(), results.getHasMore(), results.getNextToken(), valueWriter);
+				json.flush();
+			} finally {
+				json.release();
+			}
+			byte[] raw = bytes.toByteArray();
+			body = compression == null ? new ResponseCompression.Encoded(raw, null, raw.length) : compression.encode(raw,
+				encoding);
+			results.attach(key, body);
+			results.encoded(raw.length);
+		}
+
+		if (body.encoding != null) {
+			response.setHeader("Content-Encoding", body.encoding);
+		}
+		response.setContentLength(body.bytes.length);
+		response.write(body.bytes);
+		if (compression != null) {
+			compression.record(body.jsonLength, body.bytes.length, body.encoding != null, 0);
+		}
+		return body.bytes.length;
+	}
+
+	/**
+	 * Encodes a complete response
+	 */
+	private static <T> void encode(JsonEncoder json, List<T> choices, Boolean more, String token,
+			BiConsumer<JsonEncoder, T> valueWriter) {
+		try {
+			json.object().key("values").array();
+			for (T choice : choices) {
+				valueWriter.accept(json, choice);
+			}
+			json.endArray().key("more").value(more);
+			json.entry("token", token);
+			json.endObject();
+		} catch (JSONException e) {
+			throw new RuntimeException("Could not write Json response", e);
+		}
+	}
+
+	/**
+	 * Sets the content type and opens the stream the Json of the response is written into, which compresses it if
+	 * {@link ResponseCompression} is installed and the client accepts one of its content codings
+	 */
+	private static OutputStream open(Request request, WebResponse response) {
+		response.setContentType(CONTENT_TYPE);
+		ResponseCompression compression = ResponseCompression.get();
+		if (compression == null) {
+			return response.getOutputStream();
+		}
+		return new CompressingOutputStream(response, compression, compression.negotiate(request, response));
+	}
+
+	/**
+	 * Writes out the Json and completes the stream opened by {@link #open(Request, WebResponse)}
+	 *
+	 * @return number of bytes written to the response
+	 */
+	private static long finish(JsonEncoder json, OutputStream out) {
+		flush(json);
+		if (out instanceof CompressingOutputStream) {
+			try {
+				((CompressingOutputStream) out).finish();
+			} catch (IOException e) {
+				throw new RuntimeException("Could not write Json to servlet response", e);
+			}
+			return ((CompressingOutputStream) out).getByteCount();
+		}
+		return json.getByteCount();
+	}
+
+	/**
+	 * Runs the query with its cancellation signal bound to the thread
+	 */
+	private static <T> void run(ChoiceProvider<T> provider, Query query, QueryCancellation cancellation,
+			ChoiceSink<T> sink, Probe probe) {
+		QueryCancellation previous = cancellation.bind();
+		long start = probe.time();
+		boolean completed = false;
+		try {
+			provider.query(query.term, query.page, query.token, sink);
+			completed = true;
+		} finally {
+			QueryCancellation.restore(previous);
+			if (completed) {
+				long nanos = probe.time() - start;
+				if (sink instanceof EncodingSink) {
+					// choices streamed into the response are encoded while the provider runs
+					nanos -= ((EncodingSink<T>) sink).encodeNanos;
+				} else if (sink instanceof Outcome) {
+					synchronized (sink) {
+						nanos -= ((Outcome<T>) sink).encodeNanos;
+					}
+				}
+				probe.query(nanos);
+			} else if (!cancellation.isCancelled()) {
+				probe.count(Select25Metrics.Counter.FAILED);
+			}
+		}
+	}
+
+	private static void flush(JsonEncoder json) {
+		try {
+			json.flush();
+		} catch (UncheckedIOException e) {
+			throw new RuntimeException("Could not write Json to servlet response", e);
+		}
+	}
+
+	/**
+	 * @param request
+	 * 	request
+	 * @return ids of the selected values whose labels the request asks for, or {@code null} if it is a query. The ids
+	 * 	are sent by the client and must be checked before they are resolved, see
+	 * 	{@link ChoiceProvider#isLabelLookupAllowed()}
+	 */
+	static String[] labelIds(Request request) {
+		List<StringValue> values = request.getRequestParameters().getParameterValues(LABEL_PARAMETER);
+		if (values == null || values.isEmpty()) {
+			return null;
+		}
+		String[] ids = new String[values.size()];
+		for (int i = 0; i < ids.length; i++) {
+			ids[i] = values.get(i).toString("");
+		}
+		return ids;
+	}
+
+	/**
+	 * Writes the choices of selected values whose labels the client fetches, see
+	 * {@link MultiSettings#setEagerLabels(Integer)}. The response has the form of a query response.
+	 *
+	 * @param choices
+	 * 	choices of the requested ids
+	 * @param request
+	 * 	label request
+	 * @param response
+	 * 	response the Json is written into
+	 * @param valueWriter
+	 * 	writes a single choice into the encoder
+	 */
+	static <T> void writeLabels(Collection<T> choices, Request request, WebResponse response,
+			BiConsumer<JsonEncoder, T> valueWriter) {
+		OutputStream out = open(request, response);
+		JsonEncoder json = JsonEncoder.acquire(out);
+		try {
+			encode(json, new ArrayList<T>(choices), Boolean.FALSE, null, valueWriter);
+			finish(json, out);
+		} finally {
+			json.release();
+		}
+	}
+
+	/**
+	 * Writes a choice as a Json object using the provider's {@link ChoiceProvider#toJson(Object, JsonEncoder)}
+	 */
+	static <T> BiConsumer<JsonEncoder, T> valueWriter(ChoiceProvider<T> provider) {
+		return (json, choice) -> {
+			json.object();
+			provider.toJson(choice, json);
+			json.endObject();
+		};
+	}
+
+	/**
+	 * Query parameters, read on the container thread
+	 */
+	private static final class Query {
+		private final String term;
+		private final int page;
+		private final String token;
+
+		Query(IRequestParameters params) {
+			this(params.getParameterValue("term").toOptionalString(), params.getParameterValue("page").toInt(1),
+				params.getParameterValue("token").toOptionalString());
+		}
+
+		Query(String term, int page, String token) {
+			this.term = term;
+			this.page = page;
+			this.token = token;
+		}
+	}
+
+	/**
+	 * Sink that can write the response from results of the {@link QueryCache}, offered by
+	 * {@link CachingChoiceProvider} before it replays them
+	 */
+	interface CachedResultsSink<T> extends ChoiceSink<T> {
+
+		/**
+		 * @param results
+		 * 	cached results of the query
+		 * @return {@code true} if the sink writes the response from the results and they need not be replayed
+		 */
+		boolean offer(QueryCache.Results results);
+	}
+
+	/**
+	 * Sink that encodes each choice into the query response as soon as the provider produces it
+	 */
+	private static class EncodingSink<T> implements CachedResultsSink<T> {
+		private final Request request;
+		private final WebResponse response;
+		private final BiConsumer<JsonEncoder, T> valueWriter;
+		private final Class<?> writerKey;
+		private final Probe probe;
+		private OutputStream out;
+		private JsonEncoder json;
+		private Boolean more;
+		private String token;
+		private boolean written;
+		private int results;
+		private long bytes;
+		private long encodeNanos;
+
+		EncodingSink(Request request, WebResponse response, BiConsumer<JsonEncoder, T> valueWriter,
+				Class<?> writerKey, Probe probe) {
+			this.request = request;
+			this.response = response;
+			this.valueWriter = valueWriter;
+			this.writerKey = writerKey;
+			this.probe = probe;
+		}
+
+		private JsonEncoder json() {
+			if (json == null) {
+				out = open(request, response);
+				json = JsonEncoder.acquire(out);
+				json.object().key("values").array();
+			}
+			return json;
+		}
+
+		@Override
+		public void accept(T choice) {
+			long start = probe.time();
+			valueWriter.accept(json(), choice);
+			encodeNanos += probe.time() - start;
+			results++;
+		}
+
+		@Override
+		public void setHasMore(Boolean more) {
+			this.more = more;
+		}
+
+		@Override
+		public void setNextToken(String token) {
+			this.token = token;
+		}
+
+		@Override
+		public boolean offer(QueryCache.Results results) {
+			if (json != null || written) {
+				return false;
+			}
+			long start = probe.time();
+			bytes = writeCached(results, request, response, valueWriter, writerKey);
+			encodeNanos += probe.time() - start;
+			this.results = results.getChoices().size();
+			written = true;
+			return true;
+		}
+
+		void finish() {
+			if (!written) {
+				long start = probe.time();
+				try {
+					json().endArray().key("more").value(more);
+					json.entry("token", token);
+					json.endObject();
+				} catch (JSONException e) {
+					throw new RuntimeException("Could not write Json response", e);
+				}
+				bytes = QueryHandler.finish(json, out);
+				encodeNanos += probe.time() - start;
+			}
+			probe.response(encodeNanos, results, bytes);
+		}
+
+		/**
+		 * Ends the response of a query that failed. As long as the choices encoded so far are buffered they are dropped
+		 * and the failure is left to become an error response. Once part of the response has been written it can no
+		 * longer be taken back, the Json is closed with {@code "error":true} instead, which the client treats as a
+		 * failed query.
+		 *
+		 * @return {@code true} if the response was ended with an error, {@code false} if nothing was written
+		 */
+		boolean fail() {
+			if (json == null || written || json.getFlushedByteCount() == 0) {
+				return false;
+			}
+			try {
+				json.unwind(1).key("error").value(true).endObject();
+			} catch (JSONException e) {
+				throw new RuntimeException("Could not write Json response", e);
+			}
+			bytes = QueryHandler.finish(json, out);
+			return true;
+		}
+
+		/**
+		 * Returns the encoder to the pool
+		 */
+		void release() {
+			if (json != null) {
+				json.release();
+			}
+		}
+	}
+
+	/**
+	 * Receives the choices of a query that runs on the {@link QueryExecutor}. Once the query completes or expires the
+	 * outcome is sealed and anything the provider produces afterwards is ignored.
+	 * <p>
+	 * An outcome given a value writer encodes each choice into a buffer as soon as the provider produces it, so the
+	 * choices themselves are not held; only the Json of the page is, until the request thread writes it out. The Json
+	 * holds complete choices at any time, so a query cut off by its deadline is answered with the ones encoded so far.
+	 * An outcome without a value writer collects the choices, for callers that have to encode them on the request
+	 * thread.
+	 */
+	static final class Outcome<T> implements CachedResultsSink<T> {
+		private final QueryExecutor.OnDeadline onDeadline;
+		private final Probe probe;
+		/** encodes a choice on the executor thread, {@code null} to collect the choices instead */
+		private final BiConsumer<JsonEncoder, T> valueWriter;
+		private final List<T> choices;
+		private ByteArrayOutputStream buffer;
+		private JsonEncoder json;
+		private int results;
+		private long encodeNanos;
+		private Boolean more;
+		private String token;
+		private boolean sealed;
+		private boolean expired;
+		private boolean rejected;
+		private Throwable failure;
+		private QueryCache.Results cached;
+
+		Outcome(QueryExecutor.OnDeadline onDeadline, Probe probe, BiConsumer<JsonEncoder, T> valueWriter) {
+			this.onDeadline = onDeadline;
+			this.probe = probe;
+			this.valueWriter = valueWriter;
+			this.choices = valueWriter == null ? new ArrayList<T>() : null;
+		}
+
+		@Override
+		public synchronized void accept(T choice) {
+			if (sealed) {
+				return;
+			}
+			results++;
+			if (valueWriter == null) {
+				choices.add(choice);
+				return;
+			}
+			long start = probe.time();
+			valueWriter.accept(json(), choice);
+			encodeNanos += probe.time() - start;
+		}
+
+		private JsonEncoder json() {
+			if (json == null) {
+				buffer = new ByteArrayOutputStream(1024);
+				json = JsonEncoder.acquire(buffer);
+				json.object().key("values").array();
+			}
+			return json;
+		}
+
+		@Override
+		public synchronized void setHasMore(Boolean more) {
+			if (!sealed) {
+				this.more = more;
+			}
+		}
+
+		@Override
+		public synchronized void setNextToken(String token) {
+			if (!sealed) {
+				this.token = token;
+			}
+		}
+
+		@Override
+		public synchronized boolean offer(QueryCache.Results results) {
+			if (sealed || valueWriter == null || this.results > 0) {
+				return false;
+			}
+			// cached results are a complete page, the response is written from them even if the deadline passes
+			cached = results;
+			return true;
+		}
+
+		synchronized void complete(Throwable failure) {
+			if (!sealed) {
+				sealed = true;
+				this.failure = failure;
+			}
+		}
+
+		synchronized void expire() {
+			if (!sealed) {
+				sealed = true;
+				expired = true;
+				probe.count(Select25Metrics.Counter.EXPIRED);
+			}
+		}
+
+		synchronized void reject() {
+			sealed = true;
+			rejected = true;
+			probe.count(Select25Metrics.Counter.REJECTED);
+		}
+
+		/**
+		 * Ends the Json encoded so far, a query cut off by its deadline may have produced only part of the page
+		 *
+		 * @return Json of the response
+		 */
+		private byte[] toJson() {
+			long start = probe.time();
+			try {
+				json().endArray().key("more").value(expired ? Boolean.TRUE : more);
+				json.entry("token", expired ? null : token);
+				json.endObject();
+				json.flush();
+			} catch (JSONException e) {
+				throw new RuntimeException("Could not write Json response", e);
+			} finally {
+				json.release();
+				json = null;
+			}
+			encodeNanos += probe.time() - start;
+			return buffer.toByteArray();
+		}
+
+		/**
+		 * Returns the encoder of an outcome that is not written to the pool
+		 */
+		synchronized void release() {
+			if (json != null) {
+				json.release();
+				json = null;
+			}
+		}
+	}
+
+	/**
+	 * Takes the measurements of a query for the installed {@link Select25Metrics}. Nothing is measured if the metrics
+	 * are disabled.
+	 */
+	static final class Probe {
+		private final Select25Metrics metrics;
+		private final Class<?> component;
+		private final Class<?> provider;
+		private final boolean enabled;
+
+		Probe(Select25Metrics metrics, Class<?> component, ChoiceProvider<?> provider) {
+			this.metrics = metrics;
+			this.component = component;
+			this.provider = provider.getMetricsClass();
+			this.enabled = metrics.isEnabled();
+		}
+
+		/**
+		 * @return current time in nanoseconds, {@code 0} if nothing is measured
+		 */
+		long time() {
+			return enabled ? System.nanoTime() : 0;
+		}
+
+		void query(long nanos) {
+			if (enabled) {
+				metrics.record(Select25Metrics.Timer.QUERY, component, provider, nanos);
+			}
+		}
+
+		void response(long nanos, int results, long bytes) {
+			if (enabled) {
+				metrics.record(Select25Metrics.Timer.SERIALIZATION, component, provider, nanos);
+				metrics.record(Select25Metrics.Histogram.RESULTS, component, provider, results);
+				metrics.record(Select25Metrics.Histogram.RESPONSE_BYTES, component, provider, bytes);
+			}
+		}
+
+		void count(Select25Metrics.Counter counter) {
+			if (enabled) {
+				metrics.increment(counter, component, provider);
+			}
+		}
+	}
+}
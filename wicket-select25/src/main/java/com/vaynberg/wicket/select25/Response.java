@@ -27,6 +27,7 @@ public class Response<T> implements Iterable<T> {
 
     private List<T> results = new ArrayList<T>();
     private Boolean hasMore;
+    private String nextToken;
 
     public Response() {}
 
@@ -67,6 +68,49 @@ public class Response<T> implements Iterable<T> {
         return this;
     }
 
+    /**
+     * @return continuation token of the page after this one
+     */
+    public String getNextToken() {
+        return nextToken;
+    }
+
+    /**
+     * Sets an opaque continuation token that identifies where the page after this one starts, such as the sort key
+     * of the last choice. Select2 sends the token back when it requests the next page, which is then passed to
+     * {@link ChoiceProvider#query(String, int, String, Response)}, so providers can use keyset pagination instead of
+     * skipping {@code page * pageSize} rows.
+     *
+     * @param token continuation token
+     * @return {@code this} for chaining
+     */
+    public Response<T> setNextToken(String token) {
+        this.nextToken = token;
+        return this;
+    }
+
+    /**
+     * @return a sink that adds choices, the {@code more} flag and the continuation token to this response
+     */
+    public ChoiceSink<T> asSink() {
+        return new ChoiceSink<T>() {
+            @Override
+            public void accept(T choice) {
+                add(choice);
+            }
+
+            @Override
+            public void setHasMore(Boolean more) {
+                Response.this.setHasMore(more);
+            }
+
+            @Override
+            public void setNextToken(String token) {
+                Response.this.setNextToken(token);
+            }
+        };
+    }
+
     /**
      * Adds choices to the collection
      *
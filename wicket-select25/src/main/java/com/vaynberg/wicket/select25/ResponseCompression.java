@@ -0,0 +1,350 @@
+/*
+ * Copyright 2012 Igor Vaynberg
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this work except in compliance with
+ * the License. You may obtain a copy of the License in the LICENSE file, or at:
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package com.vaynberg.wicket.select25;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
+
+import org.apache.wicket.Application;
+import org.apache.wicket.MetaDataKey;
+import org.apache.wicket.request.Request;
+import org.apache.wicket.request.http.WebRequest;
+import org.apache.wicket.request.http.WebResponse;
+import org.apache.wicket.util.lang.Args;
+
+/**
+ * Compression of query responses negotiated with the {@code Accept-Encoding} request header. Responses whose Json
+ * stays below the threshold are sent as they are; larger ones are compressed while they are streamed, using the first
+ * of the configured content codings the client accepts. The compressed bytes of responses served from the
+ * {@link QueryCache} are kept with the cached results, so the same results are compressed only once.
+ * <p>
+ * Compression is enabled by installing an instance in the application:
+ * <pre>
+ * ResponseCompression.set(this, new ResponseCompression());
+ * </pre>
+ * <p>
+ * The instance counts the responses it has seen, the bytes of their Json, the bytes sent on the wire and the CPU time
+ * spent compressing.
+ *
+ * @author igor
+ */
+public class ResponseCompression {
+
+    private static final MetaDataKey<ResponseCompression> KEY = new MetaDataKey<ResponseCompression>() {};
+
+    public static final String GZIP = "gzip";
+    public static final String DEFLATE = "deflate";
+
+    private static final ThreadMXBean THREADS = ManagementFactory.getThreadMXBean();
+
+    private final int threshold;
+    private final int level;
+    private final List<String> encodings;
+
+    private final LongAdder responses = new LongAdder();
+    private final LongAdder compressedResponses = new LongAdder();
+    private final LongAdder jsonBytes = new LongAdder();
+    private final LongAdder wireBytes = new LongAdder();
+    private final LongAdder compressionNanos = new LongAdder();
+
+    /**
+     * Creates a compression that gzips or deflates responses larger than 1KB at the default compression level
+     */
+    public ResponseCompression() {
+        this(1024, Deflater.DEFAULT_COMPRESSION, GZIP, DEFLATE);
+    }
+
+    /**
+     * Constructor
+     *
+     * @param threshold size of the Json in bytes from which responses are compressed
+     * @param level     deflate compression level, {@code 1} to {@code 9} or {@link Deflater#DEFAULT_COMPRESSION}
+     * @param encodings supported content codings, {@value #GZIP} and {@value #DEFLATE}, in order of preference
+     */
+    public ResponseCompression(int threshold, int level, String... encodings) {
+        Args.withinRange(0, Integer.MAX_VALUE, threshold, "threshold");
+        if (level != Deflater.DEFAULT_COMPRESSION) {
+            Args.withinRange(Deflater.BEST_SPEED, Deflater.BEST_COMPRESSION, level, "level");
+        }
+        for (String encoding : encodings) {
+            if (!GZIP.equals(encoding) && !DEFLATE.equals(encoding)) {
+                throw new IllegalArgumentException("Unsupported content coding: " + encoding);
+            }
+        }
+        this.threshold = threshold;
+        this.level = level;
+        this.encodings = Arrays.asList(encodings.clone());
+    }
+
+    /**
+     * @return compression installed in the current application, or {@code null} if responses are not compressed
+     */
+    public static ResponseCompression get() {
+        return get(Application.get());
+    }
+
+    /**
+     * @param application application
+     * @return compression installed in the application, or {@code null} if responses are not compressed
+     */
+    public static ResponseCompression get(Application application) {
+        return application.getMetaData(KEY);
+    }
+
+    /**
+     * Installs the compression of query responses in the application
+     *
+     * @param application application
+     * @param compression compression, or {@code null} to stop compressing responses
+     */
+    public static void set(Application application, ResponseCompression compression) {
+        application.setMetaData(KEY, compression);
+    }
+
+    /**
+     * Selects the content coding of the response and tells caches that the response varies by the
+     * {@code Accept-Encoding} header
+     *
+     * @param request  query request
+     * @param response query response
+     * @return content coding or {@code null} if the client accepts none of the supported ones
+     */
+    String negotiate(Request request, WebResponse response) {
+        response.addHeader("Vary", "Accept-Encoding");
+        return negotiate(request);
+    }
+
+    /**
+     * @param request query request
+     * @return content coding or {@code null} if the client accepts none of the supported ones
+     */
+    String negotiate(Request request) {
+        String header = request instanceof WebRequest ? ((WebRequest) request).getHeader("Accept-Encoding") : null;
+        return negotiate(header, encodings);
+    }
+
+    /**
+     * Selects the first of the content codings that the {@code Accept-Encoding} header accepts
+     *
+     * @param header    value of the {@code Accept-Encoding} header, or {@code null}
+     * @param encodings supported content codings in order of preference
+     * @return content coding or {@code null} if the header accepts none of the supported ones
+     */
+    static String negotiate(String header, List<String> encodings) {
+        if (header == null) {
+            return null;
+        }
+
+        Set<String> refused = new HashSet<String>();
+        int best = Integer.MAX_VALUE;
+        boolean any = false;
+        for (String part : header.split(",")) {
+            String[] tokens = part.split(";");
+            String coding = tokens[0].trim().toLowerCase(Locale.ROOT);
+            if (quality(tokens) <= 0) {
+                refused.add(coding);
+            } else if ("*".equals(coding)) {
+                any = true;
+            } else if (encodings.contains(coding)) {
+                best = Math.min(best, encodings.indexOf(coding));
+            }
+        }
+
+        if (best < Integer.MAX_VALUE) {
+            return encodings.get(best);
+        }
+        if (any) {
+            for (String encoding : encodings) {
+                if (!refused.contains(encoding)) {
+                    return encoding;
+                }
+            }
+        }
+        return null;
+    }
+
+    private static double quality(String[] tokens) {
+        for (int i = 1; i < tokens.length; i++) {
+            String token = tokens[i].trim();
+            if (token.startsWith("q=")) {
+                try {
+                    return Double.parseDouble(token.substring(2));
+                } catch (NumberFormatException e) {
+                    return 0;
+                }
+            }
+        }
+        return 1;
+    }
+
+    /**
+     * @param out      stream receiving the compressed bytes
+     * @param encoding content coding
+     * @return stream that compresses what is written into it; {@link DeflaterOutputStream#finish()} completes the
+     * compressed data and releases the deflater without closing {@code out}
+     */
+    DeflaterOutputStream compress(OutputStream out, String encoding) throws IOException {
+        if (GZIP.equals(encoding)) {
+            return new GZIPOutputStream(out, 8192) {
+                {
+                    def.setLevel(level);
+                }
+
+                @Override
+                public void finish() throws IOException {
+                    super.finish();
+                    def.end();
+                }
+            };
+        }
+        return new DeflaterOutputStream(out, new Deflater(level), 8192) {
+            @Override
+            public void finish() throws IOException {
+                super.finish();
+                def.end();
+            }
+        };
+    }
+
+    /**
+     * Compresses a complete response
+     *
+     * @param json     Json of the response
+     * @param encoding negotiated content coding, or {@code null}
+     * @return encoded response
+     */
+    Encoded encode(byte[] json, String encoding) {
+        if (encoding == null || json.length < threshold) {
+            return new Encoded(json, null, json.length);
+        }
+        long start = cpuTime();
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(json.length / 4 + 64);
+        try {
+            DeflaterOutputStream out = compress(bytes, encoding);
+            out.write(json);
+            out.finish();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        compressionNanos.add(cpuTime() - start);
+        return new Encoded(bytes.toByteArray(), encoding, json.length);
+    }
+
+    /**
+     * Records a response
+     *
+     * @param json       size of the Json in bytes
+     * @param wire       size of the body sent, in bytes
+     * @param compressed {@code true} if the response was compressed
+     * @param cpuNanos   CPU time spent compressing, in nanoseconds
+     */
+    void record(long json, long wire, boolean compressed, long cpuNanos) {
+        responses.increment();
+        if (compressed) {
+            compressedResponses.increment();
+        }
+        jsonBytes.add(json);
+        wireBytes.add(wire);
+        compressionNanos.add(cpuNanos);
+    }
+
+    /**
+     * @return CPU time of the current thread in nanoseconds, or the wall clock time if the JVM does not measure it
+     */
+    static long cpuTime() {
+        return THREADS.isCurrentThreadCpuTimeSupported() ? THREADS.getCurrentThreadCpuTime() : System.nanoTime();
+    }
+
+    public int getThreshold() {
+        return threshold;
+    }
+
+    public int getLevel() {
+        return level;
+    }
+
+    public List<String> getEncodings() {
+        return encodings;
+    }
+
+    /**
+     * @return number of query responses written
+     */
+    public long getResponseCount() {
+        return responses.sum();
+    }
+
+    /**
+     * @return number of query responses that were sent compressed
+     */
+    public long getCompressedCount() {
+        return compressedResponses.sum();
+    }
+
+    /**
+     * @return combined size of the Json of all responses, in bytes
+     */
+    public long getJsonBytes() {
+        return jsonBytes.sum();
+    }
+
+    /**
+     * @return combined size of all response bodies as sent on the wire, in bytes
+     */
+    public long getWireBytes() {
+        return wireBytes.sum();
+    }
+
+    /**
+     * @return CPU time spent compressing responses, in nanoseconds
+     */
+    public long getCompressionNanos() {
+        return compressionNanos.sum();
+    }
+
+    /**
+     * @return average CPU time spent compressing a response, in nanoseconds, or {@code 0} if there were no responses
+     */
+    public double getCompressionNanosPerResponse() {
+        long count = responses.sum();
+        return count == 0 ? 0 : (double) compressionNanos.sum() / count;
+    }
+
+    /**
+     * Response body encoded for a content coding, kept with cached results
+     */
+    static final class Encoded {
+        final byte[] bytes;
+        final String encoding;
+        final long jsonLength;
+
+        Encoded(byte[] bytes, String encoding, long jsonLength) {
+            this.bytes = bytes;
+            this.encoding = encoding;
+            this.jsonLength = jsonLength;
+        }
+    }
+}
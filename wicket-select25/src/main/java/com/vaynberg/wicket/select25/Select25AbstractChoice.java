@@ -12,31 +12,41 @@
  */
 package com.vaynberg.wicket.select25;
 
-import java.io.IOException;
-import java.io.OutputStreamWriter;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
 
 import org.apache.wicket.IRequestListener;
+import org.apache.wicket.MarkupContainer;
 import org.apache.wicket.ajax.AjaxRequestTarget;
+import org.apache.wicket.core.request.handler.IPartialPageRequestHandler;
 import org.apache.wicket.event.IEvent;
 import org.apache.wicket.markup.ComponentTag;
 import org.apache.wicket.markup.head.CssHeaderItem;
+import org.apache.wicket.markup.head.HeaderItem;
 import org.apache.wicket.markup.head.IHeaderResponse;
 import org.apache.wicket.markup.head.JavaScriptHeaderItem;
+import org.apache.wicket.markup.head.OnDomReadyHeaderItem;
+import org.apache.wicket.markup.head.PriorityHeaderItem;
+import org.apache.wicket.markup.html.form.Form;
 import org.apache.wicket.markup.html.form.FormComponent;
 import org.apache.wicket.model.IModel;
 import org.apache.wicket.model.StringResourceModel;
-import org.apache.wicket.request.IRequestParameters;
 import org.apache.wicket.request.Request;
 import org.apache.wicket.request.http.WebResponse;
-import org.apache.wicket.request.resource.CssResourceReference;
-import org.apache.wicket.request.resource.JavaScriptResourceReference;
+import org.apache.wicket.request.mapper.parameter.PageParameters;
 import org.apache.wicket.request.resource.ResourceReference;
 import org.apache.wicket.util.lang.Args;
+import org.apache.wicket.util.visit.IVisit;
 import org.json.JSONException;
+import org.json.JSONObject;
+import org.json.JSONStringer;
 import org.json.JSONWriter;
 
-import com.github.openjson.JSONObject;
 import com.vaynberg.wicket.select25.Dictionary.DictionaryImplementation;
+import com.vaynberg.wicket.select25.json.JsonEncoder;
 
 /**
  * Base class for Select2 components
@@ -50,8 +60,34 @@ import com.vaynberg.wicket.select25.Dictionary.DictionaryImplementation;
  */
 abstract class Select25AbstractChoice<S extends Settings, T, M> extends FormComponent<M> implements IRequestListener {
 
-	private static final ResourceReference JS = new JavaScriptResourceReference(Select25AbstractChoice.class, "res/select25.js");
-	private static final ResourceReference CSS = new CssResourceReference(Select25AbstractChoice.class, "res/select25.css");
+	private static final ResourceReference JS = new PrecompressedResourceReference(Select25AbstractChoice.class, "res/select25.js");
+	private static final ResourceReference CSS = new PrecompressedResourceReference(Select25AbstractChoice.class, "res/select25.css");
+	static final ResourceReference WICKET_JS = new PrecompressedResourceReference(Select25AbstractChoice.class, "res/select25-wicket.js") {
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		public List<HeaderItem> getDependencies() {
+			List<HeaderItem> dependencies = super.getDependencies();
+			dependencies.add(JavaScriptHeaderItem.forReference(JS));
+			return dependencies;
+		}
+	};
+
+	/** whether a component class overrides the deprecated {@link #addValues(JSONWriter, Iterable)} */
+	private static final ClassValue<Boolean> OVERRIDES_ADD_VALUES = new ClassValue<Boolean>() {
+		@Override
+		protected Boolean computeValue(Class<?> type) {
+			for (Class<?> c = type; c != null && c != Select25AbstractChoice.class; c = c.getSuperclass()) {
+				try {
+					c.getDeclaredMethod("addValues", JSONWriter.class, Iterable.class);
+					return true;
+				} catch (NoSuchMethodException e) {
+					// look further up
+				}
+			}
+			return false;
+		}
+	};
 
 	protected final ChoiceProvider<T> provider;
 
@@ -77,12 +113,21 @@ abstract class Select25AbstractChoice<S extends Settings, T, M> extends FormComp
 	public void renderHead(IHeaderResponse response) {
 		super.renderHead(response);
 
-		response.render(JavaScriptHeaderItem.forReference(JS));
+		if (isPreloadResources() && !getRequestCycle().find(IPartialPageRequestHandler.class).isPresent()) {
+			response.render(new PriorityHeaderItem(new PreloadHeaderItem(CSS, "style")));
+			response.render(new PriorityHeaderItem(new PreloadHeaderItem(JS, "script")));
+			response.render(new PriorityHeaderItem(new PreloadHeaderItem(WICKET_JS, "script")));
+		}
+		response.render(JavaScriptHeaderItem.forReference(WICKET_JS));
 		response.render(CssHeaderItem.forReference(CSS));
 
 		S settings = newSettings();
 		settings.setAjax(newAjax());
 
+		if (settings.getDictionary() instanceof DictionaryResource.SharedDictionary) {
+			response.render(((DictionaryResource.SharedDictionary) settings.getDictionary()).getHeaderItem());
+		}
+
 		renderInitializationScript(response, settings);
 	}
 
@@ -97,14 +142,110 @@ abstract class Select25AbstractChoice<S extends Settings, T, M> extends FormComp
 
 	protected abstract void renderInitializationScript(IHeaderResponse response, S settings);
 
+	/**
+	 * Renders the script that creates the javascript control. During a full page render the controls of all components
+	 * are created by a single script that renders the settings they share only once, see
+	 * {@link #isBatchedInitialization()}. If the settings ask for it the first page of results is embedded, see
+	 * {@link Settings#setEmbedFirstPage(boolean)}.
+	 *
+	 * @param response
+	 * 	header response
+	 * @param settings
+	 * 	settings, including the value(s)
+	 * @param factory
+	 * 	name of the select25 function that creates the control
+	 */
+	void renderCreateScript(IHeaderResponse response, S settings, String factory) {
+		String firstPage = null;
+		if (settings.isEmbedFirstPage() && settings.getMinimumCharacters() == 0 && provider.isFirstPageEmbeddable()) {
+			firstPage = QueryHandler.firstPage(provider, this::addValue, settings.getEmbedFirstPageLimit(),
+				getClass());
+		}
+
+		if (isBatchedInitialization() && !getRequestCycle().find(IPartialPageRequestHandler.class).isPresent()) {
+			SettingsTemplate template = SettingsTemplate.get(settings);
+			if (template != null) {
+				InitializationHeaderItem item = InitializationHeaderItem.get(response);
+				item.add(getMarkupId(), template, settings.getAjax().getUrl(), SettingsTemplate.getValue(settings),
+					firstPage);
+				response.render(item);
+				return;
+			}
+		}
+
+		String json = SettingsTemplate.toJson(settings);
+		if (firstPage == null) {
+			response.render(OnDomReadyHeaderItem.forScript("window.select25." + factory + "(document.getElementById('"
+					+ getMarkupId() + "'), " + json + ");"));
+		} else {
+			// the first page is not part of the settings, init() adds it to the ajax options
+			response.render(OnDomReadyHeaderItem.forScript("window.select25.wicket.init([" + json + "],[["
+					+ JSONObject.quote(getMarkupId()) + ",0," + JSONObject.quote(settings.getAjax().getUrl())
+					+ ",null," + firstPage + "]]);"));
+		}
+	}
+
+	/**
+	 * Controls whether the javascript control of this component is created together with all other select25
+	 * components of the page by a single script. Components repainted by an ajax request are always initialized by a
+	 * script of their own.
+	 *
+	 * @return {@code true} to batch the initialization, {@code false} to render a script for this component alone
+	 */
+	protected boolean isBatchedInitialization() {
+		return true;
+	}
+
+	/**
+	 * Controls whether the page tells the browser to preload the select25 scripts and style sheet before any other
+	 * header contribution. The hints are only rendered during a full page render.
+	 *
+	 * @return {@code true} to render {@code <link rel="preload">} hints for the select25 resources
+	 */
+	protected boolean isPreloadResources() {
+		return true;
+	}
+
 
 	protected abstract S newSettings();
 
+	/**
+	 * Creates the settings of a multi-select
+	 *
+	 * @param valuesLabel
+	 * 	label of the selected values
+	 * @param comboboxLabel
+	 * 	label of the combobox
+	 * @return settings
+	 */
+	final MultiSettings newMultiSettings(IModel<String> valuesLabel, IModel<String> comboboxLabel) {
+		MultiSettings settings = new MultiSettings();
+		settings.setValuesLabel(valuesLabel.getObject());
+		settings.setComboboxLabel(comboboxLabel.getObject());
+		addDictionaryToSettings(settings);
+		return settings;
+	}
+
 	protected Settings.Ajax newAjax() {
-		String url = urlForListener(null).toString();
+		// responses of cacheable providers are cached under urls that change with the version of the choices
+		String version = provider.getVersion();
+		PageParameters parameters = version == null ? null : new PageParameters().set(QueryHandler.VERSION_PARAMETER, version);
+
+		final String url;
+		if (provider instanceof SharedChoiceProvider) {
+			// queries are served by the shared resource and never touch this component or its page
+			PageParameters resourceParameters = ChoiceProviderResource.parametersFor((SharedChoiceProvider<T>) provider);
+			if (parameters != null) {
+				resourceParameters.mergeWith(parameters);
+			}
+			url = urlFor(ChoiceProviderResource.REFERENCE, resourceParameters).toString();
+		} else {
+			url = urlForListener(parameters).toString();
+		}
 
 		Settings.Ajax ajax = new Settings.Ajax();
 		ajax.setUrl(url);
+		ajax.setCacheable(version != null);
 
 		return ajax;
 	}
@@ -143,39 +284,22 @@ abstract class Select25AbstractChoice<S extends Settings, T, M> extends FormComp
 
 		// this is the callback that retrieves matching choices used to populate the dropdown
 
+		WebResponse response = (WebResponse) getRequestCycle().getResponse();
 		Request request = getRequestCycle().getRequest();
-		IRequestParameters params = request.getRequestParameters();
-
-		// retrieve choices matching the search query
-
-		String term = params.getParameterValue("term").toOptionalString();
-
-		int page = params.getParameterValue("page").toInt(1);
-
-		Response<T> response = new Response<T>();
-		provider.query(term, page, response);
-
-		// jsonize and write out the choices to the response
 
-		WebResponse webResponse = (WebResponse) getRequestCycle().getResponse();
-		webResponse.setContentType("application/json");
-
-		OutputStreamWriter out = new OutputStreamWriter(webResponse.getOutputStream(), getRequest().getCharset());
-		JSONWriter json = new JSONWriter(out);
-
-		try {
-			json.object().key("values").array();
-			addValues(json, response);
-			json.endArray().key("more").value(response.getHasMore()).endObject();
-		} catch (JSONException e) {
-			throw new RuntimeException("Could not write Json response", e);
+		String[] labelIds = QueryHandler.labelIds(request);
+		if (labelIds != null) {
+			// the client fetches the labels of selected values rendered as bare ids
+			response.disableCaching();
+			QueryHandler.writeLabels(toLabelChoices(labelIds), request, response, this::addValue);
+			return;
 		}
 
-		try {
-			out.flush();
-		} catch (IOException e) {
-			throw new RuntimeException("Could not write Json to servlet response", e);
+		if (QueryHandler.checkNotModified(provider, request, response, getClass())) {
+			return;
 		}
+		// components of the same class write choices alike, see addValue()
+		QueryHandler.respond(provider, false, request, response, this::addValue, getClass());
 	}
 
 
@@ -194,16 +318,145 @@ abstract class Select25AbstractChoice<S extends Settings, T, M> extends FormComp
 
 	@Override
 	protected void onDetach() {
+		ChoiceMemo.forget(provider);
 		provider.detach();
 		super.onDetach();
 	}
 
 	@Override
 	protected boolean getStatelessHint() {
-		return false;
+		// only the listener serving queries of non-shared providers requires a stateful page
+		return provider instanceof SharedChoiceProvider;
 	}
 
 
+	/**
+	 * Parses submitted input into ids
+	 *
+	 * @param input
+	 * 	submitted input, may be empty
+	 * @return ids
+	 */
+	abstract String[] toIds(String input);
+
+	/**
+	 * @return whether submitted ids are converted into choices with the provider, components that do not are left out
+	 * 	of batched conversions
+	 */
+	boolean isConvertingIds() {
+		return true;
+	}
+
+	/**
+	 * Converts submitted ids back into choices with the provider. Ids are converted at most once per request, see
+	 * {@link ChoiceMemo}, conversions by the provider are measured for the installed {@link Select25Metrics}.
+	 * <p>
+	 * If the provider has a {@link ChoiceProvider#getBatchKey() batch key} the first conversion converts the ids
+	 * submitted to all components of the form with providers of the same key, the other components take their choices
+	 * from the result.
+	 *
+	 * @param ids
+	 * 	submitted ids
+	 * @return choices
+	 */
+	Collection<T> toChoices(String[] ids) {
+		ChoiceMemo memo = ChoiceMemo.get();
+		if (memo == null) {
+			return convert(ids);
+		}
+		Object key = provider.getBatchKey();
+		if (key != null) {
+			MarkupContainer scope = getBatchScope();
+			if (memo.batch(provider, scope)) {
+				memo.toChoices(provider, collectBatchIds(scope, key), this::convert);
+			}
+		}
+		return memo.toChoices(provider, ids, this::convert);
+	}
+
+	/**
+	 * @return container whose components are converted together, the root form or the page outside of forms
+	 */
+	private MarkupContainer getBatchScope() {
+		Form<?> form = findParent(Form.class);
+		return form == null ? getPage() : form.getRootForm();
+	}
+
+	/**
+	 * Collects the ids submitted to the components of a container that use providers of the given batch key
+	 */
+	private static String[] collectBatchIds(MarkupContainer scope, Object key) {
+		Set<String> ids = new LinkedHashSet<>();
+		scope.visitChildren(Select25AbstractChoice.class, (Select25AbstractChoice<?, ?, ?> choice, IVisit<Void> visit) -> {
+			if (choice.isConvertingIds() && choice.hasRawInput() && key.equals(choice.provider.getBatchKey()) && choice.isVisibleInHierarchy()
+					&& choice.isEnabledInHierarchy()) {
+				Collections.addAll(ids, choice.toIds(choice.getRawInput()));
+			}
+		});
+		return ids.toArray(new String[ids.size()]);
+	}
+
+	/**
+	 * Looks up the choices of selected values whose labels the client fetches, see
+	 * {@link MultiSettings#setEagerLabels(Integer)}. Only ids the component rendered without their labels are
+	 * resolved, other ids the request names are ignored.
+	 *
+	 * @param ids
+	 * 	ids sent by the client
+	 * @return choices
+	 */
+	Collection<T> toLabelChoices(String[] ids) {
+		// values are rendered with their labels
+		return Collections.emptyList();
+	}
+
+	private Collection<T> convert(String[] ids) {
+		Select25Metrics metrics = Select25Metrics.get(getApplication());
+		if (!metrics.isEnabled()) {
+			return provider.toChoices(ids);
+		}
+		long start = System.nanoTime();
+		Collection<T> choices = provider.toChoices(ids);
+		Class<?> providerClass = provider.getMetricsClass();
+		metrics.record(Select25Metrics.Timer.CONVERSION, getClass(), providerClass, System.nanoTime() - start);
+		metrics.record(Select25Metrics.Histogram.CONVERSION_IDS, getClass(), providerClass, ids.length);
+		return choices;
+	}
+
+	/**
+	 * Writes a single choice into the query response. Responses built from results of the {@link QueryCache} are
+	 * encoded once and reused by all components of the same class, so the Json must only depend on the choice.
+	 *
+	 * @param json
+	 * 	encoder of the query response
+	 * @param choice
+	 * 	choice
+	 * @throws JSONException
+	 */
+	protected void addValue(final JsonEncoder json, final T choice) throws JSONException {
+		if (OVERRIDES_ADD_VALUES.get(getClass())) {
+			// subclasses written against the deprecated method keep writing the values of their responses
+			JSONStringer writer = new JSONStringer();
+			writer.array();
+			addValues(writer, Collections.singletonList(choice));
+			writer.endArray();
+			String values = writer.toString();
+			if (values.length() > 2) {
+				json.raw(values.substring(1, values.length() - 1));
+			}
+			return;
+		}
+		json.object();
+		provider.toJson(choice, json);
+		json.endObject();
+	}
+
+	/**
+	 * @deprecated query responses are streamed with a {@link JsonEncoder}, override
+	 *             {@link #addValue(JsonEncoder, Object)} instead. Overrides are still called by the default
+	 *             {@link #addValue(JsonEncoder, Object)}, one choice at a time, at the cost of an intermediate string.
+	 */
+	@Deprecated
 	protected void addValues(final JSONWriter json, final Iterable<T> response) throws JSONException {
 		for (T item : response) {
 			json.object();
@@ -212,8 +465,22 @@ abstract class Select25AbstractChoice<S extends Settings, T, M> extends FormComp
 		}
 	}
 
+	/**
+	 * Sets the dictionary of localized strings used by select25. The dictionary is built from the strings the component
+	 * resolves with {@link #createDictionary()}; if they are the same as those of the shared dictionary of the
+	 * component's locale, style and variation served by {@link DictionaryResource}, the component refers to the shared
+	 * dictionary instead of inlining its own. Components whose {@code select25.*} strings are overridden in the
+	 * properties of the component or its parents therefore keep their own dictionary. The comparison is made once for
+	 * the classes of the component and its parents, locale, style and variation and remembered by
+	 * {@link DictionaryResource}; components that override strings by other means, e.g. depending on their id, must
+	 * override this method.
+	 *
+	 * @param settings
+	 * 	settings
+	 */
 	protected void addDictionaryToSettings(final Settings settings) {
-		settings.setDictionary(createDictionary());
+		DictionaryResource.SharedDictionary shared = DictionaryResource.forComponent(this, this::createDictionary);
+		settings.setDictionary(shared != null ? shared : createDictionary());
 	}
 
 	/**
@@ -235,45 +502,12 @@ abstract class Select25AbstractChoice<S extends Settings, T, M> extends FormComp
 	 * @author matthewgeer
 	 */
 	protected DictionaryImplementation createDictionary() {
-		// @formatter:off
-		return new DictionaryImplementation(
-			"{" +
-				"valueAdded: function(itemLabel) {" +
-					"return " + JSONObject.quote(new StringResourceModel("select25.valueAdded", this)
-							.setParameters("$value$").getObject()) + ".replace('$value$', itemLabel);" +
-				"}, " +
-				"noSearchResults: function() {" +
-					"return " + JSONObject.quote(new StringResourceModel("select25.noSearchResults", this).getObject()) + ";" +
-				"}, " +
-				"searchResultsLoading: function() {" +
-					"return " + JSONObject.quote(new StringResourceModel("select25.searchResultsLoading", this).getObject()) + ";" +
-				"}, " +
-				"removeButtonTitle: function() {" +
-					"return " + JSONObject.quote(new StringResourceModel("select25.removeButtonTitle", this).getObject()) + ";" +
-				"}, " +
-				"clearButtonTitle: function() {" +
-					"return " + JSONObject.quote(new StringResourceModel("select25.clearButtonTitle", this).getObject()) + ";" +
-				"}, " +
-				"minimumCharactersMessage: function(len, min) {" +
-					"var delta = min - len;" +
-					"if(delta == 1) { " +
-						"return " + JSONObject.quote(new StringResourceModel("select25.minimumCharactersMessage1", this).getObject()) + ";" +
-					"} else {" +
-						"return " + JSONObject.quote(new StringResourceModel("select25.minimumCharactersMessageX", this)
-								.setParameters("$delta$").getObject()) + ".replace('$delta$', delta);" +
-					"}" +
-				"}, " +
-				"multiSelectInstructions: function() {" +
-					"return " + JSONObject.quote(new StringResourceModel("select25.multiSelectInstructions", this).getObject()) + ";" +
-				"}, " +
-				"expandButtonTitle: function () {" +
-					"return " + JSONObject.quote(new StringResourceModel("select25.expandButtonTitle", this).getObject()) + ";" +
-				"}, " +
-				"maximumValuesSelectedMessage: function () {" +
-					"return " + JSONObject.quote(new StringResourceModel("select25.maximumValuesSelectedMessage", this).getObject())+";" +
-				"} " +
-			"}"
-		);
-		// @formatter:on
+		return new DictionaryImplementation(DictionaryResource.toJavaScript((key, parameter) -> {
+			StringResourceModel model = new StringResourceModel(key, this);
+			if (parameter != null) {
+				model.setParameters(parameter);
+			}
+			return model.getObject();
+		}));
 	}
 }
@@ -0,0 +1,61 @@
+/*
+ * Copyright 2012 Igor Vaynberg
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this work except in compliance with
+ * the License. You may obtain a copy of the License in the LICENSE file, or at:
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package com.vaynberg.wicket.select25;
+
+import org.apache.wicket.Application;
+import org.apache.wicket.IInitializer;
+import org.apache.wicket.markup.html.IPackageResourceGuard;
+import org.apache.wicket.markup.html.SecurePackageResourceGuard;
+
+/**
+ * Prepares an application for select25 components when it initializes, before it serves its first request. Wicket
+ * discovers the initializer through {@code META-INF/services/org.apache.wicket.IInitializer}.
+ * <p>
+ * Installs the {@link QueryCancellations} tracker, so that a query superseded by a newer query of its control is
+ * cancelled even if no select25 component has rendered since the application started.
+ * <p>
+ * In deployment mode the minified script is served, which does not refer to the source map of the script; the
+ * initializer denies access to the source map so that it is only served during development.
+ *
+ * @author igor
+ */
+public class Select25Initializer implements IInitializer {
+
+    /** source maps of the select25 scripts */
+    static final String SOURCE_MAPS = "com/vaynberg/wicket/select25/res/*.map";
+
+    @Override
+    public void init(Application application) {
+        QueryCancellations.install(application);
+        if (application.usesDeploymentConfig()) {
+            denySourceMaps(application);
+        }
+    }
+
+    private static void denySourceMaps(Application application) {
+        IPackageResourceGuard guard = application.getResourceSettings().getPackageResourceGuard();
+        if (guard instanceof SecurePackageResourceGuard) {
+            // the last pattern that matches decides, the default patterns accept any *.map
+            ((SecurePackageResourceGuard) guard).addPattern("-" + SOURCE_MAPS);
+        }
+    }
+
+    @Override
+    public void destroy(Application application) {
+    }
+
+    @Override
+    public String toString() {
+        return "select25";
+    }
+}
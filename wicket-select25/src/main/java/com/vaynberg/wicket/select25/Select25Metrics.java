@@ -0,0 +1,154 @@
+/*
+ * Copyright 2012 Igor Vaynberg
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this work except in compliance with
+ * the License. You may obtain a copy of the License in the LICENSE file, or at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package com.vaynberg.wicket.select25;
+
+import org.apache.wicket.Application;
+import org.apache.wicket.MetaDataKey;
+import org.apache.wicket.util.lang.Args;
+
+/**
+ * Receives the metrics of the select25 hot paths: running queries against providers, writing query responses and
+ * converting submitted ids back into choices. Every measurement is tagged with the class of the component, or of
+ * {@link ChoiceProviderResource}, that handled the request and the class of the provider. Caching, coalescing and
+ * shared providers report the class of the provider they delegate to, see {@link ChoiceProvider#getMetricsClass()}.
+ * <p>
+ * Implementations bridge to a metrics library and must be thread-safe, queries that run on the {@link QueryExecutor}
+ * report from its threads. Methods do nothing by default, so implementations only override what they record.
+ * <p>
+ * Metrics are installed per application:
+ * <pre>
+ * Select25Metrics.set(this, new InMemoryMetrics());
+ * </pre>
+ * Applications that install none get {@link #NOOP}, which tells callers not to take measurements at all.
+ *
+ * @author igor
+ * @see InMemoryMetrics
+ */
+public abstract class Select25Metrics {
+
+    private static final MetaDataKey<Select25Metrics> KEY = new MetaDataKey<Select25Metrics>() {};
+
+    /**
+     * Metrics that record nothing, used when the application installs none
+     */
+    public static final Select25Metrics NOOP = new Select25Metrics() {
+        @Override
+        public boolean isEnabled() {
+            return false;
+        }
+    };
+
+    /**
+     * Stages whose duration is measured
+     */
+    public enum Timer {
+        /** {@link ChoiceProvider#query(String, int, String, ChoiceSink)}, without encoding the choices it produces */
+        QUERY,
+        /** encoding a query response into Json and writing it, including compression */
+        SERIALIZATION,
+        /** {@link ChoiceProvider#toChoices(String[])} converting submitted ids back into choices */
+        CONVERSION
+    }
+
+    /**
+     * Events that are counted
+     */
+    public enum Counter {
+        /** revalidated responses of cacheable providers answered with {@code 304 Not Modified} */
+        NOT_MODIFIED,
+        /** queries the {@link QueryExecutor} rejected */
+        REJECTED,
+        /** queries that did not complete within the deadline of the {@link QueryExecutor} */
+        EXPIRED,
+        /** queries that failed with an exception */
+        FAILED
+    }
+
+    /**
+     * Values whose distribution is recorded
+     */
+    public enum Histogram {
+        /** number of choices in a query response */
+        RESULTS,
+        /** number of bytes of a query response as written to the client */
+        RESPONSE_BYTES,
+        /** number of ids converted by a call to {@link ChoiceProvider#toChoices(String[])} */
+        CONVERSION_IDS
+    }
+
+    /**
+     * @return metrics of the current application
+     */
+    public static Select25Metrics get() {
+        return Application.exists() ? get(Application.get()) : NOOP;
+    }
+
+    /**
+     * @param application application
+     * @return metrics of the application, {@link #NOOP} if it installed none
+     */
+    public static Select25Metrics get(Application application) {
+        Select25Metrics metrics = application.getMetaData(KEY);
+        return metrics == null ? NOOP : metrics;
+    }
+
+    /**
+     * Installs the metrics of an application
+     *
+     * @param application application
+     * @param metrics     metrics, or {@code null} to stop recording
+     */
+    public static void set(Application application, Select25Metrics metrics) {
+        Args.notNull(application, "application");
+        application.setMetaData(KEY, metrics);
+    }
+
+    /**
+     * @return {@code false} if nothing is recorded, in which case callers do not take measurements
+     */
+    public boolean isEnabled() {
+        return true;
+    }
+
+    /**
+     * Records the duration of a stage
+     *
+     * @param timer     stage
+     * @param component class of the component or resource that handled the request
+     * @param provider  class of the provider
+     * @param nanos     duration in nanoseconds
+     */
+    public void record(Timer timer, Class<?> component, Class<?> provider, long nanos) {
+    }
+
+    /**
+     * Counts an event
+     *
+     * @param counter   event
+     * @param component class of the component or resource that handled the request
+     * @param provider  class of the provider
+     */
+    public void increment(Counter counter, Class<?> component, Class<?> provider) {
+    }
+
+    /**
+     * Records a value
+     *
+     * @param histogram recorded quantity
+     * @param component class of the component or resource that handled the request
+     * @param provider  class of the provider
+     * @param value     value
+     */
+    public void record(Histogram histogram, Class<?> component, Class<?> provider, long value) {
+    }
+}
@@ -12,15 +12,24 @@
  */
 package com.vaynberg.wicket.select25;
 
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 import org.apache.wicket.markup.head.IHeaderResponse;
-import org.apache.wicket.markup.head.OnDomReadyHeaderItem;
 import org.apache.wicket.markup.html.form.FormComponent;
 import org.apache.wicket.model.IModel;
 import org.apache.wicket.util.string.Strings;
+import org.apache.wicket.util.convert.ConversionException;
+import org.json.JSONArray;
 import org.json.JSONException;
+import org.json.JSONObject;
+import org.json.JSONTokener;
 
 import com.vaynberg.wicket.select25.json.JsonBuilder;
 
@@ -36,6 +45,12 @@ public class Select25MultiChoice<T> extends Select25AbstractChoice<MultiSettings
 	private final IModel<String> valuesLabel;
 	private final IModel<String> comboboxLabel;
 
+	/** ids of the values last rendered, the baseline of submitted deltas, {@code null} unless submitting deltas */
+	private List<String> renderedIds;
+
+	/** ids of the values last rendered without their labels, the only ids whose labels the client may fetch */
+	private Set<String> lazyLabelIds;
+
 	public Select25MultiChoice(String id, IModel<Collection<T>> model, ChoiceProvider<T> provider,IModel<String> valuesLabel,IModel<String> comboboxLabel) {
 		super(id, model, provider);
 		this.valuesLabel=wrap(valuesLabel);
@@ -46,6 +61,15 @@ public class Select25MultiChoice<T> extends Select25AbstractChoice<MultiSettings
 	public void convertInput() {
 
 		String input = getWebRequest().getRequestParameters().getParameterValue(getInputName()).toString();
+		if (renderedIds != null) {
+			Delta delta = Delta.parse(input);
+			if (delta == null) {
+				error(newValidationError(new ConversionException("Malformed delta of selected values: " + input)));
+			} else {
+				setConvertedInput(applyDelta(delta));
+			}
+			return;
+		}
 		var choices=convertInput(input);
 		setConvertedInput(choices);
 	}
@@ -53,15 +77,147 @@ public class Select25MultiChoice<T> extends Select25AbstractChoice<MultiSettings
 
 	private Collection<T> convertInput(String input) {
 
-		if (Strings.isEmpty(input)) {
+		if (renderedIds != null) {
+			Delta delta = Delta.parse(input);
+			return applyDelta(delta == null ? new Delta() : delta);
+		} else if (Strings.isEmpty(input)) {
 			return Collections.emptyList();
 		} else {
-			var values = input.split(",");
-			var choices = provider.toChoices(values);
+			var choices = toChoices(toIds(input));
 			return choices;
 		}
 	}
 
+	@Override
+	String[] toIds(String input) {
+		if (renderedIds != null) {
+			// only ids added since rendering need converting
+			Delta delta = Delta.parse(input);
+			return delta == null ? new String[0] : delta.added.toArray(new String[delta.added.size()]);
+		}
+		return Strings.isEmpty(input) ? new String[0] : input.split(",");
+	}
+
+	/**
+	 * Applies the ids added and removed on the client to the ids last rendered. The values still selected are taken
+	 * from the model, only the added ids, and rendered ids no longer in the model, are converted into choices.
+	 */
+	private Collection<T> applyDelta(Delta delta) {
+		Map<String, Integer> removed = new HashMap<String, Integer>();
+		for (String id : delta.removed) {
+			removed.merge(id, 1, Integer::sum);
+		}
+
+		Map<String, T> current = new HashMap<String, T>();
+		Collection<T> values = getModelObject();
+		if (values != null) {
+			for (T value : values) {
+				String id = provider.toId(value);
+				if (id != null) {
+					current.put(id, value);
+				}
+			}
+		}
+
+		List<T> choices = new ArrayList<T>(renderedIds.size() + delta.added.size());
+		List<String> unknown = new ArrayList<String>(delta.added.size());
+		for (String id : renderedIds) {
+			Integer count = removed.get(id);
+			if (count != null) {
+				if (count == 1) {
+					removed.remove(id);
+				} else {
+					removed.put(id, count - 1);
+				}
+				continue;
+			}
+			T choice = current.get(id);
+			if (choice != null) {
+				choices.add(choice);
+			} else {
+				unknown.add(id);
+			}
+		}
+		unknown.addAll(delta.added);
+		if (!unknown.isEmpty()) {
+			choices.addAll(toChoices(unknown.toArray(new String[unknown.size()])));
+		}
+		return choices;
+	}
+
+	/**
+	 * Controls whether the client submits only the ids added and removed since the component rendered, rather than
+	 * all selected ids, so that submits of large selections stay small and only added ids are converted into choices.
+	 * The ids are submitted as Json, so they may contain commas. Requires a provider whose
+	 * {@link ChoiceProvider#toId(Object)} returns the ids of choices, the ids rendered are kept with the component.
+	 *
+	 * @return {@code true} to submit changes of the selection
+	 */
+	protected boolean isDeltaSubmission() {
+		return false;
+	}
+
+	/**
+	 * @return ids of the choices, or {@code null} if the provider does not return ids
+	 */
+	private List<String> toRenderedIds(Collection<? extends T> choices) {
+		List<String> ids = new ArrayList<String>(choices == null ? 0 : choices.size());
+		if (choices != null) {
+			for (T choice : choices) {
+				String id = provider.toId(choice);
+				if (id == null) {
+					return null;
+				}
+				ids.add(id);
+			}
+		}
+		return ids;
+	}
+
+
+	@Override
+	Collection<T> toLabelChoices(String[] ids) {
+		// ids the client was not shown as bare ids are not converted
+		List<String> lazy = new ArrayList<String>(ids.length);
+		if (lazyLabelIds != null) {
+			for (String id : ids) {
+				if (lazyLabelIds.contains(id)) {
+					lazy.add(id);
+				}
+			}
+		}
+		if (lazy.isEmpty()) {
+			return super.toLabelChoices(ids);
+		}
+
+		Collection<T> values = hasRawInput() ? null : getModelObject();
+		if (values == null || values.isEmpty()) {
+			return toChoices(lazy.toArray(new String[lazy.size()]));
+		}
+
+		// the selected values are at hand, only ids no longer selected are converted
+		Map<String, T> byId = new HashMap<String, T>(values.size() * 4 / 3 + 1);
+		for (T value : values) {
+			String id = provider.toId(value);
+			if (id != null) {
+				byId.put(id, value);
+			}
+		}
+		List<T> choices = new ArrayList<T>(lazy.size());
+		List<String> missing = new ArrayList<String>();
+		for (String id : lazy) {
+			T choice = byId.get(id);
+			if (choice != null) {
+				choices.add(choice);
+			} else {
+				missing.add(id);
+			}
+		}
+		if (!missing.isEmpty()) {
+			choices.addAll(toChoices(missing.toArray(new String[missing.size()])));
+		}
+		return choices;
+	}
 
 	@Override
 	public void updateModel() {
@@ -78,12 +234,33 @@ public class Select25MultiChoice<T> extends Select25AbstractChoice<MultiSettings
 			choices=getModelObject();
 		}
 
+		renderedIds = isDeltaSubmission() ? toRenderedIds(choices) : null;
+		settings.setDeltaValue(renderedIds != null);
+		lazyLabelIds = null;
+
 		if (choices!=null && !choices.isEmpty()) {
 			JsonBuilder writer = new JsonBuilder();
 
+			// values past the eager ones are rendered as bare ids, the client fetches their labels from the component,
+			// or from the shared resource if the provider allows it
+			Integer eager = settings.getEagerLabels();
+			if (provider instanceof SharedChoiceProvider && !provider.isLabelLookupAllowed()) {
+				eager = null;
+			}
+			int index = 0;
+
 			try {
 				writer.array();
 				for (T choice : choices) {
+					String id = eager == null || index++ < eager ? null : provider.toId(choice);
+					if (id != null) {
+						if (lazyLabelIds == null) {
+							lazyLabelIds = new HashSet<String>();
+						}
+						lazyLabelIds.add(id);
+						writer.value(id);
+						continue;
+					}
 					writer.object();
 					provider.toJson(choice, writer);
 					writer.endObject();
@@ -97,17 +274,62 @@ public class Select25MultiChoice<T> extends Select25AbstractChoice<MultiSettings
 			settings.setValues("[]");
 		}
 
-		StringBuilder init = new StringBuilder();
-		init.append("window.select25.createMultiSelect(document.getElementById('" + getMarkupId() + "'), " + settings.toJson() + ");");
-		response.render(OnDomReadyHeaderItem.forScript(init));
+		renderCreateScript(response, settings, "createMultiSelect");
 	}
 
 	@Override
 	protected MultiSettings newSettings() {
-		var settings= new MultiSettings();
-		settings.setValuesLabel(valuesLabel.getObject());
-		settings.setComboboxLabel(comboboxLabel.getObject());
-		addDictionaryToSettings(settings);
-		return settings;
+		return newMultiSettings(valuesLabel, comboboxLabel);
+	}
+
+	/**
+	 * Ids added and removed on the client, submitted as {@code {"+":[ids],"-":[ids]}}
+	 */
+	static final class Delta {
+		final List<String> added = new ArrayList<String>();
+		final List<String> removed = new ArrayList<String>();
+
+		/**
+		 * @return delta, or {@code null} if the input is malformed
+		 */
+		static Delta parse(String input) {
+			Delta delta = new Delta();
+			if (Strings.isEmpty(input)) {
+				// the control did not set its value, nothing changed
+				return delta;
+			}
+			try {
+				JSONTokener tokener = new JSONTokener(input);
+				JSONObject json = new JSONObject(tokener);
+				if (tokener.nextClean() != 0) {
+					// content after the object
+					return null;
+				}
+				if (!addAll(json.opt("+"), delta.added) || !addAll(json.opt("-"), delta.removed)) {
+					return null;
+				}
+			} catch (JSONException e) {
+				return null;
+			}
+			return delta;
+		}
+
+		/**
+		 * @return {@code false} if the ids are not an array
+		 */
+		private static boolean addAll(Object array, List<String> ids) {
+			if (array == null) {
+				return true;
+			}
+			if (!(array instanceof JSONArray)) {
+				return false;
+			}
+			JSONArray values = (JSONArray) array;
+			for (int i = 0; i < values.length(); i++) {
+				// throws for values that are not strings
+				ids.add(values.getString(i));
+			}
+			return true;
+		}
 	}
 }
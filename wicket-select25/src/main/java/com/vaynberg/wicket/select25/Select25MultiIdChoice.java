@@ -0,0 +1,248 @@
+/*
+ * Copyright 2012 Igor Vaynberg
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this work except in compliance with
+ * the License. You may obtain a copy of the License in the LICENSE file, or at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package com.vaynberg.wicket.select25;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.wicket.markup.head.IHeaderResponse;
+import org.apache.wicket.markup.html.form.FormComponent;
+import org.apache.wicket.model.IModel;
+import org.apache.wicket.util.convert.ConversionException;
+import org.apache.wicket.util.lang.Args;
+import org.apache.wicket.util.string.Strings;
+import org.json.JSONException;
+
+import com.vaynberg.wicket.select25.Select25MultiChoice.Delta;
+import com.vaynberg.wicket.select25.json.JsonBuilder;
+
+/**
+ * Multi-select Select2 component whose model holds the ids of the selected choices rather than the choices, for forms
+ * that only store ids. Submits never convert ids into choices: submitted ids are checked with
+ * {@link #validateIds(Collection)}, which by default looks up their labels, and put into the model without
+ * duplicates. The provider only serves queries, the labels of the selected values are looked up with a
+ * {@link ChoiceLabelProvider} when the component renders. Should be attached to a {@code <input type='hidden'/>}
+ * element.
+ * <p>
+ * Selected values are rendered as {@code id} and {@code text} attributes, the provider should write choices the same
+ * way, as {@link TextChoiceProvider} does.
+ *
+ * @param <T>
+ * 	type of choice object of the provider
+ * @author igor
+ */
+public class Select25MultiIdChoice<T> extends Select25AbstractChoice<MultiSettings, T, Collection<String>> {
+
+	private final ChoiceLabelProvider labels;
+	private final IModel<String> valuesLabel;
+	private final IModel<String> comboboxLabel;
+
+	/** ids of the values last rendered, the baseline of submitted deltas, {@code null} unless submitting deltas */
+	private List<String> renderedIds;
+
+	/** labels looked up during the request, so that validated ids are not looked up again to render them */
+	private transient Map<String, String> knownLabels;
+
+	public Select25MultiIdChoice(String id, IModel<Collection<String>> model, ChoiceProvider<T> provider, ChoiceLabelProvider labels, IModel<String> valuesLabel, IModel<String> comboboxLabel) {
+		super(id, model, provider);
+		Args.notNull(labels, "labels");
+		this.labels=labels;
+		this.valuesLabel=wrap(valuesLabel);
+		this.comboboxLabel=wrap(comboboxLabel);
+	}
+
+	@Override
+	public void convertInput() {
+		String input = getWebRequest().getRequestParameters().getParameterValue(getInputName()).toString();
+
+		Collection<String> ids;
+		Collection<String> submitted;
+		if (renderedIds != null) {
+			Delta delta = Delta.parse(input);
+			if (delta == null) {
+				error(newValidationError(new ConversionException("Malformed delta of selected values: " + input)));
+				return;
+			}
+			ids = applyDelta(delta);
+			// the rendered ids were valid, only added ids are checked
+			submitted = delta.added;
+		} else {
+			ids = toSelectedIds(input);
+			submitted = ids;
+		}
+
+		Collection<String> unknown = submitted.isEmpty() ? submitted : validateIds(new LinkedHashSet<String>(submitted));
+		if (!unknown.isEmpty()) {
+			error(newValidationError(new ConversionException("Unknown ids of selected values: " + unknown)));
+			return;
+		}
+		setConvertedInput(new ArrayList<String>(ids));
+	}
+
+	/**
+	 * Checks ids submitted by the client, which may name any id. Ids that fail the check fail the conversion of the
+	 * submitted input, so they never reach the model.
+	 * <p>
+	 * The default implementation looks up the labels of the ids with the {@link ChoiceLabelProvider} and rejects ids
+	 * without a label; the labels are kept to render the values of the request. Override to check the ids more
+	 * cheaply, e.g. against the ids the user may select, or to accept any id.
+	 *
+	 * @param ids
+	 * 	submitted ids, without duplicates; only ids added since rendering if the component submits deltas
+	 * @return ids that do not identify a choice, empty if all ids are valid
+	 */
+	protected Collection<String> validateIds(Collection<String> ids) {
+		Map<String, String> texts = getLabels(ids);
+		List<String> unknown = new ArrayList<String>();
+		for (String id : ids) {
+			if (texts.get(id) == null) {
+				unknown.add(id);
+			}
+		}
+		return unknown;
+	}
+
+	/**
+	 * Controls whether the client submits only the ids added and removed since the component rendered, rather than
+	 * all selected ids, see {@link Select25MultiChoice#isDeltaSubmission()}. The ids are submitted as Json, so they
+	 * may contain commas, and only added ids are validated. The ids rendered are kept with the component.
+	 *
+	 * @return {@code true} to submit changes of the selection
+	 */
+	protected boolean isDeltaSubmission() {
+		return false;
+	}
+
+	/**
+	 * Applies the ids added and removed on the client to the ids last rendered
+	 */
+	private Collection<String> applyDelta(Delta delta) {
+		Set<String> ids = new LinkedHashSet<String>(renderedIds);
+		ids.removeAll(delta.removed);
+		ids.addAll(delta.added);
+		return ids;
+	}
+
+	/**
+	 * @return ids selected by the submitted input, without duplicates and without validating them
+	 */
+	private Collection<String> toSelectedIds(String input) {
+		if (renderedIds != null) {
+			Delta delta = Delta.parse(input);
+			return delta == null ? renderedIds : applyDelta(delta);
+		}
+		return new LinkedHashSet<String>(Arrays.asList(toIds(input)));
+	}
+
+	@Override
+	String[] toIds(String input) {
+		if (renderedIds != null) {
+			Delta delta = Delta.parse(input);
+			return delta == null ? new String[0] : delta.added.toArray(new String[delta.added.size()]);
+		}
+		return Strings.isEmpty(input) ? new String[0] : input.split(",");
+	}
+
+	@Override
+	boolean isConvertingIds() {
+		return false;
+	}
+
+	@Override
+	public void updateModel() {
+		FormComponent.updateCollectionModel(this);
+	}
+
+	@Override
+	protected void renderInitializationScript(IHeaderResponse response, MultiSettings settings) {
+
+		final Collection<String> ids;
+		if (hasRawInput()) {
+			ids = toSelectedIds(getRawInput());
+		} else {
+			ids = getModelObject();
+		}
+
+		List<String> rendered = new ArrayList<String>(ids == null ? 0 : ids.size());
+		if (ids!=null && !ids.isEmpty()) {
+			Map<String, String> texts = getLabels(ids);
+			JsonBuilder writer = new JsonBuilder();
+
+			try {
+				writer.array();
+				for (String id : ids) {
+					String text = texts.get(id);
+					if (text == null) {
+						// the id does not identify a choice
+						continue;
+					}
+					rendered.add(id);
+					writer.object();
+					writer.key("id").value(id).key("text").value(text);
+					writer.endObject();
+				}
+				writer.endArray();
+				settings.setValues(writer.toJson().toString());
+			} catch (JSONException e) {
+				throw new RuntimeException("Error converting model object to Json", e);
+			}
+		} else {
+			settings.setValues("[]");
+		}
+
+		renderedIds = isDeltaSubmission() ? rendered : null;
+		settings.setDeltaValue(renderedIds != null);
+
+		renderCreateScript(response, settings, "createMultiSelect");
+	}
+
+	/**
+	 * Looks up the labels of ids, reusing the labels already looked up during the request
+	 */
+	private Map<String, String> getLabels(Collection<String> ids) {
+		if (knownLabels == null) {
+			knownLabels = new HashMap<String, String>();
+		}
+		List<String> missing = new ArrayList<String>();
+		for (String id : ids) {
+			if (!knownLabels.containsKey(id)) {
+				missing.add(id);
+			}
+		}
+		if (!missing.isEmpty()) {
+			Map<String, String> texts = labels.getLabels(missing);
+			for (String id : missing) {
+				knownLabels.put(id, texts.get(id));
+			}
+		}
+		return knownLabels;
+	}
+
+	@Override
+	protected MultiSettings newSettings() {
+		return newMultiSettings(valuesLabel, comboboxLabel);
+	}
+
+	@Override
+	protected void onDetach() {
+		knownLabels = null;
+		labels.detach();
+		super.onDetach();
+	}
+}
@@ -13,7 +13,6 @@
 package com.vaynberg.wicket.select25;
 
 import org.apache.wicket.markup.head.IHeaderResponse;
-import org.apache.wicket.markup.head.OnDomReadyHeaderItem;
 import org.apache.wicket.model.IModel;
 import org.apache.wicket.util.string.StringValue;
 import org.apache.wicket.util.string.Strings;
@@ -47,7 +46,7 @@ public class Select25SingleChoice<T> extends Select25AbstractChoice<SingleSettin
 		if (Strings.isEmpty(input)) {
 			return null;
 		} else {
-			var choices = provider.toChoices(new String[] { input });
+			var choices = toChoices(toIds(input));
 			if (choices.isEmpty()) {
 				return null;
 			} else {
@@ -56,6 +55,11 @@ public class Select25SingleChoice<T> extends Select25AbstractChoice<SingleSettin
 		}
 	}
 
+	@Override
+	String[] toIds(String input) {
+		return Strings.isEmpty(input) ? new String[0] : new String[] { input };
+	}
+
 	@Override
 	protected void renderInitializationScript(IHeaderResponse response, SingleSettings settings) {
 
@@ -79,9 +83,7 @@ public class Select25SingleChoice<T> extends Select25AbstractChoice<SingleSettin
 			}
 		}
 
-		StringBuilder init = new StringBuilder();
-		init.append("window.select25.createSingleSelect(document.getElementById('" + getMarkupId() + "'), " + settings.toJson() + ");");
-		response.render(OnDomReadyHeaderItem.forScript(init));
+		renderCreateScript(response, settings, "createSingleSelect");
 	}
 
 	@Override
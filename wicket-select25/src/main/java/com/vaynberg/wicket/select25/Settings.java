@@ -13,6 +13,8 @@
 package com.vaynberg.wicket.select25;
 
 import java.io.Serializable;
+import java.time.Duration;
+import java.util.List;
 
 import org.apache.wicket.util.string.Strings;
 import org.json.JSONException;
@@ -49,6 +51,12 @@ abstract class Settings implements Serializable {
 
 	private Ajax ajax;
 
+	/** whether the first page of results for an empty search term is embedded into the page */
+	private boolean embedFirstPage;
+
+	/** maximum size of the embedded first page, in bytes of Json */
+	private int embedFirstPageLimit = 16 * 1024;
+
 
 	public abstract String toJson();
 
@@ -77,6 +85,37 @@ abstract class Settings implements Serializable {
 		Json.writeFunction(writer, "ajax", ajax.toJson());
 	}
 
+	/**
+	 * Adds the values of all settings except the ajax url and the selected value(s) to the key that identifies the
+	 * {@link SettingsTemplate} of these settings. Subclasses that add settings written by {@link #toJson()} must add
+	 * them to the key.
+	 *
+	 * @param key
+	 * 	template key
+	 */
+	protected void addTemplateKey(List<Object> key) {
+		key.add(getClass());
+		key.add(containerStyle);
+		key.add(cssClass);
+		key.add(openOnFocus);
+		key.add(itemId);
+		key.add(valueContent);
+		key.add(itemLabel);
+		key.add(resultContent);
+		key.add(minimumCharacters);
+		key.add(maxValues);
+		key.add(placeholder);
+		key.add(dictionary);
+		key.add(ajax.getParams());
+		key.add(ajax.getProcess());
+		key.add(ajax.getOnError());
+		key.add(ajax.isCacheable());
+		key.add(ajax.getDelay());
+		key.add(ajax.getCacheSize());
+		key.add(ajax.getCacheTtl());
+		key.add(ajax.isAbort());
+	}
+
 	public void setOpenOnFocus(boolean openOnFocus) {
 		this.openOnFocus = openOnFocus;
 	}
@@ -183,6 +222,36 @@ abstract class Settings implements Serializable {
 		this.dictionary = dictionary;
 	}
 
+	public boolean isEmbedFirstPage() {
+		return embedFirstPage;
+	}
+
+	/**
+	 * Embeds the first page of results for an empty search term into the page the component is rendered in, so that
+	 * when the dropdown is opened, on focus or because {@link #getMinimumCharacters()} is {@code 0}, the results show
+	 * without a round trip to the server. The provider is queried while the component renders; the page is not
+	 * embedded if its Json is larger than {@link #getEmbedFirstPageLimit()}, or if the provider opts out with
+	 * {@link ChoiceProvider#isFirstPageEmbeddable()}. Only takes effect when {@link #getMinimumCharacters()} is
+	 * {@code 0}.
+	 *
+	 * @param embedFirstPage
+	 */
+	public void setEmbedFirstPage(boolean embedFirstPage) {
+		this.embedFirstPage = embedFirstPage;
+	}
+
+	public int getEmbedFirstPageLimit() {
+		return embedFirstPageLimit;
+	}
+
+	/**
+	 * @param embedFirstPageLimit
+	 * 	maximum size of the embedded first page, in bytes of Json
+	 */
+	public void setEmbedFirstPageLimit(int embedFirstPageLimit) {
+		this.embedFirstPageLimit = embedFirstPageLimit;
+	}
+
 	public Ajax getAjax() {
 		return ajax;
 	}
@@ -207,6 +276,11 @@ abstract class Settings implements Serializable {
 		private String params;
 		private String process;
 		private String onError;
+		private boolean cacheable;
+		private Integer delay;
+		private int cacheSize;
+		private Duration cacheTtl;
+		private boolean abort;
 
 		public String getUrl() {
 			return url;
@@ -249,6 +323,81 @@ abstract class Settings implements Serializable {
 			this.onError = onError;
 		}
 
+		public boolean isCacheable() {
+			return cacheable;
+		}
+
+		/**
+		 * Marks the responses of the url as cacheable. The client then leaves out the request parameters that make
+		 * every request unique, so that browsers and proxies can reuse responses, at the cost of superseded queries no
+		 * longer being cancelled on the server.
+		 *
+		 * @param cacheable
+		 */
+		public void setCacheable(boolean cacheable) {
+			this.cacheable = cacheable;
+		}
+
+		public Integer getDelay() {
+			return delay;
+		}
+
+		/**
+		 * Sets how long the client waits after the last keystroke before it sends a query, so that a word typed in
+		 * one go only sends the query for the whole word. Leave {@code null} for the default of select25, 50ms.
+		 *
+		 * @param delay
+		 * 	delay in milliseconds
+		 */
+		public void setDelay(Integer delay) {
+			this.delay = delay;
+		}
+
+		public int getCacheSize() {
+			return cacheSize;
+		}
+
+		/**
+		 * Sets how many pages of results the client keeps per component, so that results for a term it has already
+		 * seen, e.g. after deleting a character or reopening the dropdown, are shown without a request. The least
+		 * recently used page is evicted first. {@code 0}, the default, disables the cache.
+		 *
+		 * @param cacheSize
+		 * 	maximum number of cached pages
+		 */
+		public void setCacheSize(int cacheSize) {
+			this.cacheSize = cacheSize;
+		}
+
+		public Duration getCacheTtl() {
+			return cacheTtl;
+		}
+
+		/**
+		 * Sets how long the client reuses a cached page of results, see {@link #setCacheSize(int)}. Pages are kept
+		 * until evicted if {@code null}, the default.
+		 *
+		 * @param cacheTtl
+		 * 	time to live of a cached page
+		 */
+		public void setCacheTtl(Duration cacheTtl) {
+			this.cacheTtl = cacheTtl;
+		}
+
+		public boolean isAbort() {
+			return abort;
+		}
+
+		/**
+		 * Makes the client abort a request that is still in flight when the next query is made, e.g. because
+		 * another character was typed, so that browsers do not keep connections busy with responses nobody reads.
+		 *
+		 * @param abort
+		 */
+		public void setAbort(boolean abort) {
+			this.abort = abort;
+		}
+
 		public String toJson() {
 			try {
 				JSONStringer writer = new JSONStringer();
@@ -262,6 +411,23 @@ abstract class Settings implements Serializable {
 					Json.writeFunction(writer, "onerror", onError);
 				}
 
+				if (cacheable) {
+					Json.writeValue(writer, "cacheable", true);
+				}
+
+				Json.writeValue(writer, "delay", delay);
+
+				if (cacheSize > 0) {
+					Json.writeValue(writer, "cacheSize", cacheSize);
+					if (cacheTtl != null) {
+						Json.writeValue(writer, "cacheTtl", cacheTtl.toMillis());
+					}
+				}
+
+				if (abort) {
+					Json.writeValue(writer, "abort", true);
+				}
+
 				writer.endObject();
 
 				return writer.toString();
@@ -0,0 +1,204 @@
+/*
+ * Copyright 2012 Igor Vaynberg
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this work except in compliance with
+ * the License. You may obtain a copy of the License in the LICENSE file, or at:
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package com.vaynberg.wicket.select25;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.wicket.Application;
+import org.apache.wicket.MetaDataKey;
+import org.json.JSONObject;
+
+/**
+ * Precompiled Json of {@link Settings}. Most settings of a component are the same on every render, only the ajax url
+ * and the selected value(s) change. A template is the Json of the settings split around these two slots; rendering the
+ * settings fills the slots in instead of building the whole Json again.
+ * <p>
+ * Templates are cached per application, keyed by the values of all other settings as collected by
+ * {@link Settings#addTemplateKey(List)}. Only {@link SingleSettings} and {@link MultiSettings} themselves are rendered
+ * from templates; settings of subclasses, which may write additional Json, are always built in full.
+ *
+ * @author igor
+ */
+final class SettingsTemplate {
+
+	private static final MetaDataKey<Map<List<Object>, SettingsTemplate>> TEMPLATES = new MetaDataKey<Map<List<Object>, SettingsTemplate>>() {};
+
+	private static final int MAX_TEMPLATES = 256;
+
+	private static final String URL_SLOT = "select25-template-url-5f1b7c2e";
+	private static final String VALUE_SLOT = "select25-template-value-5f1b7c2e";
+
+	/** template json up to the url slot */
+	private final String head;
+	/** template json between the url and the value slot */
+	private final String middle;
+	/** key written before the value, including the preceding comma */
+	private final String valuePrefix;
+	/** template json after the value slot */
+	private final String tail;
+
+	private volatile String defaults;
+
+	private SettingsTemplate(String head, String middle, String valuePrefix, String tail) {
+		this.head = head;
+		this.middle = middle;
+		this.valuePrefix = valuePrefix;
+		this.tail = tail;
+	}
+
+	/**
+	 * Converts the settings to Json, using the template of the settings if they can be rendered from one
+	 *
+	 * @param settings
+	 * 	settings
+	 * @return settings Json, identical to {@link Settings#toJson()}
+	 */
+	static String toJson(Settings settings) {
+		SettingsTemplate template = get(settings);
+		if (template == null) {
+			return settings.toJson();
+		}
+		return template.fill(settings.getAjax().getUrl(), getValue(settings));
+	}
+
+	/**
+	 * Returns the template of the settings, compiling it if necessary
+	 *
+	 * @param settings
+	 * 	settings
+	 * @return template or {@code null} if the settings cannot be rendered from a template
+	 */
+	static SettingsTemplate get(Settings settings) {
+		Class<?> type = settings.getClass();
+		if ((type != SingleSettings.class && type != MultiSettings.class) || settings.getAjax() == null
+				|| settings.getAjax().getUrl() == null || !Application.exists()) {
+			return null;
+		}
+
+		List<Object> key = new ArrayList<Object>(24);
+		settings.addTemplateKey(key);
+
+		Map<List<Object>, SettingsTemplate> templates = templates(Application.get());
+		SettingsTemplate template = templates.get(key);
+		if (template == null) {
+			template = compile(settings);
+			if (template != null) {
+				templates.put(key, template);
+			}
+		}
+		return template;
+	}
+
+	/**
+	 * @return Json of the settings with an empty ajax url and without value(s), shared by all components rendered from
+	 * 	this template
+	 */
+	String getDefaults() {
+		String defaults = this.defaults;
+		if (defaults == null) {
+			defaults = fill("", null);
+			this.defaults = defaults;
+		}
+		return defaults;
+	}
+
+	private String fill(String url, String value) {
+		String quotedUrl = JSONObject.quote(url);
+		int length = head.length() + quotedUrl.length() + middle.length() + tail.length();
+		if (value != null) {
+			length += valuePrefix.length() + value.length();
+		}
+
+		StringBuilder json = new StringBuilder(length);
+		json.append(head);
+		json.append(quotedUrl, 1, quotedUrl.length() - 1);
+		json.append(middle);
+		if (value != null) {
+			json.append(valuePrefix).append(value);
+		}
+		json.append(tail);
+		return json.toString();
+	}
+
+	/**
+	 * Renders the settings with markers in the slots and splits the Json around them
+	 *
+	 * @return template or {@code null} if the Json cannot be split
+	 */
+	private static SettingsTemplate compile(Settings settings) {
+		String url = settings.getAjax().getUrl();
+		String value = getValue(settings);
+		String json;
+		try {
+			settings.getAjax().setUrl(URL_SLOT);
+			setValue(settings, VALUE_SLOT);
+			json = settings.toJson();
+		} finally {
+			settings.getAjax().setUrl(url);
+			setValue(settings, value);
+		}
+
+		String valuePrefix = "," + JSONObject.quote(settings instanceof SingleSettings ? "value" : "values") + ":";
+
+		int urlStart = json.indexOf(URL_SLOT);
+		int valueStart = json.indexOf(valuePrefix + VALUE_SLOT);
+		if (urlStart < 0 || valueStart < urlStart || json.indexOf(URL_SLOT, urlStart + 1) >= 0
+				|| json.indexOf(VALUE_SLOT, valueStart + valuePrefix.length() + 1) >= 0) {
+			return null;
+		}
+
+		int urlEnd = urlStart + URL_SLOT.length();
+		int valueEnd = valueStart + valuePrefix.length() + VALUE_SLOT.length();
+		return new SettingsTemplate(json.substring(0, urlStart), json.substring(urlEnd, valueStart), valuePrefix,
+			json.substring(valueEnd));
+	}
+
+	static String getValue(Settings settings) {
+		if (settings instanceof SingleSettings) {
+			return ((SingleSettings) settings).getValue();
+		} else {
+			return ((MultiSettings) settings).getValues();
+		}
+	}
+
+	private static void setValue(Settings settings, String value) {
+		if (settings instanceof SingleSettings) {
+			((SingleSettings) settings).setValue(value);
+		} else {
+			((MultiSettings) settings).setValues(value);
+		}
+	}
+
+	private static Map<List<Object>, SettingsTemplate> templates(Application application) {
+		Map<List<Object>, SettingsTemplate> templates = application.getMetaData(TEMPLATES);
+		if (templates == null) {
+			synchronized (application) {
+				templates = application.getMetaData(TEMPLATES);
+				if (templates == null) {
+					templates = Collections.synchronizedMap(new LinkedHashMap<List<Object>, SettingsTemplate>(16, 0.75f, true) {
+						@Override
+						protected boolean removeEldestEntry(Map.Entry<List<Object>, SettingsTemplate> eldest) {
+							return size() > MAX_TEMPLATES;
+						}
+					});
+					application.setMetaData(TEMPLATES, templates);
+				}
+			}
+		}
+		return templates;
+	}
+}
@@ -0,0 +1,163 @@
+/*
+ * Copyright 2012 Igor Vaynberg
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this work except in compliance with
+ * the License. You may obtain a copy of the License in the LICENSE file, or at:
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package com.vaynberg.wicket.select25;
+
+import java.time.Duration;
+import java.util.Collection;
+
+import org.apache.wicket.request.http.WebResponse;
+import org.apache.wicket.util.lang.Args;
+import org.json.JSONException;
+import org.json.JSONWriter;
+
+import com.vaynberg.wicket.select25.json.JsonEncoder;
+
+/**
+ * Handle to a provider registered in the {@link ChoiceProviderRegistry}. Components given a shared provider send their
+ * queries to the stateless {@link ChoiceProviderResource} instead of to their own listener, so serving a query neither
+ * loads the page from the page store nor waits on its lock.
+ * <p>
+ * Only the key is serialized with the page; all calls are delegated to the registered provider.
+ * <p>
+ * Example:
+ * <pre>
+ * new Select25SingleChoice&lt;Country&gt;(&quot;country&quot;, model, new SharedChoiceProvider&lt;Country&gt;(&quot;countries&quot;), label);
+ * </pre>
+ *
+ * @param <T> type of choice object
+ * @author igor
+ */
+public class SharedChoiceProvider<T> extends ChoiceProvider<T> {
+
+    private final String key;
+
+    /**
+     * Constructor
+     *
+     * @param key key the provider is registered under
+     */
+    public SharedChoiceProvider(String key) {
+        Args.notEmpty(key, "key");
+        this.key = key;
+    }
+
+    /**
+     * @return key the provider is registered under
+     */
+    public String getKey() {
+        return key;
+    }
+
+    /**
+     * @return registered provider
+     * @throws IllegalStateException if no provider is registered under the key
+     */
+    public ChoiceProvider<T> getProvider() {
+        ChoiceProvider<T> provider = ChoiceProviderRegistry.get().getProvider(key);
+        if (provider == null) {
+            throw new IllegalStateException("No choice provider is registered under key: " + key);
+        }
+        return provider;
+    }
+
+    @Override
+    public void query(String query, int page, Response<T> response) {
+        getProvider().query(query, page, response);
+    }
+
+    @Override
+    public void query(String query, int page, String token, Response<T> response) {
+        getProvider().query(query, page, token, response);
+    }
+
+    @Override
+    public void query(String query, int page, String token, ChoiceSink<T> sink) {
+        getProvider().query(query, page, token, sink);
+    }
+
+    @Override
+    public void toJson(T choice, JSONWriter writer) throws JSONException {
+        getProvider().toJson(choice, writer);
+    }
+
+    @Override
+    public void toJson(T choice, JsonEncoder encoder) throws JSONException {
+        getProvider().toJson(choice, encoder);
+    }
+
+    @Override
+    public Collection<T> toChoices(String[] ids) {
+        return getProvider().toChoices(ids);
+    }
+
+    @Override
+    public String toId(T choice) {
+        return getProvider().toId(choice);
+    }
+
+    @Override
+    public ChoiceLookupCache<T> getLookupCache() {
+        return getProvider().getLookupCache();
+    }
+
+    /**
+     * Components given shared providers of the same key are batched by default, they all delegate to the same registered
+     * provider.
+     */
+    @Override
+    public Object getBatchKey() {
+        ChoiceProvider<T> provider = getProvider();
+        Object key = provider.getBatchKey();
+        return key == null ? provider : key;
+    }
+
+    @Override
+    public Duration getDeadline() {
+        return getProvider().getDeadline();
+    }
+
+    @Override
+    public boolean isFirstPageEmbeddable() {
+        return getProvider().isFirstPageEmbeddable();
+    }
+
+    @Override
+    public boolean isLabelLookupAllowed() {
+        return getProvider().isLabelLookupAllowed();
+    }
+
+    @Override
+    public String getVersion() {
+        return getProvider().getVersion();
+    }
+
+    @Override
+    public Duration getCacheDuration() {
+        return getProvider().getCacheDuration();
+    }
+
+    @Override
+    public WebResponse.CacheScope getCacheScope() {
+        return getProvider().getCacheScope();
+    }
+
+    @Override
+    public Class<?> getMetricsClass() {
+        return getProvider().getMetricsClass();
+    }
+
+    @Override
+    public void detach() {
+        // the registered provider is shared by all requests and is never detached
+    }
+}
@@ -1,5 +1,7 @@
 package com.vaynberg.wicket.select25;
 
+import java.util.List;
+
 import org.apache.wicket.util.string.Strings;
 import org.json.JSONException;
 import org.json.JSONStringer;
@@ -37,6 +39,13 @@ public class SingleSettings extends Settings {
 		}
 	}
 
+	@Override
+	protected void addTemplateKey(List<Object> key) {
+		super.addTemplateKey(key);
+		key.add(label);
+		key.add(allowClear);
+	}
+
 	public String getLabel() {
 		return label;
 	}
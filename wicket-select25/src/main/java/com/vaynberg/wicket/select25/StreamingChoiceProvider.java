@@ -0,0 +1,48 @@
+/*
+ * Copyright 2012 Igor Vaynberg
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this work except in compliance with
+ * the License. You may obtain a copy of the License in the LICENSE file, or at:
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package com.vaynberg.wicket.select25;
+
+/**
+ * Base class for providers that push matching choices into a {@link ChoiceSink} as they are produced, for example
+ * while iterating over a database cursor. Select2 components encode each choice as soon as it is added, so the page of
+ * results is never held in memory as a whole.
+ * <p>
+ * This does not hold for queries that run on a {@link QueryExecutor}: the request thread writes their response once
+ * the query completes or its deadline passes, so the Json of the page is buffered until then. The choices are still
+ * encoded as they are added and not retained.
+ * <p>
+ * Choices are buffered until about 8KB of Json are encoded. If the provider fails before that, the client gets an
+ * error response; if it fails later, the part already sent is closed with {@code "error":true}, which the client treats
+ * as a failed query, so a failure never passes for a complete page of results.
+ * <p>
+ * The {@link Response} based query methods are implemented in terms of the streaming method for callers that need the
+ * results collected.
+ *
+ * @param <T> type of choice object
+ * @author igor
+ */
+public abstract class StreamingChoiceProvider<T> extends ChoiceProvider<T> {
+
+    @Override
+    public abstract void query(String query, int page, String token, ChoiceSink<T> sink);
+
+    @Override
+    public void query(String query, int page, String token, Response<T> response) {
+        query(query, page, token, response.asSink());
+    }
+
+    @Override
+    public void query(String query, int page, Response<T> response) {
+        query(query, page, null, response);
+    }
+}
@@ -15,6 +15,8 @@ package com.vaynberg.wicket.select25;
 import org.json.JSONException;
 import org.json.JSONWriter;
 
+import com.vaynberg.wicket.select25.json.JsonEncoder;
+
 /**
  * Takes care of Json serialization for the most common usecase where each choice is rendered as a text string.
  *
@@ -27,8 +29,19 @@ public abstract class TextChoiceProvider<T> extends ChoiceProvider<T> {
 
     protected abstract Object getId(T choice);
 
+    @Override
+    public String toId(T choice) {
+        Object id = getId(choice);
+        return id == null ? null : String.valueOf(id);
+    }
+
     @Override
     public final void toJson(T choice, JSONWriter writer) throws JSONException {
         writer.key("id").value(getId(choice)).key("text").value(getDisplayText(choice));
     }
+
+    @Override
+    public final void toJson(T choice, JsonEncoder encoder) throws JSONException {
+        encoder.key("id").value(getId(choice)).key("text").value(getDisplayText(choice));
+    }
 }
@@ -0,0 +1,634 @@
+/*
+ * Copyright 2012 Igor Vaynberg
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this work except in compliance with
+ * the License. You may obtain a copy of the License in the LICENSE file, or at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package com.vaynberg.wicket.select25.json;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.json.JSONString;
+import org.json.JSONWriter;
+
+/**
+ * A buffered Json encoder that writes UTF-8 bytes directly into an {@link OutputStream}. Unlike {@link JSONWriter} it
+ * does not go through a {@link java.nio.charset.CharsetEncoder} and does not track keys for duplicates, which makes it
+ * suitable for hot paths such as writing out query results.
+ * <p>
+ * Instances are not thread-safe but are reusable: {@link #reset(OutputStream)} rebinds the encoder to a new stream while
+ * keeping its internal buffer. {@link #acquire(OutputStream)} takes an instance from a small shared pool, which
+ * {@link #release()} returns it to. The pool is held by this class rather than by threads, so it neither pins the
+ * classloader of a web application to container threads nor misses on virtual threads.
+ * <p>
+ * Code written against the {@link JSONWriter} contract, such as {@code ChoiceProvider#toJson(Object, JSONWriter)}, can
+ * write into the encoder via {@link #writer()}.
+ *
+ * @author igor
+ */
+public final class JsonEncoder {
+
+    private static final int DEFAULT_BUFFER_SIZE = 8192;
+
+    /** max nesting depth, limited by the bits in {@link #commas} */
+    private static final int MAX_DEPTH = 64;
+
+    private static final byte[] HEX = "0123456789abcdef".getBytes();
+
+    /** maximum number of idle encoders kept for reuse */
+    private static final int POOL_SIZE = 64;
+
+    private static final BlockingQueue<JsonEncoder> POOL = new ArrayBlockingQueue<JsonEncoder>(POOL_SIZE);
+
+    private final byte[] buffer;
+    private int position;
+
+    private OutputStream out;
+    private long flushed;
+
+    /** bit {@code n} is set if the value at depth {@code n} must be preceded by a comma */
+    private long commas;
+    /** bit {@code n} is set if the structure at depth {@code n} is an object rather than an array */
+    private long objects;
+    private int depth;
+    private boolean afterKey;
+    private char highSurrogate;
+
+    private final CharWriter chars = new CharWriter();
+    private BridgeWriter bridge;
+    private boolean bridged;
+
+    public JsonEncoder() {
+        this(DEFAULT_BUFFER_SIZE);
+    }
+
+    public JsonEncoder(int bufferSize) {
+        if (bufferSize < 16) {
+            throw new IllegalArgumentException("bufferSize must be at least 16");
+        }
+        buffer = new byte[bufferSize];
+    }
+
+    /**
+     * Takes an encoder from the pool, or creates one if the pool is empty, reset to write into {@code out}. The encoder
+     * should be given back with {@link #release()} once the Json is written.
+     *
+     * @param out output stream
+     * @return encoder
+     */
+    public static JsonEncoder acquire(OutputStream out) {
+        JsonEncoder encoder = POOL.poll();
+        if (encoder == null) {
+            encoder = new JsonEncoder();
+        }
+        return encoder.reset(out);
+    }
+
+    /**
+     * Returns an encoder taken with {@link #acquire(OutputStream)} to the pool. The encoder must not be used
+     * afterwards; anything still buffered is discarded.
+     */
+    public void release() {
+        reset(null);
+        if (buffer.length == DEFAULT_BUFFER_SIZE) {
+            POOL.offer(this);
+        }
+    }
+
+    /**
+     * Rebinds this encoder to the specified stream and clears all state except for the buffer.
+     *
+     * @param out output stream
+     * @return {@code this} for chaining
+     */
+    public JsonEncoder reset(OutputStream out) {
+        this.out = out;
+        position = 0;
+        flushed = 0;
+        commas = 0;
+        objects = 0;
+        depth = 0;
+        afterKey = false;
+        highSurrogate = 0;
+        if (bridged) {
+            // the bridge is kept for the next objects, it must not be left inside an unfinished one
+            try {
+                bridge.endItem();
+            } catch (JSONException e) {
+                // left in the middle of a key/value pair, start over with a new bridge
+                bridge = null;
+            }
+            bridged = false;
+        }
+        return this;
+    }
+
+    public JsonEncoder object() {
+        beforeValue();
+        push();
+        objects |= bit(depth);
+        writeByte('{');
+        return this;
+    }
+
+    public JsonEncoder endObject() {
+        if (bridged) {
+            bridge.endItem();
+            bridged = false;
+        }
+        pop();
+        writeByte('}');
+        return this;
+    }
+
+    public JsonEncoder array() {
+        beforeValue();
+        push();
+        objects &= ~bit(depth);
+        writeByte('[');
+        return this;
+    }
+
+    public JsonEncoder endArray() {
+        pop();
+        writeByte(']');
+        return this;
+    }
+
+    public JsonEncoder key(String key) {
+        if (key == null) {
+            throw new JSONException("Null key.");
+        }
+        if (afterKey || depth == 0) {
+            throw new JSONException("Misplaced key.");
+        }
+        comma();
+        writeString(key);
+        writeByte(':');
+        afterKey = true;
+        return this;
+    }
+
+    public JsonEncoder value(String value) {
+        beforeValue();
+        if (value == null) {
+            writeAscii("null");
+        } else {
+            writeString(value);
+        }
+        return this;
+    }
+
+    public JsonEncoder value(long value) {
+        beforeValue();
+        writeLong(value);
+        return this;
+    }
+
+    public JsonEncoder value(double value) {
+        beforeValue();
+        writeAscii(JSONObject.numberToString(value));
+        return this;
+    }
+
+    public JsonEncoder value(boolean value) {
+        beforeValue();
+        writeAscii(value ? "true" : "false");
+        return this;
+    }
+
+    /**
+     * Writes a value using the same conversion rules as {@link JSONWriter#value(Object)}
+     *
+     * @param value value
+     * @return {@code this} for chaining
+     */
+    public JsonEncoder value(Object value) {
+        if (value == null) {
+            return value((String) null);
+        } else if (value instanceof String) {
+            return value((String) value);
+        } else if (value instanceof Boolean) {
+            return value(((Boolean) value).booleanValue());
+        } else if (value instanceof Integer || value instanceof Long || value instanceof Short || value instanceof Byte) {
+            return value(((Number) value).longValue());
+        } else if (value instanceof JSONString) {
+            return raw(((JSONString) value).toJSONString());
+        } else if (value instanceof Number) {
+            return raw(JSONObject.numberToString((Number) value));
+        }
+        return raw(JSONObject.valueToString(value));
+    }
+
+    /**
+     * Writes a key/value pair if the value is not {@code null}
+     *
+     * @param key   key
+     * @param value value
+     * @return {@code this} for chaining
+     */
+    public JsonEncoder entry(String key, Object value) {
+        if (value != null) {
+            key(key).value(value);
+        }
+        return this;
+    }
+
+    /**
+     * Writes an already encoded value, such as a javascript function, without escaping it
+     *
+     * @param json encoded value
+     * @return {@code this} for chaining
+     */
+    public JsonEncoder raw(CharSequence json) {
+        beforeValue();
+        writeChars(json, 0, json.length());
+        return this;
+    }
+
+    /**
+     * Returns a {@link JSONWriter} positioned inside the object just opened with {@link #object()}, so that code
+     * written against the {@link JSONWriter} contract can contribute its keys. The object must then be closed with
+     * {@link #endObject()}. The writer is reused for every object written by this encoder.
+     *
+     * @return json writer
+     */
+    public JSONWriter writer() {
+        if (!(depth > 0 && (commas & bit(depth)) == 0 && !afterKey)) {
+            throw new JSONException("writer() must be called right after object()");
+        }
+        if (bridge == null) {
+            bridge = new BridgeWriter(chars);
+        }
+        bridge.beginItem();
+        bridged = true;
+        // anything the encoder writes into this object afterwards must be comma separated
+        commas |= bit(depth);
+        return bridge;
+    }
+
+    /**
+     * Closes the objects and arrays left open, down to the specified nesting depth, e.g. to finish Json cut short by a
+     * failure. A key without a value is given {@code null}.
+     *
+     * @param depth nesting depth to unwind to, {@code 0} closes everything
+     * @return {@code this} for chaining
+     */
+    public JsonEncoder unwind(int depth) {
+        if (afterKey) {
+            value((String) null);
+        }
+        if (bridged) {
+            try {
+                bridge.endItem();
+            } catch (JSONException e) {
+                bridge = null;
+            }
+            bridged = false;
+        }
+        while (this.depth > depth) {
+            boolean object = (objects & bit(this.depth)) != 0;
+            this.depth--;
+            writeByte(object ? '}' : ']');
+        }
+        return this;
+    }
+
+    /**
+     * @return number of bytes already written into the output stream, as opposed to held in the buffer
+     */
+    public long getFlushedByteCount() {
+        return flushed;
+    }
+
+    /**
+     * @return number of bytes produced since the last {@link #reset(OutputStream)}
+     */
+    public long getByteCount() {
+        return flushed + position;
+    }
+
+    /**
+     * Writes out any buffered bytes and flushes the underlying stream
+     */
+    public void flush() {
+        drain();
+        try {
+            out.flush();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private static long bit(int depth) {
+        return 1L << (depth - 1);
+    }
+
+    private void push() {
+        if (depth == MAX_DEPTH) {
+            throw new JSONException("Nesting too deep.");
+        }
+        depth++;
+        commas &= ~bit(depth);
+    }
+
+    private void pop() {
+        if (depth == 0 || afterKey) {
+            throw new JSONException("Misplaced end.");
+        }
+        depth--;
+    }
+
+    private void beforeValue() {
+        if (afterKey) {
+            afterKey = false;
+        } else if (depth > 0) {
+            comma();
+        }
+    }
+
+    private void comma() {
+        if (depth > 0) {
+            long bit = bit(depth);
+            if ((commas & bit) != 0) {
+                writeByte(',');
+            } else {
+                commas |= bit;
+            }
+        }
+    }
+
+    private void writeByte(int b) {
+        if (position == buffer.length) {
+            drain();
+        }
+        buffer[position++] = (byte) b;
+    }
+
+    private void writeAscii(String value) {
+        for (int i = 0; i < value.length(); i++) {
+            writeByte(value.charAt(i));
+        }
+    }
+
+    private void writeLong(long value) {
+        if (value == Long.MIN_VALUE) {
+            writeAscii("-9223372036854775808");
+            return;
+        }
+        if (position + 20 > buffer.length) {
+            drain();
+            if (buffer.length < 20) {
+                // sign and digits may not fit into a small buffer at once
+                writeAscii(Long.toString(value));
+                return;
+            }
+        }
+        if (value < 0) {
+            buffer[position++] = '-';
+            value = -value;
+        }
+        int start = position;
+        do {
+            buffer[position++] = (byte) ('0' + (value % 10));
+            value /= 10;
+        } while (value > 0);
+        // digits were written least significant first
+        for (int i = start, j = position - 1; i < j; i++, j--) {
+            byte tmp = buffer[i];
+            buffer[i] = buffer[j];
+            buffer[j] = tmp;
+        }
+    }
+
+    private void writeString(String value) {
+        writeByte('"');
+        char previous = 0;
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (highSurrogate != 0 && !Character.isLowSurrogate(c)) {
+                endChars();
+            }
+            switch (c) {
+                case '"':
+                case '\\':
+                    writeByte('\\');
+                    writeByte(c);
+                    break;
+                case '/':
+                    if (previous == '<') {
+                        writeByte('\\');
+                    }
+                    writeByte(c);
+                    break;
+                case '\b':
+                    writeEscape('b');
+                    break;
+                case '\t':
+                    writeEscape('t');
+                    break;
+                case '\n':
+                    writeEscape('n');
+                    break;
+                case '\f':
+                    writeEscape('f');
+                    break;
+                case '\r':
+                    writeEscape('r');
+                    break;
+                default:
+                    if (c < ' ' || (c >= '\u0080' && c < '\u00a0') || (c >= '\u2000' && c < '\u2100')) {
+                        writeUnicodeEscape(c);
+                    } else if (c < 0x80) {
+                        writeByte(c);
+                    } else {
+                        writeChar(c);
+                    }
+            }
+            previous = c;
+        }
+        endChars();
+        writeByte('"');
+    }
+
+    private void writeEscape(char c) {
+        writeByte('\\');
+        writeByte(c);
+    }
+
+    private void writeUnicodeEscape(char c) {
+        writeByte('\\');
+        writeByte('u');
+        writeByte(HEX[(c >> 12) & 0xf]);
+        writeByte(HEX[(c >> 8) & 0xf]);
+        writeByte(HEX[(c >> 4) & 0xf]);
+        writeByte(HEX[c & 0xf]);
+    }
+
+    private void writeChars(CharSequence value, int offset, int length) {
+        int end = offset + length;
+        for (int i = offset; i < end; i++) {
+            char c = value.charAt(i);
+            if (c < 0x80 && highSurrogate == 0) {
+                writeByte(c);
+            } else {
+                writeChar(c);
+            }
+        }
+        endChars();
+    }
+
+    /**
+     * Encodes a character as UTF-8. A high surrogate is held back until the matching low surrogate arrives.
+     */
+    private void writeChar(char c) {
+        if (highSurrogate != 0) {
+            char high = highSurrogate;
+            highSurrogate = 0;
+            if (Character.isLowSurrogate(c)) {
+                int cp = Character.toCodePoint(high, c);
+                writeByte(0xf0 | (cp >> 18));
+                writeByte(0x80 | ((cp >> 12) & 0x3f));
+                writeByte(0x80 | ((cp >> 6) & 0x3f));
+                writeByte(0x80 | (cp & 0x3f));
+                return;
+            }
+            // unpaired surrogate, same replacement a CharsetEncoder would use
+            writeByte('?');
+        }
+
+        if (c < 0x80) {
+            writeByte(c);
+        } else if (c < 0x800) {
+            writeByte(0xc0 | (c >> 6));
+            writeByte(0x80 | (c & 0x3f));
+        } else if (Character.isHighSurrogate(c)) {
+            highSurrogate = c;
+        } else if (Character.isLowSurrogate(c)) {
+            writeByte('?');
+        } else {
+            writeByte(0xe0 | (c >> 12));
+            writeByte(0x80 | ((c >> 6) & 0x3f));
+            writeByte(0x80 | (c & 0x3f));
+        }
+    }
+
+    private void endChars() {
+        if (highSurrogate != 0) {
+            highSurrogate = 0;
+            writeByte('?');
+        }
+    }
+
+    private void drain() {
+        if (position > 0) {
+            try {
+                out.write(buffer, 0, position);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            flushed += position;
+            position = 0;
+        }
+    }
+
+    /**
+     * Character view of the encoder used by {@link BridgeWriter}. Output can be muted so that the structural tokens
+     * {@link JSONWriter} insists on writing itself are dropped in favor of the ones written by the encoder.
+     */
+    private final class CharWriter extends Writer {
+        private boolean muted;
+
+        @Override
+        public void write(int c) {
+            if (!muted) {
+                writeChar((char) c);
+            }
+        }
+
+        @Override
+        public void write(char[] cbuf, int off, int len) {
+            if (!muted) {
+                for (int i = off; i < off + len; i++) {
+                    writeChar(cbuf[i]);
+                }
+            }
+        }
+
+        @Override
+        public void write(String str, int off, int len) {
+            if (!muted) {
+                writeChars(str, off, len);
+            }
+        }
+
+        @Override
+        public Writer append(CharSequence csq) {
+            if (!muted) {
+                writeChars(csq, 0, csq.length());
+            }
+            return this;
+        }
+
+        @Override
+        public Writer append(CharSequence csq, int start, int end) {
+            if (!muted) {
+                writeChars(csq, start, end - start);
+            }
+            return this;
+        }
+
+        @Override
+        public Writer append(char c) {
+            write(c);
+            return this;
+        }
+
+        @Override
+        public void flush() {}
+
+        @Override
+        public void close() {}
+    }
+
+    /**
+     * {@link JSONWriter} that is kept inside an array so it can be reused for any number of objects. The brackets and
+     * commas it would write around each object are muted; only the keys and values written by the caller get through.
+     */
+    private static final class BridgeWriter extends JSONWriter {
+        private final CharWriter chars;
+
+        BridgeWriter(CharWriter chars) {
+            super(chars);
+            this.chars = chars;
+            chars.muted = true;
+            array();
+            chars.muted = false;
+        }
+
+        void beginItem() {
+            chars.muted = true;
+            object();
+            chars.muted = false;
+        }
+
+        void endItem() {
+            chars.muted = true;
+            endObject();
+            chars.muted = false;
+        }
+    }
+}
@@ -0,0 +1,487 @@
+/*
+ * Copyright 2012 Igor Vaynberg
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this work except in compliance with
+ * the License. You may obtain a copy of the License in the LICENSE file, or at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+
+/*
+ * Wicket specific extensions of select25.js. Options rendered by the Wicket components are preprocessed here before
+ * they are handed to the select25 control, most importantly the ajax settings are turned into a query function that
+ * speaks the protocol of the Wicket query callback.
+ */
+(function (select25) {
+    'use strict';
+
+    if (!select25 || select25.wicket) {
+        return;
+    }
+
+    function appendParams(url, params) {
+        var separator = url.indexOf('?') >= 0 ? '&' : '?';
+        for (var key in params) {
+            if (params.hasOwnProperty(key) && params[key] !== undefined && params[key] !== null) {
+                url += separator + encodeURIComponent(key) + '=' + encodeURIComponent(params[key]);
+                separator = '&';
+            }
+        }
+        return url;
+    }
+
+    /*
+     * Parses a query response, returns null if it is not valid Json or if it reports that the query failed after part
+     * of the response was sent.
+     */
+    function parse(text) {
+        try {
+            var json = JSON.parse(text);
+            return json && !json.error ? json : null;
+        } catch (e) {
+            return null;
+        }
+    }
+
+    /*
+     * Creates a select25 query function from the ajax settings. The function remembers the continuation token the
+     * server returned with each page of the current search term and sends it back when the next page is requested.
+     * Unless the responses are cacheable every request also carries an id of the control and a sequence number, which
+     * lets the server cancel queries superseded by newer ones.
+     *
+     * The first page of results for an empty search term may have been embedded into the page as ajax.initial, it
+     * answers the first query for that page without a request.
+     *
+     * If ajax.cacheSize is set the responses of up to that many pages are kept for ajax.cacheTtl milliseconds, so that
+     * deleting and retyping characters or reopening the dropdown does not repeat requests. If ajax.abort is set a
+     * request still in flight when the next query is made is aborted; its promise resolves to an empty page carrying
+     * the token of the aborted query, which select25 discards as stale while the newer query keeps it loading.
+     */
+    function createQuery(ajax) {
+        var cursorTerm = null;
+        var cursors = {};
+        var id = Math.random().toString(36).substring(2) + Date.now().toString(36);
+        var sequence = 0;
+        var initial = ajax.initial;
+        var cache = ajax.cacheSize > 0 ? new Map() : null;
+        var pending = null;
+
+        function lookup(key) {
+            var entry = cache.get(key);
+            if (!entry) {
+                return null;
+            }
+            cache.delete(key);
+            if (ajax.cacheTtl > 0 && Date.now() - entry.time > ajax.cacheTtl) {
+                return null;
+            }
+            // keep the map in order of use, its first entry is evicted when it is full
+            cache.set(key, entry);
+            return entry.json;
+        }
+
+        function store(key, json) {
+            cache.set(key, { json: json, time: Date.now() });
+            if (cache.size > ajax.cacheSize) {
+                cache.delete(cache.keys().next().value);
+            }
+        }
+
+        return function (term, page, token) {
+            if (term !== cursorTerm) {
+                cursorTerm = term;
+                cursors = {};
+            }
+
+            if (ajax.abort && pending) {
+                pending.request.abort();
+                pending.aborted();
+                pending = null;
+            }
+
+            function answer(json) {
+                if (json.token && cursorTerm === term) {
+                    cursors[page + 1] = json.token;
+                }
+                // the token passed to the query function identifies the request, not the page
+                return { values: json.values, more: json.more, token: token };
+            }
+
+            if (initial && term === '' && page === 0) {
+                var json = initial;
+                initial = null;
+                return Promise.resolve(answer(json));
+            }
+
+            var key = term + '\u0000' + page + '\u0000' + (cursors[page] || '');
+            var cached = cache ? lookup(key) : null;
+            if (cached) {
+                return Promise.resolve(answer(cached));
+            }
+
+            var params = { term: term, page: page, token: cursors[page] };
+            if (!ajax.cacheable) {
+                // responses of cacheable providers are reused by url, which must not be unique to the request
+                params.qid = id;
+                params.qseq = ++sequence;
+            }
+
+            return new Promise(function (resolve, reject) {
+                var request = new XMLHttpRequest();
+                request.open('GET', appendParams(ajax.url, params), true);
+                request.onload = function () {
+                    if (pending && pending.request === request) {
+                        pending = null;
+                    }
+                    var json = request.status >= 200 && request.status < 400 ? parse(request.responseText) : null;
+                    if (json) {
+                        if (cache) {
+                            store(key, json);
+                        }
+                        resolve(answer(json));
+                    } else {
+                        if (ajax.onerror) {
+                            ajax.onerror(request.responseText, request.status);
+                        }
+                        reject();
+                    }
+                };
+                request.onerror = function () {
+                    if (pending && pending.request === request) {
+                        pending = null;
+                    }
+                    if (ajax.onerror) {
+                        ajax.onerror();
+                    }
+                    reject();
+                };
+                pending = {
+                    request: request,
+                    aborted: function () {
+                        resolve({ values: [], more: false, token: token });
+                    }
+                };
+                request.send();
+            });
+        };
+    }
+
+    function escapeMarkup(text) {
+        return String(text).replace(/&/g, '&amp;').replace(/</g, '&lt;').replace(/>/g, '&gt;').replace(/"/g, '&quot;');
+    }
+
+    /*
+     * Selected values the server rendered as bare ids, see MultiSettings.setEagerLabels(), are turned into items that
+     * show a placeholder. Their labels are fetched from the ajax url, up to options.labelBatch ids per request, once
+     * their placeholders are scrolled into view. A fetched label replaces the placeholder in place and is kept in the
+     * item, so the control renders it from then on. Returns null if all values came with their labels.
+     */
+    function createLabels(options) {
+        var values = options.values;
+        var idKey = options.itemId || 'id';
+        var pending = new Map();
+        var i;
+
+        if (!values || !options.ajax) {
+            return null;
+        }
+        for (i = 0; i < values.length; i++) {
+            if (typeof values[i] === 'string') {
+                var item = {};
+                item[idKey] = values[i];
+                values[i] = item;
+                if (!pending.has(item[idKey])) {
+                    pending.set(item[idKey], []);
+                }
+                pending.get(item[idKey]).push(item);
+            }
+        }
+        if (pending.size === 0) {
+            return null;
+        }
+
+        var content = options.valueContent;
+        var batch = options.labelBatch > 0 ? options.labelBatch : 50;
+        var requested = new Set();
+        var queue = [];
+        var scheduled = false;
+        var container = null;
+        var observers = [];
+        var h;
+
+        function markup(item) {
+            if (typeof content === 'function') {
+                return content(item, h);
+            }
+            return item[content || 'text'];
+        }
+
+        options.valueContent = function (item, createElement) {
+            h = createElement;
+            var id = item[idKey];
+            if (pending.has(id) && pending.get(id).indexOf(item) >= 0) {
+                return '<span data-s25-label="' + escapeMarkup(id) + '">\u2026</span>';
+            }
+            return markup(item);
+        };
+
+        function resolve(id, value) {
+            var items = pending.get(id);
+            if (!items) {
+                return;
+            }
+            pending.delete(id);
+            for (var i = 0; i < items.length; i++) {
+                for (var key in value) {
+                    if (value.hasOwnProperty(key)) {
+                        items[i][key] = value[key];
+                    }
+                }
+            }
+            if (container) {
+                var spans = container.querySelectorAll('[data-s25-label]');
+                for (var j = 0; j < spans.length; j++) {
+                    if (spans[j].getAttribute('data-s25-label') === id) {
+                        var html = markup(items[0]);
+                        if (typeof html === 'string') {
+                            spans[j].parentNode.innerHTML = html;
+                        } else {
+                            spans[j].textContent = items[0].text !== undefined ? items[0].text : id;
+                        }
+                    }
+                }
+            }
+            if (pending.size === 0) {
+                observers.forEach(function (observer) {
+                    observer.disconnect();
+                });
+            }
+        }
+
+        function fetch(ids) {
+            var url = options.ajax.url;
+            for (var i = 0; i < ids.length; i++) {
+                url += (url.indexOf('?') >= 0 ? '&' : '?') + 'label=' + encodeURIComponent(ids[i]);
+            }
+            var request = new XMLHttpRequest();
+            request.open('GET', url, true);
+            request.onload = function () {
+                var json = request.status >= 200 && request.status < 400 ? parse(request.responseText) : null;
+                if (json) {
+                    for (var i = 0; i < json.values.length; i++) {
+                        resolve(String(json.values[i][idKey]), json.values[i]);
+                    }
+                    // ids the server no longer knows are labelled with the id
+                    for (i = 0; i < ids.length; i++) {
+                        var missing = {};
+                        missing[typeof content === 'string' ? content : 'text'] = ids[i];
+                        resolve(ids[i], missing);
+                    }
+                } else {
+                    failed(ids, request.responseText, request.status);
+                }
+            };
+            request.onerror = function () {
+                failed(ids);
+            };
+            request.send();
+        }
+
+        function failed(ids, text, status) {
+            // the ids are requested again when their placeholders are next scrolled into view
+            ids.forEach(function (id) {
+                requested.delete(id);
+            });
+            if (options.ajax.onerror) {
+                options.ajax.onerror(text, status);
+            }
+        }
+
+        function flush() {
+            scheduled = false;
+            while (queue.length > 0) {
+                fetch(queue.splice(0, batch));
+            }
+        }
+
+        function enqueue(id) {
+            if (!pending.has(id) || requested.has(id)) {
+                return;
+            }
+            requested.add(id);
+            queue.push(id);
+            if (!scheduled) {
+                // collect the placeholders that came into view together into as few requests as possible
+                scheduled = true;
+                setTimeout(flush, 0);
+            }
+        }
+
+        return {
+            observe: function (element) {
+                container = element;
+                if (!container || typeof IntersectionObserver === 'undefined' || typeof MutationObserver === 'undefined') {
+                    pending.forEach(function (items, id) {
+                        enqueue(id);
+                    });
+                    return;
+                }
+                var visibility = new IntersectionObserver(function (entries) {
+                    for (var i = 0; i < entries.length; i++) {
+                        if (entries[i].isIntersecting) {
+                            enqueue(entries[i].target.getAttribute('data-s25-label'));
+                        }
+                    }
+                });
+                function scan() {
+                    var spans = container.querySelectorAll('[data-s25-label]');
+                    for (var i = 0; i < spans.length; i++) {
+                        visibility.observe(spans[i]);
+                    }
+                }
+                var mutations = new MutationObserver(scan);
+                mutations.observe(container, { childList: true, subtree: true });
+                observers.push(visibility, mutations);
+                scan();
+            }
+        };
+    }
+
+    /*
+     * Creates the hiddenValue function of multi-selects that submit changes of their selection, see
+     * Select25MultiChoice.isDeltaSubmission(). Instead of all selected ids the hidden value holds the ids added and
+     * removed since the control was created, as {"+":[ids],"-":[ids]}; Json keeps ids with commas intact.
+     */
+    function createDeltaValue(options) {
+        var idKey = options.itemId || 'id';
+        var initial = (options.values || []).map(function (item) {
+            return String(item[idKey]);
+        });
+
+        return function (values) {
+            var counts = new Map();
+            initial.forEach(function (id) {
+                counts.set(id, (counts.get(id) || 0) + 1);
+            });
+            var added = [];
+            (values || []).forEach(function (item) {
+                var id = String(item[idKey]);
+                var count = counts.get(id);
+                if (count) {
+                    counts.set(id, count - 1);
+                } else {
+                    added.push(id);
+                }
+            });
+            var removed = [];
+            counts.forEach(function (count, id) {
+                for (; count > 0; count--) {
+                    removed.push(id);
+                }
+            });
+
+            var delta = {};
+            if (added.length > 0) {
+                delta['+'] = added;
+            }
+            if (removed.length > 0) {
+                delta['-'] = removed;
+            }
+            return JSON.stringify(delta);
+        };
+    }
+
+    var dictionaries = {};
+
+    /*
+     * Registers a dictionary that options can refer to by name, used for the localized dictionaries served by the
+     * server so that they do not have to be repeated in the options of every control.
+     */
+    function registerDictionary(name, dictionary) {
+        dictionaries[name] = dictionary;
+    }
+
+    function prepare(options) {
+        if (options && options.ajax && !options.query) {
+            options.query = createQuery(options.ajax);
+        }
+        if (options && options.ajax && options.ajax.delay !== undefined && options.quiet === undefined) {
+            // select25 waits this long after the last keystroke before it queries
+            options.quiet = options.ajax.delay;
+        }
+        if (options && typeof options.dictionary === 'string' && dictionaries.hasOwnProperty(options.dictionary)) {
+            options.dictionary = dictionaries[options.dictionary];
+        }
+        return options;
+    }
+
+    var createSingleSelect = select25.createSingleSelect;
+    var createMultiSelect = select25.createMultiSelect;
+
+    select25.createSingleSelect = function (element, options) {
+        return createSingleSelect(element, prepare(options));
+    };
+
+    select25.createMultiSelect = function (element, options) {
+        options = prepare(options);
+        var labels = options ? createLabels(options) : null;
+        if (options && options.deltaValue) {
+            options.hiddenValue = createDeltaValue(options);
+        }
+        var control = createMultiSelect(element, options);
+        if (labels) {
+            // select25 renders the control into a container it inserts before the element
+            labels.observe(element.previousElementSibling);
+        }
+        return control;
+    };
+
+    function copy(object) {
+        var result = {};
+        for (var key in object) {
+            if (object.hasOwnProperty(key)) {
+                result[key] = object[key];
+            }
+        }
+        return result;
+    }
+
+    /*
+     * Creates all controls of a page with a single call. The options the controls share are rendered once, each
+     * control only carries its element id, the index of its shared options, its ajax url, its value(s) and,
+     * optionally, the embedded first page of results.
+     */
+    function init(defaults, controls) {
+        for (var i = 0; i < controls.length; i++) {
+            var control = controls[i];
+            var element = document.getElementById(control[0]);
+            if (!element) {
+                continue;
+            }
+            var options = copy(defaults[control[1]]);
+            options.ajax = copy(options.ajax);
+            options.ajax.url = control[2];
+            if (control[4]) {
+                options.ajax.initial = control[4];
+            }
+            if (control[3] !== null) {
+                options[options.multiple ? 'values' : 'value'] = control[3];
+            }
+            if (options.multiple) {
+                select25.createMultiSelect(element, options);
+            } else {
+                select25.createSingleSelect(element, options);
+            }
+        }
+    }
+
+    select25.wicket = {
+        createQuery: createQuery,
+        registerDictionary: registerDictionary,
+        init: init
+    };
+})(window.select25);
@@ -0,0 +1,162 @@
+package com.vaynberg.wicket.select25;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+
+import org.apache.wicket.MarkupContainer;
+import org.apache.wicket.markup.IMarkupResourceStreamProvider;
+import org.apache.wicket.markup.html.WebPage;
+import org.apache.wicket.markup.html.form.Form;
+import org.apache.wicket.model.Model;
+import org.apache.wicket.model.PropertyModel;
+import org.apache.wicket.util.resource.IResourceStream;
+import org.apache.wicket.util.resource.StringResourceStream;
+import org.apache.wicket.util.tester.FormTester;
+import org.apache.wicket.util.tester.WicketTester;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests that the ids submitted to the components of a form whose providers share a batch key are converted together
+ */
+public class BatchConversionTest {
+
+    /** ids passed to each conversion by the providers of the page */
+    private static final List<List<String>> CONVERSIONS = Collections.synchronizedList(new ArrayList<List<String>>());
+
+    private WicketTester tester;
+
+    @Before
+    public void before() {
+        tester = new WicketTester();
+        CONVERSIONS.clear();
+    }
+
+    @After
+    public void after() {
+        tester.destroy();
+    }
+
+    @Test
+    public void convertsIdsOfBatchOnce() {
+        tester.startPage(BatchPage.class);
+        CONVERSIONS.clear();
+
+        FormTester form = tester.newFormTester("form");
+        form.setValue("first", "1");
+        form.setValue("second", "2");
+        form.setValue("many", "3,1,4");
+        form.setValue("other", "5");
+        form.submit();
+
+        // one conversion for the batch key, one for the provider without a key
+        assertEquals(Arrays.asList(Arrays.asList("1", "2", "3", "4"), Arrays.asList("5")), CONVERSIONS);
+
+        BatchPage page = (BatchPage) tester.getLastRenderedPage();
+        assertEquals("#1", page.first);
+        assertEquals("#2", page.second);
+        assertEquals(Arrays.asList("#3", "#1", "#4"), page.many);
+        assertEquals("#5", page.other);
+    }
+
+    @Test
+    public void leavesOutComponentsWithoutInput() {
+        tester.startPage(BatchPage.class);
+        CONVERSIONS.clear();
+
+        FormTester form = tester.newFormTester("form");
+        form.setValue("first", "1");
+        form.setValue("second", "");
+        form.setValue("many", "");
+        form.setValue("other", "");
+        form.submit();
+
+        assertEquals(Arrays.asList(Arrays.asList("1")), CONVERSIONS);
+        BatchPage page = (BatchPage) tester.getLastRenderedPage();
+        assertEquals("#1", page.first);
+        assertNull(page.second);
+        assertEquals(Collections.emptyList(), new ArrayList<String>(page.many));
+    }
+
+    /**
+     * Page with a form of selects whose providers share a batch key, and one whose provider has none
+     */
+    public static class BatchPage extends WebPage implements IMarkupResourceStreamProvider {
+        private static final long serialVersionUID = 1L;
+
+        String first;
+        String second;
+        Collection<String> many = new ArrayList<String>();
+        String other;
+
+        public BatchPage() {
+            Form<Void> form = new Form<Void>("form");
+            add(form);
+            form.add(new Select25SingleChoice<String>("first", new PropertyModel<String>(this, "first"),
+                new Provider("items"), Model.of("first")));
+            form.add(new Select25SingleChoice<String>("second", new PropertyModel<String>(this, "second"),
+                new Provider("items"), Model.of("second")));
+            form.add(new Select25MultiChoice<String>("many", new PropertyModel<Collection<String>>(this, "many"),
+                new Provider("items"), Model.of("many"), Model.of("combobox")));
+            form.add(new Select25SingleChoice<String>("other", new PropertyModel<String>(this, "other"),
+                new Provider(null), Model.of("other")));
+        }
+
+        @Override
+        public IResourceStream getMarkupResourceStream(MarkupContainer container, Class<?> containerClass) {
+            return new StringResourceStream("<html><head></head><body><form wicket:id='form'>"
+                + "<input type='hidden' wicket:id='first'/><input type='hidden' wicket:id='second'/>"
+                + "<input type='hidden' wicket:id='many'/><input type='hidden' wicket:id='other'/>"
+                + "</form></body></html>");
+        }
+    }
+
+    /**
+     * Provider that converts an id into a choice of {@code #} and the id, and records its conversions
+     */
+    private static class Provider extends TextChoiceProvider<String> {
+        private static final long serialVersionUID = 1L;
+
+        private final String batchKey;
+
+        Provider(String batchKey) {
+            this.batchKey = batchKey;
+        }
+
+        @Override
+        protected String getDisplayText(String choice) {
+            return choice;
+        }
+
+        @Override
+        protected Object getId(String choice) {
+            return choice.substring(1);
+        }
+
+        @Override
+        public void query(String query, int page, Response<String> response) {
+        }
+
+        @Override
+        public Collection<String> toChoices(String[] ids) {
+            CONVERSIONS.add(Arrays.asList(ids));
+            List<String> choices = new ArrayList<String>(ids.length);
+            for (String id : ids) {
+                choices.add("#" + id);
+            }
+            return choices;
+        }
+
+        @Override
+        public Object getBatchKey() {
+            return batchKey;
+        }
+    }
+}
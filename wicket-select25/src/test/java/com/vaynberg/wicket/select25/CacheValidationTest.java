@@ -0,0 +1,223 @@
+package com.vaynberg.wicket.select25;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.servlet.http.HttpServletResponse;
+
+import org.apache.wicket.MarkupContainer;
+import org.apache.wicket.markup.IMarkupResourceStreamProvider;
+import org.apache.wicket.markup.html.WebPage;
+import org.apache.wicket.model.Model;
+import org.apache.wicket.protocol.http.mock.MockHttpServletResponse;
+import org.apache.wicket.request.mapper.parameter.PageParameters;
+import org.apache.wicket.util.resource.IResourceStream;
+import org.apache.wicket.util.resource.StringResourceStream;
+import org.apache.wicket.util.tester.WicketTester;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests {@code ETag} validation of query responses of versioned providers, served by the component listener and by
+ * {@link ChoiceProviderResource}
+ */
+public class CacheValidationTest {
+
+    private static final String RESOURCE = "wicket/resource/com.vaynberg.wicket.select25.ChoiceProviderResource/choices"
+        + "?provider=versioned&term=a";
+
+    /** queries run by all {@link VersionedProvider}s */
+    private static final AtomicInteger QUERIES = new AtomicInteger();
+
+    private WicketTester tester;
+
+    @Before
+    public void before() {
+        tester = new WicketTester();
+        QUERIES.set(0);
+        ChoiceProviderRegistry.get(tester.getApplication()).register("versioned", new VersionedProvider("v1"));
+    }
+
+    @After
+    public void after() {
+        tester.destroy();
+    }
+
+    @Test
+    public void resourceRevalidatesWithoutQuerying() {
+        MockHttpServletResponse response = query(null, null);
+        assertEquals(HttpServletResponse.SC_OK, response.getStatus());
+        assertEquals("\"v1\"", response.getHeader("ETag"));
+        assertTrue(tester.getLastResponseAsString().contains("\"a1\""));
+        assertEquals(1, QUERIES.get());
+
+        assertNotModified(query("\"v1\"", null));
+        assertNotModified(query("W/\"v1\"", null));
+        assertNotModified(query("\"v0\", W/\"v1\"", null));
+        assertNotModified(query("*", null));
+        assertEquals(1, QUERIES.get());
+
+        assertEquals(HttpServletResponse.SC_OK, query("\"v0\"", null).getStatus());
+        assertEquals(2, QUERIES.get());
+    }
+
+    @Test
+    public void resourceTagsContentCoding() {
+        ResponseCompression.set(tester.getApplication(), new ResponseCompression());
+
+        MockHttpServletResponse response = query(null, "gzip");
+        assertEquals("\"v1-gzip\"", response.getHeader("ETag"));
+        assertTrue(response.getHeader("Vary").contains("Accept-Encoding"));
+        assertEquals("\"v1\"", query(null, null).getHeader("ETag"));
+        assertEquals(2, QUERIES.get());
+
+        // the identity representation does not validate the compressed one
+        assertEquals(HttpServletResponse.SC_OK, query("\"v1\"", "gzip").getStatus());
+        assertEquals(3, QUERIES.get());
+
+        response = query("\"v1-gzip\"", "gzip");
+        assertNotModified(response);
+        assertTrue(response.getHeader("Vary").contains("Accept-Encoding"));
+        assertEquals(3, QUERIES.get());
+    }
+
+    @Test
+    public void unversionedProviderIsNotValidated() {
+        ChoiceProviderRegistry.get(tester.getApplication()).register("versioned", new VersionedProvider(null));
+
+        MockHttpServletResponse response = query("*", null);
+        assertEquals(HttpServletResponse.SC_OK, response.getStatus());
+        assertNull(response.getHeader("ETag"));
+        assertEquals(1, QUERIES.get());
+    }
+
+    @Test
+    public void versionIsEncodedIntoEntityTag() {
+        ChoiceProviderRegistry.get(tester.getApplication()).register("versioned", new VersionedProvider("v \"1\""));
+
+        String etag = query(null, null).getHeader("ETag");
+        assertTrue(etag, etag.matches("\"[0-9a-f]+-5\""));
+        assertNotModified(query(etag, null));
+    }
+
+    @Test
+    public void componentRevalidatesWithoutQuerying() {
+        ChoicePage page = tester.startPage(ChoicePage.class);
+        String url = page.choice.urlForListener(new PageParameters().set("term", "a")).toString().substring(2);
+        ResponseCompression.set(tester.getApplication(), new ResponseCompression());
+
+        MockHttpServletResponse response = execute(url, null, null);
+        assertEquals(HttpServletResponse.SC_OK, response.getStatus());
+        assertEquals("\"v1\"", response.getHeader("ETag"));
+        assertTrue(response.getHeader("Cache-Control").contains("private"));
+        assertTrue(tester.getLastResponseAsString().contains("\"a1\""));
+        assertEquals(1, QUERIES.get());
+
+        assertNotModified(execute(url, "W/\"v1\"", null));
+        assertEquals(1, QUERIES.get());
+
+        response = execute(url, null, "gzip");
+        assertEquals("\"v1-gzip\"", response.getHeader("ETag"));
+        assertEquals(2, QUERIES.get());
+
+        response = execute(url, "\"v1-gzip\"", "gzip, deflate");
+        assertNotModified(response);
+        assertTrue(response.getHeader("Vary").contains("Accept-Encoding"));
+        assertEquals(2, QUERIES.get());
+
+        assertEquals(HttpServletResponse.SC_OK, execute(url, "\"v1\"", "gzip").getStatus());
+        assertEquals(3, QUERIES.get());
+    }
+
+    private MockHttpServletResponse query(String ifNoneMatch, String acceptEncoding) {
+        return execute(RESOURCE, ifNoneMatch, acceptEncoding);
+    }
+
+    private MockHttpServletResponse execute(String url, String ifNoneMatch, String acceptEncoding) {
+        if (ifNoneMatch != null) {
+            tester.getRequest().setHeader("If-None-Match", ifNoneMatch);
+        }
+        if (acceptEncoding != null) {
+            tester.getRequest().setHeader("Accept-Encoding", acceptEncoding);
+        }
+        tester.executeUrl(url);
+        return tester.getLastResponse();
+    }
+
+    private void assertNotModified(MockHttpServletResponse response) {
+        assertEquals(HttpServletResponse.SC_NOT_MODIFIED, response.getStatus());
+        assertEquals(0, response.getBinaryContent().length);
+    }
+
+    /**
+     * Page with a choice of a versioned provider
+     */
+    public static class ChoicePage extends WebPage implements IMarkupResourceStreamProvider {
+        private static final long serialVersionUID = 1L;
+
+        final Select25SingleChoice<String> choice = new Select25SingleChoice<String>("choice", Model.of((String) null),
+            new VersionedProvider("v1"), Model.of("Label"));
+
+        public ChoicePage() {
+            add(choice);
+        }
+
+        @Override
+        public IResourceStream getMarkupResourceStream(MarkupContainer container, Class<?> containerClass) {
+            return new StringResourceStream("<html><head></head><body><input type='hidden' wicket:id='choice'/>"
+                + "</body></html>");
+        }
+    }
+
+    /**
+     * Provider with a fixed version that counts its queries
+     */
+    private static class VersionedProvider extends TextChoiceProvider<String> {
+        private static final long serialVersionUID = 1L;
+
+        private final String version;
+
+        VersionedProvider(String version) {
+            this.version = version;
+        }
+
+        @Override
+        protected String getDisplayText(String choice) {
+            return choice;
+        }
+
+        @Override
+        protected Object getId(String choice) {
+            return choice;
+        }
+
+        @Override
+        public void query(String query, int page, Response<String> response) {
+            QUERIES.incrementAndGet();
+            response.add(query + 1);
+            response.add(query + 2);
+        }
+
+        @Override
+        public Collection<String> toChoices(String[] ids) {
+            return Arrays.asList(ids);
+        }
+
+        @Override
+        public String getVersion() {
+            return version;
+        }
+
+        @Override
+        public Duration getCacheDuration() {
+            return Duration.ofMinutes(1);
+        }
+    }
+}
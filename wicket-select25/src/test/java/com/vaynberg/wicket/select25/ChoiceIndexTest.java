@@ -0,0 +1,114 @@
+package com.vaynberg.wicket.select25;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+import java.util.function.Function;
+
+import org.junit.Test;
+
+/**
+ * Checks {@link ChoiceIndex} searches against a brute force filter of the labels
+ */
+public class ChoiceIndexTest {
+
+    private static final String ALPHABET = "abcAB é";
+
+    @Test
+    public void matchesBruteForce() {
+        Random random = new Random(42);
+        List<String> labels = new ArrayList<String>();
+        for (int i = 0; i < 500; i++) {
+            labels.add(randomString(random, random.nextInt(12)));
+        }
+        ChoiceIndex<String> index = newIndex(labels);
+
+        for (int i = 0; i < 2000; i++) {
+            String term = randomString(random, random.nextInt(5));
+            int offset = random.nextInt(20);
+            int limit = 1 + random.nextInt(30);
+
+            List<String> expected = new ArrayList<String>();
+            for (int j = 0; j < labels.size(); j++) {
+                if (labels.get(j).toLowerCase(Locale.ROOT).contains(term.toLowerCase(Locale.ROOT))) {
+                    expected.add(String.valueOf(j));
+                }
+            }
+            boolean more = expected.size() > offset + limit;
+            expected = expected.subList(Math.min(offset, expected.size()), Math.min(offset + limit, expected.size()));
+
+            Collector collector = new Collector();
+            index.query(term, offset, limit, collector);
+            assertEquals("term '" + term + "' offset " + offset, expected, collector.choices);
+            assertEquals("term '" + term + "' offset " + offset, more, collector.more);
+        }
+    }
+
+    @Test
+    public void offsetPastEnd() {
+        ChoiceIndex<String> index = newIndex(Arrays.asList("one", "two", "three"));
+
+        Collector collector = new Collector();
+        index.query("", Integer.MAX_VALUE, Integer.MAX_VALUE, collector);
+        assertTrue(collector.choices.isEmpty());
+        assertEquals(Boolean.FALSE, collector.more);
+
+        collector = new Collector();
+        index.query("o", Integer.MAX_VALUE, 10, collector);
+        assertTrue(collector.choices.isEmpty());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsDuplicateIds() {
+        new ChoiceIndex<String>(Arrays.asList("a", "b", "a"), Function.identity(), Function.identity());
+    }
+
+    @Test
+    public void getById() {
+        ChoiceIndex<String> index = newIndex(Arrays.asList("one", "two"));
+        assertEquals("1", index.get("1"));
+        assertNull(index.get("5"));
+        assertEquals(Arrays.asList("1", "0"), index.get(new String[]{"1", "5", "0"}));
+    }
+
+    private static ChoiceIndex<String> newIndex(List<String> labels) {
+        List<String> ids = new ArrayList<String>();
+        for (int i = 0; i < labels.size(); i++) {
+            ids.add(String.valueOf(i));
+        }
+        return new ChoiceIndex<String>(ids, Function.identity(), id -> labels.get(Integer.parseInt(id)));
+    }
+
+    private static String randomString(Random random, int length) {
+        StringBuilder builder = new StringBuilder(length);
+        for (int i = 0; i < length; i++) {
+            builder.append(ALPHABET.charAt(random.nextInt(ALPHABET.length())));
+        }
+        return builder.toString();
+    }
+
+    private static class Collector implements ChoiceSink<String> {
+        final List<String> choices = new ArrayList<String>();
+        Boolean more;
+
+        @Override
+        public void accept(String choice) {
+            choices.add(choice);
+        }
+
+        @Override
+        public void setHasMore(Boolean more) {
+            this.more = more;
+        }
+
+        @Override
+        public void setNextToken(String token) {
+        }
+    }
+}
@@ -0,0 +1,223 @@
+package com.vaynberg.wicket.select25;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.function.Function;
+
+import org.apache.wicket.markup.html.WebMarkupContainer;
+import org.apache.wicket.util.tester.WicketTester;
+import org.json.JSONWriter;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests reuse of converted choices by {@link ChoiceMemo}
+ */
+public class ChoiceMemoTest {
+
+    private WicketTester tester;
+
+    /** ids passed to each conversion */
+    private final List<List<String>> conversions = new ArrayList<List<String>>();
+
+    @Before
+    public void before() {
+        tester = new WicketTester();
+    }
+
+    @After
+    public void after() {
+        tester.destroy();
+    }
+
+    @Test
+    public void convertsEachIdOnce() {
+        ChoiceMemo memo = ChoiceMemo.get();
+        Provider provider = new Provider(true);
+
+        assertEquals(Arrays.asList("1", "2"), memo.toChoices(provider, ids("1", "2"), converter(provider)));
+        assertEquals(Arrays.asList("3", "2", "1"), memo.toChoices(provider, ids("3", "2", "1"), converter(provider)));
+        assertEquals(Arrays.asList("2"), memo.toChoices(provider, ids("2"), converter(provider)));
+
+        assertEquals(Arrays.asList(Arrays.asList("1", "2"), Arrays.asList("3")), conversions);
+    }
+
+    @Test
+    public void remembersUnknownIds() {
+        ChoiceMemo memo = ChoiceMemo.get();
+        Provider provider = new Provider(true);
+
+        assertEquals(Arrays.asList("1"), memo.toChoices(provider, ids("1", "gone"), converter(provider)));
+        assertEquals(Collections.emptyList(), memo.toChoices(provider, ids("gone"), converter(provider)));
+
+        assertEquals(1, conversions.size());
+    }
+
+    @Test
+    public void reusesWholeConversionsWithoutIds() {
+        ChoiceMemo memo = ChoiceMemo.get();
+        Provider provider = new Provider(false);
+
+        memo.toChoices(provider, ids("1", "2"), converter(provider));
+        memo.toChoices(provider, ids("1", "2"), converter(provider));
+        memo.toChoices(provider, ids("2"), converter(provider));
+
+        assertEquals(Arrays.asList(Arrays.asList("1", "2"), Arrays.asList("2")), conversions);
+    }
+
+    @Test
+    public void fallsBackToWholeConversionsForForeignIds() {
+        ChoiceMemo memo = ChoiceMemo.get();
+        // returns ids in another form than it is given them
+        Provider provider = new Provider(true) {
+            @Override
+            public String toId(String choice) {
+                return "#" + choice;
+            }
+        };
+
+        assertEquals(Arrays.asList("1", "2"), memo.toChoices(provider, ids("1", "2"), converter(provider)));
+        assertEquals(Arrays.asList("1", "2"), memo.toChoices(provider, ids("1", "2"), converter(provider)));
+        assertEquals(Arrays.asList("2", "3"), memo.toChoices(provider, ids("2", "3"), converter(provider)));
+
+        assertEquals(Arrays.asList(Arrays.asList("1", "2"), Arrays.asList("2", "3")), conversions);
+    }
+
+    @Test
+    public void sharesChoicesOfBatchKey() {
+        ChoiceMemo memo = ChoiceMemo.get();
+        Provider first = new Provider(true, "key");
+        Provider second = new Provider(true, "key");
+        Provider other = new Provider(true);
+
+        memo.toChoices(first, ids("1", "2"), converter(first));
+        memo.toChoices(second, ids("2"), converter(second));
+        memo.toChoices(other, ids("2"), converter(other));
+
+        assertEquals(Arrays.asList(Arrays.asList("1", "2"), Arrays.asList("2")), conversions);
+    }
+
+    @Test
+    public void batchesOncePerScope() {
+        ChoiceMemo memo = ChoiceMemo.get();
+        Provider provider = new Provider(true, "key");
+        WebMarkupContainer form = new WebMarkupContainer("form");
+        WebMarkupContainer otherForm = new WebMarkupContainer("other");
+
+        assertTrue(memo.batch(provider, form));
+        assertFalse(memo.batch(provider, form));
+        assertTrue(memo.batch(provider, otherForm));
+
+        // once a conversion shows the provider returns no ids its choices cannot be split among components
+        Provider unidentified = new Provider(false, "unidentified");
+        memo.toChoices(unidentified, ids("1"), converter(unidentified));
+        assertFalse(memo.batch(unidentified, otherForm));
+    }
+
+    @Test
+    public void usesLookupCache() {
+        final ChoiceLookupCache<String> cache = new ChoiceLookupCache<String>(10, Duration.ofMinutes(1));
+        cache.put("1", "1");
+        Provider provider = new Provider(true) {
+            @Override
+            public ChoiceLookupCache<String> getLookupCache() {
+                return cache;
+            }
+        };
+
+        assertEquals(Arrays.asList("1", "2"),
+            ChoiceMemo.get().toChoices(provider, ids("1", "2"), converter(provider)));
+        assertEquals(Arrays.asList(Arrays.asList("2")), conversions);
+        // converted choices outlive the request
+        assertEquals("2", cache.get("2"));
+    }
+
+    @Test
+    public void forgetsProviderAndRequest() {
+        Provider provider = new Provider(true);
+        ChoiceMemo memo = ChoiceMemo.get();
+        assertSame(memo, ChoiceMemo.get());
+
+        memo.toChoices(provider, ids("1"), converter(provider));
+        ChoiceMemo.forget(provider);
+        memo.toChoices(provider, ids("1"), converter(provider));
+        assertEquals(2, conversions.size());
+
+        tester.executeUrl("");
+        ChoiceMemo next = ChoiceMemo.get();
+        assertNotSame(memo, next);
+        next.toChoices(provider, ids("1"), converter(provider));
+        assertEquals(3, conversions.size());
+    }
+
+    private static String[] ids(String... ids) {
+        return ids;
+    }
+
+    private Function<String[], Collection<String>> converter(final Provider provider) {
+        return new Function<String[], Collection<String>>() {
+            @Override
+            public Collection<String> apply(String[] ids) {
+                conversions.add(Arrays.asList(ids));
+                return provider.toChoices(ids);
+            }
+        };
+    }
+
+    /**
+     * Converts every id except {@code gone} into a choice equal to the id
+     */
+    private static class Provider extends ChoiceProvider<String> {
+        private final boolean identified;
+        private final Object batchKey;
+
+        Provider(boolean identified) {
+            this(identified, null);
+        }
+
+        Provider(boolean identified, Object batchKey) {
+            this.identified = identified;
+            this.batchKey = batchKey;
+        }
+
+        @Override
+        public void query(String query, int page, Response<String> response) {
+        }
+
+        @Override
+        public void toJson(String choice, JSONWriter writer) {
+        }
+
+        @Override
+        public Collection<String> toChoices(String[] ids) {
+            List<String> choices = new ArrayList<String>(ids.length);
+            for (String id : ids) {
+                if (!"gone".equals(id)) {
+                    choices.add(id);
+                }
+            }
+            return choices;
+        }
+
+        @Override
+        public String toId(String choice) {
+            return identified ? choice : null;
+        }
+
+        @Override
+        public Object getBatchKey() {
+            return batchKey;
+        }
+    }
+}
@@ -0,0 +1,190 @@
+package com.vaynberg.wicket.select25;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.wicket.Application;
+import org.apache.wicket.ThreadContext;
+import org.apache.wicket.util.tester.WicketTester;
+import org.json.JSONWriter;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests coalescing of concurrent queries by {@link CoalescingChoiceProvider}
+ */
+public class CoalescingChoiceProviderTest {
+
+    private WicketTester tester;
+    private ExecutorService threads;
+
+    private final AtomicInteger calls = new AtomicInteger();
+    private final CountDownLatch leading = new CountDownLatch(1);
+    private final CountDownLatch land = new CountDownLatch(1);
+
+    /** the first query blocks until it is allowed to land, later queries return immediately */
+    private final ChoiceProvider<String> delegate = new ChoiceProvider<String>() {
+        @Override
+        public void query(String query, int page, Response<String> response) {
+            if (calls.incrementAndGet() == 1) {
+                leading.countDown();
+                await(land);
+                response.add("leader-1").add("leader-2").setHasMore(true);
+            } else {
+                response.add("own");
+            }
+        }
+
+        @Override
+        public void toJson(String choice, JSONWriter writer) {
+        }
+
+        @Override
+        public Collection<String> toChoices(String[] ids) {
+            return Arrays.asList(ids);
+        }
+    };
+
+    private final CoalescingChoiceProvider<String> provider = new CoalescingChoiceProvider<String>(delegate, "test",
+        false);
+
+    @Before
+    public void before() {
+        tester = new WicketTester();
+        threads = Executors.newCachedThreadPool();
+    }
+
+    @After
+    public void after() {
+        threads.shutdownNow();
+        tester.destroy();
+    }
+
+    @Test
+    public void waitersShareResults() throws Exception {
+        Future<Response<String>> leader = query(new QueryCancellation(null, null, 0));
+        assertTrue(leading.await(5, TimeUnit.SECONDS));
+        Future<Response<String>> waiter = query(new QueryCancellation(null, null, 0));
+        awaitWaiting();
+
+        land.countDown();
+        assertEquals(Arrays.asList("leader-1", "leader-2"), leader.get(5, TimeUnit.SECONDS).getResults());
+        assertEquals(Arrays.asList("leader-1", "leader-2"), waiter.get(5, TimeUnit.SECONDS).getResults());
+        assertEquals(Boolean.TRUE, waiter.get().getHasMore());
+        assertEquals(1, calls.get());
+    }
+
+    @Test
+    public void cancelledLeaderKeepsPartialResults() throws Exception {
+        QueryCancellation leaderCancellation = new QueryCancellation(null, null, 0);
+        Future<Response<String>> leader = query(leaderCancellation);
+        assertTrue(leading.await(5, TimeUnit.SECONDS));
+        Future<Response<String>> waiter = query(new QueryCancellation(null, null, 0));
+        awaitWaiting();
+
+        leaderCancellation.cancel(QueryCancellation.Reason.TIMEOUT);
+        land.countDown();
+
+        // the leader responds with what it produced, the waiter does not take incomplete results and runs its own
+        assertEquals(Arrays.asList("leader-1", "leader-2"), leader.get(5, TimeUnit.SECONDS).getResults());
+        assertEquals(Collections.singletonList("own"), waiter.get(5, TimeUnit.SECONDS).getResults());
+        assertEquals(2, calls.get());
+    }
+
+    @Test
+    public void cancelledWaiterStopsWaiting() throws Exception {
+        Future<Response<String>> leader = query(new QueryCancellation(null, null, 0));
+        assertTrue(leading.await(5, TimeUnit.SECONDS));
+        QueryCancellation waiterCancellation = new QueryCancellation(null, null, 0);
+        Future<Response<String>> waiter = query(waiterCancellation);
+        awaitWaiting();
+
+        waiterCancellation.cancel(QueryCancellation.Reason.SUPERSEDED);
+        assertTrue(waiter.get(5, TimeUnit.SECONDS).getResults().isEmpty());
+
+        land.countDown();
+        assertEquals(Arrays.asList("leader-1", "leader-2"), leader.get(5, TimeUnit.SECONDS).getResults());
+        assertEquals(1, calls.get());
+    }
+
+    @Test
+    public void waiterGivesUpAtDeadline() throws Exception {
+        QueryExecutor.set(tester.getApplication(), new QueryExecutor(Duration.ofMillis(100)));
+
+        Future<Response<String>> leader = query(new QueryCancellation(null, null, 0));
+        assertTrue(leading.await(5, TimeUnit.SECONDS));
+        Future<Response<String>> waiter = query(new QueryCancellation(null, null, 0));
+        assertTrue(waiter.get(5, TimeUnit.SECONDS).getResults().isEmpty());
+
+        land.countDown();
+        assertEquals(2, leader.get(5, TimeUnit.SECONDS).size());
+    }
+
+    /**
+     * Queries the provider on another thread, under the given cancellation signal
+     */
+    private Future<Response<String>> query(final QueryCancellation cancellation) {
+        final Application application = tester.getApplication();
+        return threads.submit(new Callable<Response<String>>() {
+            @Override
+            public Response<String> call() {
+                ThreadContext.setApplication(application);
+                QueryCancellation previous = cancellation.bind();
+                try {
+                    Response<String> response = new Response<String>();
+                    provider.query("term", 0, null, response);
+                    return response;
+                } finally {
+                    QueryCancellation.restore(previous);
+                    ThreadContext.detach();
+                }
+            }
+        });
+    }
+
+    /**
+     * Waits until a query blocks on the flight of the leader
+     */
+    private void awaitWaiting() throws InterruptedException {
+        long until = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (System.nanoTime() < until) {
+            for (Thread thread : Thread.getAllStackTraces().keySet()) {
+                if (thread.getState() != Thread.State.RUNNABLE && isWaitingOnFlight(thread)) {
+                    return;
+                }
+            }
+            Thread.sleep(5);
+        }
+        throw new AssertionError("No query is waiting on the leader");
+    }
+
+    private static boolean isWaitingOnFlight(Thread thread) {
+        for (StackTraceElement element : thread.getStackTrace()) {
+            if (element.getClassName().equals(CoalescingChoiceProvider.class.getName() + "$Flight")) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static void await(CountDownLatch latch) {
+        try {
+            latch.await(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
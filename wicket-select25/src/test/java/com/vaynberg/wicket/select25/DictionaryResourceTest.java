@@ -0,0 +1,224 @@
+package com.vaynberg.wicket.select25;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+
+import org.apache.wicket.Component;
+import org.apache.wicket.MarkupContainer;
+import org.apache.wicket.markup.IMarkupResourceStreamProvider;
+import org.apache.wicket.markup.html.WebPage;
+import org.apache.wicket.model.Model;
+import org.apache.wicket.resource.loader.IStringResourceLoader;
+import org.apache.wicket.util.resource.IResourceStream;
+import org.apache.wicket.util.resource.StringResourceStream;
+import org.apache.wicket.util.tester.WicketTester;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests that components refer to the shared dictionary of {@link DictionaryResource} when they resolve the same
+ * strings
+ */
+public class DictionaryResourceTest {
+
+    private static final Locale[] LOCALES = { Locale.ENGLISH, Locale.FRENCH, Locale.ITALIAN };
+
+    private WicketTester tester;
+
+    @Before
+    public void before() {
+        tester = new WicketTester();
+        tester.getApplication().getResourceSettings().getStringResourceLoaders().add(0, new Strings());
+    }
+
+    @After
+    public void after() {
+        tester.destroy();
+    }
+
+    @Test
+    public void formatsLikeStringResourceModel() {
+        assertEquals("Saisissez encore 3 caractères, s'il vous plaît",
+            DictionaryResource.format("Saisissez encore {0} caractères, s'il vous plaît", "3", Locale.FRENCH));
+        assertEquals("'3' aggiunto", DictionaryResource.format("'{0}' aggiunto", "3", Locale.ITALIAN));
+        assertEquals("'3' l'3", DictionaryResource.format("'{0}' l'{0}", "3", Locale.FRENCH));
+    }
+
+    @Test
+    public void componentDictionaryMatchesSharedDictionary() {
+        for (Locale locale : LOCALES) {
+            tester.getSession().setLocale(locale);
+            DictionaryPage page = tester.startPage(DictionaryPage.class);
+
+            DictionaryResource.SharedDictionary shared = DictionaryResource.forComponent(page.choice);
+            assertNotNull(locale.toString(), shared);
+            assertTrue(locale.toString(), shared.isEquivalent(page.choice.createDictionary()));
+            assertTrue(locale.toString(), page.choice.settings.getDictionary() instanceof DictionaryResource.SharedDictionary);
+        }
+    }
+
+    @Test
+    public void comparesDictionariesOncePerComponentClass() {
+        tester.getSession().setLocale(Locale.FRENCH);
+        DictionaryPage page = tester.startPage(DictionaryPage.class);
+        assertEquals(1, page.choice.dictionaries);
+
+        page = tester.startPage(DictionaryPage.class);
+        assertEquals(0, page.choice.dictionaries);
+        assertTrue(page.choice.settings.getDictionary() instanceof DictionaryResource.SharedDictionary);
+
+        // another locale is compared again
+        tester.getSession().setLocale(Locale.ITALIAN);
+        page = tester.startPage(DictionaryPage.class);
+        assertEquals(1, page.choice.dictionaries);
+    }
+
+    @Test
+    public void componentWithOverriddenStringsKeepsItsDictionary() {
+        tester.getSession().setLocale(Locale.FRENCH);
+        for (int i = 0; i < 2; i++) {
+            OverridingPage page = tester.startPage(OverridingPage.class);
+            assertFalse(page.choice.settings.getDictionary() instanceof DictionaryResource.SharedDictionary);
+            assertTrue(tester.getLastResponseAsString().contains("Rien du tout"));
+        }
+    }
+
+    /**
+     * Strings of the French and Italian dictionaries, which contain apostrophes; pages of type {@link OverridingPage}
+     * override one of them
+     */
+    private static class Strings implements IStringResourceLoader {
+        private final Map<String, Map<String, String>> strings = new HashMap<String, Map<String, String>>();
+
+        Strings() {
+            Map<String, String> fr = new HashMap<String, String>();
+            fr.put("select25.noSearchResults", "Aucun résultat");
+            fr.put("select25.searchResultsLoading", "Chargement de l'élément...");
+            fr.put("select25.removeButtonTitle", "Supprimer la sélection");
+            fr.put("select25.clearButtonTitle", "Effacer l'élément");
+            fr.put("select25.valueAdded", "L'élément {0} a été ajouté");
+            fr.put("select25.minimumCharactersMessage1", "Saisissez encore 1 caractère, s'il vous plaît");
+            fr.put("select25.minimumCharactersMessageX", "Saisissez encore {0} caractères, s'il vous plaît");
+            fr.put("select25.multiSelectInstructions", "Sélectionnez l'élément à supprimer");
+            fr.put("select25.expandButtonTitle", "Déplier");
+            fr.put("select25.maximumValuesSelectedMessage", "Nombre maximum d'éléments atteint");
+            strings.put("fr", fr);
+
+            Map<String, String> it = new HashMap<String, String>();
+            it.put("select25.noSearchResults", "Nessun risultato");
+            it.put("select25.searchResultsLoading", "Caricamento...");
+            it.put("select25.removeButtonTitle", "Rimuovi l'elemento");
+            it.put("select25.clearButtonTitle", "Cancella");
+            it.put("select25.valueAdded", "'{0}' aggiunto all'elenco");
+            it.put("select25.minimumCharactersMessage1", "Inserisci ancora un carattere");
+            it.put("select25.minimumCharactersMessageX", "Inserisci ancora {0} caratteri nell'elenco");
+            it.put("select25.multiSelectInstructions", "Seleziona gli elementi dall'elenco");
+            it.put("select25.expandButtonTitle", "Espandi");
+            it.put("select25.maximumValuesSelectedMessage", "Numero massimo raggiunto");
+            strings.put("it", it);
+        }
+
+        @Override
+        public String loadStringResource(Class<?> clazz, String key, Locale locale, String style, String variation) {
+            Map<String, String> language = locale == null ? null : strings.get(locale.getLanguage());
+            return language == null ? null : language.get(key);
+        }
+
+        @Override
+        public String loadStringResource(Component component, String key, Locale locale, String style,
+            String variation) {
+            if (component != null && component.getPage() instanceof OverridingPage
+                && "select25.noSearchResults".equals(key)) {
+                return "Rien du tout";
+            }
+            return loadStringResource((Class<?>) null, key, locale, style, variation);
+        }
+    }
+
+    /**
+     * Page with a single choice
+     */
+    public static class DictionaryPage extends WebPage implements IMarkupResourceStreamProvider {
+        private static final long serialVersionUID = 1L;
+
+        final CountingChoice choice = new CountingChoice("choice");
+
+        public DictionaryPage() {
+            add(choice);
+        }
+
+        @Override
+        public IResourceStream getMarkupResourceStream(MarkupContainer container, Class<?> containerClass) {
+            return new StringResourceStream("<html><head></head><body><input type='hidden' wicket:id='choice'/>"
+                + "</body></html>");
+        }
+    }
+
+    /**
+     * Page for which {@link Strings} overrides a select25 string
+     */
+    public static class OverridingPage extends DictionaryPage {
+        private static final long serialVersionUID = 1L;
+    }
+
+    /**
+     * Choice that counts the dictionaries it builds and keeps its last settings
+     */
+    private static class CountingChoice extends Select25SingleChoice<String> {
+        private static final long serialVersionUID = 1L;
+
+        transient int dictionaries;
+        transient SingleSettings settings;
+
+        CountingChoice(String id) {
+            super(id, Model.of((String) null), new StringProvider(), Model.of("Label"));
+        }
+
+        @Override
+        protected Dictionary.DictionaryImplementation createDictionary() {
+            dictionaries++;
+            return super.createDictionary();
+        }
+
+        @Override
+        protected void addDictionaryToSettings(Settings settings) {
+            super.addDictionaryToSettings(settings);
+            this.settings = (SingleSettings) settings;
+        }
+    }
+
+    /**
+     * Provider whose choices are their ids
+     */
+    private static class StringProvider extends TextChoiceProvider<String> {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected String getDisplayText(String choice) {
+            return choice;
+        }
+
+        @Override
+        protected Object getId(String choice) {
+            return choice;
+        }
+
+        @Override
+        public void query(String query, int page, Response<String> response) {
+        }
+
+        @Override
+        public Collection<String> toChoices(String[] ids) {
+            return Arrays.asList(ids);
+        }
+    }
+}
@@ -0,0 +1,186 @@
+package com.vaynberg.wicket.select25;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+
+import javax.servlet.http.HttpServletResponse;
+
+import org.apache.wicket.MarkupContainer;
+import org.apache.wicket.markup.IMarkupResourceStreamProvider;
+import org.apache.wicket.markup.html.WebPage;
+import org.apache.wicket.model.Model;
+import org.apache.wicket.model.PropertyModel;
+import org.apache.wicket.request.mapper.parameter.PageParameters;
+import org.apache.wicket.util.resource.IResourceStream;
+import org.apache.wicket.util.resource.StringResourceStream;
+import org.apache.wicket.util.tester.WicketTester;
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests that the labels of selected values rendered as bare ids are only served for the ids the component rendered
+ * that way, and by the shared resource only if the provider allows it
+ */
+public class LabelLookupTest {
+
+    private static final String RESOURCE = "wicket/resource/com.vaynberg.wicket.select25.ChoiceProviderResource/choices"
+        + "?provider=labels";
+
+    /** ids passed to each conversion by the providers of the test */
+    private static final List<List<String>> CONVERSIONS = Collections.synchronizedList(new ArrayList<List<String>>());
+
+    private WicketTester tester;
+
+    @Before
+    public void before() {
+        tester = new WicketTester();
+        CONVERSIONS.clear();
+    }
+
+    @After
+    public void after() {
+        tester.destroy();
+    }
+
+    @Test
+    public void rendersValuesPastEagerOnesAsBareIds() {
+        tester.startPage(LazyPage.class);
+        assertTrue(tester.getLastResponseAsString().contains(
+            "[{\"id\":\"1\",\"text\":\"Label 1\"},{\"id\":\"2\",\"text\":\"Label 2\"},\"3\",\"4\"]"));
+    }
+
+    @Test
+    public void componentResolvesOnlyIdsRenderedWithoutLabel() {
+        LazyPage page = tester.startPage(LazyPage.class);
+
+        // 1 was rendered with its label, 9 was never rendered
+        JSONArray values = labels(page, "3", "1", "9", "4");
+        assertEquals(2, values.length());
+        assertEquals("Label 3", values.getJSONObject(0).getString("text"));
+        assertEquals("Label 4", values.getJSONObject(1).getString("text"));
+        // the selected values are at hand, nothing is converted
+        assertTrue(CONVERSIONS.isEmpty());
+
+        assertEquals(0, labels(page, "9", "1").length());
+        assertTrue(CONVERSIONS.isEmpty());
+    }
+
+    @Test
+    public void sharedResourceRefusesLabelLookupUnlessAllowed() {
+        ChoiceProviderRegistry.get(tester.getApplication()).register("labels", new Provider(false));
+
+        tester.executeUrl(RESOURCE + "&label=1&label=2");
+        assertEquals(HttpServletResponse.SC_FORBIDDEN, tester.getLastResponse().getStatus());
+        assertTrue(CONVERSIONS.isEmpty());
+
+        // queries are still served
+        tester.executeUrl(RESOURCE + "&term=a");
+        assertEquals(HttpServletResponse.SC_OK, tester.getLastResponse().getStatus());
+    }
+
+    @Test
+    public void sharedResourceServesLabelsIfAllowed() {
+        ChoiceProviderRegistry.get(tester.getApplication()).register("labels", new Provider(true));
+
+        tester.executeUrl(RESOURCE + "&label=1&label=2");
+        assertEquals(HttpServletResponse.SC_OK, tester.getLastResponse().getStatus());
+        JSONArray values = new JSONObject(tester.getLastResponseAsString()).getJSONArray("values");
+        assertEquals(2, values.length());
+        assertEquals(Arrays.asList(Arrays.asList("1", "2")), CONVERSIONS);
+    }
+
+    private JSONArray labels(LazyPage page, String... ids) {
+        PageParameters parameters = new PageParameters();
+        for (String id : ids) {
+            parameters.add(QueryHandler.LABEL_PARAMETER, id);
+        }
+        tester.executeUrl(page.choice.urlForListener(parameters).toString().substring(2));
+        assertEquals(HttpServletResponse.SC_OK, tester.getLastResponse().getStatus());
+        JSONArray values = new JSONObject(tester.getLastResponseAsString()).getJSONArray("values");
+        for (int i = 0; i < values.length(); i++) {
+            assertFalse(values.getJSONObject(i).getString("id").equals("9"));
+        }
+        return values;
+    }
+
+    /**
+     * Page with a multi choice that renders the labels of its first two values
+     */
+    public static class LazyPage extends WebPage implements IMarkupResourceStreamProvider {
+        private static final long serialVersionUID = 1L;
+
+        Collection<String> values = new ArrayList<String>(Arrays.asList("1", "2", "3", "4"));
+
+        final Select25MultiChoice<String> choice = new Select25MultiChoice<String>("choice",
+            new PropertyModel<Collection<String>>(this, "values"), new Provider(false), Model.of("values"),
+            Model.of("combobox")) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected MultiSettings newSettings() {
+                MultiSettings settings = super.newSettings();
+                settings.setEagerLabels(2);
+                return settings;
+            }
+        };
+
+        public LazyPage() {
+            add(choice);
+        }
+
+        @Override
+        public IResourceStream getMarkupResourceStream(MarkupContainer container, Class<?> containerClass) {
+            return new StringResourceStream("<html><head></head><body><input type='hidden' wicket:id='choice'/>"
+                + "</body></html>");
+        }
+    }
+
+    /**
+     * Provider whose choices are their ids, labelled {@code Label} and the id, that records its conversions
+     */
+    private static class Provider extends TextChoiceProvider<String> {
+        private static final long serialVersionUID = 1L;
+
+        private final boolean labelLookupAllowed;
+
+        Provider(boolean labelLookupAllowed) {
+            this.labelLookupAllowed = labelLookupAllowed;
+        }
+
+        @Override
+        protected String getDisplayText(String choice) {
+            return "Label " + choice;
+        }
+
+        @Override
+        protected Object getId(String choice) {
+            return choice;
+        }
+
+        @Override
+        public void query(String query, int page, Response<String> response) {
+            response.add(query + 1);
+        }
+
+        @Override
+        public Collection<String> toChoices(String[] ids) {
+            CONVERSIONS.add(Arrays.asList(ids));
+            return Arrays.asList(ids);
+        }
+
+        @Override
+        public boolean isLabelLookupAllowed() {
+            return labelLookupAllowed;
+        }
+    }
+}
@@ -0,0 +1,95 @@
+package com.vaynberg.wicket.select25;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.Locale;
+
+import javax.servlet.http.HttpServletResponse;
+
+import org.apache.wicket.RuntimeConfigurationType;
+import org.apache.wicket.mock.MockApplication;
+import org.apache.wicket.request.resource.CssPackageResource;
+import org.apache.wicket.request.resource.JavaScriptPackageResource;
+import org.apache.wicket.request.resource.PackageResource;
+import org.apache.wicket.request.resource.PackageResourceReference;
+import org.apache.wicket.util.tester.WicketTester;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests that {@link PrecompressedResourceReference} creates its resources like {@link PackageResourceReference} and
+ * that source maps are not served in deployment mode
+ */
+public class PrecompressedResourceReferenceTest {
+
+    private static final String SOURCE_MAP = "wicket/resource/com.vaynberg.wicket.select25.Select25AbstractChoice/"
+        + "res/select25.js.map";
+
+    private WicketTester tester;
+
+    @Before
+    public void before() {
+        tester = new WicketTester();
+    }
+
+    @After
+    public void after() {
+        tester.destroy();
+    }
+
+    @Test
+    public void createsResourcesOfTheirType() {
+        assertTrue(resource("res/select25.js") instanceof JavaScriptPackageResource);
+        assertTrue(resource("res/select25-wicket.js") instanceof JavaScriptPackageResource);
+        assertTrue(resource("res/select25.css") instanceof CssPackageResource);
+        assertEquals(PrecompressedResourceReference.PrecompressedResource.class,
+            resource("res/select25.js.map").getClass());
+    }
+
+    @Test
+    public void resolvesLocaleAndStyleOfSession() {
+        tester.getSession().setLocale(Locale.FRENCH);
+        tester.getSession().setStyle("blue");
+
+        for (String name : new String[] { "res/select25.js", "res/select25.css" }) {
+            PackageResource resource = resource(name);
+            assertEquals("blue", resource.getStyle());
+            assertEquals(new PackageResourceReference(Select25AbstractChoice.class, name).getResource().getCacheKey(),
+                resource.getCacheKey());
+        }
+    }
+
+    @Test
+    public void servesSourceMapDuringDevelopment() {
+        tester.executeUrl(SOURCE_MAP);
+        assertEquals(HttpServletResponse.SC_OK, tester.getLastResponse().getStatus());
+    }
+
+    @Test
+    public void deniesSourceMapInDeployment() {
+        tester.destroy();
+        tester = new WicketTester(new MockApplication() {
+            @Override
+            public RuntimeConfigurationType getConfigurationType() {
+                return RuntimeConfigurationType.DEPLOYMENT;
+            }
+        });
+
+        try {
+            tester.executeUrl(SOURCE_MAP);
+            fail();
+        } catch (PackageResource.PackageResourceBlockedException e) {
+            // the guard denied the source map
+        }
+
+        tester.executeUrl("wicket/resource/com.vaynberg.wicket.select25.Select25AbstractChoice/res/select25.js");
+        assertEquals(HttpServletResponse.SC_OK, tester.getLastResponse().getStatus());
+    }
+
+    private static PackageResource resource(String name) {
+        return new PrecompressedResourceReference(Select25AbstractChoice.class, name).getResource();
+    }
+}
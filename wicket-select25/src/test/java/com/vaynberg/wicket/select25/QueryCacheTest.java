@@ -0,0 +1,206 @@
+package com.vaynberg.wicket.select25;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+/**
+ * Tests admission, eviction and expiration of {@link QueryCache} entries
+ */
+public class QueryCacheTest {
+
+    private static final Duration TTL = Duration.ofMinutes(5);
+
+    @Test
+    public void cachesResultsPerKey() {
+        QueryCache cache = new QueryCache(10, 10000, TTL);
+        QueryCache.Results results = results();
+
+        assertNull(cache.get("p", "a", 0, null));
+        assertTrue(cache.put("p", "a", 0, null, results, 100));
+
+        assertSame(results, cache.get("p", "a", 0, null));
+        assertNull(cache.get("p", "a", 1, null));
+        assertNull(cache.get("p", "a", 0, "token"));
+        assertNull(cache.get("q", "a", 0, null));
+        assertNull(cache.get("p", "b", 0, null));
+        assertEquals(1, cache.getHitCount());
+        assertEquals(5, cache.getMissCount());
+    }
+
+    @Test
+    public void rejectsRareKeyWhenFull() {
+        QueryCache cache = new QueryCache(2, 10000, TTL);
+        request(cache, "a", 3);
+        assertTrue(cache.put("p", "a", 0, null, results(), 100));
+        request(cache, "b", 3);
+        assertTrue(cache.put("p", "b", 0, null, results(), 100));
+
+        // a one-off term does not flush out the popular ones
+        request(cache, "c", 1);
+        assertFalse(cache.put("p", "c", 0, null, results(), 100));
+        assertEquals(1, cache.getRejectionCount());
+        assertEquals(2, cache.size());
+        assertNotNull(cache.get("p", "a", 0, null));
+        assertNotNull(cache.get("p", "b", 0, null));
+    }
+
+    @Test
+    public void evictsLeastRecentlyUsedForFrequentKey() {
+        QueryCache cache = new QueryCache(2, 10000, TTL);
+        request(cache, "a", 3);
+        assertTrue(cache.put("p", "a", 0, null, results(), 100));
+        request(cache, "b", 3);
+        assertTrue(cache.put("p", "b", 0, null, results(), 100));
+
+        request(cache, "c", 5);
+        assertTrue(cache.put("p", "c", 0, null, results(), 100));
+        assertEquals(1, cache.getEvictionCount());
+        assertEquals(2, cache.size());
+        assertNull(cache.get("p", "a", 0, null));
+        assertNotNull(cache.get("p", "b", 0, null));
+        assertNotNull(cache.get("p", "c", 0, null));
+    }
+
+    @Test
+    public void boundedByWeight() {
+        QueryCache cache = new QueryCache(10, 1000, TTL);
+        assertFalse(cache.put("p", "huge", 0, null, results(), 1001));
+
+        request(cache, "a", 1);
+        assertTrue(cache.put("p", "a", 0, null, results(), 600));
+        request(cache, "b", 2);
+        assertTrue(cache.put("p", "b", 0, null, results(), 600));
+
+        assertEquals(1, cache.size());
+        assertEquals(600, cache.getWeight());
+        assertNull(cache.get("p", "a", 0, null));
+    }
+
+    @Test
+    public void reweighsEncodedResults() {
+        QueryCache cache = new QueryCache(10, 1000, TTL);
+        QueryCache.Results small = results();
+        QueryCache.Results grown = results();
+        assertTrue(cache.put("p", "a", 0, null, small, 100));
+        assertTrue(cache.put("p", "b", 0, null, grown, 100));
+
+        // the estimate was too low, the encoded Json pushes the older entry out
+        grown.encoded(900);
+        assertEquals(964, cache.getWeight());
+        assertEquals(1, cache.size());
+        assertSame(grown, cache.get("p", "b", 0, null));
+
+        // only the first response encoded from the results weighs them
+        grown.encoded(10);
+        assertEquals(964, cache.getWeight());
+    }
+
+    @Test
+    public void expiresAfterTimeToLive() throws InterruptedException {
+        QueryCache cache = new QueryCache(1, 1000, Duration.ofMillis(10));
+        assertTrue(cache.put("p", "a", 0, null, results(), 100));
+        Thread.sleep(50);
+
+        assertNull(cache.get("p", "a", 0, null));
+        assertEquals(1, cache.getExpirationCount());
+        assertEquals(0, cache.size());
+        assertEquals(0, cache.getWeight());
+    }
+
+    @Test
+    public void expiredEntriesMakeRoomRegardlessOfFrequency() throws InterruptedException {
+        QueryCache cache = new QueryCache(1, 1000, Duration.ofMillis(10));
+        request(cache, "a", 5);
+        assertTrue(cache.put("p", "a", 0, null, results(), 100));
+        Thread.sleep(50);
+
+        assertTrue(cache.put("p", "b", 0, null, results(), 100));
+        assertEquals(1, cache.getExpirationCount());
+        assertEquals(0, cache.getEvictionCount());
+    }
+
+    @Test
+    public void invalidatesByProviderAndTerm() {
+        QueryCache cache = new QueryCache(10, 10000, TTL);
+        cache.put("p", "a", 0, null, results(), 100);
+        cache.put("p", "a", 1, null, results(), 100);
+        cache.put("p", "b", 0, null, results(), 100);
+        cache.put("q", "a", 0, null, results(), 100);
+
+        cache.invalidate("p", "a");
+        assertEquals(2, cache.size());
+        assertEquals(200, cache.getWeight());
+
+        cache.invalidate("p");
+        assertEquals(1, cache.size());
+        assertNotNull(cache.get("q", "a", 0, null));
+
+        cache.invalidateAll();
+        assertEquals(0, cache.size());
+        assertEquals(0, cache.getWeight());
+    }
+
+    @Test
+    public void segmentedCacheStaysWithinBoundsUnderConcurrentUse() throws Exception {
+        final QueryCache cache = new QueryCache(1024, 1024L * 1024, TTL);
+        final int threads = 8;
+        final int lookups = 20000;
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            List<Future<?>> futures = new ArrayList<Future<?>>();
+            for (int t = 0; t < threads; t++) {
+                final int seed = t;
+                futures.add(executor.submit(new Runnable() {
+                    @Override
+                    public void run() {
+                        Random random = new Random(seed);
+                        for (int i = 0; i < lookups; i++) {
+                            // a skewed distribution of terms, some popular and many rare
+                            String term = String.valueOf((int) Math.abs(random.nextGaussian() * 2000));
+                            if (cache.get("p", term, 0, null) == null) {
+                                cache.put("p", term, 0, null, results(), 512);
+                            }
+                        }
+                    }
+                }));
+            }
+            for (Future<?> future : futures) {
+                future.get(30, TimeUnit.SECONDS);
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+
+        assertEquals((long) threads * lookups, cache.getHitCount() + cache.getMissCount());
+        assertTrue(cache.size() <= 1024);
+        assertTrue(cache.getWeight() <= 1024L * 1024);
+        assertEquals(cache.size() * 512L, cache.getWeight());
+        assertTrue(cache.getHitRate() > 0);
+    }
+
+    private static void request(QueryCache cache, String term, int times) {
+        for (int i = 0; i < times; i++) {
+            cache.get("p", term, 0, null);
+        }
+    }
+
+    private static QueryCache.Results results() {
+        return new QueryCache.Results(Collections.singletonList("choice"), false);
+    }
+}
@@ -0,0 +1,148 @@
+package com.vaynberg.wicket.select25;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.wicket.IInitializer;
+import org.apache.wicket.mock.MockWebRequest;
+import org.apache.wicket.request.Request;
+import org.apache.wicket.request.Url;
+import org.apache.wicket.request.cycle.IRequestCycleListener;
+import org.apache.wicket.util.tester.WicketTester;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests superseding and cancelling of queries by {@link QueryCancellations}
+ */
+public class QueryCancellationsTest {
+
+    private WicketTester tester;
+
+    @Before
+    public void before() {
+        tester = new WicketTester();
+    }
+
+    @After
+    public void after() {
+        tester.destroy();
+    }
+
+    @Test
+    public void installedWhenApplicationInitializes() {
+        boolean initialized = false;
+        for (IInitializer initializer : tester.getApplication().getInitializers()) {
+            initialized |= initializer instanceof Select25Initializer;
+        }
+        assertTrue(initialized);
+
+        int listeners = countListeners();
+        QueryCancellations cancellations = QueryCancellations.get(tester.getApplication());
+        assertSame(cancellations, QueryCancellations.install(tester.getApplication()));
+        assertEquals(listeners, countListeners());
+    }
+
+    @Test
+    public void newerQuerySupersedesRunningQuery() {
+        QueryCancellations cancellations = QueryCancellations.get(tester.getApplication());
+        final AtomicInteger callbacks = new AtomicInteger();
+
+        QueryCancellation first = cancellations.start(query("a", 1));
+        first.onCancel(callbacks::incrementAndGet);
+        QueryCancellation second = cancellations.start(query("a", 2));
+
+        assertEquals(QueryCancellation.Reason.SUPERSEDED, first.getReason());
+        assertFalse(second.isCancelled());
+        assertEquals(1, callbacks.get());
+        assertEquals(1, cancellations.getCancelledCount(QueryCancellation.Reason.SUPERSEDED));
+    }
+
+    @Test
+    public void olderQueryArrivingLateIsCancelled() {
+        QueryCancellations cancellations = QueryCancellations.get(tester.getApplication());
+
+        QueryCancellation newer = cancellations.start(query("a", 2));
+        QueryCancellation older = cancellations.start(query("a", 1));
+
+        assertFalse(newer.isCancelled());
+        assertEquals(QueryCancellation.Reason.SUPERSEDED, older.getReason());
+    }
+
+    @Test
+    public void requestSupersedesBeforeItRuns() {
+        QueryCancellations cancellations = QueryCancellations.get(tester.getApplication());
+
+        QueryCancellation running = cancellations.start(query("a", 1));
+        cancellations.supersede(query("a", 1));
+        assertFalse(running.isCancelled());
+
+        cancellations.supersede(query("a", 2));
+        assertEquals(QueryCancellation.Reason.SUPERSEDED, running.getReason());
+    }
+
+    @Test
+    public void queriesOfOtherControlsAreNotCancelled() {
+        QueryCancellations cancellations = QueryCancellations.get(tester.getApplication());
+
+        QueryCancellation a = cancellations.start(query("a", 1));
+        QueryCancellation b = cancellations.start(query("b", 2));
+        QueryCancellation anonymous = cancellations.start(new MockWebRequest(Url.parse("?term=x")));
+        cancellations.supersede(query("c", 5));
+
+        assertFalse(a.isCancelled());
+        assertFalse(b.isCancelled());
+        assertFalse(anonymous.isCancelled());
+        assertEquals(0, cancellations.getCancelledCount());
+    }
+
+    @Test
+    public void finishedQueryIsNotCancelled() {
+        QueryCancellations cancellations = QueryCancellations.get(tester.getApplication());
+        final AtomicInteger callbacks = new AtomicInteger();
+
+        QueryCancellation first = cancellations.start(query("a", 1));
+        first.onCancel(callbacks::incrementAndGet);
+        cancellations.finish(first);
+        cancellations.start(query("a", 2));
+
+        assertNull(first.getReason());
+        assertFalse(first.cancel(QueryCancellation.Reason.TIMEOUT));
+        assertEquals(0, callbacks.get());
+        assertEquals(0, cancellations.getCancelledCount());
+    }
+
+    @Test
+    public void callbackOfCancelledQueryRunsImmediately() {
+        QueryCancellations cancellations = QueryCancellations.get(tester.getApplication());
+        final AtomicInteger callbacks = new AtomicInteger();
+
+        QueryCancellation query = cancellations.start(query("a", 1));
+        assertTrue(query.cancel(QueryCancellation.Reason.DISCONNECTED));
+        assertFalse(query.cancel(QueryCancellation.Reason.TIMEOUT));
+        query.onCancel(callbacks::incrementAndGet);
+
+        assertEquals(1, callbacks.get());
+        assertEquals(QueryCancellation.Reason.DISCONNECTED, query.getReason());
+        assertEquals(1, cancellations.getCancelledCount(QueryCancellation.Reason.DISCONNECTED));
+    }
+
+    private static Request query(String control, long sequence) {
+        return new MockWebRequest(Url.parse("?term=x&" + QueryCancellations.ID_PARAMETER + "=" + control + "&"
+            + QueryCancellations.SEQUENCE_PARAMETER + "=" + sequence));
+    }
+
+    private int countListeners() {
+        int count = 0;
+        for (IRequestCycleListener listener : tester.getApplication().getRequestCycleListeners()) {
+            count++;
+        }
+        return count;
+    }
+}
@@ -0,0 +1,372 @@
+package com.vaynberg.wicket.select25;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.DispatcherType;
+import javax.servlet.ServletContext;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletRequestWrapper;
+import javax.servlet.http.HttpServletResponse;
+
+import org.apache.wicket.mock.MockWebResponse;
+import org.apache.wicket.protocol.http.servlet.ServletWebRequest;
+import org.apache.wicket.util.tester.WicketTester;
+import org.json.JSONObject;
+import org.json.JSONWriter;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests queries that run on a {@link QueryExecutor}: deadlines, rejections and async dispatch
+ */
+public class QueryExecutorTest {
+
+    private static final String URL = "wicket/resource/com.vaynberg.wicket.select25.ChoiceProviderResource/choices"
+        + "?provider=slow&term=a";
+
+    private WicketTester tester;
+
+    private SlowProvider provider;
+
+    @Before
+    public void before() {
+        tester = new WicketTester();
+        provider = new SlowProvider();
+        ChoiceProviderRegistry.get(tester.getApplication()).register("slow", provider);
+    }
+
+    @After
+    public void after() {
+        provider.release.countDown();
+        tester.destroy();
+    }
+
+    @Test
+    public void respondsWithPartialResultsAtDeadline() {
+        QueryExecutor.set(tester.getApplication(), new QueryExecutor(Duration.ofMillis(200)));
+        tester.executeUrl(URL);
+
+        assertEquals(HttpServletResponse.SC_OK, tester.getLastResponse().getStatus());
+        JSONObject json = new JSONObject(tester.getLastResponse().getDocument());
+        assertEquals(2, json.getJSONArray("values").length());
+        assertEquals("a1", json.getJSONArray("values").getJSONObject(0).getString("id"));
+        assertTrue(json.getBoolean("more"));
+        assertTrue(json.isNull("token"));
+    }
+
+    @Test
+    public void respondsWithCompleteResultsBeforeDeadline() {
+        provider.release.countDown();
+        QueryExecutor.set(tester.getApplication(), new QueryExecutor(Duration.ofSeconds(10)));
+        tester.executeUrl(URL);
+
+        JSONObject json = new JSONObject(tester.getLastResponse().getDocument());
+        assertEquals(3, json.getJSONArray("values").length());
+        assertFalse(json.getBoolean("more"));
+        assertEquals("next", json.getString("token"));
+    }
+
+    @Test
+    public void failsAtDeadlineWhenConfigured() {
+        QueryExecutor.set(tester.getApplication(), new QueryExecutor(QueryExecutor.newDefaultExecutorService(),
+            Duration.ofMillis(200), QueryExecutor.OnDeadline.ERROR));
+        tester.executeUrl(URL);
+
+        assertEquals(HttpServletResponse.SC_SERVICE_UNAVAILABLE, tester.getLastResponse().getStatus());
+    }
+
+    @Test
+    public void rejectedQueryFails() {
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        executor.shutdown();
+        QueryExecutor.set(tester.getApplication(),
+            new QueryExecutor(executor, Duration.ofSeconds(10), QueryExecutor.OnDeadline.PARTIAL));
+        tester.executeUrl(URL);
+
+        assertEquals(HttpServletResponse.SC_SERVICE_UNAVAILABLE, tester.getLastResponse().getStatus());
+    }
+
+    @Test
+    public void dispatchesAsyncQueryAtDeadline() throws Exception {
+        QueryExecutor.set(tester.getApplication(), new QueryExecutor(Duration.ofMillis(200)));
+        AsyncRequest request = new AsyncRequest(tester.getRequest());
+
+        assertTrue(QueryHandler.startAsync(provider, new ServletWebRequest(request, ""),
+            QueryHandler.valueWriter(provider), ChoiceProviderResource.class));
+        assertTrue(request.dispatched.await(10, TimeUnit.SECONDS));
+
+        // the container dispatches the request again, which writes the outcome
+        request.dispatcherType = DispatcherType.ASYNC;
+        QueryHandler.Outcome<?> outcome = QueryHandler.takeOutcome(request);
+        assertNotNull(outcome);
+        assertNull(QueryHandler.takeOutcome(request));
+
+        JSONObject json = new JSONObject(write(outcome, request));
+        assertEquals(2, json.getJSONArray("values").length());
+        assertTrue(json.getBoolean("more"));
+    }
+
+    @Test
+    public void dispatchesCompletedAsyncQuery() throws Exception {
+        provider.release.countDown();
+        QueryExecutor.set(tester.getApplication(), new QueryExecutor(Duration.ofSeconds(10)));
+        AsyncRequest request = new AsyncRequest(tester.getRequest());
+
+        assertTrue(QueryHandler.startAsync(provider, new ServletWebRequest(request, ""),
+            QueryHandler.valueWriter(provider), ChoiceProviderResource.class));
+        assertTrue(request.dispatched.await(10, TimeUnit.SECONDS));
+        // the deadline timer stops once the async request completes
+        request.complete();
+
+        request.dispatcherType = DispatcherType.ASYNC;
+        JSONObject json = new JSONObject(write(QueryHandler.takeOutcome(request), request));
+        assertEquals(3, json.getJSONArray("values").length());
+        assertEquals("next", json.getString("token"));
+    }
+
+    @Test
+    public void doesNotStartAsyncWithoutExecutor() {
+        AsyncRequest request = new AsyncRequest(tester.getRequest());
+        assertFalse(QueryHandler.startAsync(provider, new ServletWebRequest(request, ""),
+            QueryHandler.valueWriter(provider), ChoiceProviderResource.class));
+        assertEquals(0, request.listeners.size());
+    }
+
+    @Test
+    public void replacedExecutorIsShutDown() {
+        List<String> shutdown = new ArrayList<String>();
+        int listeners = count(tester.getApplication().getApplicationListeners().iterator());
+
+        QueryExecutor first = new RecordingExecutor(shutdown, "first");
+        QueryExecutor second = new RecordingExecutor(shutdown, "second");
+        QueryExecutor.set(tester.getApplication(), first);
+        QueryExecutor.set(tester.getApplication(), first);
+        assertTrue(shutdown.isEmpty());
+        QueryExecutor.set(tester.getApplication(), second);
+        assertEquals(Arrays.asList("first"), shutdown);
+        assertSame(second, QueryExecutor.get(tester.getApplication()));
+
+        // a single listener shuts down whichever executor is installed when the application is destroyed
+        assertEquals(listeners + 1, count(tester.getApplication().getApplicationListeners().iterator()));
+        tester.destroy();
+        tester = new WicketTester();
+        assertEquals(Arrays.asList("first", "second"), shutdown);
+    }
+
+    private String write(QueryHandler.Outcome<?> outcome, HttpServletRequest request) {
+        @SuppressWarnings("unchecked")
+        QueryHandler.Outcome<Object> choices = (QueryHandler.Outcome<Object>) outcome;
+        MockWebResponse response = new MockWebResponse();
+        QueryHandler.write(choices, new ServletWebRequest(request, ""), response,
+            QueryHandler.valueWriter((ChoiceProvider<Object>) (ChoiceProvider<?>) provider),
+            ChoiceProviderResource.class);
+        return new String(response.getBinaryResponse(), StandardCharsets.UTF_8);
+    }
+
+    private static int count(Iterator<?> iterator) {
+        int count = 0;
+        while (iterator.hasNext()) {
+            iterator.next();
+            count++;
+        }
+        return count;
+    }
+
+    /**
+     * Produces two choices right away and a third once released, or stops when the query is cancelled
+     */
+    private static class SlowProvider extends StreamingChoiceProvider<String> {
+        final CountDownLatch release = new CountDownLatch(1);
+
+        @Override
+        public void query(String query, int page, String token, ChoiceSink<String> sink) {
+            sink.accept(query + 1);
+            sink.accept(query + 2);
+            try {
+                if (!release.await(10, TimeUnit.SECONDS)) {
+                    return;
+                }
+            } catch (InterruptedException e) {
+                return;
+            }
+            sink.accept(query + 3);
+            sink.setHasMore(false);
+            sink.setNextToken("next");
+        }
+
+        @Override
+        public void toJson(String choice, JSONWriter writer) {
+            writer.key("id").value(choice).key("text").value(choice);
+        }
+
+        @Override
+        public Collection<String> toChoices(String[] ids) {
+            return Arrays.asList(ids);
+        }
+    }
+
+    /**
+     * Executor that records being shut down
+     */
+    private static class RecordingExecutor extends QueryExecutor {
+        private final List<String> shutdown;
+        private final String name;
+
+        RecordingExecutor(List<String> shutdown, String name) {
+            super(Duration.ofSeconds(1));
+            this.shutdown = shutdown;
+            this.name = name;
+        }
+
+        @Override
+        public void shutdown() {
+            super.shutdown();
+            shutdown.add(name);
+        }
+    }
+
+    /**
+     * Request of a container that supports async processing
+     */
+    private static class AsyncRequest extends HttpServletRequestWrapper implements AsyncContext {
+        final CountDownLatch dispatched = new CountDownLatch(1);
+        final List<AsyncListener> listeners = new ArrayList<AsyncListener>();
+        final Map<String, Object> attributes = Collections.synchronizedMap(new HashMap<String, Object>());
+        volatile DispatcherType dispatcherType = DispatcherType.REQUEST;
+
+        AsyncRequest(HttpServletRequest request) {
+            super(request);
+        }
+
+        @Override
+        public boolean isAsyncSupported() {
+            return true;
+        }
+
+        @Override
+        public DispatcherType getDispatcherType() {
+            return dispatcherType;
+        }
+
+        @Override
+        public AsyncContext startAsync() {
+            return this;
+        }
+
+        @Override
+        public Object getAttribute(String name) {
+            return attributes.get(name);
+        }
+
+        @Override
+        public void setAttribute(String name, Object value) {
+            attributes.put(name, value);
+        }
+
+        @Override
+        public void removeAttribute(String name) {
+            attributes.remove(name);
+        }
+
+        @Override
+        public ServletRequest getRequest() {
+            return this;
+        }
+
+        @Override
+        public ServletResponse getResponse() {
+            return null;
+        }
+
+        @Override
+        public boolean hasOriginalRequestAndResponse() {
+            return true;
+        }
+
+        @Override
+        public void dispatch() {
+            dispatched.countDown();
+        }
+
+        @Override
+        public void dispatch(String path) {
+            dispatch();
+        }
+
+        @Override
+        public void dispatch(ServletContext context, String path) {
+            dispatch();
+        }
+
+        @Override
+        public void complete() {
+            synchronized (listeners) {
+                for (AsyncListener listener : listeners) {
+                    try {
+                        listener.onComplete(new AsyncEvent(this));
+                    } catch (IOException e) {
+                        throw new RuntimeException(e);
+                    }
+                }
+            }
+        }
+
+        @Override
+        public void start(Runnable run) {
+            run.run();
+        }
+
+        @Override
+        public void addListener(AsyncListener listener) {
+            synchronized (listeners) {
+                listeners.add(listener);
+            }
+        }
+
+        @Override
+        public void addListener(AsyncListener listener, ServletRequest request, ServletResponse response) {
+            addListener(listener);
+        }
+
+        @Override
+        public <L extends AsyncListener> L createListener(Class<L> type) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void setTimeout(long timeout) {
+        }
+
+        @Override
+        public long getTimeout() {
+            return 0;
+        }
+    }
+}
@@ -0,0 +1,251 @@
+package com.vaynberg.wicket.select25;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.InflaterInputStream;
+
+import org.apache.wicket.mock.MockWebResponse;
+import org.apache.wicket.protocol.http.mock.MockHttpServletResponse;
+import org.apache.wicket.util.tester.WicketTester;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests negotiation, streaming compression and reuse of compressed responses by {@link ResponseCompression}
+ */
+public class ResponseCompressionTest {
+
+    private static final List<String> ENCODINGS = Arrays.asList(ResponseCompression.GZIP, ResponseCompression.DEFLATE);
+
+    private static final String RESOURCE = "wicket/resource/com.vaynberg.wicket.select25.ChoiceProviderResource/choices"
+        + "?provider=cached&term=a";
+
+    private WicketTester tester;
+
+    @Before
+    public void before() {
+        tester = new WicketTester();
+    }
+
+    @After
+    public void after() {
+        tester.destroy();
+    }
+
+    @Test
+    public void negotiatesPreferredAcceptedCoding() {
+        assertNull(ResponseCompression.negotiate(null, ENCODINGS));
+        assertNull(ResponseCompression.negotiate("identity", ENCODINGS));
+        assertEquals("gzip", ResponseCompression.negotiate("gzip", ENCODINGS));
+        assertEquals("gzip", ResponseCompression.negotiate("deflate, GZIP", ENCODINGS));
+        assertEquals("deflate", ResponseCompression.negotiate("br, deflate;q=0.5", ENCODINGS));
+        assertNull(ResponseCompression.negotiate("gzip", Arrays.asList(ResponseCompression.DEFLATE)));
+    }
+
+    @Test
+    public void refusesCodingsWithZeroQuality() {
+        assertEquals("deflate", ResponseCompression.negotiate("gzip;q=0, deflate", ENCODINGS));
+        assertEquals("deflate", ResponseCompression.negotiate("gzip; q=0.0, deflate;q=0.1", ENCODINGS));
+        assertNull(ResponseCompression.negotiate("gzip;q=0, deflate;q=0", ENCODINGS));
+        // an unparseable quality refuses the coding
+        assertNull(ResponseCompression.negotiate("gzip;q=high", ENCODINGS));
+    }
+
+    @Test
+    public void wildcardAcceptsCodingsNotRefused() {
+        assertEquals("gzip", ResponseCompression.negotiate("*", ENCODINGS));
+        assertEquals("deflate", ResponseCompression.negotiate("gzip;q=0, *", ENCODINGS));
+        assertEquals("deflate", ResponseCompression.negotiate("*, gzip;q=0", ENCODINGS));
+        assertNull(ResponseCompression.negotiate("*, gzip;q=0, deflate;q=0", ENCODINGS));
+        assertNull(ResponseCompression.negotiate("*;q=0", ENCODINGS));
+        // a coding named explicitly is preferred over the wildcard
+        assertEquals("deflate", ResponseCompression.negotiate("deflate, *;q=0.1", ENCODINGS));
+    }
+
+    @Test
+    public void writesResponsesBelowThresholdAsTheyAre() throws IOException {
+        ResponseCompression compression = new ResponseCompression(100, Deflater.DEFAULT_COMPRESSION, "gzip");
+        byte[] json = json(100);
+        MockWebResponse response = new MockWebResponse();
+
+        CompressingOutputStream out = new CompressingOutputStream(response, compression, "gzip");
+        out.write(json, 0, 60);
+        out.write(json, 60, 40);
+        assertEquals(0, response.getBinaryResponse() == null ? 0 : response.getBinaryResponse().length);
+        out.finish();
+
+        assertNull(response.getHeader("Content-Encoding"));
+        assertArrayEquals(json, response.getBinaryResponse());
+        assertEquals(100, out.getByteCount());
+        assertCounters(compression, 1, 0, 100, 100);
+    }
+
+    @Test
+    public void compressesOncePastThreshold() throws IOException {
+        for (String encoding : ENCODINGS) {
+            ResponseCompression compression = new ResponseCompression(100, Deflater.DEFAULT_COMPRESSION, encoding);
+            byte[] json = json(5000);
+            MockWebResponse response = new MockWebResponse();
+
+            CompressingOutputStream out = new CompressingOutputStream(response, compression, encoding);
+            out.write(json, 0, 60);
+            assertNull(response.getHeader("Content-Encoding"));
+            // the write that crosses the threshold switches to the compressed stream
+            out.write(json, 60, 41);
+            assertEquals(encoding, response.getHeader("Content-Encoding"));
+            out.write(json, 101, json.length - 101);
+            out.finish();
+            out.finish();
+
+            byte[] body = response.getBinaryResponse();
+            assertArrayEquals(json, decompress(body, encoding));
+            assertEquals(body.length, out.getByteCount());
+            assertTrue(body.length < json.length);
+            assertCounters(compression, 1, 1, json.length, body.length);
+        }
+    }
+
+    @Test
+    public void writesIdentityWithoutBuffering() throws IOException {
+        ResponseCompression compression = new ResponseCompression();
+        byte[] json = json(10);
+        MockWebResponse response = new MockWebResponse();
+
+        CompressingOutputStream out = new CompressingOutputStream(response, compression, null);
+        out.write(json, 0, json.length);
+        assertArrayEquals(json, response.getBinaryResponse());
+        out.finish();
+        assertCounters(compression, 1, 0, 10, 10);
+    }
+
+    @Test
+    public void reusesCompressedBodyOfCachedResults() throws IOException {
+        CountingCompression compression = new CountingCompression();
+        ResponseCompression.set(tester.getApplication(), compression);
+        ManyChoices delegate = new ManyChoices();
+        ChoiceProviderRegistry.get(tester.getApplication()).register("cached",
+            new CachingChoiceProvider<String>(delegate, "many"));
+
+        MockHttpServletResponse first = query("gzip");
+        assertEquals("gzip", first.getHeader("Content-Encoding"));
+        byte[] json = decompress(first.getBinaryContent(), "gzip");
+
+        MockHttpServletResponse second = query("gzip");
+        assertArrayEquals(first.getBinaryContent(), second.getBinaryContent());
+        assertEquals(1, delegate.queries.get());
+        assertEquals(1, compression.encoded.get());
+
+        // every content coding is encoded once
+        MockHttpServletResponse identity = query(null);
+        assertNull(identity.getHeader("Content-Encoding"));
+        assertArrayEquals(json, identity.getBinaryContent());
+        query(null);
+        assertEquals(2, compression.encoded.get());
+
+        long wire = 2L * first.getBinaryContent().length + 2L * json.length;
+        assertCounters(compression, 4, 2, 4L * json.length, wire);
+    }
+
+    private MockHttpServletResponse query(String acceptEncoding) {
+        if (acceptEncoding != null) {
+            tester.getRequest().setHeader("Accept-Encoding", acceptEncoding);
+        }
+        tester.executeUrl(RESOURCE);
+        return tester.getLastResponse();
+    }
+
+    private static void assertCounters(ResponseCompression compression, long responses, long compressed, long json,
+        long wire) {
+        assertEquals(responses, compression.getResponseCount());
+        assertEquals(compressed, compression.getCompressedCount());
+        assertEquals(json, compression.getJsonBytes());
+        assertEquals(wire, compression.getWireBytes());
+    }
+
+    /**
+     * @return Json-like bytes that compress well
+     */
+    private static byte[] json(int length) {
+        Random random = new Random(length);
+        byte[] json = new byte[length];
+        for (int i = 0; i < length; i++) {
+            json[i] = (byte) "{\"id\":\"abc\"},".charAt(random.nextInt(13));
+        }
+        return json;
+    }
+
+    private static byte[] decompress(byte[] body, String encoding) throws IOException {
+        InputStream in = ResponseCompression.GZIP.equals(encoding) ? new GZIPInputStream(new ByteArrayInputStream(body))
+            : new InflaterInputStream(new ByteArrayInputStream(body));
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[1024];
+        for (int read; (read = in.read(buffer)) > 0;) {
+            out.write(buffer, 0, read);
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * Compression that counts the complete responses it encodes
+     */
+    private static class CountingCompression extends ResponseCompression {
+        final AtomicInteger encoded = new AtomicInteger();
+
+        CountingCompression() {
+            super(0, Deflater.DEFAULT_COMPRESSION, GZIP);
+        }
+
+        @Override
+        Encoded encode(byte[] json, String encoding) {
+            encoded.incrementAndGet();
+            return super.encode(json, encoding);
+        }
+    }
+
+    /**
+     * Provider with a hundred choices for every query
+     */
+    private static class ManyChoices extends TextChoiceProvider<String> {
+        private static final long serialVersionUID = 1L;
+
+        final AtomicInteger queries = new AtomicInteger();
+
+        @Override
+        protected String getDisplayText(String choice) {
+            return "Choice " + choice;
+        }
+
+        @Override
+        protected Object getId(String choice) {
+            return choice;
+        }
+
+        @Override
+        public void query(String query, int page, Response<String> response) {
+            queries.incrementAndGet();
+            for (int i = 0; i < 100; i++) {
+                response.add(query + i);
+            }
+        }
+
+        @Override
+        public Collection<String> toChoices(String[] ids) {
+            return Arrays.asList(ids);
+        }
+    }
+}
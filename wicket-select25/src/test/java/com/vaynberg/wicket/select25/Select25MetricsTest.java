@@ -0,0 +1,85 @@
+package com.vaynberg.wicket.select25;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.Arrays;
+import java.util.Collection;
+
+import org.apache.wicket.util.tester.WicketTester;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests that metrics of decorated providers are tagged with the class of the provider they decorate
+ */
+public class Select25MetricsTest {
+
+    private WicketTester tester;
+
+    private InMemoryMetrics metrics;
+
+    @Before
+    public void before() {
+        tester = new WicketTester();
+        metrics = new InMemoryMetrics();
+        Select25Metrics.set(tester.getApplication(), metrics);
+    }
+
+    @After
+    public void after() {
+        tester.destroy();
+    }
+
+    @Test
+    public void decoratorsReportClassOfDecoratedProvider() {
+        Names names = new Names();
+        ChoiceProvider<String> decorated = new CachingChoiceProvider<String>(
+            new CoalescingChoiceProvider<String>(names, "names", false), "names");
+        ChoiceProviderRegistry.get(tester.getApplication()).register("names", decorated);
+
+        assertEquals(Names.class, names.getMetricsClass());
+        assertEquals(Names.class, decorated.getMetricsClass());
+        assertEquals(Names.class, new SharedChoiceProvider<String>("names").getMetricsClass());
+    }
+
+    @Test
+    public void queriesOfDecoratedProviderAreTaggedWithItsClass() {
+        ChoiceProviderRegistry.get(tester.getApplication()).register("names",
+            new CachingChoiceProvider<String>(new Names(), "names"));
+
+        tester.executeUrl("wicket/resource/com.vaynberg.wicket.select25.ChoiceProviderResource/choices"
+            + "?provider=names&term=a");
+
+        assertEquals(1, metrics.get(Select25Metrics.Timer.QUERY, ChoiceProviderResource.class, Names.class).getCount());
+        assertEquals(0, metrics.get(Select25Metrics.Timer.QUERY, null, CachingChoiceProvider.class).getCount());
+    }
+
+    /**
+     * Provider of two names per query
+     */
+    private static class Names extends TextChoiceProvider<String> {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected String getDisplayText(String choice) {
+            return choice;
+        }
+
+        @Override
+        protected Object getId(String choice) {
+            return choice;
+        }
+
+        @Override
+        public void query(String query, int page, Response<String> response) {
+            response.add(query + 1);
+            response.add(query + 2);
+        }
+
+        @Override
+        public Collection<String> toChoices(String[] ids) {
+            return Arrays.asList(ids);
+        }
+    }
+}
@@ -0,0 +1,164 @@
+package com.vaynberg.wicket.select25;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+
+import org.apache.wicket.MarkupContainer;
+import org.apache.wicket.feedback.ErrorLevelFeedbackMessageFilter;
+import org.apache.wicket.feedback.FeedbackMessage;
+import org.apache.wicket.markup.IMarkupResourceStreamProvider;
+import org.apache.wicket.markup.html.WebPage;
+import org.apache.wicket.markup.html.form.Form;
+import org.apache.wicket.model.Model;
+import org.apache.wicket.model.PropertyModel;
+import org.apache.wicket.util.resource.IResourceStream;
+import org.apache.wicket.util.resource.StringResourceStream;
+import org.apache.wicket.util.tester.FormTester;
+import org.apache.wicket.util.tester.WicketTester;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests submissions of the changes of a {@link Select25MultiChoice} selection
+ */
+public class Select25MultiChoiceTest {
+
+    private WicketTester tester;
+
+    @Before
+    public void before() {
+        tester = new WicketTester();
+    }
+
+    @After
+    public void after() {
+        tester.destroy();
+    }
+
+    @Test
+    public void parsesDelta() {
+        Select25MultiChoice.Delta delta = Select25MultiChoice.Delta.parse("{\"+\":[\"a,b\",\"c\"],\"-\":[\"1\"]}");
+        assertEquals(Arrays.asList("a,b", "c"), delta.added);
+        assertEquals(Collections.singletonList("1"), delta.removed);
+
+        delta = Select25MultiChoice.Delta.parse(" {\"-\":[\"1\",\"1\"]} ");
+        assertTrue(delta.added.isEmpty());
+        assertEquals(Arrays.asList("1", "1"), delta.removed);
+    }
+
+    @Test
+    public void emptyInputChangesNothing() {
+        for (String input : new String[] {null, "", "{}"}) {
+            Select25MultiChoice.Delta delta = Select25MultiChoice.Delta.parse(input);
+            assertNotNull(input, delta);
+            assertTrue(input, delta.added.isEmpty());
+            assertTrue(input, delta.removed.isEmpty());
+        }
+    }
+
+    @Test
+    public void rejectsMalformedDelta() {
+        String[] inputs = {
+            "garbage",
+            "1,2",
+            "[\"1\"]",
+            "{\"+\":[\"1\"]",
+            "{\"+\":[\"1\"]}x",
+            "{\"+\":[\"1\"]}{\"-\":[\"2\"]}",
+            "{\"+\":\"1\"}",
+            "{\"-\":{\"id\":\"1\"}}",
+            "{\"+\":[1]}",
+            "{\"+\":[null]}",
+            "{\"-\":[[\"1\"]]}",
+            "{\"+\":[\"1\"],\"+\":[\"2\"]}",
+        };
+        for (String input : inputs) {
+            assertNull(input, Select25MultiChoice.Delta.parse(input));
+        }
+    }
+
+    @Test
+    public void appliesSubmittedDelta() {
+        tester.startPage(DeltaPage.class);
+        FormTester form = tester.newFormTester("form");
+        form.setValue("values", "{\"+\":[\"4\"],\"-\":[\"2\"]}");
+        form.submit();
+
+        assertEquals(Arrays.asList("1", "3", "4"), ((DeltaPage) tester.getLastRenderedPage()).values);
+    }
+
+    @Test
+    public void malformedDeltaFailsConversion() {
+        tester.startPage(DeltaPage.class);
+        FormTester form = tester.newFormTester("form");
+        form.setValue("values", "{\"+\":\"4\"}");
+        form.submit();
+
+        assertEquals(Arrays.asList("1", "2", "3"), ((DeltaPage) tester.getLastRenderedPage()).values);
+        ErrorLevelFeedbackMessageFilter errors = new ErrorLevelFeedbackMessageFilter(FeedbackMessage.ERROR);
+        assertEquals(1, tester.getFeedbackMessages(errors).size());
+    }
+
+    /**
+     * Page with a multi choice that submits the changes of its selection
+     */
+    public static class DeltaPage extends WebPage implements IMarkupResourceStreamProvider {
+        private static final long serialVersionUID = 1L;
+
+        Collection<String> values = new ArrayList<String>(Arrays.asList("1", "2", "3"));
+
+        public DeltaPage() {
+            Form<Void> form = new Form<Void>("form");
+            add(form);
+            form.add(new Select25MultiChoice<String>("values", new PropertyModel<Collection<String>>(this, "values"),
+                new IdProvider(), Model.of("values"), Model.of("combobox")) {
+                private static final long serialVersionUID = 1L;
+
+                @Override
+                protected boolean isDeltaSubmission() {
+                    return true;
+                }
+            });
+        }
+
+        @Override
+        public IResourceStream getMarkupResourceStream(MarkupContainer container, Class<?> containerClass) {
+            return new StringResourceStream("<html><head></head><body><form wicket:id='form'>"
+                + "<input type='hidden' wicket:id='values'/></form></body></html>");
+        }
+    }
+
+    /**
+     * Provider whose choices are their ids
+     */
+    private static class IdProvider extends TextChoiceProvider<String> {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected String getDisplayText(String choice) {
+            return choice;
+        }
+
+        @Override
+        protected Object getId(String choice) {
+            return choice;
+        }
+
+        @Override
+        public void query(String query, int page, Response<String> response) {
+        }
+
+        @Override
+        public Collection<String> toChoices(String[] ids) {
+            return Arrays.asList(ids);
+        }
+    }
+}
@@ -0,0 +1,247 @@
+package com.vaynberg.wicket.select25;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.wicket.MarkupContainer;
+import org.apache.wicket.feedback.ErrorLevelFeedbackMessageFilter;
+import org.apache.wicket.feedback.FeedbackMessage;
+import org.apache.wicket.markup.IMarkupResourceStreamProvider;
+import org.apache.wicket.markup.html.WebPage;
+import org.apache.wicket.markup.html.form.Form;
+import org.apache.wicket.model.Model;
+import org.apache.wicket.model.PropertyModel;
+import org.apache.wicket.util.resource.IResourceStream;
+import org.apache.wicket.util.resource.StringResourceStream;
+import org.apache.wicket.util.tester.FormTester;
+import org.apache.wicket.util.tester.WicketTester;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests validation, deduplication and delta submissions of the ids of a {@link Select25MultiIdChoice}
+ */
+public class Select25MultiIdChoiceTest {
+
+    /** lookups of labels by all {@link Labels} */
+    private static final AtomicInteger LOOKUPS = new AtomicInteger();
+
+    private WicketTester tester;
+
+    @Before
+    public void before() {
+        tester = new WicketTester();
+        LOOKUPS.set(0);
+    }
+
+    @After
+    public void after() {
+        tester.destroy();
+    }
+
+    @Test
+    public void putsSubmittedIdsWithoutDuplicates() {
+        tester.startPage(new IdPage(false));
+        submit("3,1,3,1");
+
+        assertEquals(Arrays.asList("3", "1"), page().ids);
+        assertTrue(errors().isEmpty());
+    }
+
+    @Test
+    public void unknownIdsFailConversion() {
+        tester.startPage(new IdPage(false));
+        LOOKUPS.set(0);
+        submit("1,gone");
+
+        assertEquals(Arrays.asList("1", "2"), page().ids);
+        assertEquals(1, errors().size());
+        // the submitted ids are rendered again with the labels looked up to validate them, the unknown id is left out
+        assertEquals(1, LOOKUPS.get());
+        String markup = tester.getLastResponseAsString();
+        assertTrue(markup.contains("Label 1"));
+        assertFalse(markup.contains("gone"));
+    }
+
+    @Test
+    public void validationCanBeOverridden() {
+        tester.startPage(new IdPage(false) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            Select25MultiIdChoice<String> newChoice(String id) {
+                return new Select25MultiIdChoice<String>(id, new PropertyModel<Collection<String>>(this, "ids"),
+                    new Provider(), new Labels(), Model.of("values"), Model.of("combobox")) {
+                    private static final long serialVersionUID = 1L;
+
+                    @Override
+                    protected Collection<String> validateIds(Collection<String> ids) {
+                        return Collections.emptyList();
+                    }
+                };
+            }
+        });
+        LOOKUPS.set(0);
+        submit("gone");
+
+        assertEquals(Arrays.asList("gone"), page().ids);
+        assertTrue(errors().isEmpty());
+    }
+
+    @Test
+    public void doesNotRenderIdsWithoutLabel() {
+        IdPage page = new IdPage(false);
+        page.ids = new ArrayList<String>(Arrays.asList("1", "gone", "2"));
+        tester.startPage(page);
+
+        String markup = tester.getLastResponseAsString();
+        assertTrue(markup.contains("{\"id\":\"1\",\"text\":\"Label 1\"},{\"id\":\"2\",\"text\":\"Label 2\"}"));
+        assertFalse(markup.contains("gone"));
+    }
+
+    @Test
+    public void appliesDeltaOfIdsWithCommas() {
+        IdPage page = new IdPage(true);
+        page.ids = new ArrayList<String>(Arrays.asList("a,b", "1"));
+        tester.startPage(page);
+        assertTrue(tester.getLastResponseAsString().contains("\"deltaValue\":true"));
+        LOOKUPS.set(0);
+
+        submit("{\"+\":[\"c,d\",\"1\"],\"-\":[\"a,b\"]}");
+
+        assertEquals(Arrays.asList("1", "c,d"), page().ids);
+        assertTrue(errors().isEmpty());
+    }
+
+    @Test
+    public void validatesOnlyAddedIdsOfDelta() {
+        tester.startPage(new IdPage(true));
+
+        submit("{\"+\":[\"gone\"]}");
+        assertEquals(Arrays.asList("1", "2"), page().ids);
+        assertEquals(1, errors().size());
+
+        submit("{\"-\":[\"1\"]}");
+        assertEquals(Arrays.asList("2"), page().ids);
+    }
+
+    @Test
+    public void malformedDeltaFailsConversion() {
+        tester.startPage(new IdPage(true));
+        submit("1,2,3");
+
+        assertEquals(Arrays.asList("1", "2"), page().ids);
+        assertEquals(1, errors().size());
+    }
+
+    private void submit(String value) {
+        FormTester form = tester.newFormTester("form");
+        form.setValue("ids", value);
+        form.submit();
+    }
+
+    private IdPage page() {
+        return (IdPage) tester.getLastRenderedPage();
+    }
+
+    private List<FeedbackMessage> errors() {
+        return tester.getFeedbackMessages(new ErrorLevelFeedbackMessageFilter(FeedbackMessage.ERROR));
+    }
+
+    /**
+     * Page with an id choice, which submits deltas if asked to
+     */
+    public static class IdPage extends WebPage implements IMarkupResourceStreamProvider {
+        private static final long serialVersionUID = 1L;
+
+        final boolean delta;
+
+        Collection<String> ids = new ArrayList<String>(Arrays.asList("1", "2"));
+
+        IdPage(boolean delta) {
+            this.delta = delta;
+        }
+
+        @Override
+        protected void onInitialize() {
+            super.onInitialize();
+            Form<Void> form = new Form<Void>("form");
+            add(form);
+            form.add(newChoice("ids"));
+        }
+
+        Select25MultiIdChoice<String> newChoice(String id) {
+            return new Select25MultiIdChoice<String>(id, new PropertyModel<Collection<String>>(this, "ids"),
+                new Provider(), new Labels(), Model.of("values"), Model.of("combobox")) {
+                private static final long serialVersionUID = 1L;
+
+                @Override
+                protected boolean isDeltaSubmission() {
+                    return delta;
+                }
+            };
+        }
+
+        @Override
+        public IResourceStream getMarkupResourceStream(MarkupContainer container, Class<?> containerClass) {
+            return new StringResourceStream("<html><head></head><body><form wicket:id='form'>"
+                + "<input type='hidden' wicket:id='ids'/></form></body></html>");
+        }
+    }
+
+    /**
+     * Labels every id except {@code gone}
+     */
+    private static class Labels extends ChoiceLabelProvider {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        public Map<String, String> getLabels(Collection<String> ids) {
+            LOOKUPS.incrementAndGet();
+            Map<String, String> labels = new HashMap<String, String>();
+            for (String id : ids) {
+                if (!"gone".equals(id)) {
+                    labels.put(id, "Label " + id);
+                }
+            }
+            return labels;
+        }
+    }
+
+    /**
+     * Provider whose choices are their ids
+     */
+    private static class Provider extends TextChoiceProvider<String> {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected String getDisplayText(String choice) {
+            return choice;
+        }
+
+        @Override
+        protected Object getId(String choice) {
+            return choice;
+        }
+
+        @Override
+        public void query(String query, int page, Response<String> response) {
+        }
+
+        @Override
+        public Collection<String> toChoices(String[] ids) {
+            return Arrays.asList(ids);
+        }
+    }
+}
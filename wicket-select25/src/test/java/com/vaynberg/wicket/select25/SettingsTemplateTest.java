@@ -0,0 +1,161 @@
+package com.vaynberg.wicket.select25;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import java.time.Duration;
+
+import org.apache.wicket.util.tester.WicketTester;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Checks that settings rendered from a {@link SettingsTemplate} are identical to {@link Settings#toJson()}
+ */
+public class SettingsTemplateTest {
+
+    /** urls and values with characters that are escaped in Json */
+    private static final String[] URLS = {
+        "./wicket/page?1-1.IBehaviorListener.0-form-choice",
+        "./page?q=\"quoted\"&path=a\\b</script> é\t",
+        "",
+    };
+
+    private static final String[] VALUES = {
+        "{\"id\":\"a\\\"b\",\"text\":\"</script>\\u2028é\"}",
+        "null",
+        null,
+    };
+
+    private WicketTester tester;
+
+    @Before
+    public void before() {
+        tester = new WicketTester();
+    }
+
+    @After
+    public void after() {
+        tester.destroy();
+    }
+
+    @Test
+    public void singleSettingsMatchToJson() {
+        SingleSettings settings = settings(new SingleSettings());
+        settings.setLabel("Country \"of\" origin");
+        settings.setAllowClear(true);
+        tune(settings);
+
+        for (String url : URLS) {
+            for (String value : VALUES) {
+                settings.getAjax().setUrl(url);
+                settings.setValue(value);
+                assertEquals(settings.toJson(), SettingsTemplate.toJson(settings));
+            }
+        }
+    }
+
+    @Test
+    public void multiSettingsMatchToJson() {
+        MultiSettings settings = settings(new MultiSettings());
+        settings.setValuesLabel("Values");
+        settings.setComboboxLabel("Pick </values>");
+        settings.setAllowDuplicates(true);
+        settings.setEagerLabels(10);
+        settings.setLabelBatchSize(25);
+        settings.setDeltaValue(true);
+        tune(settings);
+
+        for (String url : URLS) {
+            for (String value : VALUES) {
+                settings.getAjax().setUrl(url);
+                settings.setValues(value == null ? null : "[" + value + "]");
+                assertEquals(settings.toJson(), SettingsTemplate.toJson(settings));
+            }
+        }
+    }
+
+    @Test
+    public void defaultSettingsMatchToJson() {
+        MultiSettings settings = settings(new MultiSettings());
+        settings.setValuesLabel("Values");
+        settings.setComboboxLabel("Combobox");
+        settings.getAjax().setUrl(URLS[1]);
+        assertEquals(settings.toJson(), SettingsTemplate.toJson(settings));
+    }
+
+    @Test
+    public void templateIsKeyedByTunedFields() {
+        SingleSettings settings = settings(new SingleSettings());
+        settings.setLabel("Label");
+        settings.getAjax().setUrl(URLS[0]);
+        SettingsTemplate template = SettingsTemplate.get(settings);
+        assertNotNull(template);
+
+        // the url and value are filled in, they do not make a new template
+        settings.getAjax().setUrl(URLS[1]);
+        settings.setValue(VALUES[0]);
+        assertSame(template, SettingsTemplate.get(settings));
+
+        settings.getAjax().setCacheSize(20);
+        SettingsTemplate cached = SettingsTemplate.get(settings);
+        assertNotSame(template, cached);
+        assertEquals(settings.toJson(), SettingsTemplate.toJson(settings));
+
+        settings.getAjax().setCacheTtl(Duration.ofSeconds(30));
+        assertNotSame(cached, SettingsTemplate.get(settings));
+        assertEquals(settings.toJson(), SettingsTemplate.toJson(settings));
+
+        MultiSettings multi = settings(new MultiSettings());
+        multi.setValuesLabel("Values");
+        multi.setComboboxLabel("Combobox");
+        multi.getAjax().setUrl(URLS[0]);
+        SettingsTemplate eager = SettingsTemplate.get(multi);
+        multi.setEagerLabels(5);
+        assertNotSame(eager, SettingsTemplate.get(multi));
+        assertEquals(multi.toJson(), SettingsTemplate.toJson(multi));
+        multi.setDeltaValue(true);
+        assertEquals(multi.toJson(), SettingsTemplate.toJson(multi));
+    }
+
+    @Test
+    public void subclassesAreNotTemplated() {
+        SingleSettings settings = settings(new SingleSettings() {
+            private static final long serialVersionUID = 1L;
+        });
+        settings.setLabel("Label");
+        settings.getAjax().setUrl(URLS[0]);
+        assertNull(SettingsTemplate.get(settings));
+        assertEquals(settings.toJson(), SettingsTemplate.toJson(settings));
+    }
+
+    private static <S extends Settings> S settings(S settings) {
+        settings.setAjax(new Settings.Ajax());
+        return settings;
+    }
+
+    /**
+     * Sets the ajax fields and other settings away from their defaults
+     */
+    private static void tune(Settings settings) {
+        settings.setContainerStyle("width: 100%");
+        settings.setCssClass("select \"wide\"");
+        settings.setOpenOnFocus(true);
+        settings.setMinimumCharacters(2);
+        settings.setMaxValues(7);
+        settings.setPlaceholder("Type </here>");
+        settings.setDictionary(new Dictionary.DictionaryName("fr"));
+        settings.getAjax().setParams("{\"a\":1}");
+        settings.getAjax().setProcess("function(d){return d;}");
+        settings.getAjax().setOnError("function(e){alert('x');}");
+        settings.getAjax().setCacheable(true);
+        settings.getAjax().setDelay(150);
+        settings.getAjax().setCacheSize(40);
+        settings.getAjax().setCacheTtl(Duration.ofMinutes(2));
+        settings.getAjax().setAbort(true);
+    }
+}
@@ -0,0 +1,186 @@
+package com.vaynberg.wicket.select25.json;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.io.ByteArrayOutputStream;
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+
+import org.json.JSONWriter;
+import org.junit.Test;
+
+/**
+ * Checks that {@link JsonEncoder} produces the same UTF-8 bytes as {@link JSONWriter}
+ */
+public class JsonEncoderTest {
+
+    /** characters that are escaped, multi-byte, or surrogates, possibly unpaired */
+    private static final String ALPHABET = "ab\"\\/<\b\t\n\f\r\u0001\u001f\u007f\u0085\u00a0\u00e9\u2028\u20ac"
+        + "\uffff\ud83d\ude00\ud800\udc00";
+
+    @Test
+    public void matchesJsonWriter() {
+        Random random = new Random(7);
+        for (int i = 0; i < 500; i++) {
+            long seed = random.nextLong();
+            // a tiny buffer drains in the middle of escapes and multi-byte characters
+            int bufferSize = 16 + random.nextInt(64);
+
+            StringWriter expected = new StringWriter();
+            new Document(new Random(seed)).write(new JSONWriter(expected));
+
+            ByteArrayOutputStream actual = new ByteArrayOutputStream();
+            JsonEncoder encoder = new JsonEncoder(bufferSize).reset(actual);
+            new Document(new Random(seed)).write(encoder);
+            encoder.flush();
+
+            assertArrayEquals("seed " + seed, expected.toString().getBytes(StandardCharsets.UTF_8),
+                actual.toByteArray());
+            assertEquals(actual.size(), encoder.getByteCount());
+        }
+    }
+
+    @Test
+    public void reusedAfterReset() {
+        JsonEncoder encoder = new JsonEncoder(16);
+        ByteArrayOutputStream first = new ByteArrayOutputStream();
+        encoder.reset(first).object().key("a").value("\ud83d");
+
+        // the pending high surrogate and the open object are not carried over
+        ByteArrayOutputStream second = new ByteArrayOutputStream();
+        encoder.reset(second).array().value("\ude00").value(1).endArray().flush();
+        assertEquals("[\"?\",1]", new String(second.toByteArray(), StandardCharsets.UTF_8));
+    }
+
+    @Test
+    public void unwindsOpenStructures() {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        JsonEncoder encoder = new JsonEncoder().reset(out);
+        encoder.object().key("values").array().object().key("id");
+        encoder.unwind(0).flush();
+        assertEquals("{\"values\":[{\"id\":null}]}", new String(out.toByteArray(), StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Writes the same random Json into a {@link JSONWriter} or a {@link JsonEncoder}. Objects are written either by
+     * the encoder itself or through {@link JsonEncoder#writer()}, as providers do.
+     */
+    private static final class Document {
+        private final Random random;
+        private int keys;
+
+        Document(Random random) {
+            this.random = random;
+        }
+
+        void write(JSONWriter writer) {
+            writer.array();
+            int size = random.nextInt(6);
+            for (int i = 0; i < size; i++) {
+                random.nextBoolean();
+                object(writer, 0);
+            }
+            writer.endArray();
+        }
+
+        void write(JsonEncoder encoder) {
+            encoder.array();
+            int size = random.nextInt(6);
+            for (int i = 0; i < size; i++) {
+                if (random.nextBoolean()) {
+                    encoder.object();
+                    members(encoder.writer(), 0);
+                    encoder.endObject();
+                } else {
+                    object(encoder, 0);
+                }
+            }
+            encoder.endArray();
+        }
+
+        private void object(JSONWriter writer, int depth) {
+            writer.object();
+            members(writer, depth);
+            writer.endObject();
+        }
+
+        private void members(JSONWriter writer, int depth) {
+            int size = random.nextInt(5);
+            for (int i = 0; i < size; i++) {
+                writer.key(key());
+                if (depth < 3 && random.nextInt(5) == 0) {
+                    boolean array = random.nextBoolean();
+                    if (array) {
+                        writer.array();
+                        int length = random.nextInt(4);
+                        for (int j = 0; j < length; j++) {
+                            writer.value(value());
+                        }
+                        writer.endArray();
+                    } else {
+                        object(writer, depth + 1);
+                    }
+                } else {
+                    writer.value(value());
+                }
+            }
+        }
+
+        private void object(JsonEncoder encoder, int depth) {
+            encoder.object();
+            int size = random.nextInt(5);
+            for (int i = 0; i < size; i++) {
+                encoder.key(key());
+                if (depth < 3 && random.nextInt(5) == 0) {
+                    boolean array = random.nextBoolean();
+                    if (array) {
+                        encoder.array();
+                        int length = random.nextInt(4);
+                        for (int j = 0; j < length; j++) {
+                            encoder.value(value());
+                        }
+                        encoder.endArray();
+                    } else {
+                        object(encoder, depth + 1);
+                    }
+                } else {
+                    encoder.value(value());
+                }
+            }
+            encoder.endObject();
+        }
+
+        /** keys are unique, {@link JSONWriter} rejects duplicates */
+        private String key() {
+            return string(3) + keys++;
+        }
+
+        private Object value() {
+            switch (random.nextInt(8)) {
+                case 0:
+                    return null;
+                case 1:
+                    return random.nextBoolean();
+                case 2:
+                    return random.nextInt();
+                case 3:
+                    return random.nextBoolean() ? Long.MIN_VALUE : random.nextLong();
+                case 4:
+                    return random.nextBoolean() ? random.nextDouble() * 1e25 : (double) random.nextInt(100);
+                default:
+                    return string(12);
+            }
+        }
+
+        private String string(int maxLength) {
+            int length = random.nextInt(maxLength + 1);
+            StringBuilder builder = new StringBuilder(length);
+            for (int i = 0; i < length; i++) {
+                builder.append(ALPHABET.charAt(random.nextInt(ALPHABET.length())));
+            }
+            return builder.toString();
+        }
+    }
+}